@@ -22,10 +22,8 @@
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
@@ -43,6 +41,7 @@
 import org.slf4j.LoggerFactory;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Obfuscate all date fields by serializing them as a relative offset from a specific reference date. The reference date
@@ -60,12 +59,6 @@ public class DateObfuscationProcessor implements ResourceJsonProcessor
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DateObfuscationProcessor.class);
 
-    private final ThreadLocal<Map<String, Long>> dates = ThreadLocal.withInitial(HashMap::new);
-
-    private final ThreadLocal<Boolean> bareExport = new ThreadLocal<>();
-
-    private final ThreadLocal<String> rootNode = new ThreadLocal<>();
-
     private Instant baseDate;
 
     @Override
@@ -102,20 +95,9 @@ public void activate()
 
     }
 
-    @Override
-    public void start(Resource resource)
-    {
-        // It is not nice to explicitly overlap another JSON processor, but this one is very special:
-        // if this is a bare export, we must replace the "created" field added by the bare processor with a differential
-        this.bareExport.set(
-            Arrays.asList(resource.getResourceMetadata().getResolutionPathInfo().split("(?<!\\\\)(?:\\\\\\\\)*\\."))
-                .contains("bare"));
-        this.rootNode.set(resource.getPath());
-    }
-
     @Override
     public JsonValue processProperty(Node node, Property property, JsonValue input,
-        Function<Node, JsonValue> serializeNode)
+        SerializationContext context)
     {
         try {
             if (input != null && property.getType() == PropertyType.DATE && property.getDate() != null) {
@@ -126,10 +108,10 @@ public JsonValue processProperty(Node node, Property property, JsonValue input,
                 }
 
                 if (this.baseDate != null) {
-                    this.dates.get().put(property.getPath(),
+                    getDates(context).put(property.getPath(),
                         this.baseDate.until(property.getDate().toInstant(), ChronoUnit.DAYS));
                 } else {
-                    this.dates.get().put(property.getPath(), null);
+                    getDates(context).put(property.getPath(), null);
                 }
                 return null;
             }
@@ -140,29 +122,30 @@ public JsonValue processProperty(Node node, Property property, JsonValue input,
     }
 
     @Override
-    public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
+    public void leave(Node node, JsonObjectBuilder json, SerializationContext context)
     {
         try {
+            final Map<String, Long> dates = getDates(context);
             final PropertyIterator properties = node.getProperties();
             while (properties.hasNext()) {
                 Property property = properties.nextProperty();
-                if (property.getType() == PropertyType.DATE && this.dates.get().containsKey(property.getPath())) {
-                    Long value = this.dates.get().get(property.getPath());
+                if (property.getType() == PropertyType.DATE && dates.containsKey(property.getPath())) {
+                    Long value = dates.get(property.getPath());
                     json.add("@" + property.getName() + "_differential",
                         value != null ? Json.createValue(value) : JsonValue.NULL);
                 }
             }
+            // It is not nice to explicitly overlap another JSON processor, but this one is very special:
+            // if this is a bare export, we must remove the "created" field added by the bare processor, since the
+            // creation date is only included as a differential
             json.remove("created");
         } catch (RepositoryException e) {
             LOGGER.warn("Failed to access properties of {}: {}", node, e.getMessage(), e);
         }
     }
 
-    @Override
-    public void end(Resource resource)
+    private Map<String, Long> getDates(final SerializationContext context)
     {
-        this.dates.remove();
-        this.rootNode.remove();
-        this.bareExport.remove();
+        return context.getState(this, HashMap::new);
     }
 }
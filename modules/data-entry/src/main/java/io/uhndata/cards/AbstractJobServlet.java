@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.io.IOException;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+
+import io.uhndata.cards.dataentry.internal.jobs.BackgroundJob;
+import io.uhndata.cards.dataentry.internal.jobs.JobRegistry;
+
+/**
+ * Base class for servlets following background jobs. A {@code GET} request with an {@code id} parameter reports the
+ * status and progress of that job. Without an {@code id}, all the jobs submitted by the current user are listed. A
+ * {@code POST} request cancels the job identified by the {@code id} parameter. Users can only see and cancel their own
+ * jobs.
+ *
+ * @param <J> the type of jobs
+ * @version $Id$
+ */
+abstract class AbstractJobServlet<J extends BackgroundJob> extends SlingAllMethodsServlet
+{
+    private static final long serialVersionUID = -5139012748517405617L;
+
+    /** The kind of jobs, used in error messages. */
+    private final String jobType;
+
+    /**
+     * Basic constructor.
+     *
+     * @param jobType the kind of jobs, used in error messages, for example {@code "import"}
+     */
+    protected AbstractJobServlet(final String jobType)
+    {
+        this.jobType = jobType;
+    }
+
+    @Override
+    public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+        throws IOException
+    {
+        final String id = request.getParameter("id");
+        if (StringUtils.isBlank(id)) {
+            prepareResponse(response);
+            final JsonGenerator generator = Json.createGenerator(response.getWriter());
+            generator.writeStartArray();
+            getJobs().list(request.getResourceResolver().getUserID()).forEach(job -> writeJob(generator, job));
+            generator.writeEnd();
+            generator.flush();
+            return;
+        }
+        final J job = getJob(request, response);
+        if (job != null) {
+            writeJob(response, job);
+        }
+    }
+
+    @Override
+    public void doPost(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+        throws IOException
+    {
+        final J job = getJob(request, response);
+        if (job != null) {
+            job.cancel();
+            writeJob(response, job);
+        }
+    }
+
+    /**
+     * The registry running the jobs followed by this servlet.
+     *
+     * @return a job registry
+     */
+    protected abstract JobRegistry<J> getJobs();
+
+    /**
+     * Writes the progress specific to a kind of job, as fields of the job's JSON object.
+     *
+     * @param generator the JSON generator, inside the job's object
+     * @param job the job to describe
+     */
+    protected abstract void writeProgress(JsonGenerator generator, J job);
+
+    /**
+     * Finds the job requested by the user. Users can only see their own jobs.
+     *
+     * @param request the current request, with the job identifier in the {@code id} parameter
+     * @param response the response, where a 404 error is sent if the job cannot be found
+     * @return the requested job, or {@code null} if the job cannot be found
+     * @throws IOException if sending the error fails
+     */
+    private J getJob(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
+        throws IOException
+    {
+        final J job = getJobs().get(request.getParameter("id"));
+        if (job == null || !job.getUserId().equals(request.getResourceResolver().getUserID())) {
+            response.sendError(SlingHttpServletResponse.SC_NOT_FOUND, "Unknown " + this.jobType + " job");
+            return null;
+        }
+        return job;
+    }
+
+    private void prepareResponse(final SlingHttpServletResponse response)
+    {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+    }
+
+    private void writeJob(final SlingHttpServletResponse response, final J job) throws IOException
+    {
+        prepareResponse(response);
+        final JsonGenerator generator = Json.createGenerator(response.getWriter());
+        writeJob(generator, job);
+        generator.flush();
+    }
+
+    private void writeJob(final JsonGenerator generator, final J job)
+    {
+        generator.writeStartObject();
+        generator.write("id", job.getId());
+        generator.write("status", job.getStatus().name());
+        generator.write("submitted", job.getSubmitted());
+        writeProgress(generator, job);
+        if (job.getError() == null) {
+            generator.writeNull("error");
+        } else {
+            generator.write("error", job.getError());
+        }
+        generator.writeEnd();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import javax.json.stream.JsonGenerator;
+import javax.servlet.Servlet;
+
+import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+import io.uhndata.cards.dataentry.internal.dataimport.DataImportJobs;
+import io.uhndata.cards.dataentry.internal.dataimport.DataImporter;
+import io.uhndata.cards.dataentry.internal.dataimport.ImportJob;
+import io.uhndata.cards.dataentry.internal.jobs.JobRegistry;
+
+/**
+ * A servlet for following the data imports submitted through the {@link DataImportServlet}. A {@code GET} request with
+ * an {@code id} parameter reports the progress of that import job: its status, the number of rows processed so far,
+ * the import speed, the estimated time left, and any warnings. Without an {@code id}, all the jobs submitted by the
+ * current user are listed. A {@code POST} request cancels the job identified by the {@code id} parameter; the rows up
+ * to the last saved batch are kept, and the import can be resumed later.
+ *
+ * @version $Id$
+ */
+@Component(service = { Servlet.class })
+@SlingServletResourceTypes(
+    resourceTypes = { "cards/FormsHomepage" },
+    selectors = { "importJob" },
+    methods = { "GET", "POST" })
+public class DataImportJobServlet extends AbstractJobServlet<ImportJob>
+{
+    private static final long serialVersionUID = 4217765338212734315L;
+
+    /** Runs the imports in the background. */
+    @Reference
+    private transient DataImportJobs jobs;
+
+    /**
+     * Basic constructor.
+     */
+    public DataImportJobServlet()
+    {
+        super("import");
+    }
+
+    @Override
+    protected JobRegistry<ImportJob> getJobs()
+    {
+        return this.jobs;
+    }
+
+    @Override
+    protected void writeProgress(final JsonGenerator generator, final ImportJob job)
+    {
+        final DataImporter importer = job.getImporter();
+        generator.write("importedRows", importer.getImportedRows());
+        generator.write("lastCommittedRow", importer.getLastCommittedRow());
+        generator.write("rowsPerSecond", Math.round(importer.getRowsPerSecond() * 100) / 100.0);
+        generator.write("estimatedSecondsLeft", importer.getEstimatedSecondsLeft());
+        generator.writeStartArray("warnings");
+        importer.getWarnings().forEach(generator::write);
+        generator.writeEnd();
+    }
+}
@@ -17,56 +17,60 @@
 package io.uhndata.cards;
 
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
-import java.util.Arrays;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Deque;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-import java.util.Objects;
-import java.util.Set;
-import java.util.UUID;
-
-import javax.jcr.Node;
-import javax.jcr.NodeIterator;
-import javax.jcr.RepositoryException;
-import javax.jcr.Session;
-import javax.jcr.Value;
-import javax.jcr.ValueFactory;
-import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
-import javax.jcr.version.VersionManager;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
 import javax.servlet.Servlet;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
-import org.apache.commons.lang3.BooleanUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
-import org.apache.sling.api.resource.PersistenceException;
-import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletName;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.uhndata.cards.spi.SearchUtils;
+import io.uhndata.cards.concurrent.NamedThreadFactory;
+import io.uhndata.cards.dataentry.internal.dataimport.DataImportJobs;
+import io.uhndata.cards.dataentry.internal.dataimport.DataImporter;
+import io.uhndata.cards.dataentry.internal.dataimport.ImportJob;
+import io.uhndata.cards.dataentry.internal.dataimport.ImportPlanCache;
+import io.uhndata.cards.dataentry.internal.dataimport.SubjectIndex;
 
 /**
  * A servlet for importing CARDS data from CSV files.
+ * <p>
+ * Rows are saved in batches, 1000 rows at a time unless a different {@code :batchSize} is requested, so that large
+ * files don't have to be kept in memory as a single huge change. Rows are processed in parallel by a configurable
+ * number of threads, each thread handling all the rows of a subject. The response reports how many rows were
+ * imported, and the number of the last row that was saved. If the import fails, the rows up to that one are already
+ * stored, and the import can be resumed by sending the same file again with the {@code :resumeAfterRow} parameter set
+ * to that row number.
+ * </p>
+ * <p>
+ * By default, the import runs in the background, and the response only holds the identifier of the new import job,
+ * whose progress can be checked, and which can be cancelled, using the {@link DataImportJobServlet}. If the
+ * {@code :wait} parameter is {@code true}, the request waits until the import is done, and the response reports the
+ * outcome of the import.
+ * </p>
  *
  * @version $Id$
  */
@@ -80,115 +84,55 @@
 )
 @SlingServletResourceTypes(resourceTypes = { "cards/FormsHomepage" }, methods = { "POST" })
 @SlingServletName(servletName = "Data Import Servlet")
-@SuppressWarnings("checkstyle:ClassFanOutComplexity")
+@Designate(ocd = DataImportServlet.Config.class)
 public class DataImportServlet extends SlingAllMethodsServlet
 {
     private static final long serialVersionUID = -5821127949309764050L;
 
-    private static final String VALUE_PROPERTY = "value";
-
-    private static final String LABEL_PROPERTY = "label";
-
-    private static final String NOTE_PROPERTY = "note";
-
-    private static final String NOTE_SUFFIX = "_notes";
-
     private static final Logger LOGGER = LoggerFactory.getLogger(DataImportServlet.class);
 
-    /** Supported date formats. */
-    private static final List<SimpleDateFormat> DATE_FORMATS = Arrays.asList(
-        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSz"),
-        new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss.SSSz"),
-        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssz"),
-        new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ssz"),
-        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS"),
-        new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss.SSS"),
-        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss"),
-        new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ss"),
-        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm"),
-        new SimpleDateFormat("yyyy-MM-dd' 'HH:mm"),
-        new SimpleDateFormat("yyyy-MM-dd"),
-        new SimpleDateFormat("M/d/y"));
-
-    /** Cached Question nodes. */
-    private final ThreadLocal<Map<String, Node>> questionCache = ThreadLocal.withInitial(HashMap::new);
+    /** How many rows are saved at once, unless the request specifies a different batch size. */
+    private static final int DEFAULT_BATCH_SIZE = 1000;
 
-    /** Cached Subject nodes (for multiple forms for the same subject, for instance). */
-    private final ThreadLocal<Map<String, Node>> subjectCache = ThreadLocal.withInitial(HashMap::new);
+    /** Runs the imports in the background. */
+    @Reference
+    private transient DataImportJobs jobs;
 
-    /** Cached Question nodes. */
-    private final ThreadLocal<Set<String>> warnedCache = ThreadLocal.withInitial(HashSet::new);
+    /** Keeps the compiled questionnaires, so that they are not read again for each import. */
+    @Reference
+    private transient ImportPlanCache planCache;
 
-    private final ThreadLocal<Set<String>> nodesToCheckin = ThreadLocal.withInitial(HashSet::new);
+    /** Finds existing subjects without querying the repository for each row. */
+    @Reference
+    private transient SubjectIndex subjectIndex;
 
-    /** The Resource Resolver for the current request. */
-    private final ThreadLocal<ResourceResolver> resolver = new ThreadLocal<>();
+    /** The number of threads used for importing rows. */
+    private int threadPoolSize;
 
-    /** The questionnaire to use for the uploaded CSV. */
-    private final ThreadLocal<Node> questionnaire = new ThreadLocal<>();
+    /** The threads used for importing rows, {@code null} if rows are imported in the request thread. */
+    private transient ExecutorService executor;
 
-    /** The {@code /Subjects} resource. */
-    private final ThreadLocal<Resource> subjectsHomepage = new ThreadLocal<>();
-
-    /** The {@code /Forms} resource. */
-    private final ThreadLocal<Resource> formsHomepage = new ThreadLocal<>();
-
-    /** The list of subjectTypes. */
-    private final ThreadLocal<String[]> subjectTypes = new ThreadLocal<>();
-
-    /** A query manager to handle queries. */
-    private final ThreadLocal<QueryManager> queryManager = new ThreadLocal<>();
-
-    /** A local mapping for question node identifiers to answer nodes. */
-    private final ThreadLocal<Map<String, Resource>> cachedAnswers = new ThreadLocal<>();
-
-    @Override
-    protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
-        throws IOException
+    @Activate
+    protected void activate(final Config config)
     {
-        try {
-            final ResourceResolver resourceResolver = request.getResourceResolver();
-            this.resolver.set(resourceResolver);
-            this.formsHomepage.set(resourceResolver.getResource("/Forms"));
-            this.subjectsHomepage.set(resourceResolver.getResource("/Subjects"));
-            this.queryManager.set(resourceResolver.adaptTo(Session.class).getWorkspace().getQueryManager());
-
-            String[] subjectTypesParam = request.getParameterValues(":subjectType");
-            // If :subjectType isn't set, then /SubjectTypes/Patient should be assumed to be the default value.
-            if (subjectTypesParam == null || subjectTypesParam.length == 0) {
-                subjectTypesParam = new String[] { "/SubjectTypes/Patient" };
-            }
-            this.subjectTypes.set(subjectTypesParam);
+        this.threadPoolSize = config.threadPoolSize();
+        if (this.threadPoolSize > 1) {
+            this.executor = Executors.newFixedThreadPool(this.threadPoolSize, new NamedThreadFactory("DataImport"));
+        }
+    }
 
-            parseData(request, StringUtils.equals("true", request.getParameter(":patch")));
-        } catch (RepositoryException e) {
-            LOGGER.error("Failed to import data: {}", e.getMessage(), e);
-        } finally {
-            this.subjectsHomepage.remove();
-            this.subjectTypes.remove();
-            this.subjectCache.remove();
-            this.questionnaire.remove();
-            this.questionCache.remove();
-            this.warnedCache.remove();
-            this.formsHomepage.remove();
-            this.nodesToCheckin.remove();
-            this.cachedAnswers.remove();
-            this.resolver.remove();
-            this.queryManager.remove();
+    @Deactivate
+    protected void deactivate()
+    {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
         }
     }
 
-    /**
-     * Parses the uploaded data file, creating or updating nodes of type {@code Form} referencing a specific
-     * questionnaire.
-     *
-     * @param request the request to process, holding the needed request data
-     * @param patch if {@code true}, try to update existing nodes when possible; if {@code false}, new forms are always
-     *            created
-     * @throws IOException if getting the data from the request fails
-     * @throws RepositoryException if saving the processed data fails due to repository errors or incorrect data
-     */
-    private void parseData(final SlingHttpServletRequest request, boolean patch) throws IOException, RepositoryException
+    @Override
+    protected void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
+        throws IOException
     {
         final RequestParameter dataFile = request.getRequestParameter(":data");
         if (dataFile == null) {
@@ -199,666 +143,142 @@ private void parseData(final SlingHttpServletRequest request, boolean patch) thr
         if (StringUtils.isBlank(questionnaireName)) {
             throw new IllegalArgumentException("Required parameter \":questionnaire\" missing");
         }
-        this.questionnaire.set(this.resolver.get().getResource(questionnaireName).adaptTo(Node.class));
 
-        CSVFormat format = CSVFormat.TDF.withFirstRecordAsHeader();
-        try (CSVParser data = CSVParser.parse(dataFile.getInputStream(), StandardCharsets.UTF_8, format)) {
-            data.forEach(row -> {
-                try {
-                    this.parseRow(row, patch);
-                } catch (PersistenceException e) {
-                    LOGGER.warn("Failed to import row: {}", e.getMessage());
-                }
-            });
+        String[] subjectTypesParam = request.getParameterValues(":subjectType");
+        // If :subjectType isn't set, then /SubjectTypes/Patient should be assumed to be the default value.
+        if (subjectTypesParam == null || subjectTypesParam.length == 0) {
+            subjectTypesParam = new String[] { "/SubjectTypes/Patient" };
         }
-        final Session session = request.getResourceResolver().adaptTo(Session.class);
-        session.save();
-        final VersionManager vm = session.getWorkspace().getVersionManager();
-        this.nodesToCheckin.get().forEach(node -> {
-            try {
-                vm.checkin(node);
-            } catch (RepositoryException e) {
-                LOGGER.warn("Failed to check in node {}: {}", node, e.getMessage(), e);
-            }
-        });
-    }
 
-    /**
-     * Parses and stores one row of data into a {@code Form} node.
-     *
-     * @param row the row to parse
-     * @param patch if {@code true}, try to find and update an existing form; if {@code false}, a new form is created
-     * @throws PersistenceException if saving the processed data fails due to repository errors or incorrect data
-     */
-    private void parseRow(CSVRecord row, boolean patch) throws PersistenceException
-    {
-        this.cachedAnswers.set(new HashMap<>());
-        final Resource form = getOrCreateForm(row, patch);
-        if (form == null) {
+        if (StringUtils.equals("true", request.getParameter(":wait"))) {
+            final DataImporter importer = createImporter(request, request.getResourceResolver(), questionnaireName,
+                subjectTypesParam);
+            importer.run(dataFile.getInputStream());
+            writeStatusJson(response, importer.getError(), importer.getImportedRows(),
+                importer.getLastCommittedRow());
             return;
         }
-        row.toMap().forEach((fieldName, fieldValue) -> {
-            try {
-                if (StringUtils.isBlank(fieldValue)) {
-                    return;
-                }
 
-                if (fieldName.endsWith(NOTE_SUFFIX)) {
-                    parseNote(fieldName.trim(), fieldValue, form);
-                } else {
-                    parseAnswer(fieldName.trim(), fieldValue, form);
-                }
-            } catch (PersistenceException | RepositoryException e) {
-                LOGGER.warn("Failed to parse row [{}]: {}", row.getRecordNumber(), e.getMessage());
-            }
-        });
-        this.nodesToCheckin.get().add(form.getPath());
-    }
-
-    /**
-     * Parse and store a note to an Answer. This will reuse the answer if it already exists.
-     *
-     * @param fieldName the column name for this field
-     * @param fieldValue the raw value for this field
-     * @param form the Form that this Answer belongs to
-     * @throws PersistenceException if saving the processed data fails due to repository errors or incorrect data
-     * @throws RepositoryException if saving the processed data fails due to repository errors or incorrect data
-     */
-    private void parseNote(String fieldName, String fieldValue, Resource form)
-        throws PersistenceException, RepositoryException
-    {
-        // Truncate the suffix from the fieldName before finding the related question
-        String fieldNamePrefix = fieldName.substring(0, fieldName.length() - NOTE_SUFFIX.length());
-        Node question = getQuestion(fieldNamePrefix);
-        if (question == null) {
+        // The request ends before the import, so keep a copy of the data, and a resource resolver for the user
+        final Path data = Files.createTempFile("cards-import-", ".tsv");
+        final ResourceResolver resolver;
+        try (InputStream in = dataFile.getInputStream()) {
+            Files.copy(in, data, StandardCopyOption.REPLACE_EXISTING);
+            resolver = request.getResourceResolver().clone(null);
+        } catch (IOException | LoginException e) {
+            Files.deleteIfExists(data);
+            LOGGER.error("Failed to start data import: {}", e.getMessage(), e);
+            writeStatusJson(response, "Failed to start data import: " + e.getMessage(), 0, 0);
             return;
         }
-
-        Resource answer = getOrCreateAnswer(form, question);
-        answer.adaptTo(Node.class).setProperty(NOTE_PROPERTY, fieldValue);
-    }
-
-    /**
-     * Parses and stores one Answer.
-     *
-     * @param fieldName the column name for this field
-     * @param fieldValue the raw value for this field
-     * @param form the Form that this Answer belongs to
-     * @throws PersistenceException if saving the processed data fails due to repository errors or incorrect data
-     * @throws RepositoryException if saving the processed data fails due to repository errors or incorrect data
-     */
-    private void parseAnswer(String fieldName, String fieldValue, Resource form)
-        throws PersistenceException, RepositoryException
-    {
-        Node question = getQuestion(fieldName);
-        if (question == null) {
-            return;
-        }
-
-        Resource answer = getOrCreateAnswer(form, question);
-
-        if (question.getProperty("maxAnswers").getLong() == 0) {
-            String[] rawValues = fieldValue.split("\n");
-            Value[] values = new Value[rawValues.length];
-            for (int i = 0; i < rawValues.length; ++i) {
-                values[i] = parseAnswerValue(rawValues[i].trim(), question);
-            }
-            answer.adaptTo(Node.class).setProperty(VALUE_PROPERTY, values);
-        } else {
-            answer.adaptTo(Node.class).setProperty(VALUE_PROPERTY, parseAnswerValue(fieldValue.trim(), question));
-        }
-    }
-
-    /**
-     * Finds the question corresponding to a field in the current row.
-     *
-     * @param columnName the name of the column in the CSV
-     * @return the corresponding question node, or {@code null} if no question can be automatically identified from the
-     *         given column name
-     */
-    private Node getQuestion(String columnName)
-    {
-        Map<String, Node> cache = this.questionCache.get();
-        try {
-            if (!cache.containsKey(columnName)) {
-                String query =
-                    String.format("select n from [cards:Question] as n where isdescendantnode(n,'%s') and ",
-                        SearchUtils.escapeQueryArgument(this.questionnaire.get().getPath()));
-
-                // checking if NAME(n) = <an invalid identifier> will cause the entire query to fail
-                // instead, we'll form the query differently depending on whether or not it is a valid JCR name
-                if (SearchUtils.isValidNodeName(columnName)) {
-                    query += String.format("(n.text = '%s' or NAME(n) = '%s')",
-                        SearchUtils.escapeQueryArgument(columnName),
-                        SearchUtils.escapeQueryArgument(columnName));
-                } else {
-                    query += String.format("n.text = '%s'",
-                        SearchUtils.escapeQueryArgument(columnName));
-                }
-
-                Iterator<Resource> results = this.resolver.get().findResources(query, "JCR-SQL2");
-                if (!results.hasNext()) {
-                    cache.put(columnName, null);
-                } else {
-                    cache.put(columnName, results.next().adaptTo(Node.class));
-                }
-            }
-        } catch (RepositoryException e) {
-            LOGGER.warn("Unexpected exception while searching for the question [{}]: {}", columnName, e.getMessage());
-        }
-
-        Node question = cache.get(columnName);
-        if (question == null) {
-            if (this.warnedCache.get().add(columnName)) {
-                LOGGER.info("Unknown field: {}", columnName);
-            }
-        }
-        return question;
-    }
-
-    /**
-     * Returns a Resource for storing an Answer corresponding to the given question. This may be an existing node, if
-     * one already exists in this form, or a newly created one otherwise.
-     * <p>
-     * FIXME This needs to be revisited to add support for repeated sections.
-     * </p>
-     *
-     * @param form the form being processed
-     * @param question the question being answered
-     * @throws RepositoryException if accessing the resource fails due to repository errors
-     * @throws PersistenceException if creating a new resource fails due to repository errors
-     */
-    private Resource getOrCreateAnswer(final Resource form, final Node question)
-        throws RepositoryException, PersistenceException
-    {
-        if (this.cachedAnswers.get().containsKey(question.getIdentifier())) {
-            return this.cachedAnswers.get().get(question.getIdentifier());
-        }
-
-        final String query =
-            String.format("select n from [cards:Answer] as n where n.question = '%s' and isdescendantnode(n,'%s')",
-                question.getIdentifier(), form.getPath());
-        Iterator<Resource> results = this.resolver.get().findResources(query, "JCR-SQL2");
-        if (results.hasNext()) {
-            return results.next();
-        }
-
-        Map<String, Object> answerProperties = new HashMap<>();
-        answerProperties.put("jcr:primaryType", getAnswerNodeType(question));
-        answerProperties.put("question", question);
-        Resource answerParent = findOrCreateParent(form, question);
-        Resource newNode = this.resolver.get().create(answerParent, UUID.randomUUID().toString(), answerProperties);
-        this.cachedAnswers.get().put(question.getIdentifier(), newNode);
-        return newNode;
-    }
-
-    /**
-     * Gets the parent node under which an answer must be stored. This can be either the form directly, or a (possibly
-     * nested) {@code AnswerSection}.
-     *
-     * @param form the form being processed
-     * @param question the question being answered
-     * @return the resource node under which the answer must be stored
-     * @throws PersistenceException if a new resource must be created, but doing so fails
-     * @throws RepositoryException if accessing the repository fails
-     */
-    private Resource findOrCreateParent(final Resource form, final Node question)
-        throws PersistenceException, RepositoryException
-    {
-        // Find all the intermediate sections between the question and the questionnaire, bottom-to-top
-        final Iterator<Node> sections = getAncestorSections(question);
-        // Create all the needed intermediate answer sections between the form and the answer, top-to-bottom
-        Resource answerParent = form;
-        while (sections.hasNext()) {
-            answerParent = getAnswerSection(sections.next(), answerParent);
-        }
-        return answerParent;
-    }
-
-    /**
-     * Returns an iterator over the ancestor sections, in descending order from the questionnaire down to the question
-     * itself. The iterator may be empty, if the question is a direct child of the questionnaire.
-     *
-     * @param question the question whose ancestors are to be retrieved
-     * @return an iterator over {@code Section} nodes, may be empty
-     * @throws RepositoryException if accessing the repository fails
-     */
-    private Iterator<Node> getAncestorSections(final Node question) throws RepositoryException
-    {
-        Node questionParent = question.getParent();
-        final Deque<Node> sections = new LinkedList<>();
-        while (!"cards:Questionnaire".equals(questionParent.getPrimaryNodeType().getName())) {
-            sections.push(questionParent);
-            questionParent = questionParent.getParent();
-        }
-        return sections.iterator();
+        final ImportJob job = this.jobs.submit(resolver.getUserID(),
+            createImporter(request, resolver, questionnaireName, subjectTypesParam), data, resolver);
+        writeJobJson(request, response, job);
     }
 
-    /**
-     * Finds or creates an {@code AnswerSection} node under {@code parent} corresponding to the given {@code section}.
-     *
-     * @param section the questionnaire section to be answered
-     * @param parent the parent node in which to look for the answer section, either a {@code Form} or another
-     *            {@code AnswerSection}
-     * @return a resource of type {@code cards:AnswerSection} referencing the given questionnaire section, either one
-     *         that already existed, or a newly created one
-     * @throws PersistenceException if a new resource must be created, but doing so fails
-     * @throws RepositoryException if accessing the repository fails
-     */
-    private Resource getAnswerSection(final Node section, final Resource parent)
-        throws PersistenceException, RepositoryException
-    {
-        String sectionRef = section.getProperty("jcr:uuid").getString();
-        Resource answerSection = null;
-        Resource result = null;
-        Iterator<Resource> children = parent.listChildren();
-        while (children.hasNext()) {
-            Resource child = children.next();
-            if (sectionRef.equals(child.getValueMap().get("section", ""))) {
-                answerSection = child;
-                break;
-            }
-        }
-        if (answerSection != null) {
-            result = answerSection;
-        } else {
-            Map<String, Object> answerSectionProperties = new HashMap<>();
-            answerSectionProperties.put("jcr:primaryType", "cards:AnswerSection");
-            answerSectionProperties.put("section", section);
-            result = this.resolver.get().create(parent, UUID.randomUUID().toString(), answerSectionProperties);
-        }
-        return result;
-    }
-
-    /**
-     * Computes the right node type for storing an Answer, based on the configuration of its Question.
-     *
-     * @param question the question that is being answered, where the Answer configuration is defined
-     * @return a value to use for the {@code jcr:primaryType} of the Answer node to be created
-     * @throws RepositoryException if accessing the resource fails due to repository errors
-     */
-    private String getAnswerNodeType(final Node question) throws RepositoryException
-    {
-        final String dataType = question.getProperty("dataType").getString();
-        String result;
-        switch (dataType) {
-            case "long":
-                result = "cards:LongAnswer";
-                break;
-            case "double":
-                result = "cards:DoubleAnswer";
-                break;
-            case "decimal":
-                result = "cards:DecimalAnswer";
-                break;
-            case "boolean":
-                result = "cards:BooleanAnswer";
-                break;
-            case "date":
-                result = "cards:DateAnswer";
-                break;
-            case "time":
-                result = "cards:TimeAnswer";
-                break;
-            case "vocabulary":
-                result = "cards:VocabularyAnswer";
-                break;
-            case "text":
-            default:
-                result = "cards:TextAnswer";
-        }
-        return result;
-    }
-
-    /**
-     * Converts a text read from the input CSV into a properly typed value to store in the repository.
-     *
-     * @param rawValue the serialized value to parse, may be {@code null}
-     * @param question the question that is being answered, where the Answer configuration is defined
-     * @return a typed Value to store in the repository
-     * @throws RepositoryException if accessing the resource fails due to repository errors
-     */
-    private Value parseAnswerValue(String rawValue, Node question) throws RepositoryException
+    private DataImporter createImporter(final SlingHttpServletRequest request, final ResourceResolver resolver,
+        final String questionnaireName, final String[] subjectTypes)
     {
-        final String dataType = question.getProperty("dataType").getString();
-        Value result = null;
-        try {
-            ValueFactory valueFactory = this.resolver.get().adaptTo(Session.class).getValueFactory();
-
-            switch (dataType) {
-                case "long":
-                    result = valueFactory.createValue(Long.valueOf(rawValue));
-                    break;
-                case "double":
-                    result = valueFactory.createValue(Double.valueOf(rawValue));
-                    break;
-                case "decimal":
-                    result = valueFactory.createValue(new BigDecimal(rawValue));
-                    break;
-                case "boolean":
-                    result = valueFactory.createValue(
-                        BooleanUtils.toInteger(BooleanUtils.toBooleanObject(rawValue), 1, 0, -1));
-                    break;
-                case "date":
-                    result = valueFactory.createValue(parseDate(rawValue));
-                    break;
-                case "text":
-                default:
-                    result = valueFactory.createValue(standardizeValue(rawValue, question));
-            }
-        } catch (NumberFormatException | NullPointerException e) {
-            LOGGER.warn("Invalid value of type {}: {}", dataType, rawValue);
-        } catch (RepositoryException e) {
-            LOGGER.warn("Value factory is unexpectedly unavailable: {}", e.getMessage());
-            return null;
-        }
-        return result;
+        return new DataImporter(resolver, this.executor, this.threadPoolSize, questionnaireName, subjectTypes,
+            StringUtils.equals("true", request.getParameter(":patch")),
+            getLongParameter(request, ":batchSize", (long) DEFAULT_BATCH_SIZE).intValue(),
+            getLongParameter(request, ":resumeAfterRow", 0L), this.planCache, this.subjectIndex);
     }
 
     /**
-     * Parses a date from the given input string.
+     * Reads an optional numeric request parameter.
      *
-     * @param str the serialized date to parse
-     * @return the parsed date, or {@code null} if the date cannot be parsed
+     * @param request the request to process
+     * @param name the name of the parameter
+     * @param defaultValue the value to use when the parameter is missing or invalid
+     * @return the value of the parameter, if it is a valid non-negative number, or the default value otherwise
      */
-    private Calendar parseDate(final String str)
+    private Long getLongParameter(final SlingHttpServletRequest request, final String name, final Long defaultValue)
     {
-        final Date date = DATE_FORMATS.stream().map(format -> {
+        final String value = request.getParameter(name);
+        if (StringUtils.isNotBlank(value)) {
             try {
-                return format.parse(str);
-            } catch (Exception ex) {
-                return null;
-            }
-        }).filter(Objects::nonNull).findFirst().orElse(null);
-        if (date == null) {
-            return null;
-        }
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(date);
-        return calendar;
-    }
-
-    /**
-     * Converts user-facing labels to the stored value, if the question being answered has a list of default options,
-     * and one of the options has a label or value matching (case insensitive) the parsed value. To allow for different
-     * options that differ only in their case, priority is given, in order, to:
-     * <ol>
-     * <li>Exact match of a value, which means that the input file already stored the correct value</li>
-     * <li>Case-insensitive match of a value</li>
-     * <li>Case-sensitive match of a label</li>
-     * <li>Case-insensitive match of a label</li>
-     * </ol>
-     *
-     * @param value the value as read from the input file
-     * @param question the question that is being answered, where the Answer configuration is defined
-     * @return an equivalent standard value to be stored, may be the same as the input value
-     */
-    private String standardizeValue(final String value, Node question)
-    {
-        String result = null;
-        try {
-            for (String prop : new String[] { VALUE_PROPERTY, LABEL_PROPERTY }) {
-                NodeIterator childNodes = question.getNodes();
-                while (childNodes.hasNext()) {
-                    Node childNode = childNodes.nextNode();
-                    if (!"cards:AnswerOption".equals(childNode.getPrimaryNodeType().getName())
-                        || !childNode.hasProperty(prop)) {
-                        continue;
-                    }
-                    if (StringUtils.equals(value, childNode.getProperty(prop).getString())) {
-                        // We found an exact match for a known option, no need to do any further processing
-                        return childNode.getProperty(VALUE_PROPERTY).getString();
-                    } else if (StringUtils.equalsIgnoreCase(value, childNode.getProperty(prop).getString())) {
-                        result = childNode.getProperty(VALUE_PROPERTY).getString();
-                    }
-                }
-                if (result != null) {
-                    // We found a case-insensitive value match, return it
+                final long result = Long.parseLong(value.trim());
+                if (result >= 0) {
                     return result;
                 }
+            } catch (NumberFormatException e) {
+                // Fall back to the default value
             }
-            return value;
-        } catch (RepositoryException ex) {
-            LOGGER.warn("Unexpected error while standardizing value [{}] for question [{}]: {}", value, question,
-                ex.getMessage());
+            LOGGER.warn("Invalid value for {}: {}", name, value);
         }
-        return result;
+        return defaultValue;
     }
 
     /**
-     * Returns a Resource for storing a form corresponding to the given data row. This may be an existing node, if
-     * {@code patch == true} and one already exists for the targeted questionnaire and subject, or a newly created one
-     * otherwise.
+     * Writes the outcome of the import in the response, as a JSON.
      *
-     * @param row the input CSV row to process, where the affected Subject identifier is to be found
-     * @param patch if {@code true}, try to find an existing form; otherwise, force the creation of a new node in the
-     *            repository
-     * @return the Resource to use for storing the row
-     * @throws PersistenceException if creating a new Resource fails
+     * @param response the response to write to
+     * @param error the error that stopped the import, or {@code null} if the whole file was imported
+     * @param importedRows the number of rows that were imported and saved
+     * @param lastCommittedRow the number of the last row that was saved, from which a failed import can be resumed
+     * @throws IOException if writing the response fails
      */
-    private Resource getOrCreateForm(final CSVRecord row, boolean patch) throws PersistenceException
+    private void writeStatusJson(final SlingHttpServletResponse response, final String error, final long importedRows,
+        final long lastCommittedRow) throws IOException
     {
-        final Node subject = getOrCreateSubject(row);
-        if (subject == null) {
-            LOGGER.warn("Cannot determine subject for row #{}", row.getRecordNumber());
-            return null;
-        }
-        Resource result = null;
-        if (patch) {
-            result = findForm(subject);
-        }
-        if (result == null) {
-            final Map<String, Object> formProperties = new HashMap<>();
-            formProperties.put("jcr:primaryType", "cards:Form");
-            formProperties.put("questionnaire", this.questionnaire.get());
-            formProperties.put("subject", subject);
-            result = this.resolver.get().create(this.formsHomepage.get(), UUID.randomUUID().toString(), formProperties);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setStatus(error == null
+            ? SlingHttpServletResponse.SC_OK : SlingHttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        final Writer out = response.getWriter();
+        final JsonGenerator generator = Json.createGenerator(out);
+        generator.writeStartObject();
+        generator.write("isSuccessful", error == null);
+        generator.write("importedRows", importedRows);
+        generator.write("lastCommittedRow", lastCommittedRow);
+        if (error == null) {
+            generator.writeNull("error");
         } else {
-            try {
-                result.adaptTo(Node.class).getSession().getWorkspace().getVersionManager().checkout(result.getPath());
-            } catch (RepositoryException e) {
-                LOGGER.warn("Failed to checkout form {}: {}", result.getPath(), e.getMessage(), e);
-            }
+            generator.write("error", error);
         }
-        return result;
+        generator.writeEnd();
+        generator.flush();
     }
 
     /**
-     * Finds an existing form for the given questionnaire and subject.
+     * Writes the identifier of a newly submitted import job in the response, as a JSON.
      *
-     * @param subject the subject for which the Form is completed
-     * @return an existing resource matching the targeted questionnaire and subject, or {@code null} if such a resource
-     *         doesn't exist yet
+     * @param request the request that submitted the job
+     * @param response the response to write to
+     * @param job the submitted job
+     * @throws IOException if writing the response fails
      */
-    private Resource findForm(final Node subject)
+    private void writeJobJson(final SlingHttpServletRequest request, final SlingHttpServletResponse response,
+        final ImportJob job) throws IOException
     {
-        try {
-            final String query =
-                String.format("select n from [cards:Form] as n where n.subject = '%s' and n.questionnaire = '%s'",
-                    subject.getIdentifier(), this.questionnaire.get().getIdentifier());
-            final Iterator<Resource> results = this.resolver.get().findResources(query, "JCR-SQL2");
-            if (results.hasNext()) {
-                return results.next();
-            }
-        } catch (RepositoryException e) {
-            LOGGER.warn("Unexpected exception while searching for a form: {}", e.getMessage());
-            e.printStackTrace();
-        }
-        return null;
+        final String statusUrl = request.getResource().getPath() + ".importJob.json?id=" + job.getId();
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setStatus(SlingHttpServletResponse.SC_ACCEPTED);
+        response.setHeader("Location", statusUrl);
+        final JsonGenerator generator = Json.createGenerator(response.getWriter());
+        generator.writeStartObject();
+        generator.write("isSuccessful", true);
+        generator.write("jobId", job.getId());
+        generator.write("status", job.getStatus().name());
+        generator.write("statusUrl", statusUrl);
+        generator.writeEnd();
+        generator.flush();
     }
 
-    /**
-     * Returns the Node where a specific Subject is stored. If the Subject wasn't already stored in the repository, a
-     * new node is created for it and returned.
-     *
-     * @param row the input CSV row to process, where the affected Subject identifier is to be found
-     * @return the Resource where the Subject is stored; may be an existing or a newly created resource; may be
-     *         {@code null} if a Subject identifier is not present in the row
-     */
-    private Node getOrCreateSubject(final CSVRecord row)
-    // For each subject type, identify the target subject
-    // Given a parent subject (initially null) & a subject type path:
-    // 1. get the Node for the subject type (cached for future rows)
-    // 2. read label, look for a column with that label or label + “ ID” in the row, get value
-    // 3. search for a Subject with the right type, parent, and identifier
-    // If found, use it as the current subject. If not, create it,
-    // specifying the type, parent, and identifier, and use it as the current subject.
-    // Update the parent variable to be the current subject.
-    // If there are more entries in the subject types list, recurse with the new parent and new subject type.
-    // When the whole list of subject types is processed, return current subject as the subject to use for the row.
+    /** Configuration for the data import. */
+    @ObjectClassDefinition(name = "CARDS - Data import",
+        description = "Configuration for the servlet importing data from TSV files")
+    public @interface Config
     {
-        Node previous = null;
-        Node current = null;
-        for (String type : this.subjectTypes.get()) {
-            current = getOrCreateSubject(row, type, current);
-            // If this subject identifier is empty, then the last used subject type
-            // e.g. If a patient and tumor is specified but no tumor region, then we instead want to create/use
-            // the tumor ID
-            if (current == null) {
-                return previous;
-            }
-            previous = current;
-        }
-        return current;
-    }
-
-    private Node getOrCreateSubject(CSVRecord row, String type, Node parent)
-    {
-        // Find the subject corresponding to this
-        Node typeNode = this.resolver.get().getResource(type).adaptTo(Node.class);
-        String subjectId = findSubjectId(row, typeNode);
-        if (StringUtils.isBlank(subjectId)) {
-            return null;
-        }
-        String subjectTypeString = type;
-        String subjectKey = subjectId.concat(subjectTypeString);
-        if (parent != null) {
-            try {
-                subjectKey = parent.getProperty("identifier").getString().concat(subjectKey);
-            } catch (RepositoryException ex) {
-                // No change
-            }
-        }
-
-        Node subject = findSubject(subjectKey, subjectId, typeNode, parent);
-        if (subject != null) {
-            return subject;
-        }
-
-        // Create a new subject
-        return createSubject(subjectKey, subjectId, typeNode, parent);
-    }
-
-    /***
-     * Find a subject with the given parameters.
-     *
-     * @param subjectKey A key for this subject to search the cache for
-     * @param subjectId The identifier of the subject
-     * @param typeNode The Node of the cards:SubjectType for the subject
-     * @param parent The parent cards:Subject for this subject
-     * @return A subject Node if it exists, or null.
-     */
-    private Node findSubject(String subjectKey, String subjectId, Node typeNode, Node parent)
-    {
-        // Load a cached version if we already have one
-        Map<String, Node> cache = this.subjectCache.get();
-        if (cache.containsKey(subjectKey)) {
-            return cache.get(subjectKey);
-        }
-
-        String query = String.format("select n from [cards:Subject] as n where n.identifier = '%s'",
-            SearchUtils.escapeQueryArgument(subjectId));
-        try {
-            if (typeNode != null) {
-                query += " and n.type = '" + typeNode.getProperty("jcr:uuid").getValue() + "'";
-            }
-            if (parent != null) {
-                query += " and ischildnode(n, '" + parent.getPath() + "')";
-            }
-        } catch (RepositoryException ex) {
-            // No change to query
-        }
-
-        try {
-            Query queryObj = this.queryManager.get().createQuery(query, "JCR-SQL2");
-            queryObj.setLimit(1);
-            NodeIterator nodeResult = queryObj.execute().getNodes();
-
-            // If a result was found, cache it and return
-            if (nodeResult.hasNext()) {
-                Node subject = nodeResult.nextNode();
-                cache.put(subjectKey, subject);
-                return subject;
-            }
-        } catch (RepositoryException ex) {
-            // Could not find subject, return null
-        }
-        return null;
-    }
-
-    /***
-     * Create a new subject.
-     *
-     * @param subjectId The identifier for the subject
-     * @param typeNode The node of the cards:SubjectType for this subject
-     * @param parent The parent of this subject
-     * @param subjectKey A string to identify this subject by in the cache
-     * @return A new subject Node if one could be made, or null.
-     */
-    private Node createSubject(String subjectKey, String subjectId, Node typeNode, Node parent)
-    {
-        final Map<String, Object> subjectProperties = new HashMap<>();
-        subjectProperties.put("jcr:primaryType", "cards:Subject");
-        subjectProperties.put("identifier", subjectId);
-        subjectProperties.put("type", typeNode);
-        if (parent != null) {
-            subjectProperties.put("parents", parent);
-        }
-        try {
-            Resource parentResource = parent != null
-                ? this.resolver.get().getResource(parent.getPath())
-                : this.subjectsHomepage.get();
-            Node subject = this.resolver.get().create(parentResource, UUID.randomUUID().toString(), subjectProperties)
-                .adaptTo(Node.class);
-            this.subjectCache.get().put(subjectKey, subject);
-            this.nodesToCheckin.get().add(subject.getPath());
-            return subject;
-        } catch (PersistenceException e) {
-            LOGGER.warn("Failed to create new subject {}: {}", subjectKey, e.getMessage(), e);
-        } catch (RepositoryException e) {
-            LOGGER.warn("Failed to check in new subject {}: {}", subjectKey, e.getMessage(), e);
-        }
-        return null;
-    }
-
-    /**
-     * Looks for a Subject Identifier in the given data row.
-     *
-     * @param row the input CSV row to process, where the affected Subject identifier is to be found
-     * @param typeNode Subject type node
-     * @return a subject identifier, or {@code null} if one cannot be found
-     */
-    private String findSubjectId(CSVRecord row, Node typeNode)
-    {
-        String label;
-        try {
-            label = typeNode.getProperty("label").getString();
-        } catch (RepositoryException ex) {
-            return null;
-        }
-
-        String result = null;
-        String[] suffixes = { "", " ID" };
-        for (String suffix : suffixes) {
-            try {
-                result = row.get(label + suffix);
-                if (StringUtils.isNotBlank(result)) {
-                    break;
-                }
-            } catch (IllegalArgumentException ex) {
-                // Column is not mapped, continue;
-            }
-        }
-        return result;
+        /**
+         * The number of threads importing rows in parallel.
+         *
+         * @return a positive number, {@code 1} to import rows one at a time in the request thread
+         */
+        @AttributeDefinition(name = "Thread pool size",
+            description = "The maximum number of threads importing rows in parallel, 1 to only use the request thread")
+        int threadPoolSize() default 4;
     }
 }
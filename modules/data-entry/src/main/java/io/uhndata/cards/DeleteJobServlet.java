@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import javax.json.stream.JsonGenerator;
+import javax.servlet.Servlet;
+
+import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+import io.uhndata.cards.dataentry.internal.delete.DeleteJob;
+import io.uhndata.cards.dataentry.internal.delete.DeleteJobs;
+import io.uhndata.cards.dataentry.internal.jobs.JobRegistry;
+
+/**
+ * A servlet for following the background deletes submitted through the {@link DeleteServlet}. A {@code GET} request
+ * with an {@code id} parameter reports the progress of that delete job: its status, the number of nodes deleted so
+ * far out of the total, the number of commits, and the delete speed. Without an {@code id}, all the jobs submitted by
+ * the current user are listed. A {@code POST} request cancels the job identified by the {@code id} parameter; the
+ * nodes deleted up to the last saved chunk stay deleted, and the delete can be resumed by submitting it again.
+ *
+ * @version $Id$
+ */
+@Component(service = { Servlet.class })
+@SlingServletResourceTypes(
+    resourceTypes = { "cards/Resource" },
+    selectors = { "deleteJob" },
+    methods = { "GET", "POST" })
+public class DeleteJobServlet extends AbstractJobServlet<DeleteJob>
+{
+    private static final long serialVersionUID = -2410695347717470317L;
+
+    /** Runs the deletes in the background. */
+    @Reference
+    private transient DeleteJobs jobs;
+
+    /**
+     * Basic constructor.
+     */
+    public DeleteJobServlet()
+    {
+        super("delete");
+    }
+
+    @Override
+    protected JobRegistry<DeleteJob> getJobs()
+    {
+        return this.jobs;
+    }
+
+    @Override
+    protected void writeProgress(final JsonGenerator generator, final DeleteJob job)
+    {
+        generator.writeStartArray("paths");
+        job.getPaths().forEach(generator::write);
+        generator.writeEnd();
+        generator.write("totalNodes", job.getTotalNodes());
+        generator.write("deletedNodes", job.getDeletedNodes());
+        generator.write("commits", job.getCommits());
+        generator.write("nodesPerSecond", Math.round(job.getNodesPerSecond() * 100) / 100.0);
+    }
+}
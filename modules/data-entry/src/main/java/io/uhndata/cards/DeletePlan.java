@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+
+/**
+ * Computes what must be deleted for deleting a node: the node itself with all its descendants, and the nodes outside
+ * of this subtree which reference any of them, along with the nodes which reference those, and so on. Nodes are
+ * tracked by path, so each node is looked at only once, and the traversal uses explicit work queues instead of
+ * recursion, so the time needed grows linearly with the number of nodes involved, and deep trees can't overflow the
+ * stack. References are only looked up for referenceable nodes, since other nodes cannot be referenced.
+ *
+ * @version $Id$
+ */
+final class DeletePlan
+{
+    /** The node requested to be deleted. */
+    private final Node root;
+
+    /** The path of the root node. */
+    private final String rootPath;
+
+    /** The number of nodes in the subtree of the root node, including the root itself. */
+    private int subtreeSize;
+
+    /** The nodes referencing the subtree, directly or indirectly, by path, in the order they were found. */
+    private final Map<String, Node> referrers = new LinkedHashMap<>();
+
+    private DeletePlan(final Node root) throws RepositoryException
+    {
+        this.root = root;
+        this.rootPath = root.getPath();
+    }
+
+    /**
+     * Computes the deletion plan for a node.
+     *
+     * @param root the node requested to be deleted
+     * @return the plan
+     * @throws RepositoryException if accessing the repository fails
+     */
+    static DeletePlan compute(final Node root) throws RepositoryException
+    {
+        final DeletePlan result = new DeletePlan(root);
+        result.traverse();
+        return result;
+    }
+
+    /**
+     * The node requested to be deleted.
+     *
+     * @return the root node
+     */
+    Node getRoot()
+    {
+        return this.root;
+    }
+
+    /**
+     * The number of nodes in the subtree to delete.
+     *
+     * @return a positive number, including the root node itself
+     */
+    int getSubtreeSize()
+    {
+        return this.subtreeSize;
+    }
+
+    /**
+     * The nodes outside of the subtree which reference it, directly or through other referrers. Descendants of these
+     * nodes are not included, unless they reference the subtree themselves.
+     *
+     * @return a collection of nodes, empty if nothing references the subtree
+     */
+    Collection<Node> getReferrers()
+    {
+        return Collections.unmodifiableCollection(this.referrers.values());
+    }
+
+    /**
+     * The nodes that must actually be removed, without any node whose ancestor is also removed. Nodes are listed in an
+     * order in which they can be removed one by one without breaking references: referrers come before the nodes they
+     * reference, and the root node comes last.
+     *
+     * @param includeReferrers whether the referrers must be deleted as well
+     * @return a list of nodes, in deletion order
+     */
+    List<Node> getNodesToDelete(final boolean includeReferrers)
+    {
+        final TreeMap<String, Node> candidates = new TreeMap<>();
+        candidates.put(this.rootPath, this.root);
+        if (includeReferrers) {
+            candidates.putAll(this.referrers);
+        }
+        // In a sorted list of paths, descendants come right after their ancestor
+        String lastKept = null;
+        final Iterator<String> paths = candidates.keySet().iterator();
+        while (paths.hasNext()) {
+            final String path = paths.next();
+            if (lastKept != null && path.startsWith(lastKept + "/")) {
+                paths.remove();
+            } else {
+                lastKept = path;
+            }
+        }
+        // Referrers were found starting from the root, so the reverse discovery order puts referrers first
+        final List<Node> result = new ArrayList<>(candidates.size());
+        final List<String> discovered = new ArrayList<>(this.referrers.keySet());
+        for (int i = discovered.size() - 1; i >= 0; --i) {
+            final Node node = candidates.get(discovered.get(i));
+            if (node != null) {
+                result.add(node);
+            }
+        }
+        if (candidates.containsKey(this.rootPath)) {
+            result.add(this.root);
+        }
+        return result;
+    }
+
+    private void traverse() throws RepositoryException
+    {
+        // Nodes whose referrers must be looked up
+        final Deque<Node> referenced = new ArrayDeque<>();
+
+        // First, go through the subtree
+        final Deque<Node> subtree = new ArrayDeque<>();
+        subtree.push(this.root);
+        while (!subtree.isEmpty()) {
+            final Node node = subtree.pop();
+            ++this.subtreeSize;
+            if (node.isNodeType("mix:referenceable")) {
+                referenced.add(node);
+            }
+            final NodeIterator children = node.getNodes();
+            while (children.hasNext()) {
+                subtree.push(children.nextNode());
+            }
+        }
+
+        // Then, follow the references, and the references to the referrers
+        while (!referenced.isEmpty()) {
+            final PropertyIterator references = referenced.poll().getReferences();
+            while (references.hasNext()) {
+                final Node referrer = references.nextProperty().getParent();
+                final String path = referrer.getPath();
+                if (isInSubtree(path) || this.referrers.containsKey(path)) {
+                    // A reference within the subtree to delete, or a referrer already found, ignore it
+                    continue;
+                }
+                this.referrers.put(path, referrer);
+                referenced.add(referrer);
+            }
+        }
+    }
+
+    private boolean isInSubtree(final String path)
+    {
+        return path.equals(this.rootPath) || path.startsWith(this.rootPath + "/");
+    }
+}
@@ -22,14 +22,15 @@
 import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.Node;
-import javax.jcr.NodeIterator;
-import javax.jcr.PropertyIterator;
+import javax.jcr.ReferentialIntegrityException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.json.Json;
@@ -40,13 +41,21 @@
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.dataentry.internal.delete.DeleteJob;
+import io.uhndata.cards.dataentry.internal.delete.DeleteJobs;
+import io.uhndata.cards.internal.ReverseReferenceIndex;
+
 /**
  * A servlet that tries to delete a given node and returns an explanation if deletion is not possible.
  * <p>
@@ -54,6 +63,12 @@
  * </p>
  * <ul>
  * <li><tt>recursive</tt>: whether nodes which reference the item should be deleted; defaults to false</li>
+ * <li><tt>dryRun</tt>: if true, nothing is deleted, and a JSON summary of what would be deleted is returned instead:
+ * the number of nodes in the subtree of the item, the number of nodes referencing it, and the number of nodes that
+ * would be removed; defaults to false</li>
+ * <li><tt>background</tt>: if true, the nodes are deleted in a background job which saves changes in small chunks,
+ * and the identifier of the job is returned right away, along with the URL where its progress can be followed through
+ * the {@link DeleteJobServlet}; defaults to false</li>
  * </ul>
  *
  * @version $Id$
@@ -69,93 +84,13 @@ public class DeleteServlet extends SlingAllMethodsServlet
 
     private static final long serialVersionUID = 1L;
 
-    /** The node that was requested to be deleted. */
-    private final ThreadLocal<Node> nodeToDelete = new ThreadLocal<>();
-
-    /** The Resource Resolver for the current request. */
-    private final ThreadLocal<ResourceResolver> resolver = new ThreadLocal<>();
-
-    /** A list of all nodes traversed by {@code traverseNode}. */
-    private final ThreadLocal<Set<Node>> nodesTraversed = ThreadLocal.withInitial(() -> new HashSet<>());
-
-    /** A set of all nodes that should be deleted. */
-    private final ThreadLocal<Set<Node>> nodesToDelete = ThreadLocal.withInitial(() -> new HashSet<>());
-
-    /** A set of all nodes that are children of nodes in {@code nodesToDelete}. */
-    private final ThreadLocal<Set<Node>> childNodesDeleted = ThreadLocal.withInitial(() -> new HashSet<>());
-
-    /**
-     * A function that operates on a {@link Node}. As opposed to a simple {@code Consumer}, it can forward a
-     * {@code RepositoryException} encountered while processing a {@code Node}.
-     */
-    @FunctionalInterface
-    private interface NodeConsumer
-    {
-        /**
-         * Operate on a node.
-         *
-         * @param node the node to be operated on
-         * @throws RepositoryException if the operation fails due to repository errors
-        */
-        void accept(Node node) throws RepositoryException;
-    }
-
-    /**
-     * Mark a node for deletion upon session save.
-     */
-    private NodeConsumer deleteNode = (node) -> {
-        // Keep track of each child node we've already deleted
-        boolean isChild = nodeSetContains(this.childNodesDeleted.get(), node) != null;
-        boolean alreadyDeleting = nodeSetContains(this.nodesToDelete.get(), node) != null;
-        if (!isChild && !alreadyDeleting) {
-            this.nodesToDelete.get().add(node);
-        }
-        this.iterateChildren(node, this.markChildNodeDeleted, false);
-    };
+    /** Checks for referrers without going through the subtree to delete, if available. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private transient volatile ReverseReferenceIndex referenceIndex;
 
-    /**
-     * Add a node to a list of traversed nodes.
-     */
-    private NodeConsumer traverseNode = (node) -> {
-        this.nodesTraversed.get().add(node);
-    };
-
-    /**
-     * Traverse through the references of the node.
-     */
-    private NodeConsumer traverseReferences = (node) -> {
-        iterateReferrers(node, this.traverseNode, false);
-    };
-
-    private NodeConsumer markChildNodeDeleted = (node) -> {
-        this.childNodesDeleted.get().add(node);
-
-        // Attempting to delete this node will fail -- remove it
-        // contains() appears to not be working, so we'll unroll the equality here
-        Node toRemove = nodeSetContains(this.nodesToDelete.get(), node);
-        if (toRemove != null) {
-            this.nodesToDelete.get().remove(toRemove);
-        }
-    };
-
-    /**
-     * Determine whether or not a set contains a particular node.
-     * This is necessary because contains() seems to fail to recognize the same node
-     * that was obtained in two different ways.
-     *
-     * @param includeRoot whether or not to include the root node as a child
-     */
-    private Node nodeSetContains(Set<Node> set, Node node)
-        throws RepositoryException
-    {
-        for (Node n : set) {
-            if (n.getPath().equals(node.getPath())) {
-                return n;
-            }
-        }
-
-        return null;
-    }
+    /** Runs large deletes in the background. */
+    @Reference
+    private transient DeleteJobs jobs;
 
     @Override
     public void doDelete(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
@@ -163,185 +98,249 @@ public void doDelete(final SlingHttpServletRequest request, final SlingHttpServl
     {
         try {
             final ResourceResolver resourceResolver = request.getResourceResolver();
+            final Session session = resourceResolver.adaptTo(Session.class);
             final Node node = request.getResource().adaptTo(Node.class);
-            this.nodeToDelete.set(node);
-            this.resolver.set(resourceResolver);
-            this.nodesTraversed.set(new HashSet<Node>());
-            this.nodesToDelete.set(new HashSet<Node>());
-            this.childNodesDeleted.set(new HashSet<Node>());
-            Set<Node> parentNodes = new HashSet<Node>();
-
-            final Boolean recursive = Boolean.parseBoolean(request.getParameter("recursive"));
-
-            if (recursive) {
-                handleRecursiveDeleteChildren(node);
-            } else {
-                handleDelete(response, node);
-            }
-
-            // Delete all of our pending nodes, checking out the parent to avoid version conflict issues
-            for (Node n : this.nodesToDelete.get()) {
-                Node parent = n.getParent();
-                if (parent.isNodeType("mix:versionable")) {
-                    parent.checkout();
-                    n.remove();
-                    parentNodes.add(parent);
+            final boolean recursive = Boolean.parseBoolean(request.getParameter("recursive"));
+            final boolean dryRun = Boolean.parseBoolean(request.getParameter("dryRun"));
+
+            final ReverseReferenceIndex index = this.referenceIndex;
+            if (!recursive && !dryRun && index != null && index.isAvailable()) {
+                // A single lookup tells if anything references the subtree, without going through it
+                final Map<String, Long> counts = index.countReferences(node.getPath());
+                if (counts.isEmpty()) {
+                    delete(request, response, node, Collections.singletonList(node));
                 } else {
-                    n.remove();
+                    sendReferencedError(response, countReferrers(counts));
                 }
+                return;
             }
 
-            this.resolver.get().adaptTo(Session.class).save();
-
-            // Check each parent back in
-            for (Node parent : parentNodes) {
-                parent.checkin();
+            final DeletePlan plan = DeletePlan.compute(node);
+            final Map<String, String> referrers = getTypes(plan.getReferrers());
+            if (dryRun) {
+                sendPlan(response, plan, recursive, referrers, session);
+            } else if (!recursive && !referrers.isEmpty()) {
+                // Will not be able to delete node due to references. Inform user.
+                sendReferencedError(response, listReferrers(referrers, session));
+            } else {
+                delete(request, response, node, plan.getNodesToDelete(recursive));
             }
+        } catch (ReferentialIntegrityException e) {
+            // A reference was added after the references were checked
+            LOGGER.warn("Referenced node cannot be deleted: {}", e.getMessage());
+            sendJsonError(response, SlingHttpServletResponse.SC_CONFLICT,
+                "This item is referenced by unknown item(s).");
+        } catch (LoginException e) {
+            LOGGER.error("Failed to start a background delete: {}", e.getMessage(), e);
+            sendJsonError(response, SlingHttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage(), e);
         } catch (AccessDeniedException e) {
             LOGGER.error("AccessDeniedException trying to delete node: {}", e.getMessage(), e);
             sendJsonError(response, SlingHttpServletResponse.SC_UNAUTHORIZED);
         } catch (RepositoryException e) {
             LOGGER.error("Unknown RepositoryException trying to delete node: {}", e.getMessage(), e);
             sendJsonError(response, SlingHttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage(), e);
-        } finally {
-            this.resolver.remove();
-            this.nodesTraversed.remove();
         }
     }
 
     /**
-     * Attempt to delete a node. If other nodes refer to it, user will be informed that deletion could not occur.
+     * Delete nodes, either right away, or in a background job if requested.
      *
-     * @param response the HTTP response to be used to convey failure to the user
-     * @param node the node to attempt deletion
-     * @throws IOException if sending an error to the response fails
-     * @throws AccessDeniedException if the requesting user does not have permission to delete the node
+     * @param request the delete request
+     * @param response the HTTP response where the background job is described
+     * @param node the node requested to be deleted
+     * @param nodesToDelete the nodes to delete, none of them being a descendant of another
+     * @throws LoginException if the background job cannot get its own session
      * @throws RepositoryException if deletion fails due to a repository error
+     * @throws IOException if writing the response fails
      */
-    private void handleDelete(final SlingHttpServletResponse response, final Node node)
-        throws IOException, AccessDeniedException, RepositoryException
+    private void delete(final SlingHttpServletRequest request, final SlingHttpServletResponse response,
+        final Node node, final List<Node> nodesToDelete)
+        throws LoginException, RepositoryException, IOException
     {
-        // Check if this node or its children are referenced by other nodes
-        iterateChildren(node, this.traverseReferences, true);
-
-        if (this.nodesTraversed.get().size() == 0) {
-            this.deleteNode.accept(node);
-            this.resolver.get().adaptTo(Session.class).save();
+        final ResourceResolver resourceResolver = request.getResourceResolver();
+        if (Boolean.parseBoolean(request.getParameter("background"))) {
+            final List<String> paths = new ArrayList<>();
+            for (Node n : nodesToDelete) {
+                paths.add(n.getPath());
+            }
+            final DeleteJob job = this.jobs.submit(resourceResolver.getUserID(), paths, resourceResolver.clone(null));
+            sendJob(response, node.getPath(), job);
         } else {
-            String referencedNodes = listReferrersFromTraversal();
-            // Will not be able to delete node due to references. Inform user.
-            sendJsonError(response, SlingHttpServletResponse.SC_CONFLICT, String.format("This item is referenced %s.",
-                StringUtils.isEmpty(referencedNodes) ? "by unknown item(s)" : "in " + referencedNodes));
+            delete(nodesToDelete, resourceResolver.adaptTo(Session.class));
         }
     }
 
     /**
-     * Delete the children of a node and all nodes which reference its children, as well as the node itself.
+     * Delete nodes, checking out their parents to avoid version conflict issues.
      *
-     * @param node the node to attempt deletion
+     * @param nodes the nodes to delete, none of them being a descendant of another
+     * @param session the session of the current user
      * @throws AccessDeniedException if the requesting user does not have permission to delete any node
      * @throws RepositoryException if deletion fails due to a repository error
      */
-    private void handleRecursiveDeleteChildren(Node node)
+    private void delete(final List<Node> nodes, final Session session)
         throws AccessDeniedException, RepositoryException
     {
-        final NodeIterator childNodes = node.getNodes();
-        while (childNodes.hasNext()) {
-            handleRecursiveDeleteChildren(childNodes.nextNode());
+        Map<String, Node> parentNodes = new LinkedHashMap<>();
+        for (Node n : nodes) {
+            Node parent = n.getParent();
+            if (parent.isNodeType("mix:versionable") && parentNodes.putIfAbsent(parent.getPath(), parent) == null) {
+                parent.checkout();
+            }
+            n.remove();
+        }
+
+        session.save();
+
+        // Check each parent back in
+        for (Node parent : parentNodes.values()) {
+            parent.checkin();
         }
-        handleRecursiveDelete(node);
     }
 
     /**
-     * Delete a node and all nodes which reference it.
+     * Describe what a delete request would do, without deleting anything.
      *
-     * @param node the node to attempt deletion
-     * @throws AccessDeniedException if the requesting user does not have permission to delete any node
-     * @throws RepositoryException if deletion fails due to a repository error
+     * @param response the HTTP response where the description is written
+     * @param plan the computed deletion plan
+     * @param recursive whether nodes which reference the item would be deleted as well
+     * @param referrers the primary types of the nodes referencing the item, by path
+     * @param session the session of the current user
+     * @throws IOException if writing the response fails
      */
-    private void handleRecursiveDelete(Node node)
-        throws AccessDeniedException, RepositoryException
+    private void sendPlan(final SlingHttpServletResponse response, final DeletePlan plan, final boolean recursive,
+        final Map<String, String> referrers, final Session session)
+        throws IOException
     {
-        iterateChildren(node, this.deleteNode, false);
-        iterateReferrers(node, this.deleteNode);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        final JsonGenerator jsonGen = Json.createGenerator(response.getWriter());
+        jsonGen.writeStartObject()
+            .write("dryRun", true)
+            .write("recursive", recursive)
+            .write("subtreeNodes", plan.getSubtreeSize())
+            .write("referrers", referrers.size())
+            .write("nodesToDelete", plan.getNodesToDelete(recursive).size())
+            .write("deletable", recursive || referrers.isEmpty());
+        String referencedNodes = listReferrers(referrers, session);
+        if (!StringUtils.isEmpty(referencedNodes)) {
+            jsonGen.write("referencedIn", referencedNodes);
+        }
+        jsonGen.writeEnd().close();
     }
 
     /**
-     * Recursively call a function on all nodes which reference a node, and on the node itself.
+     * Describe a newly submitted background delete job.
      *
-     * @param node the node to have its referrers and self operated on
-     * @param consumer the function to be called on each node
-     * @param includeRoot if true, the consumer will be called on the node itself in addition to its referrers
-     * @throws RepositoryException if any function call fails due to repository errors
+     * @param response the HTTP response where the description is written
+     * @param path the path of the node requested to be deleted
+     * @param job the submitted job
+     * @throws IOException if writing the response fails
      */
-    private void iterateReferrers(
-        Node node,
-        NodeConsumer consumer,
-        boolean includeRoot
-    ) throws RepositoryException
+    private void sendJob(final SlingHttpServletResponse response, final String path, final DeleteJob job)
+        throws IOException
     {
-        final PropertyIterator references = node.getReferences();
-        final String rootPath = this.nodeToDelete.get().getPath();
-        while (references.hasNext()) {
-            final Node referrer = references.nextProperty().getParent();
-            final String path = referrer.getPath();
-            if (path.equals(rootPath) || path.startsWith(rootPath + "/")) {
-                // This a reference within the subtree to delete, ignore it
-                continue;
-            }
-            iterateReferrers(referrer, consumer, true);
-        }
-
-        if (includeRoot) {
-            consumer.accept(node);
-        }
+        // The top level folder, such as /Forms, outlives the deleted nodes
+        final String statusUrl = "/" + StringUtils.substringBefore(path.substring(1), "/") + ".deleteJob.json?id="
+            + job.getId();
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setStatus(SlingHttpServletResponse.SC_ACCEPTED);
+        response.setHeader("Location", statusUrl);
+        final JsonGenerator jsonGen = Json.createGenerator(response.getWriter());
+        jsonGen.writeStartObject()
+            .write("jobId", job.getId())
+            .write("status", job.getStatus().name())
+            .write("statusUrl", statusUrl);
+        jsonGen.writeEnd().close();
     }
 
     /**
-     * Recursively call a function on all progeny of a node.
+     * Get the primary types of some nodes.
      *
-     * @param node the node to have its referrers and self operated on
-     * @param consumer the function to be called on each node
-     * @param includeRoot if true, the consumer will be called on the node itself in addition to its referrers
-     * @throws RepositoryException if any function call fails due to repository errors
+     * @param nodes the nodes to describe
+     * @return the primary types of the nodes, by path, in the same order as the input
+     * @throws RepositoryException if accessing the nodes fails
      */
-    private void iterateChildren(
-        Node node,
-        NodeConsumer consumer,
-        boolean includeRoot
-    ) throws RepositoryException
+    private Map<String, String> getTypes(final Collection<Node> nodes)
+        throws RepositoryException
     {
-        final NodeIterator children = node.getNodes();
-        while (children.hasNext()) {
-            iterateChildren(children.nextNode(), consumer, true);
+        Map<String, String> result = new LinkedHashMap<>();
+        for (Node n : nodes) {
+            result.put(n.getPath(), n.getPrimaryNodeType().getName());
         }
+        return result;
+    }
 
-        if (includeRoot) {
-            consumer.accept(node);
-        }
+    /**
+     * Inform the user that the node cannot be deleted because other items reference it.
+     *
+     * @param response the HTTP response where the error is written
+     * @param referencedNodes the description of the referrers, may be empty or {@code null} if they are unknown
+     * @throws IOException if writing the response fails
+     */
+    private void sendReferencedError(final SlingHttpServletResponse response, final String referencedNodes)
+        throws IOException
+    {
+        sendJsonError(response, SlingHttpServletResponse.SC_CONFLICT,
+            String.format("This item is referenced %s.", StringUtils.isEmpty(referencedNodes)
+                ? "by unknown item(s)" : "in " + referencedNodes));
     }
 
     /**
-     * Recursively call a function on all nodes which reference a node, and on the node itself.
+     * Get a string explaining how many references point to the node to delete, by type of referrer, from the counts of
+     * the {@link ReverseReferenceIndex reference index}. Referrers are not named, since the index doesn't know them.
      *
-     * @param node the node to have its referrers and self operated on
-     * @param consumer the function to be called on each node
-     * @throws RepositoryException if any function call fails due to repository errors
+     * @param counts the number of references to the node to delete, by primary type of the referencing nodes
+     * @return a string in the format "2 forms and 1 subject" for all referrers
      */
-    private void iterateReferrers(
-        Node node,
-        NodeConsumer consumer
-    ) throws RepositoryException
+    private String countReferrers(final Map<String, Long> counts)
     {
-        iterateReferrers(node, consumer, true);
+        int formCount = 0;
+        int subjectCount = 0;
+        int subjectTypeCount = 0;
+        int questionnaireCount = 0;
+        int otherCount = 0;
+
+        for (Map.Entry<String, Long> count : counts.entrySet()) {
+            final int value = count.getValue().intValue();
+            switch (count.getKey()) {
+                case "cards:Form":
+                    formCount += value;
+                    break;
+                case "cards:Subject":
+                    subjectCount += value;
+                    break;
+                case "cards:SubjectType":
+                    subjectTypeCount += value;
+                    break;
+                case "cards:Questionnaire":
+                    questionnaireCount += value;
+                    break;
+                default:
+                    otherCount += value;
+                    break;
+            }
+        }
+
+        List<String> results = new ArrayList<String>();
+        addNodesToResult(results, "form", formCount);
+        addNodesToResult(results, "subject", subjectCount);
+        addNodesToResult(results, "subject type", subjectTypeCount);
+        addNodesToResult(results, "questionnaire", questionnaireCount);
+        addNodesToResult(results, "other", otherCount);
+        return stringArrayToList(results);
     }
 
     /**
-     * Get a string explaining which nodes refer to the node traversed by parent node.
+     * Get a string explaining which nodes refer to the node to delete. Referrers are only named if the current user
+     * can access them, otherwise they are counted as other items.
      *
-     * @return a string in the format "2 forms, 1 subject(subjectName)" for all traversed nodes
+     * @param referrers the primary types of the nodes referencing the node to delete, directly or indirectly, by path
+     * @param session the session of the current user
+     * @return a string in the format "2 forms, 1 subject(subjectName)" for all referrers
      */
-    private String listReferrersFromTraversal()
+    private String listReferrers(final Map<String, String> referrers, final Session session)
     {
         try {
             int formCount = 0;
@@ -350,22 +349,27 @@ private String listReferrersFromTraversal()
             List<String> subjectTypes = new ArrayList<String>();
             List<String> questionnaires = new ArrayList<String>();
 
-            for (Node n : this.nodesTraversed.get()) {
-                switch (n.getPrimaryNodeType().getName()) {
+            for (Map.Entry<String, String> referrer : referrers.entrySet()) {
+                final String path = referrer.getKey();
+                String name = null;
+                switch (referrer.getValue()) {
                     case "cards:Form":
                         formCount++;
-                        break;
+                        continue;
                     case "cards:Subject":
-                        subjects.add(n.getProperty("identifier").getString());
+                        name = getName(session, path, "identifier", subjects);
                         break;
                     case "cards:SubjectType":
-                        subjectTypes.add(n.getProperty("label").getString());
+                        name = getName(session, path, "label", subjectTypes);
                         break;
                     case "cards:Questionnaire":
-                        questionnaires.add(n.getProperty("title").getString());
+                        name = getName(session, path, "title", questionnaires);
                         break;
                     default:
-                        otherCount++;
+                        break;
+                }
+                if (name == null) {
+                    otherCount++;
                 }
             }
 
@@ -382,6 +386,27 @@ private String listReferrersFromTraversal()
         }
     }
 
+    /**
+     * Read the name of a referrer, if the current user can access it, and add it to a list of names.
+     *
+     * @param session the session of the current user
+     * @param path the path of the referrer
+     * @param property the property holding the name of the referrer
+     * @param names the list where the name is added
+     * @return the name, or {@code null} if the referrer cannot be accessed or doesn't have a name
+     * @throws RepositoryException if reading the referrer fails
+     */
+    private String getName(final Session session, final String path, final String property, final List<String> names)
+        throws RepositoryException
+    {
+        if (!session.nodeExists(path) || !session.getNode(path).hasProperty(property)) {
+            return null;
+        }
+        final String name = session.getNode(path).getProperty(property).getString();
+        names.add(name);
+        return name;
+    }
+
     /**
      * Add a string listing the number of items found to an array.
      *
@@ -20,17 +20,24 @@
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import javax.jcr.query.Query;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
-import javax.json.JsonValue.ValueType;
 import javax.servlet.Servlet;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
@@ -38,6 +45,9 @@
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+
+import io.uhndata.cards.dataentry.internal.query.FieldCatalogueCache;
 
 /**
  * A servlet that lists the filters applicable to the given questionnaire, or all questionnaires visible by the user.
@@ -47,6 +57,11 @@
  * <ul>
  * <li><tt>questionnaire</tt>: a path to a questionnaire whose filterable options to retrieve</li>
  * </ul>
+ * <p>
+ * The fields of each questionnaire are cached until the questionnaire changes. Responses carry an {@code ETag}
+ * computed from the questionnaires they include and the versions of their cached fields, so clients sending it back
+ * in an {@code If-None-Match} header get a {@code 304 Not Modified} response while no questionnaire changed.
+ * </p>
  *
  * @version $Id$
  */
@@ -62,56 +77,61 @@ public class FilterServlet extends SlingSafeMethodsServlet
 
     private static final String JCR_UUID = "jcr:uuid";
 
+    /** The filterable fields of each questionnaire. */
+    @Reference
+    private transient FieldCatalogueCache catalogueCache;
+
     @Override
     public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response) throws IOException
     {
         // Is there a questionnaire specified?
         String questionnaire = request.getParameter("questionnaire");
         String homepagePath = request.getResource().getPath();
+        final ResourceResolver resolver = request.getResourceResolver();
 
         // If a questionnaire is specified, return all fields by the given questionnaire
         // Otherwise, we return all questionnaires under this node that are visible by the user
-        JsonObject allProperties = questionnaire == null
-            ? getAllFieldsFromAllQuestionnaires(request.getResourceResolver(), homepagePath)
-            : getAllFields(request.getResourceResolver(), questionnaire);
+        final List<String> paths = questionnaire == null
+            ? getAllQuestionnaires(resolver, homepagePath)
+            : Collections.singletonList(StringUtils.removeEnd(questionnaire, DEEP_JSON_SUFFIX));
+
+        // The response only depends on which questionnaires are included, and on their versions
+        final List<FieldCatalogueCache.Fields> fields = new ArrayList<>(paths.size());
+        final StringBuilder key = new StringBuilder(questionnaire == null ? "all" : "one");
+        for (final String path : paths) {
+            final FieldCatalogueCache.Fields questionnaireFields = this.catalogueCache.get(resolver, path);
+            if (questionnaireFields == null) {
+                // Not accessible to the current user, there's nothing to list
+                continue;
+            }
+            fields.add(questionnaireFields);
+            key.append('\n').append(path).append('@').append(questionnaireFields.getVersion());
+        }
+        final String etag = computeETag(key.toString());
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "private, no-cache");
+        if (matches(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(SlingHttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
 
         // Return the entire thing as a json file, except join together fields that have the same
         // name and type
+        final boolean merge = questionnaire == null || fields.isEmpty();
+        final String allProperties = this.catalogueCache.getMerged(key.toString(),
+            () -> (merge ? mergeFields(fields) : copyFields(fields.get(0))).toString());
         final Writer out = response.getWriter();
-        out.write(allProperties.toString());
+        out.write(allProperties);
     }
 
     /**
-     * Create a JsonObject of all filterable fields from the given questionnaire.
-     *
-     * @param resolver a reference to a ResourceResolver
-     * @param questionnairePath the path to the questionnaire to look up
-     * @return a JsonObject of filterable fields
-     */
-    private JsonObject getAllFields(ResourceResolver resolver, String questionnairePath)
-    {
-        // First, ensure that we're accessing the deep jsonification of the questionnaire
-        String fullPath = questionnairePath.endsWith(DEEP_JSON_SUFFIX)
-            ? questionnairePath : questionnairePath.concat(DEEP_JSON_SUFFIX);
-
-        // Next, convert it to a deep json object
-        final Resource resource = resolver.resolve(fullPath);
-
-        // JsonObjects are immutable, so we have to manually copy over non-questions to a new object
-        JsonObjectBuilder builder = Json.createObjectBuilder();
-        this.copyQuestions(resource.adaptTo(JsonObject.class), builder);
-        return builder.build();
-    }
-
-    /**
-     * Creates a JsonObject of all filterable fields from every questionnaire under
-     * the given QuestionnaireHomepage node.
+     * Lists the questionnaires under the given QuestionnaireHomepage node that are visible by the user.
      *
      * @param resolver a reference to a ResourceResolver
      * @param parentPath the path of the parent QuestionnaireHomepage
-     * @return a JsonObject of filterable fields
+     * @return a list of questionnaire paths, may be empty
      */
-    private JsonObject getAllFieldsFromAllQuestionnaires(ResourceResolver resolver, String parentPath)
+    private List<String> getAllQuestionnaires(ResourceResolver resolver, String parentPath)
     {
         final StringBuilder query =
             // We select all child nodes of the homepage, filtering out nodes that aren't ours, such as rep:policy
@@ -119,51 +139,46 @@ private JsonObject getAllFieldsFromAllQuestionnaires(ResourceResolver resolver,
                 + parentPath + "') and n.'sling:resourceSuperType' = 'cards/Resource'");
         final Iterator<Resource> results =
             resolver.findResources(query.toString(), Query.JCR_SQL2);
+        final List<String> paths = new ArrayList<>();
+        while (results.hasNext()) {
+            paths.add(results.next().getPath());
+        }
+        return paths;
+    }
 
-        // Generate the output via recursively adding all fields from each questionnaire.
+    /**
+     * Create a JsonObject of all filterable fields from one questionnaire.
+     *
+     * @param fields the fields of the questionnaire
+     * @return a JsonObject of filterable fields
+     */
+    private JsonObject copyFields(final FieldCatalogueCache.Fields fields)
+    {
         JsonObjectBuilder builder = Json.createObjectBuilder();
-        Map<String, String> seenTypes = new HashMap<String, String>();
-        Map<String, String> seenElements = new HashMap<String, String>();
-        while (results.hasNext()) {
-            Resource resource = results.next();
-            String path = resource.getResourceMetadata().getResolutionPath();
-            resource = resolver.resolve(path.concat(DEEP_JSON_SUFFIX));
-            this.copyQuestions(resource.adaptTo(JsonObject.class), builder, seenTypes, seenElements);
+        for (Map.Entry<String, JsonObject> question : fields.getQuestions()) {
+            builder.add(question.getKey(), question.getValue());
         }
         return builder.build();
     }
 
     /**
-     * Copies over cards:Question fields from the input JsonObject, optionally handling questions that
-     * may already exist in the builder.
+     * Creates a JsonObject of all filterable fields from several questionnaires.
      *
-     * @param questions A JsonObject (from an cards:Questionnaire or cards:Section) whose fields may be cards:Questions
-     * @param builder A JsonObjectBuilder to copy results to
-     * @param seenTypes Either a map from field names to dataTypes, or null to disable tracking
-     * @param seenElements Either a map from field names to jcr:uuids, or null to disable tracking
-     * @return the content matching the query
+     * @param fields the fields of each questionnaire
+     * @return a JsonObject of filterable fields
      */
-    private void copyQuestions(JsonObject questions, JsonObjectBuilder builder, Map<String, String> seenTypes,
-            Map<String, String> seenElements)
+    private JsonObject mergeFields(final List<FieldCatalogueCache.Fields> fields)
     {
-        // Copy over the keys
-        for (String key : questions.keySet()) {
-            // Skip over non-questions (non-objects)
-            if (questions.get(key).getValueType() != ValueType.OBJECT) {
-                continue;
-            }
-            JsonObject datum = questions.getJsonObject(key);
-
-            // Copy over information from children of sections
-            if ("cards:Section".equals(datum.getString("jcr:primaryType"))) {
-                this.copyQuestions(datum, builder, seenTypes, seenElements);
-            }
-
-            // Copy over information from this object if this is a question
-            if ("cards:Question".equals(datum.getString("jcr:primaryType"))) {
-                copyFields(datum, key, builder, seenTypes, seenElements);
+        // Generate the output via adding all fields from each questionnaire.
+        JsonObjectBuilder builder = Json.createObjectBuilder();
+        Map<String, String> seenTypes = new HashMap<String, String>();
+        Map<String, String> seenElements = new HashMap<String, String>();
+        for (FieldCatalogueCache.Fields questionnaireFields : fields) {
+            for (Map.Entry<String, JsonObject> question : questionnaireFields.getQuestions()) {
+                copyFields(question.getValue(), question.getKey(), builder, seenTypes, seenElements);
             }
         }
+        return builder.build();
     }
 
     /**
@@ -224,14 +239,40 @@ private void copyFields(JsonObject question, String key, JsonObjectBuilder build
     }
 
     /**
-     * Copies over cards:Question fields from the input JsonObject.
+     * Computes an {@code ETag} value.
      *
-     * @param questions A JsonObject (from an cards:Questionnaire) whose fields may be cards:Questions
-     * @param builder A JsonObjectBuilder to copy results to
-     * @return the content matching the query
+     * @param key identifies the content of the response
+     * @return a quoted, opaque string
      */
-    private void copyQuestions(JsonObject questions, JsonObjectBuilder builder)
+    private static String computeETag(final String key)
     {
-        this.copyQuestions(questions, builder, null, null);
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(digest) + '"';
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available
+            return '"' + Integer.toHexString(key.hashCode()) + '"';
+        }
+    }
+
+    /**
+     * Checks if an {@code If-None-Match} header matches the current {@code ETag}.
+     *
+     * @param ifNoneMatch the value of the {@code If-None-Match} header, may be {@code null}
+     * @param etag the current {@code ETag}
+     * @return {@code true} if the client already has the current version
+     */
+    private static boolean matches(final String ifNoneMatch, final String etag)
+    {
+        if (StringUtils.isBlank(ifNoneMatch)) {
+            return false;
+        }
+        for (final String candidate : ifNoneMatch.split(",")) {
+            final String value = StringUtils.removeStart(candidate.trim(), "W/");
+            if ("*".equals(value) || etag.equals(value)) {
+                return true;
+            }
+        }
+        return false;
     }
 }
@@ -0,0 +1,202 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.Resource;
+
+import io.uhndata.cards.dataentry.internal.query.BoundQuery;
+
+/**
+ * A position in a list of resources sorted by their creation date, used by the {@link PaginationServlet} for keyset
+ * pagination. Instead of skipping a number of rows, which gets slower the further the page is, the next page is
+ * queried starting with the creation date of the last resource of the previous page. Since several resources can have
+ * the same creation date, for example after a bulk import, resources are also {@link #getOrder sorted} by their path.
+ * The cursor holds both the creation date and the path of the last resource, and resources sharing that creation date
+ * are skipped up to and including that path.
+ * <p>
+ * Cursors are passed to clients as opaque strings, the URL-safe base64 encoding of the creation date and the path.
+ * </p>
+ *
+ * @version $Id$
+ */
+final class PageCursor
+{
+    private static final String CREATED = "jcr:created";
+
+    private static final String PATH = "jcr:path";
+
+    /** The creation date of the last resource of the previous page, in the JCR date format. */
+    private final String created;
+
+    /** The path of the last resource of the previous page. */
+    private final String path;
+
+    private PageCursor(final String created, final String path)
+    {
+        this.created = created;
+        this.path = path;
+    }
+
+    /**
+     * Decodes a cursor received from a client.
+     *
+     * @param cursor the opaque cursor string
+     * @return the decoded cursor, or {@code null} if the cursor is blank, meaning that the first page is requested
+     * @throws IllegalArgumentException if the cursor is not valid
+     */
+    static PageCursor parse(final String cursor)
+    {
+        if (StringUtils.isBlank(cursor)) {
+            return null;
+        }
+        try {
+            final String[] parts =
+                new String(Base64.getUrlDecoder().decode(cursor.trim()), StandardCharsets.UTF_8).split("\n", 2);
+            if (parts.length == 2) {
+                // Make sure that the date is valid, since it will be used in a query
+                ZonedDateTime.parse(parts[0]);
+                return new PageCursor(parts[0], parts[1]);
+            }
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            // Invalid cursor, reported below
+        }
+        throw new IllegalArgumentException("Invalid cursor");
+    }
+
+    /**
+     * Computes the cursor pointing after a resource.
+     *
+     * @param resource the last resource of a page
+     * @return an opaque cursor string, or {@code null} if the resource doesn't have a creation date
+     */
+    static String encode(final Resource resource)
+    {
+        try {
+            final Node node = resource.adaptTo(Node.class);
+            if (node == null || !node.hasProperty(CREATED)) {
+                return null;
+            }
+            final String value = node.getProperty(CREATED).getString() + "\n" + node.getPath();
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+        } catch (RepositoryException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The order of the results expected by cursors: by creation date, then by path for resources created at the same
+     * time, so that all the queries for the pages of a listing return them in the same order.
+     *
+     * @param descending whether the results are sorted in descending order
+     * @return a JCR-SQL2 {@code order by} clause
+     */
+    static String getOrder(final boolean descending)
+    {
+        final String direction = descending ? " DESC" : " ASC";
+        return String.format(" order by n.'%s'%s, n.'%s'%s", CREATED, direction, PATH, direction);
+    }
+
+    /**
+     * The query condition selecting the resources created at the same time or after the cursor, or at the same time
+     * or before the cursor when sorting in descending order.
+     *
+     * @param query the query being built, where the cursor date is bound
+     * @param descending whether the results are sorted in descending order of their creation date
+     * @return a JCR-SQL2 condition, starting with {@code and}
+     */
+    String getCondition(final BoundQuery.Builder query, final boolean descending)
+    {
+        return String.format(" and n.'%s' %s %s", CREATED, descending ? "<=" : ">=",
+            query.bind(this.created, PropertyType.DATE));
+    }
+
+    /**
+     * Skips the resources that were already returned in the previous pages: the ones created at the same time as the
+     * cursor, up to and including the cursor path. This also works if the cursor resource itself was deleted since.
+     *
+     * @param resources query results, sorted as specified by {@link #getOrder}, starting at the creation date of the
+     *            cursor
+     * @param descending whether the results are sorted in descending order
+     * @return an iterator over the remaining resources
+     */
+    Iterator<Resource> skipSeen(final Iterator<Resource> resources, final boolean descending)
+    {
+        while (resources.hasNext()) {
+            final Resource resource = resources.next();
+            if (resource == null) {
+                continue;
+            }
+            final int position = resource.getPath().compareTo(this.path);
+            if (!this.created.equals(getCreated(resource)) || (descending ? position < 0 : position > 0)) {
+                // The first resource after the cursor
+                return concat(resource, resources);
+            }
+        }
+        return resources;
+    }
+
+    private static String getCreated(final Resource resource)
+    {
+        try {
+            final Node node = resource.adaptTo(Node.class);
+            return node != null && node.hasProperty(CREATED) ? node.getProperty(CREATED).getString() : null;
+        } catch (RepositoryException e) {
+            return null;
+        }
+    }
+
+    private static Iterator<Resource> concat(final Resource first, final Iterator<Resource> rest)
+    {
+        return new Iterator<Resource>()
+        {
+            private Resource head = first;
+
+            @Override
+            public boolean hasNext()
+            {
+                return this.head != null || rest.hasNext();
+            }
+
+            @Override
+            public Resource next()
+            {
+                if (this.head != null) {
+                    final Resource result = this.head;
+                    this.head = null;
+                    return result;
+                } else if (rest.hasNext()) {
+                    return rest.next();
+                }
+                throw new NoSuchElementException();
+            }
+        };
+    }
+}
@@ -29,10 +29,9 @@
 
 import javax.jcr.Node;
 import javax.jcr.Property;
+import javax.jcr.PropertyType;
 import javax.jcr.Session;
-import javax.jcr.Workspace;
 import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
 import javax.json.Json;
 import javax.json.JsonObject;
@@ -47,9 +46,17 @@
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.servlets.annotations.SlingServletResourceTypes;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.dataentry.internal.query.AnswerProjection;
+import io.uhndata.cards.dataentry.internal.query.AnswerProjectionEditorProvider;
+import io.uhndata.cards.dataentry.internal.query.BoundQuery;
+import io.uhndata.cards.dataentry.internal.query.QueryCountCache;
+
 /**
  * A servlet that lists resources of a specific type, depending on which "homepage" resource the request is targeting.
  * <p>
@@ -57,12 +64,21 @@
  * </p>
  * <ul>
  * <li><tt>offset</tt>: a 0-based number representing how many resources to skip; 0 by default</li>
+ * <li><tt>cursor</tt>: an opaque value returned as {@code nextCursor} in a previous response, used instead of the
+ * offset to request the page following the previous one; unlike the offset, requesting a page with a cursor takes the
+ * same time no matter how far the page is; an empty cursor requests the first page; since the resources before the
+ * cursor are not counted, {@code totalrows} is only included in the response when the total was already known</li>
  * <li><tt>limit</tt>: a number representing how many resources to include at most in the result; 10 by default</li>
  * <li><tt>filter</tt>: a (lucene-like) search term, such as {@code germline}, {@code cancer OR tumor},
  * {@code (*blastoma OR *noma OR tumor*) recurrent}; no filter set by default</li>
  * <li><tt>includeallstatus</tt>: if true, incomplete forms will be included. Otherwise, they will be excluded unless
  * searched for directly using `fieldname="statusFlags"`
  * </ul>
+ * <p>
+ * When listing forms, if the {@link AnswerProjectionEditorProvider answer projection} is enabled for filters and all
+ * the answer filters are equality checks on text or numeric values, the filters are matched against the projection
+ * stored on the forms, which is a single index lookup, instead of joining the answers of each form once per filter.
+ * </p>
  *
  * @version $Id$
  */
@@ -88,6 +104,14 @@ public class PaginationServlet extends SlingSafeMethodsServlet
     private static final String QUESTIONNAIRE_IDENTIFIER = "cards:Questionnaire";
     private static final String CREATED_DATE_IDENTIFIER = "cards:CreatedDate";
 
+    /** Remembers the total number of results, so that listings don't have to count them each time. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private transient volatile QueryCountCache countCache;
+
+    /** Tells whether forms can be filtered using their answer projection. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private transient volatile AnswerProjectionEditorProvider answerProjection;
+
     @Override
     public void doGet(final SlingHttpServletRequest request, final SlingHttpServletResponse response)
             throws IOException, IllegalArgumentException
@@ -95,22 +119,23 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
         final long limit = getLongValueOrDefault(request.getParameter("limit"), 10);
-        final long offset = getLongValueOrDefault(request.getParameter("offset"), 0);
+        final PageCursor cursor = PageCursor.parse(request.getParameter("cursor"));
+        // With a cursor, the query starts right at the requested page, nothing must be skipped
+        final long offset = cursor != null ? 0 : getLongValueOrDefault(request.getParameter("offset"), 0);
 
-        String finalquery = createQuery(request);
+        final BoundQuery finalquery = createQuery(request, cursor);
+        // Counts are for the whole listing, not just for what comes after the cursor
+        final BoundQuery countQuery = cursor == null ? finalquery : createQuery(request, null);
 
         Iterator<Resource> results;
         //Using a QueryManager doesn't always work, but it is faster
         Session session = null;
         try {
-            //Get a QueryManager object
             ResourceResolver resolver = request.getResourceResolver();
             session = resolver.adaptTo(Session.class);
-            Workspace workspace = session.getWorkspace();
-            QueryManager queryManager = workspace.getQueryManager();
 
-            //Create the Query object
-            Query filterQuery = queryManager.createQuery(finalquery, "JCR-SQL2");
+            //Create the Query object, with the filter values bound to it
+            Query filterQuery = finalquery.create(session);
 
             //Set the limit and offset here to improve query performance
             filterQuery.setLimit((QUERY_SIZE_MULTIPLIER * limit) + 1);
@@ -119,6 +144,9 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
             //Execute the query
             QueryResult filterResult = filterQuery.execute();
             results = new ResourceIterator(request.getResourceResolver(), filterResult.getNodes());
+            if (cursor != null) {
+                results = cursor.skipSeen(results, Boolean.parseBoolean(request.getParameter("descending")));
+            }
         } catch (Exception e) {
             return;
         }
@@ -128,13 +156,13 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
         try (JsonGenerator jsonGen = Json.createGenerator(out)) {
             jsonGen.writeStartObject();
             long[] limits = writeResources(jsonGen, results, offset, limit);
-            writeSummary(jsonGen, request, limits);
+            writeSummary(jsonGen, request, limits, countQuery, cursor != null);
             jsonGen.writeEnd().flush();
         }
     }
 
     @SuppressWarnings({"checkstyle:ExecutableStatementCount"})
-    private String createQuery(final SlingHttpServletRequest request)
+    private BoundQuery createQuery(final SlingHttpServletRequest request, final PageCursor cursor)
     {
         // If we want this query to be fast, we need to use the exact nodetype requested.
         final Node node = request.getResource().adaptTo(Node.class);
@@ -145,15 +173,22 @@ private String createQuery(final SlingHttpServletRequest request)
         } catch (Exception e) {
             nodeType = request.getResource().getResourceType().replace('/', ':').replaceFirst("sHomepage$", "");
         }
-        final StringBuilder query =
+        // Filter values are never written in the query, they are passed as bind variables instead
+        final BoundQuery.Builder query =
             // We select all child nodes of the homepage having the right type
-            new StringBuilder("select n.* from [").append(nodeType).append("] as n");
+            new BoundQuery.Builder().append("select n.* from [").append(nodeType).append("] as n");
 
-        // If child nodes are required for this query, also grab them
+        // Condition on child nodes. See parseFilter for details.
         final String[] filternames = request.getParameterValues("filternames");
+        final String[] filtervalues = request.getParameterValues("filtervalues");
+        final String[] filtertypes = request.getParameterValues("filtertypes");
+        final String[] filtercomparators = request.getParameterValues("filtercomparators");
+        final boolean projected = canUseProjection(nodeType, filternames, filtervalues, filtertypes, filtercomparators);
+
+        // If child nodes are required for this query, also grab them
         query.append(createJoins(
             request.getParameter("joinchildren"),
-            request.getParameterValues("filternames"),
+            projected ? null : filternames,
             request.getParameterValues("filterempty"),
             request.getParameterValues("filternotempty")
             ));
@@ -161,13 +196,13 @@ private String createQuery(final SlingHttpServletRequest request)
         // Check only for the descendants of the requested homepage
         query.append(" where isdescendantnode(n, '" + request.getResource().getPath() + "')");
 
-        // Full text search; \ and ' must be escaped
+        // Full text search
         final String filter = request.getParameter("filter");
         if (StringUtils.isNotBlank(filter)) {
-            query.append(" and contains(n.*, '" + this.sanitizeField(filter) + "')");
+            query.append(" and contains(n.*, " + query.bind(filter) + ")");
         }
 
-        // Exact condition on parent node; \ and ' must be escaped. The value must be wrapped in 's
+        // Exact condition on parent node; \ and ' must be escaped in the field name
         final String fieldname = request.getParameter("fieldname");
         final String fieldvalue = request.getParameter("fieldvalue");
         // TODO, if more request options are required: convert includeAllStatus into a request mode
@@ -181,10 +216,10 @@ private String createQuery(final SlingHttpServletRequest request)
             }
             query.append(
                 String.format(
-                    " and n.'%s'%s'%s'",
+                    " and n.'%s'%s%s",
                     this.sanitizeField(fieldname),
                     this.sanitizeComparator(fieldcomparator),
-                    this.sanitizeField(fieldvalue)
+                    query.bind(fieldvalue)
                 )
             );
         }
@@ -194,22 +229,58 @@ private String createQuery(final SlingHttpServletRequest request)
             query.append(" and not n.'statusFlags'='INCOMPLETE'");
         }
 
-        // Condition on child nodes. See parseFilter for details.
-        final String[] filtervalues = request.getParameterValues("filtervalues");
-        final String[] filtertypes = request.getParameterValues("filtertypes");
-        final String[] filtercomparators = request.getParameterValues("filtercomparators");
         final String[] filterempty = request.getParameterValues("filterempty");
         final String[] filternotempty = request.getParameterValues("filternotempty");
         final boolean sortDescending = Boolean.valueOf(request.getParameter("descending"));
-        query.append(parseFilter(filternames, filtervalues, filtertypes, filtercomparators));
-        query.append(parseExistence(filterempty, filternotempty));
-        query.append(" order by n.'jcr:created'").append(sortDescending ? " DESC" : " ASC");
-        String finalquery = query.toString();
+        query.append(parseFilter(query, filternames, filtervalues, filtertypes, filtercomparators, projected));
+        query.append(parseExistence(query, filterempty, filternotempty));
+        if (cursor != null) {
+            query.append(cursor.getCondition(query, sortDescending));
+        }
+        query.append(PageCursor.getOrder(sortDescending));
+        BoundQuery finalquery = query.build();
         LOGGER.debug("Computed final query: {}", finalquery);
 
         return finalquery;
     }
 
+    /**
+     * Checks if the answer filters can be matched against the answer projection of forms instead of joined answers.
+     * This requires the projection to be enabled, and all the answer filters to be equality checks on values that are
+     * projected.
+     *
+     * @param nodeType the type of the listed nodes
+     * @param fields user input field names
+     * @param values user input field values
+     * @param types user input field types
+     * @param comparators user input comparators
+     * @return {@code true} if the answer projection can be used
+     */
+    private boolean canUseProjection(final String nodeType, final String[] fields, final String[] values,
+        final String[] types, final String[] comparators)
+    {
+        final AnswerProjectionEditorProvider projection = this.answerProjection;
+        if (projection == null || !projection.isUsedForFilters() || !"cards:Form".equals(nodeType)
+            || fields == null || values == null || types == null
+            || fields.length != values.length || fields.length != types.length
+            || (comparators != null && comparators.length != fields.length)) {
+            return false;
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (SUBJECT_IDENTIFIER.equals(fields[i])
+                || QUESTIONNAIRE_IDENTIFIER.equals(fields[i])
+                || CREATED_DATE_IDENTIFIER.equals(fields[i])) {
+                // These are conditions on the form itself, no join needed anyway
+                continue;
+            }
+            if ((comparators != null && !"=".equals(comparators[i]))
+                || AnswerProjection.normalize(types[i], values[i]) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Parse out filter data into a series of JCR_SQL2 joins. This should be used in conjunction with parseFilter later
      * on.
@@ -283,7 +354,18 @@ private String createSingleJoin(final String[] joins, final String childprefix,
         return joindata.toString();
     }
 
-    private String generateDateCompareQuery(String jcrVariable, String thisDayStr, String operator)
+    /**
+     * Generates the condition comparing a date property with a day. Only the values used by the condition are bound,
+     * since binding a variable that doesn't appear in the statement makes the query fail.
+     *
+     * @param query the query being built, where the dates are bound
+     * @param jcrVariable the date property to compare
+     * @param thisDayStr the day to compare with, as an ISO date-time at the start of the day
+     * @param operator the comparator, one of {@code =}, {@code <>}, {@code <}, {@code >}, {@code <=} and {@code >=}
+     * @return a JCR-SQL2 condition, or {@code null} if the comparator is not supported
+     */
+    static String generateDateCompareQuery(final BoundQuery.Builder query, String jcrVariable, String thisDayStr,
+        String operator)
     {
         /*
          * IF (=) THEN CHECK (>= day AND < nextDay)
@@ -294,48 +376,47 @@ private String generateDateCompareQuery(String jcrVariable, String thisDayStr, S
          * IF (>=) THEN CHECK (>= day)
          */
         final ZonedDateTime thisDay = ZonedDateTime.parse(thisDayStr);
-        final ZonedDateTime nextDay = thisDay.plusDays(1);
-        final String nextDayStr = nextDay.toString();
+        final String nextDayStr = thisDay.plusDays(1).toString();
         String compareQuery;
         switch (operator) {
             case "=":
-                compareQuery = String.format("(%s>='%s' and %s<'%s')",
+                compareQuery = String.format("(%s>=%s and %s<%s)",
                     jcrVariable,
-                    thisDayStr,
+                    query.bind(thisDayStr),
                     jcrVariable,
-                    nextDayStr
+                    query.bind(nextDayStr)
                 );
                 break;
             case "<>":
-                compareQuery = String.format("(%s<'%s' or %s>='%s')",
+                compareQuery = String.format("(%s<%s or %s>=%s)",
                     jcrVariable,
-                    thisDayStr,
+                    query.bind(thisDayStr),
                     jcrVariable,
-                    nextDayStr
+                    query.bind(nextDayStr)
                 );
                 break;
             case "<":
-                compareQuery = String.format("(%s<'%s')",
+                compareQuery = String.format("(%s<%s)",
                     jcrVariable,
-                    thisDayStr
+                    query.bind(thisDayStr)
                 );
                 break;
             case ">":
-                compareQuery = String.format("(%s>='%s')",
+                compareQuery = String.format("(%s>=%s)",
                     jcrVariable,
-                    nextDayStr
+                    query.bind(nextDayStr)
                 );
                 break;
             case "<=":
-                compareQuery = String.format("(%s<'%s')",
+                compareQuery = String.format("(%s<%s)",
                     jcrVariable,
-                    nextDayStr
+                    query.bind(nextDayStr)
                 );
                 break;
             case ">=":
-                compareQuery = String.format("(%s>='%s')",
+                compareQuery = String.format("(%s>=%s)",
                     jcrVariable,
-                    thisDayStr
+                    query.bind(thisDayStr)
                 );
                 break;
             default:
@@ -348,14 +429,17 @@ private String generateDateCompareQuery(String jcrVariable, String thisDayStr, S
     /**
      * Parse out filter data into a series of JCR_SQL2 conditionals.
      *
+     * @param query the query being built, where the filter values are bound
      * @param fields user input field names
      * @param values user input field values
      * @param comparator user input comparators
+     * @param projected whether answer filters are matched against the answer projection of the form, instead of the
+     *            joined answers
      * @throws IllegalArgumentException when the number of input fields are not equal
      */
     @SuppressWarnings({"checkstyle:CyclomaticComplexity", "checkstyle:NPathComplexity"})
-    private String parseFilter(final String[] fields, final String[] values,
-        final String[] types, final String[] comparator) throws IllegalArgumentException
+    private String parseFilter(final BoundQuery.Builder query, final String[] fields, final String[] values,
+        final String[] types, final String[] comparator, final boolean projected) throws IllegalArgumentException
     {
         // If we don't have either names or values, we should fail to filter
         if (fields == null || values == null) {
@@ -389,27 +473,44 @@ private String parseFilter(final String[] fields, final String[] values,
             // If the question is cards:Subject, we match on the parent rather than the child
             if (SUBJECT_IDENTIFIER.equals(fields[i])) {
                 filterdata.append(
-                    String.format(" and n.'subject'%s'%s'",
+                    String.format(" and n.'subject'%s%s",
                         this.sanitizeComparator(comparators[i]),
-                        this.sanitizeField(values[i])
+                        query.bind(values[i])
                     )
                 );
             } else if (QUESTIONNAIRE_IDENTIFIER.equals(fields[i])) {
                 filterdata.append(
-                    String.format(" and n.'questionnaire'%s'%s'",
+                    String.format(" and n.'questionnaire'%s%s",
                         this.sanitizeComparator(comparators[i]),
-                        this.sanitizeField(values[i])
+                        query.bind(values[i])
                     )
                 );
             } else if (CREATED_DATE_IDENTIFIER.equals(fields[i])) {
                 filterdata.append(" and ");
                 filterdata.append(
                     generateDateCompareQuery(
+                        query,
                         "n.'jcr:created'",
-                        this.sanitizeField(values[i]),
+                        values[i],
                         this.sanitizeComparator(comparators[i])
                     )
                 );
+            } else if (projected) {
+                // A single condition: one of the projection entries must match one of the given questions and value
+                final String value = AnswerProjection.normalize(types[i], values[i]);
+                final String[] possibleQuestions = fields[i].split(",");
+                filterdata.append(" and (");
+                for (int j = 0; j < possibleQuestions.length; j++) {
+                    filterdata.append(
+                        String.format(
+                            "%sn.'%s'=%s",
+                            j > 0 ? " or " : "",
+                            AnswerProjection.PROPERTY,
+                            query.bind(AnswerProjection.entry(possibleQuestions[j], value))
+                        )
+                    );
+                }
+                filterdata.append(")");
             } else {
                 // Condition 1: the question uuid must match one of the given (comma delimited)
                 String[] possibleQuestions = fields[i].split(",");
@@ -417,9 +518,9 @@ private String parseFilter(final String[] fields, final String[] values,
                 for (int j = 0; j < possibleQuestions.length; j++) {
                     filterdata.append(
                         String.format(
-                            " child%d.'question'='%s'",
+                            " child%d.'question'=%s",
                             i,
-                            this.sanitizeField(possibleQuestions[j])
+                            query.bind(possibleQuestions[j])
                         )
                     );
                     // Add an 'or' if there are more possible conditions
@@ -431,21 +532,27 @@ private String parseFilter(final String[] fields, final String[] values,
                 if (comparators[i].equals("notes contain")) {
                     filterdata.append(
                         String.format(
-                            ") and contains(child%d.'note', '*%s*')",
+                            ") and contains(child%d.'note', %s)",
                             i,
-                            this.sanitizeField(values[i])
+                            query.bind("*" + values[i] + "*")
                         )
                     );
                 } else {
+                    final String value;
+                    if ("date".equals(types[i])) {
+                        value = query.bind(values[i] + "T00:00:00.000" + new SimpleDateFormat("XXX").format(new Date()),
+                            PropertyType.DATE);
+                    } else if ("boolean".equals(types[i])) {
+                        value = query.bind(values[i], PropertyType.BOOLEAN);
+                    } else {
+                        value = query.bind(values[i]);
+                    }
                     filterdata.append(
                         String.format(
-                            ") and child%d.'value'%s" + (("date".equals(types[i]))
-                                ? ("cast('%sT00:00:00.000"
-                                + new SimpleDateFormat("XXX").format(new Date()) + "' as date)")
-                                : ("boolean".equals(types[i])) ? "%s" : "'%s'"),
+                            ") and child%d.'value'%s%s",
                             i,
                             this.sanitizeComparator(comparators[i]),
-                            this.sanitizeField(values[i])
+                            value
                         )
                     );
                 }
@@ -457,28 +564,31 @@ private String parseFilter(final String[] fields, final String[] values,
     /**
      * Parse out empty & not empty fields into a series of JCR_SQL2 conditionals.
      *
+     * @param query the query being built, where the question identifiers are bound
      * @param empties user input field names to assert the nonexistance of content for
      * @param notempties user input field names to assert the existance of content for
      * @return JCR_SQL conditionals for the input
      */
-    private String parseExistence(final String[] empties, final String[] notempties)
+    private String parseExistence(final BoundQuery.Builder query, final String[] empties, final String[] notempties)
         throws IllegalArgumentException
     {
         StringBuilder joindata = new StringBuilder();
-        joindata.append(parseComparison(empties, "empty", " IS NULL"));
-        joindata.append(parseComparison(notempties, "notempty", " IS NOT NULL"));
+        joindata.append(parseComparison(query, empties, "empty", " IS NULL"));
+        joindata.append(parseComparison(query, notempties, "notempty", " IS NOT NULL"));
         return joindata.toString();
     }
 
     /**
      * Parse out a field and its unary comparison into a series of JCR_SQL2 conditionals.
      *
+     * @param query the query being built, where the question identifiers are bound
      * @param fieldnames user input field names
      * @param childprefix prefix for the child nodes
      * @param comparison unary comparitor to assert
      * @return JCR_SQL conditionals for the input
      */
-    private String parseComparison(final String[] fieldnames, final String childprefix, final String comparison)
+    private String parseComparison(final BoundQuery.Builder query, final String[] fieldnames,
+        final String childprefix, final String comparison)
     {
         // If no comparison is entered, do nothing
         if (fieldnames == null) {
@@ -488,7 +598,6 @@ private String parseComparison(final String[] fieldnames, final String childpref
         // Build the conditionals (e.g. and child0.'question'='uuid' and child0.'value' IS NOT NULL...)
         StringBuilder joindata = new StringBuilder();
         for (int i = 0; i < fieldnames.length; i++) {
-            String sanitizedFieldName = sanitizeField(fieldnames[i]);
             // cards:Subject is handled differently, since it is on the Form itself
             if (fieldnames[i].equals(SUBJECT_IDENTIFIER)) {
                 joindata.append(
@@ -510,10 +619,10 @@ private String parseComparison(final String[] fieldnames, final String childpref
                 for (int j = 0; j < possibleQuestions.length; j++) {
                     joindata.append(
                         String.format(
-                            " %s%d.'question'='%s' and %s%d.'value'%s",
+                            " %s%d.'question'=%s and %s%d.'value'%s",
                             childprefix,
                             i,
-                            this.sanitizeField(possibleQuestions[j]),
+                            query.bind(possibleQuestions[j]),
                             childprefix,
                             i,
                             comparison
@@ -531,7 +640,8 @@ private String parseComparison(final String[] fieldnames, final String childpref
     }
 
     /**
-     * Sanitize a field name for an input query.
+     * Sanitize a field name for an input query. Only names need to be sanitized, since values are passed as bind
+     * variables.
      *
      * @param fieldname the field name to sanitize
      * @return a sanitized version of the input
@@ -569,17 +679,49 @@ private String sanitizeComparator(String comparator)
      *            returned
      * @param totalMatchingNodes the total number of accessible nodes matching the request, may be {@code 0} if no nodes
      *            match the filters, or the current user cannot access the nodes
+     * @param countQuery the query selecting all the matching nodes, used for caching the total
+     * @param usingCursor whether the results start at a cursor, in which case the nodes before the cursor were not
+     *            counted, and the total is only reported if it was cached by a previous request
      */
-    private void writeSummary(final JsonGenerator jsonGen, final SlingHttpServletRequest request, final long[] limits)
+    private void writeSummary(final JsonGenerator jsonGen, final SlingHttpServletRequest request, final long[] limits,
+        final BoundQuery countQuery, final boolean usingCursor)
     {
-        final boolean totalIsApproximate = (limits[3] > (QUERY_SIZE_MULTIPLIER * limits[1]));
+        final QueryCountCache cache = this.countCache;
+        final ResourceResolver resolver = request.getResourceResolver();
+        final String scope = request.getResource().getPath();
+        final boolean allCounted = !usingCursor && (limits[3] <= (QUERY_SIZE_MULTIPLIER * limits[1]))
+            && (limits[0] == 0 || limits[3] > 0);
+        Long total;
+        boolean totalIsApproximate;
+        if (allCounted) {
+            total = limits[0] + limits[3];
+            totalIsApproximate = false;
+            if (cache != null) {
+                cache.put(resolver, scope, countQuery, total, true);
+            }
+        } else {
+            final QueryCountCache.Count cached = cache == null ? null : cache.get(resolver, scope, countQuery);
+            if (cached != null) {
+                total = cached.getValue();
+                totalIsApproximate = !cached.isExact();
+            } else {
+                // Only a lower bound is known, count everything in the background for the next requests;
+                // with a cursor, the nodes before the cursor were not counted, so not even a lower bound is known
+                total = usingCursor ? null : Math.min(limits[3], QUERY_SIZE_MULTIPLIER * limits[1]) + limits[0];
+                totalIsApproximate = true;
+                if (cache != null) {
+                    cache.countInBackground(resolver, scope, countQuery);
+                }
+            }
+        }
         jsonGen.write("req", request.getParameter("req"));
         jsonGen.write("offset", limits[0]);
         jsonGen.write("limit", limits[1]);
         jsonGen.write("returnedrows", limits[2]);
-        jsonGen.write("totalrows", totalIsApproximate
-            ? ((QUERY_SIZE_MULTIPLIER * limits[1]) + limits[0]) : (limits[0] + limits[3]));
-        jsonGen.write("totalIsApproximate", totalIsApproximate);
+        if (total != null) {
+            jsonGen.write("totalrows", total);
+            jsonGen.write("totalIsApproximate", totalIsApproximate);
+        }
     }
 
     private long[] writeResources(final JsonGenerator jsonGen, final Iterator<Resource> nodes,
@@ -592,6 +734,7 @@ private long[] writeResources(final JsonGenerator jsonGen, final Iterator<Resour
         counts[3] = 0;
 
         long limitCounter = limit < 0 ? 0 : limit;
+        Resource last = null;
 
         jsonGen.writeStartArray("rows");
 
@@ -601,12 +744,21 @@ private long[] writeResources(final JsonGenerator jsonGen, final Iterator<Resour
                 jsonGen.write(n.adaptTo(JsonObject.class));
                 --limitCounter;
                 ++counts[2];
+                last = n;
             }
             ++counts[3];
         }
 
         jsonGen.writeEnd();
 
+        // Only point to a next page if there are more results
+        final String nextCursor = last != null && counts[3] > counts[2] ? PageCursor.encode(last) : null;
+        if (nextCursor == null) {
+            jsonGen.writeNull("nextCursor");
+        } else {
+            jsonGen.write("nextCursor", nextCursor);
+        }
+
         return counts;
     }
 
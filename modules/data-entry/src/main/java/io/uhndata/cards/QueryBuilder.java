@@ -16,6 +16,7 @@
  */
 package io.uhndata.cards;
 
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
@@ -23,15 +24,16 @@
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import javax.jcr.RepositoryException;
 import javax.json.Json;
-import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
 import javax.script.Bindings;
 
 import org.apache.commons.lang3.StringUtils;
@@ -43,6 +45,7 @@
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.internal.ParallelQuickSearch;
 import io.uhndata.cards.spi.QuickSearchEngine;
 import io.uhndata.cards.spi.SearchParameters;
 import io.uhndata.cards.spi.SearchParametersFactory;
@@ -83,6 +86,9 @@ public class QueryBuilder implements Use
     /** Quick search engines. */
     private List<QuickSearchEngine> searchEngines;
 
+    /** Runs the quick search engines in parallel, may be {@code null}. */
+    private ParallelQuickSearch parallelSearch;
+
     @SuppressWarnings({"checkstyle:ExecutableStatementCount"})
     @Override
     public void init(Bindings bindings)
@@ -91,6 +97,7 @@ public void init(Bindings bindings)
         this.resourceResolver = (ResourceResolver) bindings.get("resolver");
         final SlingScriptHelper slingHelper = (SlingScriptHelper) bindings.get("sling");
         this.searchEngines = Arrays.asList(slingHelper.getServices(QuickSearchEngine.class, null));
+        this.parallelSearch = slingHelper.getService(ParallelQuickSearch.class);
 
         try {
             final String jcrQuery = request.getParameter("query");
@@ -112,7 +119,7 @@ public void init(Bindings bindings)
             this.showTotalRows = StringUtils.isBlank(showTotalRowsParam) || "true".equals(showTotalRowsParam);
 
             // Try to use a JCR-SQL2 query first
-            Iterator<JsonObject> results;
+            Iterator<Consumer<JsonGenerator>> results;
             if (StringUtils.isNotBlank(jcrQuery)) {
                 results = QueryBuilder.adaptNodes(queryJCR(this.urlDecode(jcrQuery)), serializeChildren);
             } else if (StringUtils.isNotBlank(luceneQuery)) {
@@ -126,9 +133,13 @@ public void init(Bindings bindings)
             }
 
             // output the results into our content
-            JsonObjectBuilder builder = Json.createObjectBuilder();
-            this.addObjects(builder, results, requestID, offset);
-            this.content = builder.build().toString();
+            final StringWriter out = new StringWriter();
+            try (JsonGenerator jsonGen = Json.createGenerator(out)) {
+                jsonGen.writeStartObject();
+                this.addObjects(jsonGen, results, requestID, offset);
+                jsonGen.writeEnd();
+            }
+            this.content = out.toString();
         } catch (Exception e) {
             this.logger.error("Failed to query resources: {}", e.getMessage(), e);
             this.content = "Unknown error: " + e.fillInStackTrace();
@@ -195,20 +206,20 @@ private String fullTextEscape(String input)
     /**
      * Finds [cards:Form]s, [cards:Subject]s, and [cards:Questionnaire]s using the given full text search.
      * This performs the search in such a way that values in child nodes (e.g. cards:Answers of an cards:Form)
-     * are aggregated to their parent.
+     * are aggregated to their parent. The engines run in parallel when possible, and their results are listed in the
+     * order of the allowed resource types.
      *
      * @param query text to search
      *
      * @return the content matching the query
      */
-    private Iterator<JsonObject> quickSearch(String query) throws RepositoryException, UnsupportedEncodingException
+    private Iterator<Consumer<JsonGenerator>> quickSearch(String query)
+        throws RepositoryException, UnsupportedEncodingException
     {
         List<String> allowedResourceTypes = Collections.singletonList("cards:Form");
         if (this.resourceTypes != null && this.resourceTypes.length > 0) {
             allowedResourceTypes = Arrays.asList(this.resourceTypes);
         }
-        List<JsonObject> resultsList = new ArrayList<>();
-
         final SearchParameters searchParameters = SearchParametersFactory.newSearchParameters()
             .withType("quick")
             .withQuery(query)
@@ -216,12 +227,23 @@ private Iterator<JsonObject> quickSearch(String query) throws RepositoryExceptio
             .withMaxResults(this.limit)
             .build();
 
+        final List<QuickSearchEngine> engines = new ArrayList<>();
         for (String type : allowedResourceTypes) {
             this.searchEngines.stream()
                 .filter(engine -> engine.isTypeSupported(type))
-                .forEach(engine -> engine.quickSearch(searchParameters, this.resourceResolver, resultsList));
+                .forEach(engines::add);
+        }
+        List<JsonObject> resultsList;
+        if (this.parallelSearch != null) {
+            resultsList = this.parallelSearch.search(engines, searchParameters, this.resourceResolver);
+        } else {
+            final List<JsonObject> output = new ArrayList<>();
+            engines.forEach(engine -> engine.quickSearch(searchParameters, this.resourceResolver, output));
+            resultsList = output;
         }
-        return resultsList.listIterator();
+        // Quick search results are already serialized
+        return resultsList.stream().<Consumer<JsonGenerator>>map(result -> jsonGen -> jsonGen.write(result))
+            .iterator();
     }
 
     /**
@@ -236,53 +258,78 @@ private Iterator<Resource> queryJCR(String query) throws RepositoryException
     }
 
     /**
-     * Convert an iterator of nodes into an iterator of JsonObjects.
+     * Convert an iterator of nodes into an iterator of row writers. Nodes are only serialized when their row is
+     * actually written, so that results outside the requested page are only counted.
      * @param nodes the iterator to convert
      * @param serializeChildren If true, this also includes the immediate children of each node
-     * @return An iterator of the input nodes
+     * @return An iterator of writers for the input nodes
      */
-    private static Iterator<JsonObject> adaptNodes(Iterator<Resource> resources, boolean serializeChildren)
+    private static Iterator<Consumer<JsonGenerator>> adaptNodes(Iterator<Resource> resources,
+        boolean serializeChildren)
     {
-        ArrayList<JsonObject> list = new ArrayList<>();
-        while (resources.hasNext()) {
-            Resource resource = resources.next();
-
-            // If there are children we can add, we'll add them as child properties of the JsonObject
-            if (serializeChildren && resource.hasChildren()) {
-                Iterator<Resource> children = resource.listChildren();
-                JsonObjectBuilder builder = Json.createObjectBuilder();
-
-                // First convert the original JsonObject into a JsonObjectBuilder we can adjust
-                JsonObject original = resource.adaptTo(JsonObject.class);
-                for (Map.Entry<String, JsonValue> entry : original.entrySet()) {
-                    builder.add(entry.getKey(), entry.getValue());
-                }
-
-                // Next, add each child
-                while (children.hasNext()) {
-                    Resource child = children.next();
-                    builder.add(child.getName(), child.adaptTo(JsonObject.class));
-                }
-
-                list.add(builder.build());
-            } else {
-                list.add(resource.adaptTo(JsonObject.class));
+        return new Iterator<Consumer<JsonGenerator>>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return resources.hasNext();
+            }
+
+            @Override
+            public Consumer<JsonGenerator> next()
+            {
+                final Resource resource = resources.next();
+                return jsonGen -> writeNode(jsonGen, resource, serializeChildren);
+            }
+        };
+    }
+
+    /**
+     * Serialize a node.
+     * @param jsonGen the JSON generator where the node should be written, as an element of the current array
+     * @param resource the node to serialize
+     * @param serializeChildren If true, this also includes the immediate children of the node
+     */
+    static void writeNode(JsonGenerator jsonGen, Resource resource, boolean serializeChildren)
+    {
+        // If there are children we can add, we'll add them as child properties of the serialized node
+        if (serializeChildren && resource.hasChildren()) {
+            jsonGen.writeStartObject();
+
+            // Children replace the original values with the same name, in place, as adding them to a builder would
+            final Map<String, Resource> children = new LinkedHashMap<>();
+            resource.listChildren().forEachRemaining(child -> children.put(child.getName(), child));
+
+            // First copy the original properties
+            JsonObject original = resource.adaptTo(JsonObject.class);
+            for (Map.Entry<String, JsonValue> entry : original.entrySet()) {
+                final Resource child = children.remove(entry.getKey());
+                jsonGen.write(entry.getKey(), child != null ? child.adaptTo(JsonObject.class) : entry.getValue());
+            }
+
+            // Next, add the other children
+            for (Resource child : children.values()) {
+                jsonGen.write(child.getName(), child.adaptTo(JsonObject.class));
             }
+
+            jsonGen.writeEnd();
+        } else {
+            jsonGen.write(resource.adaptTo(JsonObject.class));
         }
-        return list.iterator();
     }
 
     /**
      * Write the contents of the input nodes, subject to the an offset and a limit. Write metadata about the request
      * and response. This includes the number of returned and total matching nodes, and copying some request parameters.
      *
-     * @param jsonGen the JSON object generator where the results should be serialized
-     * @param objects an iterator over the nodes to serialize, which will be consumed
+     * @param jsonGen the JSON generator where the results should be serialized, inside the current object
+     * @param objects an iterator over the writers of the nodes to serialize, which will be consumed; only the nodes in
+     *            the requested page are written, the others are only counted
      * @param req the current request number
      * @param offset the requested offset, may be the default value of {0}
      *
      */
-    private void addObjects(final JsonObjectBuilder jsonGen, final Iterator<JsonObject> objects, String req,
+    private void addObjects(final JsonGenerator jsonGen, final Iterator<Consumer<JsonGenerator>> objects, String req,
         final long offset)
     {
         long returnedrows = 0;
@@ -291,16 +338,16 @@ private void addObjects(final JsonObjectBuilder jsonGen, final Iterator<JsonObje
         long offsetCounter = offset < 0 ? 0 : offset;
         long limitCounter = this.limit < 0 ? 0 : this.limit;
 
-        final JsonArrayBuilder builder = Json.createArrayBuilder();
+        jsonGen.writeStartArray("rows");
 
         while (objects.hasNext()) {
-            JsonObject n = objects.next();
+            Consumer<JsonGenerator> n = objects.next();
             // Skip results up to the offset provided
             if (offsetCounter > 0) {
                 --offsetCounter;
                 // Count up to our limit
             } else if (limitCounter > 0) {
-                builder.add(n);
+                n.accept(jsonGen);
                 --limitCounter;
                 ++returnedrows;
             } else if (!this.showTotalRows) {
@@ -310,12 +357,13 @@ private void addObjects(final JsonObjectBuilder jsonGen, final Iterator<JsonObje
             ++totalrows;
         }
 
-        jsonGen.add("rows", builder.build());
-        jsonGen.add("req", req);
-        jsonGen.add("offset", offset);
-        jsonGen.add("limit", this.limit);
-        jsonGen.add("returnedrows", returnedrows);
-        jsonGen.add("totalrows", totalrows);
+        jsonGen.writeEnd();
+        jsonGen.write("req", req);
+        jsonGen.write("offset", offset);
+        jsonGen.write("limit", this.limit);
+        jsonGen.write("returnedrows", returnedrows);
+        jsonGen.write("totalrows", totalrows);
+        jsonGen.write("totalIsApproximate", false);
     }
 
     /**
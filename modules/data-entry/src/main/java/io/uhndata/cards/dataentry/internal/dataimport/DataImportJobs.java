@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.dataimport;
+
+import java.nio.file.Path;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import io.uhndata.cards.dataentry.internal.jobs.JobRegistry;
+
+/**
+ * Runs data imports in the background, and keeps track of them so that their progress can be checked. Only a limited
+ * number of imports run at the same time, the others wait in a queue. Jobs that ended are kept for a while, so that
+ * their outcome can still be checked, and the oldest ones are forgotten once there are too many of them.
+ *
+ * @version $Id$
+ */
+@Component(service = DataImportJobs.class)
+@Designate(ocd = DataImportJobs.Config.class)
+public class DataImportJobs extends JobRegistry<ImportJob>
+{
+    @Activate
+    protected void activate(final Config config)
+    {
+        start("DataImportJob", config.concurrentImports(), config.retainedJobs());
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        stop();
+    }
+
+    /**
+     * Queues a new import.
+     *
+     * @param userId the user submitting the import
+     * @param importer the importer that will process the data, using {@code resolver}
+     * @param data a copy of the uploaded data, which will be deleted once the job ends
+     * @param resolver the resource resolver used by the importer, which will be closed once the job ends
+     * @return the new job
+     */
+    public ImportJob submit(final String userId, final DataImporter importer, final Path data,
+        final ResourceResolver resolver)
+    {
+        return enqueue(new ImportJob(userId, importer, data, resolver), null);
+    }
+
+    /** Configuration for background data imports. */
+    @ObjectClassDefinition(name = "CARDS - Data import jobs",
+        description = "Configuration for data imports running in the background")
+    public @interface Config
+    {
+        /**
+         * The number of imports that can run at the same time.
+         *
+         * @return a positive number
+         */
+        @AttributeDefinition(name = "Concurrent imports",
+            description = "How many data imports can run at the same time, the others wait in a queue")
+        int concurrentImports() default 2;
+
+        /**
+         * The number of finished imports to remember.
+         *
+         * @return a positive number
+         */
+        @AttributeDefinition(name = "Retained jobs",
+            description = "How many finished imports are remembered, so that their outcome can be checked")
+        int retainedJobs() default 100;
+    }
+}
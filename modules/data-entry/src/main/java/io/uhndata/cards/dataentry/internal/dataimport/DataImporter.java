@@ -0,0 +1,562 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.dataimport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.dataentry.internal.dataimport.QuestionnaireImportPlan.Column;
+
+/**
+ * Imports a TSV file as forms, using several threads. The import is pipelined in three stages:
+ * <ol>
+ * <li>the calling thread parses the file and groups rows in batches, assigning each row to a worker based on its top
+ * level subject, so that all the rows of a subject are handled by the same worker, in the order they appear in the
+ * file, and no two workers modify the same nodes;</li>
+ * <li>each worker, running in the thread pool with its own resource resolver, finds or creates the subjects, forms and
+ * answers for its share of the batch;</li>
+ * <li>each worker then saves and checks in its changes, while the next batch is being parsed.</li>
+ * </ol>
+ * A batch is only started once the previous one has been fully saved, so if the import fails, all the rows up to the
+ * {@link #getLastCommittedRow() last committed row} are stored, and the import can be resumed from there. Rows from
+ * the failed batch may have been saved by the other workers, so resuming should be done in patch mode.
+ *
+ * @version $Id$
+ */
+public final class DataImporter
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataImporter.class);
+
+    /** How many warnings to keep. */
+    private static final int MAX_WARNINGS = 100;
+
+    /** The resource resolver of the user importing the data. */
+    private final ResourceResolver resolver;
+
+    /** The threads used by the workers, or {@code null} to do all the work in the calling thread. */
+    private final ExecutorService executor;
+
+    /** The number of workers to use. */
+    private final int workerCount;
+
+    /** The path to the questionnaire to use for the imported data. */
+    private final String questionnairePath;
+
+    /** The paths to the subject types of the subject hierarchy, starting with the top level type. */
+    private final String[] subjectTypes;
+
+    /** Whether to update existing forms when possible, or always create new forms. */
+    private final boolean patch;
+
+    /** How many rows each worker saves at once. */
+    private final int batchSize;
+
+    /** Rows up to this one are skipped, since they were imported in a previous attempt. */
+    private final long resumeAfterRow;
+
+    /** Keeps the compiled questionnaires. */
+    private final ImportPlanCache planCache;
+
+    /** Index of the existing subjects. */
+    private final SubjectIndex subjectIndex;
+
+    /** The names of the columns that don't correspond to any question, and are thus ignored. */
+    private final List<String> unknownColumns = new ArrayList<>();
+
+    /** Problems found in the data that didn't stop the import, limited to {@link #MAX_WARNINGS} messages. */
+    private final List<String> warnings = Collections.synchronizedList(new ArrayList<>());
+
+    /** The size of the data in bytes, or {@code -1} if unknown. */
+    private volatile long dataSize = -1;
+
+    /** The number of bytes of data read so far. */
+    private volatile long dataRead;
+
+    /** When the import started, or {@code 0} if it didn't start yet. */
+    private volatile long startTime;
+
+    /** When the import ended, or {@code 0} if it didn't end yet. */
+    private volatile long endTime;
+
+    /** Whether the import was cancelled. */
+    private volatile boolean cancelled;
+
+    /** The number of rows imported and saved so far. */
+    private volatile long importedRows;
+
+    /** The last row such that it and all the rows before it are saved. */
+    private volatile long lastCommittedRow;
+
+    /** The error that stopped the import, if any. */
+    private volatile String error;
+
+    /**
+     * Constructor specifying the import settings.
+     *
+     * @param resolver the resource resolver of the user importing the data
+     * @param executor the threads to use for the workers, may be {@code null} to do all the work in the calling thread
+     * @param workerCount the number of workers to use, each with its own resource resolver
+     * @param questionnairePath the path to the questionnaire to use for the imported data
+     * @param subjectTypes the paths to the subject types of the subject hierarchy, starting with the top level type
+     * @param patch if {@code true}, try to update existing forms when possible; if {@code false}, new forms are always
+     *            created
+     * @param batchSize how many rows each worker saves at once
+     * @param resumeAfterRow the last row that was saved in a previous attempt, {@code 0} to import all the rows
+     * @param planCache keeps the compiled questionnaires
+     * @param subjectIndex index of the existing subjects, may be {@code null} to always look up subjects with queries
+     */
+    @SuppressWarnings("checkstyle:ParameterNumber")
+    public DataImporter(final ResourceResolver resolver, final ExecutorService executor, final int workerCount,
+        final String questionnairePath, final String[] subjectTypes, final boolean patch, final int batchSize,
+        final long resumeAfterRow, final ImportPlanCache planCache, final SubjectIndex subjectIndex)
+    {
+        this.resolver = resolver;
+        this.executor = executor;
+        this.workerCount = executor == null ? 1 : Math.max(1, workerCount);
+        this.questionnairePath = questionnairePath;
+        this.subjectTypes = subjectTypes;
+        this.patch = patch;
+        this.batchSize = Math.max(1, batchSize);
+        this.resumeAfterRow = resumeAfterRow;
+        this.lastCommittedRow = resumeAfterRow;
+        this.planCache = planCache;
+        this.subjectIndex = subjectIndex;
+    }
+
+    /**
+     * Imports the data. This method returns when the import is done, either successfully or not.
+     *
+     * @param data the TSV data to import
+     * @throws IOException if reading the data fails
+     */
+    public void run(final InputStream data) throws IOException
+    {
+        run(data, -1);
+    }
+
+    /**
+     * Imports the data. This method returns when the import is done, either successfully or not.
+     *
+     * @param data the TSV data to import
+     * @param size the size of the data in bytes, used for estimating the remaining time, or {@code -1} if unknown
+     * @throws IOException if reading the data fails
+     */
+    public void run(final InputStream data, final long size) throws IOException
+    {
+        this.dataSize = size;
+        this.startTime = System.currentTimeMillis();
+        final List<ResourceResolver> clones = new ArrayList<>();
+        RowImporter[] workers = null;
+        try {
+            final CSVFormat format = CSVFormat.TDF.withFirstRecordAsHeader();
+            try (CSVParser parser = CSVParser.parse(new CountingInputStream(data), StandardCharsets.UTF_8, format)) {
+                workers = createWorkers(mapColumns(parser), clones);
+                final String partitionColumn = getPartitionLabel();
+                importBatches(parser, workers, partitionColumn);
+            }
+        } catch (RepositoryException | LoginException | IllegalStateException e) {
+            // IllegalStateException is thrown by the CSV parser when the input is malformed
+            fail(e, workers);
+        } finally {
+            clones.forEach(ResourceResolver::close);
+            this.endTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Stops the import. Rows already submitted to the workers are still saved, so that the import ends on a batch
+     * boundary, and can be resumed after the {@link #getLastCommittedRow() last committed row}.
+     */
+    public void cancel()
+    {
+        this.cancelled = true;
+    }
+
+    /**
+     * Whether the import was cancelled.
+     *
+     * @return {@code true} if {@link #cancel()} was called
+     */
+    public boolean isCancelled()
+    {
+        return this.cancelled;
+    }
+
+    /**
+     * The number of rows imported and saved so far.
+     *
+     * @return a positive number, or {@code 0} if nothing was imported yet
+     */
+    public long getImportedRows()
+    {
+        return this.importedRows;
+    }
+
+    /**
+     * The last row that was saved, such that all the rows before it are saved as well. If the import fails, it can be
+     * resumed after this row.
+     *
+     * @return a row number, where the first data row after the header is row {@code 1}
+     */
+    public long getLastCommittedRow()
+    {
+        return this.lastCommittedRow;
+    }
+
+    /**
+     * The average import speed so far.
+     *
+     * @return the number of rows saved per second, {@code 0} if the import didn't start yet
+     */
+    public double getRowsPerSecond()
+    {
+        final long start = this.startTime;
+        if (start == 0) {
+            return 0;
+        }
+        final long end = this.endTime == 0 ? System.currentTimeMillis() : this.endTime;
+        return this.importedRows * 1000.0 / Math.max(1, end - start);
+    }
+
+    /**
+     * Estimates the remaining time, based on how much of the data was read so far.
+     *
+     * @return the estimated number of seconds until the import ends, or {@code -1} if it cannot be estimated
+     */
+    public long getEstimatedSecondsLeft()
+    {
+        final long size = this.dataSize;
+        final long read = this.dataRead;
+        if (this.endTime != 0) {
+            return 0;
+        } else if (size <= 0 || read <= 0 || this.startTime == 0) {
+            return -1;
+        }
+        final long elapsed = System.currentTimeMillis() - this.startTime;
+        return elapsed * Math.max(0, size - read) / read / 1000;
+    }
+
+    /**
+     * Problems found in the data which didn't stop the import, such as unknown columns or rows that failed to import.
+     * Only the first {@value #MAX_WARNINGS} warnings are kept.
+     *
+     * @return a list of messages, may be empty
+     */
+    public List<String> getWarnings()
+    {
+        synchronized (this.warnings) {
+            return new ArrayList<>(this.warnings);
+        }
+    }
+
+    /**
+     * The columns of the imported file that don't correspond to any question of the questionnaire, and were ignored.
+     *
+     * @return a list of column names, may be empty
+     */
+    public List<String> getUnknownColumns()
+    {
+        return Collections.unmodifiableList(this.unknownColumns);
+    }
+
+    /**
+     * The error that stopped the import.
+     *
+     * @return an error message, or {@code null} if the import did not fail
+     */
+    public String getError()
+    {
+        return this.error;
+    }
+
+    /**
+     * Maps the columns of the imported file to the questions of the questionnaire, using the compiled questionnaire.
+     *
+     * @param parser the parser of the imported file, whose header was already read
+     * @return how to import each column
+     * @throws RepositoryException if accessing the questionnaire fails
+     */
+    private Column[] mapColumns(final CSVParser parser) throws RepositoryException
+    {
+        final Resource questionnaire = this.resolver.getResource(this.questionnairePath);
+        if (questionnaire == null) {
+            throw new RepositoryException("Questionnaire not found: " + this.questionnairePath);
+        }
+        final Node questionnaireNode = questionnaire.adaptTo(Node.class);
+        final QuestionnaireImportPlan plan = this.planCache != null ? this.planCache.getPlan(questionnaireNode)
+            : QuestionnaireImportPlan.compile(questionnaireNode);
+        final Column[] columns = plan.mapColumns(parser.getHeaderMap());
+        for (final Column column : columns) {
+            if (column != null && column.question == null) {
+                LOGGER.info("Unknown field: {}", column.name);
+                this.unknownColumns.add(column.name);
+                warn("Unknown field: " + column.name);
+            }
+        }
+        return columns;
+    }
+
+    private RowImporter[] createWorkers(final Column[] columns, final List<ResourceResolver> clones)
+        throws RepositoryException, LoginException
+    {
+        final RowImporter[] workers = new RowImporter[this.workerCount];
+        if (this.workerCount == 1) {
+            workers[0] = new RowImporter(this.resolver, this.questionnairePath, this.subjectTypes, this.patch,
+                columns, this.subjectIndex);
+        } else {
+            // Sessions are not thread safe, so each worker uses its own resource resolver, with the same rights
+            for (int i = 0; i < this.workerCount; ++i) {
+                final ResourceResolver clone = this.resolver.clone(null);
+                clones.add(clone);
+                workers[i] = new RowImporter(clone, this.questionnairePath, this.subjectTypes, this.patch,
+                    columns, this.subjectIndex);
+            }
+        }
+        return workers;
+    }
+
+    private void importBatches(final CSVParser parser, final RowImporter[] workers, final String partitionColumn)
+        throws RepositoryException
+    {
+        List<Future<?>> pending = new ArrayList<>();
+        long pendingLastRow = this.lastCommittedRow;
+        long pendingRows = 0;
+        List<List<CSVRecord>> batch = newBatch();
+        int batchRows = 0;
+        long lastRow = this.lastCommittedRow;
+        final int rowsPerBatch = this.batchSize * this.workerCount;
+
+        for (final CSVRecord row : parser) {
+            if (row.getRecordNumber() <= this.resumeAfterRow) {
+                // Already imported in a previous attempt
+                continue;
+            }
+            if (this.cancelled) {
+                break;
+            }
+            batch.get(getWorker(row, partitionColumn)).add(row);
+            lastRow = row.getRecordNumber();
+            if (++batchRows >= rowsPerBatch) {
+                // Parsing the next batch overlaps with the workers processing this one
+                waitFor(pending, workers, pendingLastRow, pendingRows);
+                pending = submit(batch, workers);
+                pendingLastRow = lastRow;
+                pendingRows = batchRows;
+                batch = newBatch();
+                batchRows = 0;
+            }
+        }
+        waitFor(pending, workers, pendingLastRow, pendingRows);
+        if (this.cancelled) {
+            // The batch being parsed is dropped, everything up to the last submitted batch is saved
+            LOGGER.info("Data import cancelled after row {}", this.lastCommittedRow);
+            return;
+        }
+        waitFor(submit(batch, workers), workers, lastRow, batchRows);
+    }
+
+    private List<List<CSVRecord>> newBatch()
+    {
+        final List<List<CSVRecord>> batch = new ArrayList<>(this.workerCount);
+        for (int i = 0; i < this.workerCount; ++i) {
+            batch.add(new ArrayList<>());
+        }
+        return batch;
+    }
+
+    private List<Future<?>> submit(final List<List<CSVRecord>> batch, final RowImporter[] workers)
+        throws RepositoryException
+    {
+        final List<Future<?>> tasks = new ArrayList<>(this.workerCount);
+        if (this.workerCount == 1) {
+            importRows(workers[0], batch.get(0));
+            return tasks;
+        }
+        for (int i = 0; i < this.workerCount; ++i) {
+            final RowImporter worker = workers[i];
+            final List<CSVRecord> rows = batch.get(i);
+            if (!rows.isEmpty()) {
+                tasks.add(this.executor.submit(() -> {
+                    importRows(worker, rows);
+                    return null;
+                }));
+            }
+        }
+        return tasks;
+    }
+
+    private void importRows(final RowImporter worker, final List<CSVRecord> rows) throws RepositoryException
+    {
+        for (final CSVRecord row : rows) {
+            try {
+                worker.parseRow(row);
+            } catch (PersistenceException e) {
+                LOGGER.warn("Failed to import row: {}", e.getMessage());
+                warn("Failed to import row " + row.getRecordNumber() + ": " + e.getMessage());
+            }
+        }
+        worker.commit();
+    }
+
+    /**
+     * Waits for the workers to finish their share of a batch, and updates the progress.
+     *
+     * @param tasks the tasks submitted to the workers
+     * @param workers all the workers
+     * @param batchLastRow the last row of the batch
+     * @param batchRows the number of rows in the batch
+     * @throws RepositoryException if a worker failed
+     */
+    private void waitFor(final List<Future<?>> tasks, final RowImporter[] workers, final long batchLastRow,
+        final long batchRows) throws RepositoryException
+    {
+        RepositoryException failure = null;
+        for (final Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RepositoryException ? (RepositoryException) e.getCause()
+                        : new RepositoryException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                tasks.forEach(t -> t.cancel(true));
+                throw new RepositoryException("Data import interrupted", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (batchRows > 0) {
+            this.lastCommittedRow = batchLastRow;
+            this.importedRows += batchRows;
+            LOGGER.info("Data import in progress: {} rows imported, up to row {}", this.importedRows,
+                this.lastCommittedRow);
+        }
+    }
+
+    private void warn(final String message)
+    {
+        synchronized (this.warnings) {
+            if (this.warnings.size() < MAX_WARNINGS) {
+                this.warnings.add(message);
+            }
+        }
+    }
+
+    private void fail(final Exception e, final RowImporter[] workers)
+    {
+        LOGGER.error("Data import failed after row {}: {}", this.lastCommittedRow, e.getMessage(), e);
+        this.error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+        if (workers != null) {
+            for (final RowImporter worker : workers) {
+                if (worker != null) {
+                    worker.discard();
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the label of the top level subject type, used for assigning rows to workers.
+     *
+     * @return a label, or {@code null} if it cannot be determined
+     * @throws RepositoryException if the subject type cannot be found, or accessing the repository fails
+     */
+    private String getPartitionLabel() throws RepositoryException
+    {
+        if (this.workerCount == 1 || this.subjectTypes.length == 0) {
+            return null;
+        }
+        final Resource type = this.resolver.getResource(this.subjectTypes[0]);
+        final Node typeNode = type != null ? type.adaptTo(Node.class) : null;
+        if (typeNode == null) {
+            throw new RepositoryException("Subject type not found: " + this.subjectTypes[0]);
+        }
+        return typeNode.getProperty("label").getString();
+    }
+
+    private int getWorker(final CSVRecord row, final String partitionLabel)
+    {
+        if (partitionLabel == null) {
+            return 0;
+        }
+        final String subjectId = RowImporter.findSubjectId(row, partitionLabel);
+        return subjectId == null ? 0 : Math.floorMod(subjectId.hashCode(), this.workerCount);
+    }
+
+    /** Keeps track of how much of the data was read, for estimating the remaining time. */
+    private final class CountingInputStream extends FilterInputStream
+    {
+        CountingInputStream(final InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            final int result = super.read();
+            if (result >= 0) {
+                ++DataImporter.this.dataRead;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            final int result = super.read(b, off, len);
+            if (result > 0) {
+                DataImporter.this.dataRead += result;
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException
+        {
+            final long result = super.skip(n);
+            DataImporter.this.dataRead += result;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.dataimport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.dataentry.internal.jobs.BackgroundJob;
+
+/**
+ * A data import running in the background, submitted through {@link DataImportJobs}.
+ *
+ * @version $Id$
+ */
+public final class ImportJob extends BackgroundJob
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImportJob.class);
+
+    /** Does the actual import. */
+    private final DataImporter importer;
+
+    /** A copy of the uploaded data, deleted once the job ends. */
+    private final Path data;
+
+    /** The resource resolver used by the importer, closed once the job ends. */
+    private final ResourceResolver resolver;
+
+    /**
+     * Constructor specifying everything the job needs.
+     *
+     * @param userId the user who submitted the job
+     * @param importer the importer that will process the data
+     * @param data a copy of the uploaded data, owned by the job and deleted once the job ends
+     * @param resolver the resource resolver used by the importer, owned by the job and closed once the job ends
+     */
+    ImportJob(final String userId, final DataImporter importer, final Path data, final ResourceResolver resolver)
+    {
+        super(userId);
+        this.importer = importer;
+        this.data = data;
+        this.resolver = resolver;
+    }
+
+    @Override
+    protected void execute()
+    {
+        try (InputStream in = Files.newInputStream(this.data)) {
+            this.importer.run(in, Files.size(this.data));
+        } catch (IOException e) {
+            LOGGER.error("Failed to read the data for import job {}: {}", getId(), e.getMessage(), e);
+            fail("Failed to read the imported data: " + e.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc} A running import stops after the rows already submitted for importing are saved.
+     */
+    @Override
+    protected void onCancel()
+    {
+        this.importer.cancel();
+    }
+
+    /**
+     * The error that stopped this job, either reported by the importer, or encountered while reading the data.
+     *
+     * @return an error message, or {@code null} if the job did not fail
+     */
+    @Override
+    public String getError()
+    {
+        final String error = super.getError();
+        return error != null ? error : this.importer.getError();
+    }
+
+    /**
+     * The importer processing the data, which holds the import progress.
+     *
+     * @return the importer
+     */
+    public DataImporter getImporter()
+    {
+        return this.importer;
+    }
+
+    @Override
+    protected void finish()
+    {
+        try {
+            Files.deleteIfExists(this.data);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to delete temporary import file {}: {}", this.data, e.getMessage());
+        }
+        this.resolver.close();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.dataimport;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.osgi.service.component.annotations.Component;
+
+import io.uhndata.cards.cache.PathInvalidatingObserver;
+
+/**
+ * Keeps the {@link QuestionnaireImportPlan compiled questionnaires} used by data imports, so that repeated imports for
+ * the same questionnaire don't have to read its definition again. A compiled questionnaire is used as long as the
+ * questionnaire keeps the same {@code jcr:lastModified} date, and is discarded as soon as a commit changes the
+ * questionnaire or any of its questions.
+ *
+ * @version $Id$
+ */
+@Component(service = { ImportPlanCache.class, Observer.class })
+public class ImportPlanCache extends PathInvalidatingObserver
+{
+    /** How many questionnaires to remember. */
+    private static final int MAX_ENTRIES = 50;
+
+    /** The compiled questionnaires, indexed by path, in access order. */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest)
+        {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Gets the compiled version of a questionnaire, compiling it if it isn't already cached.
+     *
+     * @param questionnaire the questionnaire node
+     * @return the compiled questionnaire
+     * @throws RepositoryException if accessing the repository fails
+     */
+    QuestionnaireImportPlan getPlan(final Node questionnaire) throws RepositoryException
+    {
+        final String path = questionnaire.getPath();
+        final String revision = questionnaire.hasProperty("jcr:lastModified")
+            ? questionnaire.getProperty("jcr:lastModified").getString() : "";
+        synchronized (this.entries) {
+            final Entry entry = this.entries.get(path);
+            if (entry != null && entry.revision.equals(revision)) {
+                return entry.plan;
+            }
+        }
+        final QuestionnaireImportPlan plan = QuestionnaireImportPlan.compile(questionnaire);
+        synchronized (this.entries) {
+            this.entries.put(path, new Entry(revision, plan));
+        }
+        return plan;
+    }
+
+    @Override
+    protected Collection<String> getWatchedPaths()
+    {
+        synchronized (this.entries) {
+            return new HashSet<>(this.entries.keySet());
+        }
+    }
+
+    @Override
+    protected void invalidate(final Set<String> changedPaths)
+    {
+        synchronized (this.entries) {
+            this.entries.keySet().removeAll(changedPaths);
+        }
+    }
+
+    /** A compiled questionnaire, along with the questionnaire revision it was compiled from. */
+    private static final class Entry
+    {
+        private final String revision;
+
+        private final QuestionnaireImportPlan plan;
+
+        Entry(final String revision, final QuestionnaireImportPlan plan)
+        {
+            this.revision = revision;
+            this.plan = plan;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.dataimport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+
+/**
+ * Everything needed for importing answers to a questionnaire, read once from the questionnaire definition, so that
+ * importing a row doesn't have to query or read the questionnaire again. Instances are immutable and don't hold any JCR
+ * objects, so they can be shared by several imports and threads.
+ *
+ * @version $Id$
+ */
+final class QuestionnaireImportPlan
+{
+    /** Columns with this suffix hold the notes for the question identified by the rest of the column name. */
+    private static final String NOTE_SUFFIX = "_notes";
+
+    /** The questions of the questionnaire, indexed by their node name. */
+    private final Map<String, Question> questionsByName;
+
+    /** The questions of the questionnaire, indexed by their text. */
+    private final Map<String, Question> questionsByText;
+
+    private QuestionnaireImportPlan(final Map<String, Question> questionsByName,
+        final Map<String, Question> questionsByText)
+    {
+        this.questionsByName = questionsByName;
+        this.questionsByText = questionsByText;
+    }
+
+    /**
+     * Reads a questionnaire definition.
+     *
+     * @param questionnaire the questionnaire node
+     * @return the compiled questionnaire
+     * @throws RepositoryException if accessing the repository fails
+     */
+    static QuestionnaireImportPlan compile(final Node questionnaire) throws RepositoryException
+    {
+        final Map<String, Question> byName = new HashMap<>();
+        final Map<String, Question> byText = new HashMap<>();
+        compile(questionnaire, new LinkedList<>(), byName, byText);
+        return new QuestionnaireImportPlan(Collections.unmodifiableMap(byName), Collections.unmodifiableMap(byText));
+    }
+
+    private static void compile(final Node parent, final LinkedList<String> sections,
+        final Map<String, Question> byName, final Map<String, Question> byText) throws RepositoryException
+    {
+        final NodeIterator children = parent.getNodes();
+        while (children.hasNext()) {
+            final Node child = children.nextNode();
+            if (child.isNodeType("cards:Question")) {
+                final Question question = new Question(child, sections);
+                byName.putIfAbsent(child.getName(), question);
+                byText.putIfAbsent(question.text, question);
+            } else if (child.isNodeType("cards:Section")) {
+                sections.addLast(child.getIdentifier());
+                compile(child, sections, byName, byText);
+                sections.removeLast();
+            }
+        }
+    }
+
+    /**
+     * Finds the question corresponding to a column in the imported file, either by text or by node name.
+     *
+     * @param columnName the name of the column
+     * @return the matching question, or {@code null} if no question can be identified from the given column name
+     */
+    Question findQuestion(final String columnName)
+    {
+        final Question result = this.questionsByText.get(columnName);
+        return result != null ? result : this.questionsByName.get(columnName);
+    }
+
+    /**
+     * Maps the columns of an imported file to questions.
+     *
+     * @param header the columns of the file, name to column index
+     * @return how to import each column, indexed by column index
+     */
+    Column[] mapColumns(final Map<String, Integer> header)
+    {
+        final int columnCount = header.values().stream().mapToInt(Integer::intValue).max().orElse(-1) + 1;
+        final Column[] result = new Column[columnCount];
+        header.forEach((name, index) -> {
+            final String fieldName = name.trim();
+            if (fieldName.endsWith(NOTE_SUFFIX)) {
+                // Truncate the suffix from the fieldName before finding the related question
+                result[index] = new Column(fieldName,
+                    findQuestion(fieldName.substring(0, fieldName.length() - NOTE_SUFFIX.length())), true);
+            } else {
+                result[index] = new Column(fieldName, findQuestion(fieldName), false);
+            }
+        });
+        return result;
+    }
+
+    /** Everything needed for storing answers to one question. */
+    static final class Question
+    {
+        /** The identifier of the question node. */
+        final String identifier;
+
+        /** The question text. */
+        final String text;
+
+        /** The type of data stored in answers, as defined by the {@code dataType} property. */
+        final String dataType;
+
+        /** The node type to use for answers. */
+        final String answerNodeType;
+
+        /** The maximum number of values accepted, {@code 0} for unlimited. */
+        final long maxAnswers;
+
+        /** The identifiers of the sections containing the question, from the questionnaire down to the question. */
+        final List<String> sections;
+
+        /** The predefined answer options as {@code [value, label]} pairs, in order; the label may be {@code null}. */
+        final List<String[]> options;
+
+        Question(final Node question, final List<String> sections) throws RepositoryException
+        {
+            this.identifier = question.getIdentifier();
+            this.text = question.getProperty("text").getString();
+            this.dataType = question.getProperty("dataType").getString();
+            this.answerNodeType = getAnswerNodeType(this.dataType);
+            this.maxAnswers = question.getProperty("maxAnswers").getLong();
+            this.sections = Collections.unmodifiableList(new ArrayList<>(sections));
+            final List<String[]> answerOptions = new ArrayList<>();
+            final NodeIterator children = question.getNodes();
+            while (children.hasNext()) {
+                final Node child = children.nextNode();
+                if ("cards:AnswerOption".equals(child.getPrimaryNodeType().getName())
+                    && child.hasProperty("value")) {
+                    answerOptions.add(new String[] { child.getProperty("value").getString(),
+                        child.hasProperty("label") ? child.getProperty("label").getString() : null });
+                }
+            }
+            this.options = Collections.unmodifiableList(answerOptions);
+        }
+
+        /**
+         * Computes the right node type for storing an Answer, based on the configuration of its Question.
+         *
+         * @param dataType the type of data stored by the question
+         * @return a value to use for the {@code jcr:primaryType} of the Answer node to be created
+         */
+        private static String getAnswerNodeType(final String dataType)
+        {
+            String result;
+            switch (dataType) {
+                case "long":
+                    result = "cards:LongAnswer";
+                    break;
+                case "double":
+                    result = "cards:DoubleAnswer";
+                    break;
+                case "decimal":
+                    result = "cards:DecimalAnswer";
+                    break;
+                case "boolean":
+                    result = "cards:BooleanAnswer";
+                    break;
+                case "date":
+                    result = "cards:DateAnswer";
+                    break;
+                case "time":
+                    result = "cards:TimeAnswer";
+                    break;
+                case "vocabulary":
+                    result = "cards:VocabularyAnswer";
+                    break;
+                case "text":
+                default:
+                    result = "cards:TextAnswer";
+            }
+            return result;
+        }
+    }
+
+    /** How to import one column of a file. */
+    static final class Column
+    {
+        /** The name of the column. */
+        final String name;
+
+        /** The question answered by this column, or {@code null} if the column doesn't correspond to a question. */
+        final Question question;
+
+        /** Whether the column holds the answer notes, or the answer values. */
+        final boolean isNote;
+
+        Column(final String name, final Question question, final boolean isNote)
+        {
+            this.name = name;
+            this.question = question;
+            this.isNote = isNote;
+        }
+    }
+}
@@ -0,0 +1,795 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.dataimport;
+
+import java.math.BigDecimal;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.version.VersionManager;
+
+import org.apache.commons.csv.CSVRecord;
+import org.apache.commons.lang3.BooleanUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.dataentry.internal.dataimport.QuestionnaireImportPlan.Column;
+import io.uhndata.cards.dataentry.internal.dataimport.QuestionnaireImportPlan.Question;
+import io.uhndata.cards.spi.SearchUtils;
+
+/**
+ * Stores rows of imported data as forms. Each instance works with its own resource resolver, and must only be used by
+ * one thread at a time. The changes are kept in the resolver's session until {@link #commit() committed}.
+ *
+ * @version $Id$
+ */
+final class RowImporter
+{
+    private static final String VALUE_PROPERTY = "value";
+
+    private static final String NOTE_PROPERTY = "note";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RowImporter.class);
+
+    /** Supported date formats. */
+    private static final String[] DATE_FORMATS = {
+        "yyyy-MM-dd'T'HH:mm:ss.SSSz",
+        "yyyy-MM-dd' 'HH:mm:ss.SSSz",
+        "yyyy-MM-dd'T'HH:mm:ssz",
+        "yyyy-MM-dd' 'HH:mm:ssz",
+        "yyyy-MM-dd'T'HH:mm:ss.SSS",
+        "yyyy-MM-dd' 'HH:mm:ss.SSS",
+        "yyyy-MM-dd'T'HH:mm:ss",
+        "yyyy-MM-dd' 'HH:mm:ss",
+        "yyyy-MM-dd'T'HH:mm",
+        "yyyy-MM-dd' 'HH:mm",
+        "yyyy-MM-dd",
+        "M/d/y" };
+
+    /** Date parsers, not thread safe, so each importer has its own. */
+    private final List<SimpleDateFormat> dateFormats =
+        Stream.of(DATE_FORMATS).map(SimpleDateFormat::new).collect(Collectors.toList());
+
+    /** Questions and sections already accessed by this importer, indexed by their identifier. */
+    private final Map<String, Node> questionnaireNodes = new HashMap<>();
+
+    /** How to import each column of the file, indexed by column number. */
+    private final Column[] columns;
+
+    /** Cached Subject nodes (for multiple forms for the same subject, for instance). */
+    private final Map<String, Node> subjectCache = new HashMap<>();
+
+    /** Paths of the subjects created by this importer, which have no forms other than the ones it created. */
+    private final Set<String> createdSubjects = new HashSet<>();
+
+    /** Paths of the forms created by this importer, indexed by the path of their subject. */
+    private final Map<String, String> createdForms = new HashMap<>();
+
+    /** Index of the existing subjects, may be {@code null}. */
+    private final SubjectIndex subjectIndex;
+
+    /** Forms and subjects modified since the last commit, which must be checked in. */
+    private final Set<String> nodesToCheckin = new HashSet<>();
+
+    /** The Resource Resolver used by this importer. */
+    private final ResourceResolver resolver;
+
+    /** The questionnaire to use for the imported data. */
+    private final Node questionnaire;
+
+    /** The {@code /Subjects} resource. */
+    private final Resource subjectsHomepage;
+
+    /** The {@code /Forms} resource. */
+    private final Resource formsHomepage;
+
+    /** The list of subjectTypes. */
+    private final String[] subjectTypes;
+
+    /** Whether to update existing forms when possible, or always create new forms. */
+    private final boolean patch;
+
+    /** A query manager to handle queries. */
+    private final QueryManager queryManager;
+
+    /** A local mapping for question node identifiers to answer nodes, for the row being imported. */
+    private final Map<String, Resource> cachedAnswers = new HashMap<>();
+
+    /** Whether the form of the row being imported was just created, and thus has no answers yet. */
+    private boolean newForm;
+
+    /**
+     * Constructor specifying the import settings.
+     *
+     * @param resolver the resource resolver to use, not shared with other threads
+     * @param questionnairePath the path to the questionnaire to use for the imported data
+     * @param subjectTypes the paths to the subject types of the subject hierarchy, starting with the top level type
+     * @param patch if {@code true}, try to update existing forms when possible; if {@code false}, new forms are always
+     *            created
+     * @param columns how to import each column of the file, shared by all the importers working on the same file
+     * @param subjectIndex index of the existing subjects, may be {@code null}
+     * @throws RepositoryException if accessing the repository fails
+     */
+    RowImporter(final ResourceResolver resolver, final String questionnairePath, final String[] subjectTypes,
+        final boolean patch, final Column[] columns, final SubjectIndex subjectIndex) throws RepositoryException
+    {
+        this.resolver = resolver;
+        this.questionnaire = resolver.getResource(questionnairePath).adaptTo(Node.class);
+        this.subjectsHomepage = resolver.getResource("/Subjects");
+        this.formsHomepage = resolver.getResource("/Forms");
+        this.subjectTypes = subjectTypes;
+        this.patch = patch;
+        this.columns = columns;
+        this.subjectIndex = subjectIndex;
+        this.queryManager = resolver.adaptTo(Session.class).getWorkspace().getQueryManager();
+    }
+
+    /**
+     * Saves the changes made so far, and checks in all the modified forms and subjects.
+     *
+     * @throws RepositoryException if saving the changes fails
+     */
+    void commit() throws RepositoryException
+    {
+        final Session session = this.resolver.adaptTo(Session.class);
+        session.save();
+        final VersionManager vm = session.getWorkspace().getVersionManager();
+        this.nodesToCheckin.forEach(node -> {
+            try {
+                vm.checkin(node);
+            } catch (RepositoryException e) {
+                LOGGER.warn("Failed to check in node {}: {}", node, e.getMessage(), e);
+            }
+        });
+        this.nodesToCheckin.clear();
+    }
+
+    /**
+     * Discards the changes made since the last commit.
+     */
+    void discard()
+    {
+        try {
+            this.nodesToCheckin.clear();
+            // Nodes created since the last commit are gone
+            this.subjectCache.clear();
+            this.createdSubjects.clear();
+            this.createdForms.clear();
+            this.resolver.adaptTo(Session.class).refresh(false);
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to discard pending changes: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Parses and stores one row of data into a {@code Form} node.
+     *
+     * @param row the row to parse
+     * @throws PersistenceException if saving the processed data fails due to repository errors or incorrect data
+     */
+    void parseRow(final CSVRecord row) throws PersistenceException
+    {
+        this.cachedAnswers.clear();
+        final Resource form = getOrCreateForm(row);
+        if (form == null) {
+            return;
+        }
+        final int size = Math.min(row.size(), this.columns.length);
+        for (int i = 0; i < size; ++i) {
+            final Column column = this.columns[i];
+            final String fieldValue = row.get(i);
+            if (column == null || column.question == null || StringUtils.isBlank(fieldValue)) {
+                continue;
+            }
+            try {
+                if (column.isNote) {
+                    parseNote(column.question, fieldValue, form);
+                } else {
+                    parseAnswer(column.question, fieldValue, form);
+                }
+            } catch (PersistenceException | RepositoryException e) {
+                LOGGER.warn("Failed to parse row [{}]: {}", row.getRecordNumber(), e.getMessage());
+            }
+        }
+        this.nodesToCheckin.add(form.getPath());
+    }
+
+    /**
+     * Parse and store a note to an Answer. This will reuse the answer if it already exists.
+     *
+     * @param question the question whose answer is annotated
+     * @param fieldValue the raw value for this field
+     * @param form the Form that this Answer belongs to
+     * @throws PersistenceException if saving the processed data fails due to repository errors or incorrect data
+     * @throws RepositoryException if saving the processed data fails due to repository errors or incorrect data
+     */
+    private void parseNote(Question question, String fieldValue, Resource form)
+        throws PersistenceException, RepositoryException
+    {
+        Resource answer = getOrCreateAnswer(form, question);
+        answer.adaptTo(Node.class).setProperty(NOTE_PROPERTY, fieldValue);
+    }
+
+    /**
+     * Parses and stores one Answer.
+     *
+     * @param question the question being answered
+     * @param fieldValue the raw value for this field
+     * @param form the Form that this Answer belongs to
+     * @throws PersistenceException if saving the processed data fails due to repository errors or incorrect data
+     * @throws RepositoryException if saving the processed data fails due to repository errors or incorrect data
+     */
+    private void parseAnswer(Question question, String fieldValue, Resource form)
+        throws PersistenceException, RepositoryException
+    {
+        Resource answer = getOrCreateAnswer(form, question);
+
+        if (question.maxAnswers == 0) {
+            String[] rawValues = fieldValue.split("\n");
+            Value[] values = new Value[rawValues.length];
+            for (int i = 0; i < rawValues.length; ++i) {
+                values[i] = parseAnswerValue(rawValues[i].trim(), question);
+            }
+            answer.adaptTo(Node.class).setProperty(VALUE_PROPERTY, values);
+        } else {
+            answer.adaptTo(Node.class).setProperty(VALUE_PROPERTY, parseAnswerValue(fieldValue.trim(), question));
+        }
+    }
+
+    /**
+     * Gets a questionnaire node in this importer's session, such as a question or a section.
+     *
+     * @param identifier the identifier of the node
+     * @return the node
+     * @throws RepositoryException if the node cannot be accessed
+     */
+    private Node getQuestionnaireNode(final String identifier) throws RepositoryException
+    {
+        Node result = this.questionnaireNodes.get(identifier);
+        if (result == null) {
+            result = this.resolver.adaptTo(Session.class).getNodeByIdentifier(identifier);
+            this.questionnaireNodes.put(identifier, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a Resource for storing an Answer corresponding to the given question. This may be an existing node, if
+     * one already exists in this form, or a newly created one otherwise.
+     * <p>
+     * FIXME This needs to be revisited to add support for repeated sections.
+     * </p>
+     *
+     * @param form the form being processed
+     * @param question the question being answered
+     * @throws RepositoryException if accessing the resource fails due to repository errors
+     * @throws PersistenceException if creating a new resource fails due to repository errors
+     */
+    private Resource getOrCreateAnswer(final Resource form, final Question question)
+        throws RepositoryException, PersistenceException
+    {
+        if (this.cachedAnswers.containsKey(question.identifier)) {
+            return this.cachedAnswers.get(question.identifier);
+        }
+
+        if (!this.newForm) {
+            // A new form has no answers yet, only look for existing answers in existing forms
+            final String query =
+                String.format("select n from [cards:Answer] as n where n.question = '%s' and isdescendantnode(n,'%s')",
+                    question.identifier, form.getPath());
+            Iterator<Resource> results = this.resolver.findResources(query, "JCR-SQL2");
+            if (results.hasNext()) {
+                return results.next();
+            }
+        }
+
+        Map<String, Object> answerProperties = new HashMap<>();
+        answerProperties.put("jcr:primaryType", question.answerNodeType);
+        answerProperties.put("question", getQuestionnaireNode(question.identifier));
+        Resource answerParent = findOrCreateParent(form, question);
+        Resource newNode = this.resolver.create(answerParent, UUID.randomUUID().toString(), answerProperties);
+        this.cachedAnswers.put(question.identifier, newNode);
+        return newNode;
+    }
+
+    /**
+     * Gets the parent node under which an answer must be stored. This can be either the form directly, or a (possibly
+     * nested) {@code AnswerSection}.
+     *
+     * @param form the form being processed
+     * @param question the question being answered
+     * @return the resource node under which the answer must be stored
+     * @throws PersistenceException if a new resource must be created, but doing so fails
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private Resource findOrCreateParent(final Resource form, final Question question)
+        throws PersistenceException, RepositoryException
+    {
+        // Create all the needed intermediate answer sections between the form and the answer, top-to-bottom
+        Resource answerParent = form;
+        for (final String section : question.sections) {
+            answerParent = getAnswerSection(section, answerParent);
+        }
+        return answerParent;
+    }
+
+    /**
+     * Finds or creates an {@code AnswerSection} node under {@code parent} corresponding to the given {@code section}.
+     *
+     * @param sectionRef the identifier of the questionnaire section to be answered
+     * @param parent the parent node in which to look for the answer section, either a {@code Form} or another
+     *            {@code AnswerSection}
+     * @return a resource of type {@code cards:AnswerSection} referencing the given questionnaire section, either one
+     *         that already existed, or a newly created one
+     * @throws PersistenceException if a new resource must be created, but doing so fails
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private Resource getAnswerSection(final String sectionRef, final Resource parent)
+        throws PersistenceException, RepositoryException
+    {
+        Resource answerSection = null;
+        Resource result = null;
+        Iterator<Resource> children = parent.listChildren();
+        while (children.hasNext()) {
+            Resource child = children.next();
+            if (sectionRef.equals(child.getValueMap().get("section", ""))) {
+                answerSection = child;
+                break;
+            }
+        }
+        if (answerSection != null) {
+            result = answerSection;
+        } else {
+            Map<String, Object> answerSectionProperties = new HashMap<>();
+            answerSectionProperties.put("jcr:primaryType", "cards:AnswerSection");
+            answerSectionProperties.put("section", getQuestionnaireNode(sectionRef));
+            result = this.resolver.create(parent, UUID.randomUUID().toString(), answerSectionProperties);
+        }
+        return result;
+    }
+
+    /**
+     * Converts a text read from the input CSV into a properly typed value to store in the repository.
+     *
+     * @param rawValue the serialized value to parse, may be {@code null}
+     * @param question the question that is being answered, where the Answer configuration is defined
+     * @return a typed Value to store in the repository
+     */
+    private Value parseAnswerValue(String rawValue, Question question)
+    {
+        final String dataType = question.dataType;
+        Value result = null;
+        try {
+            ValueFactory valueFactory = this.resolver.adaptTo(Session.class).getValueFactory();
+
+            switch (dataType) {
+                case "long":
+                    result = valueFactory.createValue(Long.valueOf(rawValue));
+                    break;
+                case "double":
+                    result = valueFactory.createValue(Double.valueOf(rawValue));
+                    break;
+                case "decimal":
+                    result = valueFactory.createValue(new BigDecimal(rawValue));
+                    break;
+                case "boolean":
+                    result = valueFactory.createValue(
+                        BooleanUtils.toInteger(BooleanUtils.toBooleanObject(rawValue), 1, 0, -1));
+                    break;
+                case "date":
+                    result = valueFactory.createValue(parseDate(rawValue));
+                    break;
+                case "text":
+                default:
+                    result = valueFactory.createValue(standardizeValue(rawValue, question));
+            }
+        } catch (NumberFormatException | NullPointerException e) {
+            LOGGER.warn("Invalid value of type {}: {}", dataType, rawValue);
+        } catch (RepositoryException e) {
+            LOGGER.warn("Value factory is unexpectedly unavailable: {}", e.getMessage());
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Parses a date from the given input string.
+     *
+     * @param str the serialized date to parse
+     * @return the parsed date, or {@code null} if the date cannot be parsed
+     */
+    private Calendar parseDate(final String str)
+    {
+        final Date date = this.dateFormats.stream().map(format -> {
+            try {
+                return format.parse(str);
+            } catch (Exception ex) {
+                return null;
+            }
+        }).filter(Objects::nonNull).findFirst().orElse(null);
+        if (date == null) {
+            return null;
+        }
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        return calendar;
+    }
+
+    /**
+     * Converts user-facing labels to the stored value, if the question being answered has a list of default options,
+     * and one of the options has a label or value matching (case insensitive) the parsed value. To allow for different
+     * options that differ only in their case, priority is given, in order, to:
+     * <ol>
+     * <li>Exact match of a value, which means that the input file already stored the correct value</li>
+     * <li>Case-insensitive match of a value</li>
+     * <li>Case-sensitive match of a label</li>
+     * <li>Case-insensitive match of a label</li>
+     * </ol>
+     *
+     * @param value the value as read from the input file
+     * @param question the question that is being answered, where the Answer configuration is defined
+     * @return an equivalent standard value to be stored, may be the same as the input value
+     */
+    private String standardizeValue(final String value, final Question question)
+    {
+        String result = null;
+        // Index 0 holds the option value, index 1 holds the option label
+        for (int prop = 0; prop < 2; ++prop) {
+            for (final String[] option : question.options) {
+                if (option[prop] == null) {
+                    continue;
+                }
+                if (StringUtils.equals(value, option[prop])) {
+                    // We found an exact match for a known option, no need to do any further processing
+                    return option[0];
+                } else if (StringUtils.equalsIgnoreCase(value, option[prop])) {
+                    result = option[0];
+                }
+            }
+            if (result != null) {
+                // We found a case-insensitive value match, return it
+                return result;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns a Resource for storing a form corresponding to the given data row. This may be an existing node, if
+     * {@code patch == true} and one already exists for the targeted questionnaire and subject, or a newly created one
+     * otherwise.
+     *
+     * @param row the input CSV row to process, where the affected Subject identifier is to be found
+     * @return the Resource to use for storing the row
+     * @throws PersistenceException if creating a new Resource fails
+     */
+    private Resource getOrCreateForm(final CSVRecord row) throws PersistenceException
+    {
+        final Node subject = getOrCreateSubject(row);
+        if (subject == null) {
+            LOGGER.warn("Cannot determine subject for row #{}", row.getRecordNumber());
+            return null;
+        }
+        Resource result = null;
+        if (this.patch) {
+            result = findForm(subject);
+        }
+        this.newForm = result == null;
+        if (result == null) {
+            final Map<String, Object> formProperties = new HashMap<>();
+            formProperties.put("jcr:primaryType", "cards:Form");
+            formProperties.put("questionnaire", this.questionnaire);
+            formProperties.put("subject", subject);
+            result = this.resolver.create(this.formsHomepage, UUID.randomUUID().toString(), formProperties);
+            if (this.patch) {
+                try {
+                    this.createdForms.put(subject.getPath(), result.getPath());
+                } catch (RepositoryException e) {
+                    // Really shouldn't happen, the form will be looked up with a query next time
+                }
+            }
+        } else {
+            try {
+                result.adaptTo(Node.class).getSession().getWorkspace().getVersionManager().checkout(result.getPath());
+            } catch (RepositoryException e) {
+                LOGGER.warn("Failed to checkout form {}: {}", result.getPath(), e.getMessage(), e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds an existing form for the given questionnaire and subject.
+     *
+     * @param subject the subject for which the Form is completed
+     * @return an existing resource matching the targeted questionnaire and subject, or {@code null} if such a resource
+     *         doesn't exist yet
+     */
+    private Resource findForm(final Node subject)
+    {
+        try {
+            // Forms created by this import don't need to be searched for, and new subjects don't have other forms
+            final String subjectPath = subject.getPath();
+            final String created = this.createdForms.get(subjectPath);
+            if (created != null) {
+                return this.resolver.getResource(created);
+            } else if (this.createdSubjects.contains(subjectPath)) {
+                return null;
+            }
+            final String query =
+                String.format("select n from [cards:Form] as n where n.subject = '%s' and n.questionnaire = '%s'",
+                    subject.getIdentifier(), this.questionnaire.getIdentifier());
+            final Iterator<Resource> results = this.resolver.findResources(query, "JCR-SQL2");
+            if (results.hasNext()) {
+                return results.next();
+            }
+        } catch (RepositoryException e) {
+            LOGGER.warn("Unexpected exception while searching for a form: {}", e.getMessage());
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the Node where a specific Subject is stored. If the Subject wasn't already stored in the repository, a
+     * new node is created for it and returned.
+     *
+     * @param row the input CSV row to process, where the affected Subject identifier is to be found
+     * @return the Resource where the Subject is stored; may be an existing or a newly created resource; may be
+     *         {@code null} if a Subject identifier is not present in the row
+     */
+    private Node getOrCreateSubject(final CSVRecord row)
+    // For each subject type, identify the target subject
+    // Given a parent subject (initially null) & a subject type path:
+    // 1. get the Node for the subject type (cached for future rows)
+    // 2. read label, look for a column with that label or label + “ ID” in the row, get value
+    // 3. search for a Subject with the right type, parent, and identifier
+    // If found, use it as the current subject. If not, create it,
+    // specifying the type, parent, and identifier, and use it as the current subject.
+    // Update the parent variable to be the current subject.
+    // If there are more entries in the subject types list, recurse with the new parent and new subject type.
+    // When the whole list of subject types is processed, return current subject as the subject to use for the row.
+    {
+        Node previous = null;
+        Node current = null;
+        for (String type : this.subjectTypes) {
+            current = getOrCreateSubject(row, type, current);
+            // If this subject identifier is empty, then the last used subject type
+            // e.g. If a patient and tumor is specified but no tumor region, then we instead want to create/use
+            // the tumor ID
+            if (current == null) {
+                return previous;
+            }
+            previous = current;
+        }
+        return current;
+    }
+
+    private Node getOrCreateSubject(CSVRecord row, String type, Node parent)
+    {
+        // Find the subject corresponding to this
+        Node typeNode = this.resolver.getResource(type).adaptTo(Node.class);
+        String subjectId = findSubjectId(row, typeNode);
+        if (StringUtils.isBlank(subjectId)) {
+            return null;
+        }
+        String subjectTypeString = type;
+        String subjectKey = subjectId.concat(subjectTypeString);
+        if (parent != null) {
+            try {
+                subjectKey = parent.getProperty("identifier").getString().concat(subjectKey);
+            } catch (RepositoryException ex) {
+                // No change
+            }
+        }
+
+        Node subject = findSubject(subjectKey, subjectId, typeNode, parent);
+        if (subject != null) {
+            return subject;
+        }
+
+        // Create a new subject
+        return createSubject(subjectKey, subjectId, typeNode, parent);
+    }
+
+    /***
+     * Find a subject with the given parameters.
+     *
+     * @param subjectKey A key for this subject to search the cache for
+     * @param subjectId The identifier of the subject
+     * @param typeNode The Node of the cards:SubjectType for the subject
+     * @param parent The parent cards:Subject for this subject
+     * @return A subject Node if it exists, or null.
+     */
+    private Node findSubject(String subjectKey, String subjectId, Node typeNode, Node parent)
+    {
+        // Load a cached version if we already have one
+        Map<String, Node> cache = this.subjectCache;
+        if (cache.containsKey(subjectKey)) {
+            return cache.get(subjectKey);
+        }
+
+        final Node indexed = findIndexedSubject(subjectId, typeNode, parent);
+        if (indexed != null) {
+            cache.put(subjectKey, indexed);
+            return indexed;
+        }
+
+        String query = String.format("select n from [cards:Subject] as n where n.identifier = '%s'",
+            SearchUtils.escapeQueryArgument(subjectId));
+        try {
+            if (typeNode != null) {
+                query += " and n.type = '" + typeNode.getProperty("jcr:uuid").getValue() + "'";
+            }
+            if (parent != null) {
+                query += " and ischildnode(n, '" + parent.getPath() + "')";
+            }
+        } catch (RepositoryException ex) {
+            // No change to query
+        }
+
+        try {
+            Query queryObj = this.queryManager.createQuery(query, "JCR-SQL2");
+            queryObj.setLimit(1);
+            NodeIterator nodeResult = queryObj.execute().getNodes();
+
+            // If a result was found, cache it and return
+            if (nodeResult.hasNext()) {
+                Node subject = nodeResult.nextNode();
+                cache.put(subjectKey, subject);
+                return subject;
+            }
+        } catch (RepositoryException ex) {
+            // Could not find subject, return null
+        }
+        return null;
+    }
+
+    /**
+     * Looks for a subject in the {@link SubjectIndex subject index}.
+     *
+     * @param subjectId the identifier of the subject
+     * @param typeNode the node of the cards:SubjectType for the subject
+     * @param parent the parent cards:Subject for this subject, may be {@code null}
+     * @return the subject node, or {@code null} if the index doesn't know this subject, or the current user cannot
+     *         access it
+     */
+    private Node findIndexedSubject(final String subjectId, final Node typeNode, final Node parent)
+    {
+        if (this.subjectIndex == null || typeNode == null) {
+            return null;
+        }
+        try {
+            final String path =
+                this.subjectIndex.find(typeNode.getIdentifier(), parent == null ? null : parent.getPath(), subjectId);
+            // The index isn't restricted to what the current user can see, check that the subject is accessible
+            final Session session = this.resolver.adaptTo(Session.class);
+            if (path != null && session.nodeExists(path)) {
+                return session.getNode(path);
+            }
+        } catch (RepositoryException e) {
+            LOGGER.debug("Failed to look up subject {} in the index: {}", subjectId, e.getMessage());
+        }
+        return null;
+    }
+
+    /***
+     * Create a new subject.
+     *
+     * @param subjectId The identifier for the subject
+     * @param typeNode The node of the cards:SubjectType for this subject
+     * @param parent The parent of this subject
+     * @param subjectKey A string to identify this subject by in the cache
+     * @return A new subject Node if one could be made, or null.
+     */
+    private Node createSubject(String subjectKey, String subjectId, Node typeNode, Node parent)
+    {
+        final Map<String, Object> subjectProperties = new HashMap<>();
+        subjectProperties.put("jcr:primaryType", "cards:Subject");
+        subjectProperties.put("identifier", subjectId);
+        subjectProperties.put("type", typeNode);
+        if (parent != null) {
+            subjectProperties.put("parents", parent);
+        }
+        try {
+            if (parent != null && !parent.isCheckedOut()) {
+                // The parent may have been checked in by a previous batch, and it needs to be modified again
+                parent.getSession().getWorkspace().getVersionManager().checkout(parent.getPath());
+                this.nodesToCheckin.add(parent.getPath());
+            }
+            Resource parentResource = parent != null
+                ? this.resolver.getResource(parent.getPath())
+                : this.subjectsHomepage;
+            Node subject = this.resolver.create(parentResource, UUID.randomUUID().toString(), subjectProperties)
+                .adaptTo(Node.class);
+            this.subjectCache.put(subjectKey, subject);
+            this.createdSubjects.add(subject.getPath());
+            this.nodesToCheckin.add(subject.getPath());
+            return subject;
+        } catch (PersistenceException e) {
+            LOGGER.warn("Failed to create new subject {}: {}", subjectKey, e.getMessage(), e);
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to create new subject {}: {}", subjectKey, e.getMessage(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Looks for a Subject Identifier in the given data row.
+     *
+     * @param row the input CSV row to process, where the affected Subject identifier is to be found
+     * @param typeNode Subject type node
+     * @return a subject identifier, or {@code null} if one cannot be found
+     */
+    private String findSubjectId(CSVRecord row, Node typeNode)
+    {
+        try {
+            return findSubjectId(row, typeNode.getProperty("label").getString());
+        } catch (RepositoryException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Looks for a Subject Identifier in the given data row.
+     *
+     * @param row the input CSV row to process, where the affected Subject identifier is to be found
+     * @param label the label of the subject type, used as the column name, optionally followed by {@code " ID"}
+     * @return a subject identifier, or {@code null} if one cannot be found
+     */
+    static String findSubjectId(CSVRecord row, String label)
+    {
+        String result = null;
+        String[] suffixes = { "", " ID" };
+        for (String suffix : suffixes) {
+            try {
+                result = row.get(label + suffix);
+                if (StringUtils.isNotBlank(result)) {
+                    break;
+                }
+            } catch (IllegalArgumentException ex) {
+                // Column is not mapped, continue;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.dataimport;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.state.DefaultNodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.concurrent.NamedThreadFactory;
+
+/**
+ * In-memory index of all the subjects, used by data imports for finding existing subjects without running a query for
+ * each row, and by the subject quick search for finding subjects by their identifier. Subjects are identified by their
+ * type, their parent subject, and their identifier, and the index stores the path of the matching subject node. Entries
+ * are sorted case-insensitively by identifier, so that identifiers starting with a text are found directly, and
+ * identifiers containing a text are found by going through the sorted identifiers, without going through the subject
+ * nodes.
+ * <p>
+ * The index is loaded in bulk in a background thread the first time it is needed, directly from the repository
+ * content, and is then kept up to date as subjects are created, moved, modified or deleted, by comparing the
+ * {@code /Subjects} subtree before and after each commit. Until it is loaded, the index reports itself as not
+ * available, so requests fall back to queries instead of waiting for it. Loading goes through a snapshot of the
+ * repository without blocking commits; the changes made while loading are applied at the end, before the loaded index
+ * replaces the current one. Since the index is not
+ * restricted to what a particular user can access, callers must check that the returned path is accessible in their
+ * own session. Since the index may lag slightly behind the repository, callers should fall back to a query when a
+ * subject is not found.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { SubjectIndex.class, Observer.class })
+@Designate(ocd = SubjectIndex.Config.class)
+public class SubjectIndex implements Observer
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubjectIndex.class);
+
+    private static final String SUBJECTS = "Subjects";
+
+    private static final String SUBJECT_TYPE = "cards:Subject";
+
+    /** Separates the parts of the keys; sorts before any other character. */
+    private static final char SEPARATOR = '\n';
+
+    /**
+     * Subject paths, indexed by {@link #getKey lowercase identifier, identifier, subject type and parent path}.
+     */
+    private volatile ConcurrentNavigableMap<String, String> paths = new ConcurrentSkipListMap<>();
+
+    /** Guards applying changes to the index and replacing it. */
+    private final Object lock = new Object();
+
+    /** Whether the index is currently being loaded, so that it is only loaded once at a time. */
+    private final AtomicBoolean loading = new AtomicBoolean();
+
+    /** Whether the index is enabled. */
+    private volatile boolean enabled;
+
+    /** Whether the index was loaded. */
+    private volatile boolean loaded;
+
+    /** The latest repository state seen. */
+    private volatile NodeState currentRoot;
+
+    /** Loads the index in the background. */
+    private volatile ExecutorService executor;
+
+    @Activate
+    @Modified
+    protected void activate(final Config config)
+    {
+        synchronized (this.lock) {
+            this.enabled = config.enabled();
+            this.loaded = false;
+            this.paths = new ConcurrentSkipListMap<>();
+        }
+        if (this.executor == null) {
+            this.executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("SubjectIndex"));
+        }
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        final ExecutorService current = this.executor;
+        this.executor = null;
+        if (current != null) {
+            // Not interrupting a load in progress, since an interrupt can close the repository's file channels
+            current.shutdown();
+        }
+    }
+
+    /**
+     * Looks for a subject.
+     *
+     * @param type the identifier of the subject type
+     * @param parentPath the path to the parent subject, or {@code null} for top level subjects
+     * @param identifier the identifier of the subject
+     * @return the path to the subject, or {@code null} if the subject isn't known or the index is not available, for
+     *         example while it is being loaded
+     */
+    public String find(final String type, final String parentPath, final String identifier)
+    {
+        if (!isAvailable()) {
+            return null;
+        }
+        return this.paths.get(getKey(type, parentPath, identifier));
+    }
+
+    /**
+     * Whether the index can be used. If the index isn't loaded yet, loading starts in the background, and this method
+     * returns immediately.
+     *
+     * @return {@code true} if the index is enabled and loaded, {@code false} if it is disabled or not loaded yet
+     */
+    public boolean isAvailable()
+    {
+        if (this.enabled && !this.loaded) {
+            loadInBackground();
+        }
+        return this.enabled && this.loaded;
+    }
+
+    /**
+     * Finds the subjects whose identifier starts with the given text, in the order of their identifiers. The index
+     * must be {@link #isAvailable available}.
+     *
+     * @param text the text to look for, case insensitive
+     * @param accept receives the path of each matching subject, and returns {@code false} to stop the search
+     */
+    public void findByPrefix(final String text, final Predicate<String> accept)
+    {
+        final String prefix = text.toLowerCase(Locale.ROOT);
+        for (final Map.Entry<String, String> entry : this.paths.tailMap(prefix, true).entrySet()) {
+            final String key = entry.getKey();
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            if (key.indexOf(SEPARATOR) >= prefix.length() && !accept.test(entry.getValue())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Finds the subjects whose identifier contains the given text, but doesn't start with it, in the order of their
+     * identifiers. Together with {@link #findByPrefix}, this finds all the subjects whose identifier contains the
+     * text. The index must be {@link #isAvailable available}.
+     *
+     * @param text the text to look for, case insensitive
+     * @param accept receives the path of each matching subject, and returns {@code false} to stop the search
+     */
+    public void findByInfix(final String text, final Predicate<String> accept)
+    {
+        final String infix = text.toLowerCase(Locale.ROOT);
+        for (final Map.Entry<String, String> entry : this.paths.entrySet()) {
+            final String key = entry.getKey();
+            final int identifierLength = key.indexOf(SEPARATOR);
+            if (key.startsWith(infix) && infix.length() <= identifierLength) {
+                // Already found by prefix
+                continue;
+            }
+            final int position = key.indexOf(infix, 1);
+            if (position > 0 && position + infix.length() <= identifierLength && !accept.test(entry.getValue())) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void contentChanged(final NodeState root, final CommitInfo info)
+    {
+        synchronized (this.lock) {
+            final NodeState before = this.currentRoot;
+            this.currentRoot = root;
+            if (!this.loaded || before == null) {
+                // Nothing to update, the index will be loaded from the latest state when needed
+                return;
+            }
+            update(this.paths, before, root);
+        }
+    }
+
+    /**
+     * Starts loading the index in the background, unless it is already being loaded.
+     */
+    private void loadInBackground()
+    {
+        final ExecutorService currentExecutor = this.executor;
+        if (currentExecutor == null || !this.loading.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            currentExecutor.execute(this::load);
+        } catch (RejectedExecutionException e) {
+            this.loading.set(false);
+        }
+    }
+
+    /**
+     * Loads the index from the latest repository state. The subjects are read without holding the lock, so that commits
+     * are not delayed; the commits made meanwhile are then applied to the loaded index, before it replaces the current
+     * one.
+     */
+    private void load()
+    {
+        try {
+            final NodeState snapshot = this.currentRoot;
+            if (this.loaded || snapshot == null) {
+                return;
+            }
+            final long start = System.currentTimeMillis();
+            final ConcurrentNavigableMap<String, String> loadedPaths = new ConcurrentSkipListMap<>();
+            add(loadedPaths, snapshot.getChildNode(SUBJECTS), "/" + SUBJECTS, null);
+            synchronized (this.lock) {
+                update(loadedPaths, snapshot, this.currentRoot);
+                this.paths = loadedPaths;
+                this.loaded = true;
+            }
+            LOGGER.info("Loaded {} subjects in {}ms", loadedPaths.size(), System.currentTimeMillis() - start);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to load the subject index: {}", e.getMessage(), e);
+        } finally {
+            this.loading.set(false);
+        }
+    }
+
+    /**
+     * Applies the changes made to {@code /Subjects} between two repository states.
+     *
+     * @param target the index to update
+     * @param before the old repository state
+     * @param after the new repository state
+     */
+    private static void update(final Map<String, String> target, final NodeState before, final NodeState after)
+    {
+        final NodeState subjectsAfter = after.getChildNode(SUBJECTS);
+        final NodeState subjectsBefore = before.getChildNode(SUBJECTS);
+        if (!subjectsAfter.equals(subjectsBefore)) {
+            subjectsAfter.compareAgainstBaseState(subjectsBefore, new SubjectsDiff(target, "/" + SUBJECTS, null));
+        }
+    }
+
+    /**
+     * Indexes the subjects in a subtree.
+     *
+     * @param target the index to update
+     * @param node the root of the subtree
+     * @param path the path to the root of the subtree
+     * @param parentPath the path to the closest subject ancestor, or {@code null} if there isn't one
+     */
+    private static void add(final Map<String, String> target, final NodeState node, final String path,
+        final String parentPath)
+    {
+        String childrenParent = parentPath;
+        if (isSubject(node)) {
+            final String key = getKey(node, parentPath);
+            if (key != null) {
+                target.put(key, path);
+            }
+            childrenParent = path;
+        }
+        for (final String name : node.getChildNodeNames()) {
+            add(target, node.getChildNode(name), path + "/" + name, childrenParent);
+        }
+    }
+
+    /**
+     * Removes the subjects in a subtree from the index.
+     *
+     * @param target the index to update
+     * @param node the root of the subtree
+     * @param path the path to the root of the subtree
+     * @param parentPath the path to the closest subject ancestor, or {@code null} if there isn't one
+     */
+    private static void remove(final Map<String, String> target, final NodeState node, final String path,
+        final String parentPath)
+    {
+        String childrenParent = parentPath;
+        if (isSubject(node)) {
+            final String key = getKey(node, parentPath);
+            if (key != null) {
+                target.remove(key, path);
+            }
+            childrenParent = path;
+        }
+        for (final String name : node.getChildNodeNames()) {
+            remove(target, node.getChildNode(name), path + "/" + name, childrenParent);
+        }
+    }
+
+    private static boolean isSubject(final NodeState node)
+    {
+        return SUBJECT_TYPE.equals(node.getName("jcr:primaryType"));
+    }
+
+    private static String getKey(final NodeState subject, final String parentPath)
+    {
+        final PropertyState type = subject.getProperty("type");
+        final String identifier = subject.getString("identifier");
+        if (identifier == null) {
+            return null;
+        }
+        // Subjects without a valid type can still be found by identifier, but not by type
+        return getKey(type == null || type.isArray() ? "" : type.getValue(Type.STRING), parentPath, identifier);
+    }
+
+    /**
+     * Builds the key of a subject. Keys start with the lowercase identifier, so that entries are sorted by identifier,
+     * followed by the exact identifier, the type and the parent path, so that keys are unique.
+     *
+     * @param type the identifier of the subject type
+     * @param parentPath the path to the parent subject, or {@code null} for top level subjects
+     * @param identifier the identifier of the subject
+     * @return the key of the subject
+     */
+    private static String getKey(final String type, final String parentPath, final String identifier)
+    {
+        return identifier.toLowerCase(Locale.ROOT) + SEPARATOR + identifier + SEPARATOR + type + SEPARATOR
+            + (parentPath == null ? "" : parentPath);
+    }
+
+    /** Updates the index with the changes made to a subtree of {@code /Subjects}. */
+    private static final class SubjectsDiff extends DefaultNodeStateDiff
+    {
+        private final Map<String, String> target;
+
+        private final String path;
+
+        private final String parentPath;
+
+        SubjectsDiff(final Map<String, String> target, final String path, final String parentPath)
+        {
+            this.target = target;
+            this.path = path;
+            this.parentPath = parentPath;
+        }
+
+        @Override
+        public boolean childNodeAdded(final String name, final NodeState after)
+        {
+            add(this.target, after, this.path + "/" + name, this.parentPath);
+            return true;
+        }
+
+        @Override
+        public boolean childNodeDeleted(final String name, final NodeState before)
+        {
+            remove(this.target, before, this.path + "/" + name, this.parentPath);
+            return true;
+        }
+
+        @Override
+        public boolean childNodeChanged(final String name, final NodeState before, final NodeState after)
+        {
+            final String childPath = this.path + "/" + name;
+            String childrenParent = this.parentPath;
+            if (isSubject(before) || isSubject(after)) {
+                final String oldKey = isSubject(before) ? getKey(before, this.parentPath) : null;
+                final String newKey = isSubject(after) ? getKey(after, this.parentPath) : null;
+                if (oldKey != null) {
+                    this.target.remove(oldKey, childPath);
+                }
+                if (newKey != null) {
+                    this.target.put(newKey, childPath);
+                }
+                childrenParent = childPath;
+            }
+            return after.compareAgainstBaseState(before, new SubjectsDiff(this.target, childPath, childrenParent));
+        }
+    }
+
+    /** Configuration for the subject index. */
+    @ObjectClassDefinition(name = "CARDS - Subject index",
+        description = "In-memory index of subjects, used for quickly finding existing subjects when importing data,"
+            + " and for looking up subject identifiers in the search box")
+    public @interface Config
+    {
+        /**
+         * Whether the index is enabled.
+         *
+         * @return {@code true} by default
+         */
+        @AttributeDefinition(name = "Enabled",
+            description = "Whether data imports and the quick search should look up subjects in memory instead of"
+                + " querying the repository")
+        boolean enabled() default true;
+    }
+}
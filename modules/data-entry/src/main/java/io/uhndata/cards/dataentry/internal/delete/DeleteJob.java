@@ -0,0 +1,377 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.delete;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.ReferentialIntegrityException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.dataentry.internal.jobs.BackgroundJob;
+
+/**
+ * A delete running in the background, submitted through {@link DeleteJobs}. Instead of removing everything in one big
+ * commit, the nodes to delete are split into whole subtrees, and changes are saved each time enough nodes were
+ * removed, so that each commit stays small. A subtree is only split when it is a subject too large for one chunk, in
+ * which case its child subjects are removed before the subject itself; forms and other resources are always removed
+ * whole, so a delete that stops before the end never leaves behind partially deleted forms. Nodes that no longer exist
+ * are skipped, so running the same delete again after a failure or cancellation continues where the previous attempt
+ * stopped.
+ *
+ * @version $Id$
+ */
+public final class DeleteJob extends BackgroundJob
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeleteJob.class);
+
+    private static final String VERSIONABLE = "mix:versionable";
+
+    private static final String SUBJECT = "cards:Subject";
+
+    /**
+     * How many chunks worth of removals can wait for the nodes still referencing them to be removed as well, before
+     * giving up.
+     */
+    private static final int MAX_POSTPONED_CHUNKS = 4;
+
+    /** The paths of the nodes to delete, along with their descendants, in deletion order. */
+    private final List<String> paths;
+
+    /** The minimum number of nodes removed in each commit. */
+    private final int chunkSize;
+
+    /** The resource resolver used for deleting, closed once the job ends. */
+    private final ResourceResolver resolver;
+
+    /** The paths of the versionable nodes checked out by this job, to be checked back in once the job ends. */
+    private final Set<String> checkedOut = new LinkedHashSet<>();
+
+    /** The total number of nodes to delete, known once the job starts. */
+    private volatile long totalNodes = -1;
+
+    /** The number of nodes deleted and saved so far. */
+    private volatile long deletedNodes;
+
+    /** The number of commits done so far. */
+    private volatile int commits;
+
+    /** When the job started running. */
+    private volatile long startTime;
+
+    /** When the job ended. */
+    private volatile long endTime;
+
+    /**
+     * Constructor specifying everything the job needs.
+     *
+     * @param userId the user who submitted the job
+     * @param paths the paths of the nodes to delete, none of them being a descendant of another, in deletion order
+     * @param chunkSize the minimum number of nodes to remove in each commit
+     * @param resolver the resource resolver used for deleting, owned by the job and closed once the job ends
+     */
+    DeleteJob(final String userId, final List<String> paths, final int chunkSize, final ResourceResolver resolver)
+    {
+        super(userId);
+        this.paths = Collections.unmodifiableList(new ArrayList<>(paths));
+        this.chunkSize = Math.max(1, chunkSize);
+        this.resolver = resolver;
+    }
+
+    @Override
+    protected void execute()
+    {
+        this.startTime = System.currentTimeMillis();
+        final Session session = this.resolver.adaptTo(Session.class);
+        try {
+            final List<Subtree> subtrees = listSubtrees(session);
+            this.totalNodes = subtrees.stream().mapToLong(subtree -> subtree.size).sum();
+            deleteSubtrees(session, subtrees);
+        } catch (RepositoryException e) {
+            LOGGER.error("Delete job {} failed: {}", getId(), e.getMessage(), e);
+            fail(e.getMessage());
+        }
+    }
+
+    @Override
+    protected void finish()
+    {
+        final Session session = this.resolver.adaptTo(Session.class);
+        if (session != null) {
+            if (getError() != null) {
+                try {
+                    session.refresh(false);
+                } catch (RepositoryException e) {
+                    // Nothing else to do, the session is discarded anyway
+                }
+            }
+            checkin(session);
+        }
+        this.endTime = System.currentTimeMillis();
+        this.resolver.close();
+    }
+
+    /**
+     * The paths of the nodes deleted by this job, along with their descendants.
+     *
+     * @return an unmodifiable list of paths, in deletion order
+     */
+    public List<String> getPaths()
+    {
+        return this.paths;
+    }
+
+    /**
+     * The total number of nodes to delete, including descendants.
+     *
+     * @return a positive number, or {@code -1} if the job didn't start yet
+     */
+    public long getTotalNodes()
+    {
+        return this.totalNodes;
+    }
+
+    /**
+     * The number of nodes deleted so far. Only saved changes are counted.
+     *
+     * @return a positive number, or {@code 0} if nothing was deleted yet
+     */
+    public long getDeletedNodes()
+    {
+        return this.deletedNodes;
+    }
+
+    /**
+     * The number of commits done so far.
+     *
+     * @return a positive number, or {@code 0} if nothing was saved yet
+     */
+    public int getCommits()
+    {
+        return this.commits;
+    }
+
+    /**
+     * The delete speed so far.
+     *
+     * @return the average number of nodes deleted each second, or {@code 0} if the job didn't start yet
+     */
+    public double getNodesPerSecond()
+    {
+        final long start = this.startTime;
+        if (start == 0) {
+            return 0;
+        }
+        final long end = this.endTime == 0 ? System.currentTimeMillis() : this.endTime;
+        return this.deletedNodes * 1000.0 / Math.max(1, end - start);
+    }
+
+    /**
+     * Splits the nodes to delete into subtrees, each one removed at once.
+     *
+     * @param session the session used for deleting
+     * @return a list of subtrees, in deletion order
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private List<Subtree> listSubtrees(final Session session) throws RepositoryException
+    {
+        final List<Subtree> result = new ArrayList<>();
+        for (final String path : this.paths) {
+            if (!session.nodeExists(path)) {
+                // Already deleted by a previous attempt
+                continue;
+            }
+            final Node node = session.getNode(path);
+            if (node.isNodeType(SUBJECT)) {
+                splitSubject(node, result);
+            } else {
+                result.add(new Subtree(path, countNodes(node)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lists the subtrees to remove for deleting a subject. A subject small enough to fit in one chunk is removed at
+     * once, otherwise its child subjects are removed first, each one split in turn if needed, followed by the subject
+     * itself along with the rest of its content.
+     *
+     * @param subject the subject to delete
+     * @param result the list where the subtrees are added, in deletion order
+     * @return the total number of nodes in the subject's subtree
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private long splitSubject(final Node subject, final List<Subtree> result) throws RepositoryException
+    {
+        final List<Subtree> children = new ArrayList<>();
+        long total = 1;
+        long own = 1;
+        final NodeIterator it = subject.getNodes();
+        while (it.hasNext()) {
+            final Node child = it.nextNode();
+            if (child.isNodeType(SUBJECT)) {
+                total += splitSubject(child, children);
+            } else {
+                final long size = countNodes(child);
+                total += size;
+                own += size;
+            }
+        }
+        if (total <= this.chunkSize) {
+            result.add(new Subtree(subject.getPath(), total));
+        } else {
+            result.addAll(children);
+            result.add(new Subtree(subject.getPath(), own));
+        }
+        return total;
+    }
+
+    private long countNodes(final Node root) throws RepositoryException
+    {
+        long result = 0;
+        final Deque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            final Node node = stack.pop();
+            ++result;
+            final NodeIterator children = node.getNodes();
+            while (children.hasNext()) {
+                stack.push(children.nextNode());
+            }
+        }
+        return result;
+    }
+
+    private void deleteSubtrees(final Session session, final List<Subtree> subtrees) throws RepositoryException
+    {
+        long removed = 0;
+        for (final Subtree subtree : subtrees) {
+            if (isCancelled()) {
+                break;
+            }
+            if (!session.nodeExists(subtree.path)) {
+                continue;
+            }
+            final Node node = session.getNode(subtree.path);
+            checkout(node.getParent());
+            // Checked out nodes about to be removed don't have to be checked back in
+            this.checkedOut.removeIf(path -> path.equals(subtree.path) || path.startsWith(subtree.path + "/"));
+            node.remove();
+            removed += subtree.size;
+            if (removed >= this.chunkSize && save(session, removed >= MAX_POSTPONED_CHUNKS * (long) this.chunkSize)) {
+                this.deletedNodes += removed;
+                removed = 0;
+            }
+        }
+        // Whatever was removed before a cancellation is kept
+        if (removed > 0 && save(session, true)) {
+            this.deletedNodes += removed;
+        }
+    }
+
+    /**
+     * Saves the pending changes.
+     *
+     * @param session the session used for deleting
+     * @param force whether the changes must be saved now; otherwise, a save that would break references is postponed
+     *            until the nodes still referencing the removed ones are removed as well
+     * @return {@code true} if the changes were saved, {@code false} if the save was postponed
+     * @throws RepositoryException if saving fails
+     */
+    private boolean save(final Session session, final boolean force) throws RepositoryException
+    {
+        try {
+            session.save();
+            ++this.commits;
+            return true;
+        } catch (ReferentialIntegrityException e) {
+            if (force) {
+                throw e;
+            }
+            LOGGER.debug("Postponing a save of delete job {}: {}", getId(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Makes sure that a node can be modified, by checking out its nearest versionable ancestor if needed. Each
+     * versionable node is only checked out once.
+     *
+     * @param node the node whose child is to be removed
+     * @throws RepositoryException if checking out fails
+     */
+    private void checkout(final Node node) throws RepositoryException
+    {
+        if (node.isCheckedOut()) {
+            return;
+        }
+        Node versionable = node;
+        while (!versionable.isNodeType(VERSIONABLE) && versionable.getDepth() > 0) {
+            versionable = versionable.getParent();
+        }
+        if (this.checkedOut.add(versionable.getPath())) {
+            versionable.checkout();
+        }
+    }
+
+    /**
+     * Checks back in the versionable nodes checked out by this job, which still exist.
+     *
+     * @param session the session used for deleting
+     */
+    private void checkin(final Session session)
+    {
+        for (final String path : this.checkedOut) {
+            try {
+                if (session.nodeExists(path)) {
+                    session.getNode(path).checkin();
+                }
+            } catch (RepositoryException e) {
+                LOGGER.warn("Failed to check in {} after delete job {}: {}", path, getId(), e.getMessage());
+            }
+        }
+        this.checkedOut.clear();
+    }
+
+    /** A subtree removed at once, along with the number of nodes it holds. */
+    private static final class Subtree
+    {
+        private final String path;
+
+        private final long size;
+
+        Subtree(final String path, final long size)
+        {
+            this.path = path;
+            this.size = size;
+        }
+    }
+}
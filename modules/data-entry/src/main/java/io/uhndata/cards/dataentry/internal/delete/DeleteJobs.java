@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.delete;
+
+import java.util.List;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+import io.uhndata.cards.dataentry.internal.jobs.JobRegistry;
+
+/**
+ * Runs deletes in the background, and keeps track of them so that their progress can be checked. Only a limited
+ * number of deletes run at the same time, the others wait in a queue. Submitting the same delete again while it is
+ * still queued or running returns the existing job instead of starting a new one. Jobs that ended are kept for a
+ * while, so that their outcome can still be checked, and the oldest ones are forgotten once there are too many of them.
+ *
+ * @version $Id$
+ */
+@Component(service = DeleteJobs.class)
+@Designate(ocd = DeleteJobs.Config.class)
+public class DeleteJobs extends JobRegistry<DeleteJob>
+{
+    /** The minimum number of nodes removed in each commit. */
+    private int chunkSize;
+
+    @Activate
+    protected void activate(final Config config)
+    {
+        this.chunkSize = config.chunkSize();
+        start("DeleteJob", config.concurrentDeletes(), config.retainedJobs());
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        stop();
+    }
+
+    /**
+     * Queues a new delete, unless the same user already has an identical delete queued or running.
+     *
+     * @param userId the user submitting the delete
+     * @param paths the paths of the nodes to delete, none of them being a descendant of another, in deletion order
+     * @param resolver the resource resolver used for deleting, which will be closed once the job ends, or right away
+     *            if an existing job is returned
+     * @return the new job, or the existing identical job
+     */
+    public DeleteJob submit(final String userId, final List<String> paths, final ResourceResolver resolver)
+    {
+        final DeleteJob job = new DeleteJob(userId, paths, this.chunkSize, resolver);
+        final DeleteJob result =
+            enqueue(job, existing -> existing.getUserId().equals(userId) && existing.getPaths().equals(paths));
+        if (result != job) {
+            resolver.close();
+        }
+        return result;
+    }
+
+    /** Configuration for background deletes. */
+    @ObjectClassDefinition(name = "CARDS - Delete jobs",
+        description = "Configuration for large deletes running in the background")
+    public @interface Config
+    {
+        /**
+         * The number of deletes that can run at the same time.
+         *
+         * @return a positive number
+         */
+        @AttributeDefinition(name = "Concurrent deletes",
+            description = "How many deletes can run at the same time, the others wait in a queue")
+        int concurrentDeletes() default 1;
+
+        /**
+         * The number of nodes removed in each commit. Forms and small subjects are never split, so a commit may remove
+         * more nodes than this.
+         *
+         * @return a positive number
+         */
+        @AttributeDefinition(name = "Chunk size",
+            description = "How many nodes are removed before saving, to keep each commit small")
+        int chunkSize() default 500;
+
+        /**
+         * The number of finished deletes to remember.
+         *
+         * @return a positive number
+         */
+        @AttributeDefinition(name = "Retained jobs",
+            description = "How many finished deletes are remembered, so that their outcome can be checked")
+        int retainedJobs() default 100;
+    }
+}
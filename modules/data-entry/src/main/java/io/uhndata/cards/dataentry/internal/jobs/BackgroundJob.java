@@ -0,0 +1,240 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.jobs;
+
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A task running in the background, submitted through a {@link JobRegistry}, whose progress can be followed by the
+ * user who submitted it. This takes care of the job lifecycle: a job is queued until a thread is available, then runs,
+ * and ends either successfully, with an error, or cancelled. Subclasses do the actual work in {@link #execute()}, and
+ * release their resources in {@link #finish()}, which is called exactly once, whether the job ran or was cancelled
+ * while still queued.
+ *
+ * @version $Id$
+ */
+public abstract class BackgroundJob implements Runnable
+{
+    /** The possible states of a job. */
+    public enum Status
+    {
+        /** Waiting for a free thread. */
+        QUEUED,
+        /** Doing its work. */
+        RUNNING,
+        /** All the work was done. */
+        SUCCEEDED,
+        /** The job stopped because of an error. */
+        FAILED,
+        /** The job was stopped at the request of the user. */
+        CANCELLED
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundJob.class);
+
+    /** The unique identifier of the job. */
+    private final String id = UUID.randomUUID().toString();
+
+    /** The user who submitted the job. */
+    private final String userId;
+
+    /** When the job was submitted. */
+    private final long submitted = System.currentTimeMillis();
+
+    /** The current state of the job. */
+    private volatile Status status = Status.QUEUED;
+
+    /** Set when the job must stop. */
+    private volatile boolean cancelled;
+
+    /** The task running this job, used for cancelling queued jobs. */
+    private volatile Future<?> task;
+
+    /** The error that stopped the job, if any. */
+    private volatile String error;
+
+    /**
+     * Basic constructor.
+     *
+     * @param userId the user who submitted the job
+     */
+    protected BackgroundJob(final String userId)
+    {
+        this.userId = userId;
+    }
+
+    @Override
+    public final void run()
+    {
+        synchronized (this) {
+            if (this.status != Status.QUEUED) {
+                // Cancelled before it started
+                return;
+            }
+            this.status = Status.RUNNING;
+        }
+        try {
+            execute();
+        } catch (RuntimeException e) {
+            LOGGER.error("Background job {} failed: {}", this.id, e.getMessage(), e);
+            fail(e.getMessage() != null ? e.getMessage() : e.getClass().getName());
+        } finally {
+            try {
+                finish();
+            } finally {
+                if (getError() != null) {
+                    this.status = Status.FAILED;
+                } else if (this.cancelled) {
+                    this.status = Status.CANCELLED;
+                } else {
+                    this.status = Status.SUCCEEDED;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the job. A queued job will not start, while a running job will stop as soon as {@link #execute()} notices
+     * that it was {@link #isCancelled() cancelled}.
+     */
+    public void cancel()
+    {
+        this.cancelled = true;
+        onCancel();
+        synchronized (this) {
+            if (this.status == Status.QUEUED) {
+                this.status = Status.CANCELLED;
+                if (this.task != null) {
+                    this.task.cancel(false);
+                }
+                finish();
+            }
+        }
+    }
+
+    /**
+     * The unique identifier of this job.
+     *
+     * @return a random UUID
+     */
+    public String getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * The user who submitted this job.
+     *
+     * @return a user identifier
+     */
+    public String getUserId()
+    {
+        return this.userId;
+    }
+
+    /**
+     * When this job was submitted.
+     *
+     * @return a timestamp, in milliseconds
+     */
+    public long getSubmitted()
+    {
+        return this.submitted;
+    }
+
+    /**
+     * The current state of this job.
+     *
+     * @return a status
+     */
+    public Status getStatus()
+    {
+        return this.status;
+    }
+
+    /**
+     * Whether this job ended, either successfully or not.
+     *
+     * @return {@code true} if the job will not make any more changes
+     */
+    public boolean isDone()
+    {
+        final Status current = this.status;
+        return current != Status.QUEUED && current != Status.RUNNING;
+    }
+
+    /**
+     * The error that stopped this job.
+     *
+     * @return an error message, or {@code null} if the job didn't fail
+     */
+    public String getError()
+    {
+        return this.error;
+    }
+
+    /**
+     * Does the actual work of the job. Checked exceptions must be handled here, usually by calling {@link #fail}, while
+     * unchecked exceptions mark the job as failed.
+     */
+    protected abstract void execute();
+
+    /**
+     * Releases the resources used by the job, called once the job ends, or when the job is cancelled before starting.
+     */
+    protected abstract void finish();
+
+    /**
+     * Called when the job is cancelled, before its status changes, for stopping work running in other threads. Does
+     * nothing by default.
+     */
+    protected void onCancel()
+    {
+        // Nothing to do by default
+    }
+
+    /**
+     * Whether the job was asked to stop.
+     *
+     * @return {@code true} if the job was cancelled
+     */
+    protected boolean isCancelled()
+    {
+        return this.cancelled;
+    }
+
+    /**
+     * Records the error that stopped the job; the job will end as {@link Status#FAILED failed}.
+     *
+     * @param message the error message
+     */
+    protected void fail(final String message)
+    {
+        this.error = message;
+    }
+
+    void setTask(final Future<?> task)
+    {
+        this.task = task;
+    }
+}
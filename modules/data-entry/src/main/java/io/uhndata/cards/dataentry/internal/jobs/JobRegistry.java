@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.jobs;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.concurrent.NamedThreadFactory;
+
+/**
+ * Runs {@link BackgroundJob jobs} in the background, and keeps track of them so that their progress can be checked.
+ * Only a limited number of jobs run at the same time, the others wait in a queue. Jobs that ended are kept for a while,
+ * so that their outcome can still be checked, and the oldest ones are forgotten once there are too many of them.
+ * <p>
+ * Components running a specific kind of job extend this class, calling {@link #start} when activated and
+ * {@link #stop} when deactivated.
+ * </p>
+ *
+ * @param <J> the type of jobs
+ * @version $Id$
+ */
+public abstract class JobRegistry<J extends BackgroundJob>
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobRegistry.class);
+
+    /** How long to wait for running jobs to stop when the registry is stopped. */
+    private static final long STOP_TIMEOUT_SECONDS = 30;
+
+    /** The known jobs, in the order they were submitted. */
+    private final Map<String, J> jobs = new LinkedHashMap<>();
+
+    /** How many jobs that ended are remembered. */
+    private volatile int retainedJobs;
+
+    /** The threads running the jobs. */
+    private volatile ExecutorService executor;
+
+    /**
+     * Starts the threads running the jobs.
+     *
+     * @param threadName the name of the threads, a number is appended to it
+     * @param concurrentJobs how many jobs can run at the same time
+     * @param retained how many jobs that ended are remembered
+     */
+    protected void start(final String threadName, final int concurrentJobs, final int retained)
+    {
+        this.retainedJobs = retained;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrentJobs), new NamedThreadFactory(threadName));
+    }
+
+    /**
+     * Cancels all the jobs and stops the threads. Running jobs are given a few seconds to notice that they were
+     * cancelled and release their resources, after which their threads are interrupted.
+     */
+    protected void stop()
+    {
+        synchronized (this.jobs) {
+            this.jobs.values().forEach(BackgroundJob::cancel);
+        }
+        this.executor.shutdown();
+        try {
+            if (!this.executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.warn("Background jobs did not stop after {} seconds, interrupting them", STOP_TIMEOUT_SECONDS);
+                this.executor.shutdownNow();
+            }
+        } catch (final InterruptedException e) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a new job, unless an equivalent job is already queued or running.
+     *
+     * @param job the new job
+     * @param duplicate identifies the queued or running jobs equivalent to the new one, may be {@code null} if jobs
+     *            are never considered equivalent
+     * @return the new job, or the existing equivalent job, in which case the new job is not queued
+     */
+    protected J enqueue(final J job, final Predicate<J> duplicate)
+    {
+        synchronized (this.jobs) {
+            if (duplicate != null) {
+                for (final J existing : this.jobs.values()) {
+                    if (!existing.isDone() && duplicate.test(existing)) {
+                        return existing;
+                    }
+                }
+            }
+            forgetOldJobs();
+            this.jobs.put(job.getId(), job);
+        }
+        try {
+            job.setTask(this.executor.submit(job));
+        } catch (RejectedExecutionException e) {
+            // The component is being deactivated
+            job.cancel();
+        }
+        return job;
+    }
+
+    /**
+     * Retrieves a job.
+     *
+     * @param id the identifier of the job
+     * @return the job, or {@code null} if there is no such job, or it was forgotten
+     */
+    public J get(final String id)
+    {
+        synchronized (this.jobs) {
+            return this.jobs.get(id);
+        }
+    }
+
+    /**
+     * Lists the jobs submitted by a user.
+     *
+     * @param userId the user who submitted the jobs
+     * @return a list of jobs, in the order they were submitted, may be empty
+     */
+    public List<J> list(final String userId)
+    {
+        final List<J> result = new ArrayList<>();
+        synchronized (this.jobs) {
+            this.jobs.values().stream().filter(job -> job.getUserId().equals(userId)).forEach(result::add);
+        }
+        return result;
+    }
+
+    private void forgetOldJobs()
+    {
+        int done = (int) this.jobs.values().stream().filter(BackgroundJob::isDone).count();
+        final Iterator<J> it = this.jobs.values().iterator();
+        while (done > this.retainedJobs && it.hasNext()) {
+            if (it.next().isDone()) {
+                it.remove();
+                --done;
+            }
+        }
+    }
+}
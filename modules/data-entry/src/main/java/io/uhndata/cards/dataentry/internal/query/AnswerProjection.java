@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.query;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jcr.PropertyType;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+
+/**
+ * The answer projection of a form: a multi-valued property on each form, with one {@code questionUuid=value} entry
+ * for each answer value in the form. Together with the {@code questionnaire} and {@code subject} properties of the
+ * form, it holds everything needed for answering equality filters directly on the form nodes, in a single index
+ * lookup, instead of joining each filter with the answers of the form.
+ * <p>
+ * Values are normalized so that the entries computed from the stored answers match the entries computed from the
+ * filters received from clients: numbers are stored without trailing zeros, so that {@code 5}, {@code 5.0} and
+ * {@code 5.00} all match. Dates, binary values, and very long values are not projected, and filters on them must use
+ * joins.
+ * </p>
+ *
+ * @version $Id$
+ */
+public final class AnswerProjection
+{
+    /** The name of the multi-valued property of forms holding the projection. */
+    public static final String PROPERTY = "answerProjection";
+
+    /** Longer values are not projected, since they would only bloat the index. */
+    static final int MAX_VALUE_LENGTH = 256;
+
+    /** The question data types whose values are projected as-is. */
+    private static final List<String> TEXT_TYPES = Arrays.asList("text", "vocabulary");
+
+    /** The question data types whose values are projected as normalized numbers. */
+    private static final List<String> NUMERIC_TYPES = Arrays.asList("long", "double", "decimal");
+
+    private AnswerProjection()
+    {
+        // Utility class, should not be instantiated
+    }
+
+    /**
+     * Builds a projection entry.
+     *
+     * @param question the UUID of the answered question
+     * @param normalizedValue an answer value, already normalized
+     * @return the projection entry
+     */
+    public static String entry(final String question, final String normalizedValue)
+    {
+        return question + "=" + normalizedValue;
+    }
+
+    /**
+     * Normalizes a value received in a filter.
+     *
+     * @param dataType the data type of the question being filtered, such as {@code text} or {@code long}
+     * @param value the raw value
+     * @return the normalized value, or {@code null} if values of this type aren't projected, or if the value cannot be
+     *         normalized
+     */
+    public static String normalize(final String dataType, final String value)
+    {
+        if (value == null) {
+            return null;
+        } else if (TEXT_TYPES.contains(dataType)) {
+            return checkLength(value);
+        } else if (NUMERIC_TYPES.contains(dataType)) {
+            return normalizeNumber(value);
+        }
+        return null;
+    }
+
+    /**
+     * Normalizes one of the values of a stored answer.
+     *
+     * @param value the {@code value} property of an answer
+     * @param index the index of the value to normalize, {@code 0} for single-valued properties
+     * @return the normalized value, or {@code null} if this value isn't projected
+     */
+    static String normalize(final PropertyState value, final int index)
+    {
+        switch (value.getType().tag()) {
+            case PropertyType.LONG:
+            case PropertyType.DOUBLE:
+            case PropertyType.DECIMAL:
+                return normalizeNumber(value.getValue(Type.STRING, index));
+            case PropertyType.DATE:
+            case PropertyType.BINARY:
+                return null;
+            default:
+                return checkLength(value.getValue(Type.STRING, index));
+        }
+    }
+
+    private static String normalizeNumber(final String value)
+    {
+        try {
+            return new BigDecimal(value.trim()).stripTrailingZeros().toPlainString();
+        } catch (NumberFormatException e) {
+            // Also covers NaN and infinity, which cannot be filtered on anyway
+            return null;
+        }
+    }
+
+    private static String checkLength(final String value)
+    {
+        return value.length() > MAX_VALUE_LENGTH ? null : value;
+    }
+}
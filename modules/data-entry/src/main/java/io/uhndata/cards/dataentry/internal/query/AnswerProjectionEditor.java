@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.query;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.commit.DefaultEditor;
+import org.apache.jackrabbit.oak.spi.commit.Editor;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+/**
+ * An {@link Editor} that keeps the {@link AnswerProjection answer projection} of every changed Form up to date. The
+ * projection is recomputed from scratch each time something changes in the form, which is cheap compared to the
+ * commit itself, since forms hold at most a few hundred answers.
+ *
+ * @version $Id$
+ */
+public class AnswerProjectionEditor extends DefaultEditor
+{
+    private static final String FORMS = "Forms";
+
+    // This holds the builder for the current node. The methods called for editing specific properties don't receive the
+    // actual parent node of those properties, so we must manually keep track of the current node.
+    private final NodeBuilder currentNodeBuilder;
+
+    /** Whether the current node is the root of the repository, or a node inside the Forms tree. */
+    private final boolean isRoot;
+
+    /**
+     * Simple constructor.
+     *
+     * @param nodeBuilder the current node
+     * @param isRoot whether the current node is the root of the repository
+     */
+    public AnswerProjectionEditor(final NodeBuilder nodeBuilder, final boolean isRoot)
+    {
+        this.currentNodeBuilder = nodeBuilder;
+        this.isRoot = isRoot;
+    }
+
+    @Override
+    public Editor childNodeAdded(final String name, final NodeState after)
+    {
+        return childNodeChanged(name, null, after);
+    }
+
+    @Override
+    public Editor childNodeChanged(final String name, final NodeState before, final NodeState after)
+    {
+        if (this.isRoot && !FORMS.equals(name)) {
+            // Only forms have a projection, there's no need to look at the rest of the repository
+            return null;
+        }
+        final NodeBuilder child = this.currentNodeBuilder.getChildNode(name);
+        if (isForm(child)) {
+            // Anything changed in the form, no need to descend further, just recompute everything
+            updateProjection(child);
+            return null;
+        }
+        return new AnswerProjectionEditor(child, false);
+    }
+
+    /**
+     * Recomputes the projection of a form, and stores it only if it changed.
+     *
+     * @param form the form to update
+     */
+    private static void updateProjection(final NodeBuilder form)
+    {
+        final Set<String> entries = new TreeSet<>();
+        collectEntries(form, entries);
+        final PropertyState current = form.getProperty(AnswerProjection.PROPERTY);
+        if (current == null && entries.isEmpty()) {
+            return;
+        }
+        if (current != null && current.isArray()) {
+            final Set<String> existing = new HashSet<>();
+            current.getValue(Type.STRINGS).forEach(existing::add);
+            if (existing.equals(entries)) {
+                return;
+            }
+        }
+        if (entries.isEmpty()) {
+            form.removeProperty(AnswerProjection.PROPERTY);
+        } else {
+            form.setProperty(AnswerProjection.PROPERTY, entries, Type.STRINGS);
+        }
+    }
+
+    /**
+     * Gathers the projection entries of all the answers found under a node, including those in answer sections.
+     *
+     * @param node the form or answer section to process
+     * @param entries the set where entries are collected
+     */
+    private static void collectEntries(final NodeBuilder node, final Set<String> entries)
+    {
+        for (final String name : node.getChildNodeNames()) {
+            final NodeBuilder child = node.getChildNode(name);
+            final PropertyState question = child.getProperty("question");
+            final PropertyState value = child.getProperty("value");
+            if (question != null && value != null) {
+                final String questionId = question.getValue(Type.STRING);
+                for (int i = 0; i < value.count(); ++i) {
+                    final String normalized = AnswerProjection.normalize(value, i);
+                    if (normalized != null) {
+                        entries.add(AnswerProjection.entry(questionId, normalized));
+                    }
+                }
+            }
+            collectEntries(child, entries);
+        }
+    }
+
+    /**
+     * Checks if the given node is a Form node.
+     *
+     * @param node the node to check
+     * @return {@code true} if the node is a Form node, {@code false} otherwise
+     */
+    private static boolean isForm(final NodeBuilder node)
+    {
+        final PropertyState type = node.getProperty("jcr:primaryType");
+        return type != null && "cards:Form".equals(type.getValue(Type.NAME));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.query;
+
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.Editor;
+import org.apache.jackrabbit.oak.spi.commit.EditorProvider;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.ServiceScope;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+/**
+ * A {@link EditorProvider} returning {@link AnswerProjectionEditor}. It also tells whether listings may use the
+ * projection for filtering forms, which is only safe once every existing form has a projection.
+ *
+ * @version $Id$
+ */
+@Component(service = { EditorProvider.class, AnswerProjectionEditorProvider.class },
+    scope = ServiceScope.SINGLETON, immediate = true)
+@Designate(ocd = AnswerProjectionEditorProvider.Config.class)
+public class AnswerProjectionEditorProvider implements EditorProvider
+{
+    /** Whether projections are maintained. */
+    private volatile boolean enabled;
+
+    /** Whether listings use projections instead of joins for filtering forms. */
+    private volatile boolean usedForFilters;
+
+    @Activate
+    @Modified
+    protected void activate(final Config config)
+    {
+        this.enabled = config.enabled();
+        this.usedForFilters = config.enabled() && config.useForFilters();
+    }
+
+    @Override
+    public Editor getRootEditor(final NodeState before, final NodeState after, final NodeBuilder builder,
+        final CommitInfo info)
+    {
+        if (this.enabled) {
+            // Each AnswerProjectionEditor maintains a state, so a new instance must be returned each time
+            return new AnswerProjectionEditor(builder, true);
+        }
+        return null;
+    }
+
+    /**
+     * Whether listings may filter forms using their answer projection instead of joining their answers.
+     *
+     * @return {@code true} if projections are maintained and were enabled for filtering
+     */
+    public boolean isUsedForFilters()
+    {
+        return this.usedForFilters;
+    }
+
+    /** Configuration for the answer projection. */
+    @ObjectClassDefinition(name = "CARDS - Answer projection",
+        description = "Maintains a denormalized copy of the answers of each form, used for faster filtering")
+    public @interface Config
+    {
+        /**
+         * Whether projections are maintained.
+         *
+         * @return {@code true} by default
+         */
+        @AttributeDefinition(name = "Enabled",
+            description = "Whether the answer projection of forms should be updated each time a form changes")
+        boolean enabled() default true;
+
+        /**
+         * Whether listings use projections for filtering.
+         *
+         * @return {@code false} by default
+         */
+        @AttributeDefinition(name = "Use for filters",
+            description = "Whether form listings should use the answer projection instead of joins for equality"
+                + " filters. Only enable this once all the existing forms have a projection, for example after"
+                + " they were all saved again, since forms without a projection will not match any filter.")
+        boolean useForFilters() default false;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.ValueFactory;
+import javax.jcr.query.Query;
+
+/**
+ * A JCR-SQL2 query where user-provided values are not written in the statement, but passed separately as bind
+ * variables. The statement only depends on the shape of the query, which conditions are used, while the values can
+ * change from one request to the next. Since values are never written in the statement, they don't need escaping.
+ * Instances are immutable.
+ *
+ * @version $Id$
+ */
+public final class BoundQuery
+{
+    /** The statement, with {@code $vN} placeholders for the values. */
+    private final String statement;
+
+    /** The values of the bind variables: the value of {@code $vN} is at index {@code N}. */
+    private final List<String> values;
+
+    /** The JCR property types of the values, such as {@link PropertyType#STRING}. */
+    private final List<Integer> types;
+
+    private BoundQuery(final String statement, final List<String> values, final List<Integer> types)
+    {
+        this.statement = statement;
+        this.values = Collections.unmodifiableList(new ArrayList<>(values));
+        this.types = Collections.unmodifiableList(new ArrayList<>(types));
+    }
+
+    /**
+     * Wraps a statement that doesn't have any bind variables.
+     *
+     * @param statement a complete JCR-SQL2 statement
+     * @return a query without bind variables
+     */
+    public static BoundQuery of(final String statement)
+    {
+        return new BoundQuery(statement, Collections.emptyList(), Collections.emptyList());
+    }
+
+    /**
+     * The statement, with {@code $vN} placeholders for the values.
+     *
+     * @return a JCR-SQL2 statement
+     */
+    public String getStatement()
+    {
+        return this.statement;
+    }
+
+    /**
+     * Creates a JCR query ready to be executed, with all the values bound.
+     *
+     * @param session the session that will run the query
+     * @return a query
+     * @throws RepositoryException if the statement is invalid, or a value cannot be converted to the requested type
+     */
+    public Query create(final Session session) throws RepositoryException
+    {
+        final Query result = session.getWorkspace().getQueryManager().createQuery(this.statement, Query.JCR_SQL2);
+        final ValueFactory valueFactory = session.getValueFactory();
+        for (int i = 0; i < this.values.size(); ++i) {
+            result.bindValue("v" + i, valueFactory.createValue(this.values.get(i), this.types.get(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Identifies the query, including the values.
+     *
+     * @return the statement followed by the bound values
+     */
+    @Override
+    public String toString()
+    {
+        final StringBuilder result = new StringBuilder(this.statement);
+        for (int i = 0; i < this.values.size(); ++i) {
+            result.append("\n$v").append(i).append('=').append(this.types.get(i)).append(':')
+                .append(this.values.get(i));
+        }
+        return result.toString();
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+        return obj instanceof BoundQuery && toString().equals(obj.toString());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return toString().hashCode();
+    }
+
+    /** Builds a query, collecting the values of the bind variables. */
+    public static final class Builder
+    {
+        private final StringBuilder statement = new StringBuilder();
+
+        private final List<String> values = new ArrayList<>();
+
+        private final List<Integer> types = new ArrayList<>();
+
+        /**
+         * Appends a part of the statement, which must not contain any user-provided values.
+         *
+         * @param part the text to append
+         * @return this builder
+         */
+        public Builder append(final String part)
+        {
+            this.statement.append(part);
+            return this;
+        }
+
+        /**
+         * Registers a string value.
+         *
+         * @param value the value to bind
+         * @return the bind variable to use in the statement in place of the value
+         */
+        public String bind(final String value)
+        {
+            return bind(value, PropertyType.STRING);
+        }
+
+        /**
+         * Registers a value of a specific type.
+         *
+         * @param value the value to bind, in its string representation
+         * @param type the JCR property type of the value, such as {@link PropertyType#DATE}
+         * @return the bind variable to use in the statement in place of the value
+         */
+        public String bind(final String value, final int type)
+        {
+            this.values.add(value);
+            this.types.add(type);
+            return "$v" + (this.values.size() - 1);
+        }
+
+        /**
+         * Builds the query.
+         *
+         * @return the query
+         */
+        public BoundQuery build()
+        {
+            return new BoundQuery(this.statement.toString(), this.values, this.types);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.query;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.json.JsonValue.ValueType;
+
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Component;
+
+import io.uhndata.cards.cache.PathInvalidatingObserver;
+
+/**
+ * Keeps the filterable fields of questionnaires, so that listing them doesn't require serializing every questionnaire
+ * each time. Each questionnaire's list of fields is computed once, from its deep serialization, and is discarded as
+ * soon as a commit changes the questionnaire or any of its questions. Each computed list gets a new version number,
+ * which can be used for building {@code ETag}s. Merged catalogues for several questionnaires are also remembered,
+ * identified by the questionnaires and versions they were built from.
+ * <p>
+ * Cached fields are shared by all users, so they are only returned to users who can access the questionnaire, and
+ * fields are only cached when they could be computed from the questionnaire.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { FieldCatalogueCache.class, Observer.class })
+public class FieldCatalogueCache extends PathInvalidatingObserver
+{
+    /** How many questionnaires and merged catalogues to remember. */
+    private static final int MAX_ENTRIES = 100;
+
+    private static final String PRIMARY_TYPE = "jcr:primaryType";
+
+    /** The fields of each questionnaire, indexed by path, in access order. */
+    private final Map<String, Fields> entries = new LinkedHashMap<String, Fields>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Fields> eldest)
+        {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /** Serialized merged catalogues, indexed by the questionnaires and versions they were built from. */
+    private final Map<String, String> merged = new LinkedHashMap<String, String>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, String> eldest)
+        {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Source of version numbers; versions are never reused, even across different questionnaires. Starting from the
+     * current time ensures that versions are not reused after a restart either, so that clients don't keep outdated
+     * catalogues.
+     */
+    private final AtomicLong versions = new AtomicLong(System.currentTimeMillis());
+
+    /** Incremented each time entries are invalidated, to avoid storing fields computed from outdated content. */
+    private volatile long generation;
+
+    /**
+     * Gets the filterable fields of a questionnaire, computing them if they aren't already cached.
+     *
+     * @param resolver the resource resolver of the current user
+     * @param questionnairePath the path to the questionnaire
+     * @return the fields of the questionnaire, or {@code null} if the questionnaire doesn't exist or the current user
+     *         cannot access it
+     */
+    public Fields get(final ResourceResolver resolver, final String questionnairePath)
+    {
+        // The cache is shared by all users, make sure that the current user can see this questionnaire
+        if (resolver.getResource(questionnairePath) == null) {
+            return null;
+        }
+        final long startGeneration;
+        synchronized (this.entries) {
+            final Fields result = this.entries.get(questionnairePath);
+            if (result != null) {
+                return result;
+            }
+            startGeneration = this.generation;
+        }
+        final Resource resource = resolver.resolve(questionnairePath + ".deep.json");
+        final JsonObject json = resource.adaptTo(JsonObject.class);
+        if (json == null) {
+            // Nothing to cache, the serialization could not be computed
+            return null;
+        }
+        final List<Map.Entry<String, JsonObject>> questions = new ArrayList<>();
+        collectQuestions(json, questions);
+        final Fields result = new Fields(this.versions.incrementAndGet(), questions);
+        synchronized (this.entries) {
+            if (this.generation == startGeneration) {
+                this.entries.put(questionnairePath, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets a merged catalogue, computing it if it isn't already cached.
+     *
+     * @param key identifies the catalogue, must include the paths and versions of all the questionnaires it contains
+     * @param compute computes the serialized catalogue
+     * @return the serialized catalogue
+     */
+    public String getMerged(final String key, final Supplier<String> compute)
+    {
+        synchronized (this.merged) {
+            final String result = this.merged.get(key);
+            if (result != null) {
+                return result;
+            }
+        }
+        final String result = compute.get();
+        synchronized (this.merged) {
+            this.merged.put(key, result);
+        }
+        return result;
+    }
+
+    @Override
+    protected Collection<String> getWatchedPaths()
+    {
+        synchronized (this.entries) {
+            return new HashSet<>(this.entries.keySet());
+        }
+    }
+
+    @Override
+    protected void invalidate(final Set<String> changedPaths)
+    {
+        synchronized (this.entries) {
+            ++this.generation;
+            this.entries.keySet().removeAll(changedPaths);
+        }
+        // Merged catalogues don't need to be invalidated: their keys include the versions of their questionnaires,
+        // and a changed questionnaire will get a new version, so outdated catalogues are simply not used anymore
+    }
+
+    /**
+     * Gathers the questions of a questionnaire or section, including those in sub-sections.
+     *
+     * @param json the deep serialization of a questionnaire or section
+     * @param questions the list where questions are collected, as pairs of question name and serialized question
+     */
+    private static void collectQuestions(final JsonObject json, final List<Map.Entry<String, JsonObject>> questions)
+    {
+        if (json == null) {
+            return;
+        }
+        for (final Map.Entry<String, JsonValue> child : json.entrySet()) {
+            // Skip over non-questions (non-objects)
+            if (child.getValue().getValueType() != ValueType.OBJECT) {
+                continue;
+            }
+            final JsonObject datum = child.getValue().asJsonObject();
+            if ("cards:Section".equals(datum.getString(PRIMARY_TYPE, null))) {
+                collectQuestions(datum, questions);
+            } else if ("cards:Question".equals(datum.getString(PRIMARY_TYPE, null))) {
+                questions.add(new AbstractMap.SimpleImmutableEntry<>(child.getKey(), datum));
+            }
+        }
+    }
+
+    /** The filterable fields of a questionnaire. */
+    public static final class Fields
+    {
+        private final long version;
+
+        private final List<Map.Entry<String, JsonObject>> questions;
+
+        Fields(final long version, final List<Map.Entry<String, JsonObject>> questions)
+        {
+            this.version = version;
+            this.questions = Collections.unmodifiableList(questions);
+        }
+
+        /**
+         * Identifies this list of fields; a changed questionnaire will have a different version.
+         *
+         * @return a version number
+         */
+        public long getVersion()
+        {
+            return this.version;
+        }
+
+        /**
+         * The questions of the questionnaire, including those in sections, in the order they appear.
+         *
+         * @return a list of pairs of question name and serialized question
+         */
+        public List<Map.Entry<String, JsonObject>> getQuestions()
+        {
+            return this.questions;
+        }
+    }
+}
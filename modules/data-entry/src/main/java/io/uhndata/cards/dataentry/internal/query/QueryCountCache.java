@@ -0,0 +1,385 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.query;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.cache.PathInvalidatingObserver;
+import io.uhndata.cards.concurrent.NamedThreadFactory;
+
+/**
+ * Cache for the total number of results of queries, so that listings don't have to go through all the matching nodes
+ * each time they display the total. Counts are identified by the user running the query, since access rights affect
+ * the results, and by the query string, with whitespace normalized. Each count belongs to a scope, the path under
+ * which the queried nodes are, and is discarded as soon as a commit changes anything under that path, or after a
+ * configurable time.
+ * <p>
+ * Counts are either exact, when all the results were counted, or approximate. When only an approximate count is
+ * known, an exact count can be computed in the background, so that the following requests get an exact total.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { QueryCountCache.class, Observer.class })
+@Designate(ocd = QueryCountCache.Config.class)
+public class QueryCountCache extends PathInvalidatingObserver
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(QueryCountCache.class);
+
+    /** The cached counts. */
+    private final Map<Key, Count> entries = new LinkedHashMap<Key, Count>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, Count> eldest)
+        {
+            return size() > QueryCountCache.this.maxEntries;
+        }
+    };
+
+    /** Counts currently being computed in the background, to avoid counting the same thing several times. */
+    private final Set<Key> pending = ConcurrentHashMap.newKeySet();
+
+    /** Whether the cache is enabled. */
+    private volatile boolean enabled;
+
+    /** How long counts are kept, in milliseconds. */
+    private volatile long ttl;
+
+    /** The maximum number of counts to keep. */
+    private volatile int maxEntries;
+
+    /** Counts exact totals in the background, {@code null} if background counting is disabled. */
+    private volatile ExecutorService executor;
+
+    /**
+     * Incremented for a scope each time its entries are invalidated, to avoid storing counts computed from outdated
+     * content. Guarded by {@link #entries}.
+     */
+    private final Map<String, Long> generations = new HashMap<>();
+
+    @Activate
+    @Modified
+    protected void activate(final Config config)
+    {
+        this.enabled = config.enabled();
+        this.ttl = config.ttl() * 1000L;
+        this.maxEntries = config.maxEntries();
+        synchronized (this.entries) {
+            this.entries.clear();
+            // Counts still running were started with the old configuration, don't store them
+            this.pending.forEach(key -> this.generations.merge(key.scope, 1L, Long::sum));
+        }
+        deactivate();
+        if (config.backgroundCounting()) {
+            this.executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("QueryCount"));
+        }
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        final ExecutorService current = this.executor;
+        this.executor = null;
+        if (current != null) {
+            current.shutdownNow();
+        }
+    }
+
+    /**
+     * Retrieves a cached count.
+     *
+     * @param resolver the resource resolver of the user running the query
+     * @param scope the path under which the queried nodes are
+     * @param query the query, with its bound values
+     * @return the cached count, or {@code null} if the count isn't known
+     */
+    public Count get(final ResourceResolver resolver, final String scope, final BoundQuery query)
+    {
+        if (!this.enabled) {
+            return null;
+        }
+        final Key key = new Key(resolver.getUserID(), scope, query);
+        synchronized (this.entries) {
+            final Count result = this.entries.get(key);
+            if (result != null && System.currentTimeMillis() - result.time > this.ttl) {
+                this.entries.remove(key);
+                return null;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Stores a count. An exact count is never replaced by an approximate one.
+     *
+     * @param resolver the resource resolver of the user who ran the query
+     * @param scope the path under which the queried nodes are
+     * @param query the query, with its bound values
+     * @param value the number of results
+     * @param exact whether all the results were counted, or if the count is an estimate
+     */
+    public void put(final ResourceResolver resolver, final String scope, final BoundQuery query, final long value,
+        final boolean exact)
+    {
+        if (this.enabled) {
+            final Key key = new Key(resolver.getUserID(), scope, query);
+            synchronized (this.entries) {
+                put(key, new Count(value, exact), getGeneration(scope));
+            }
+        }
+    }
+
+    /**
+     * Computes the exact count of a query in the background, if it isn't already known or being computed. The query is
+     * run with the rights of the given user.
+     *
+     * @param resolver the resource resolver of the user running the query; it is cloned, not used directly
+     * @param scope the path under which the queried nodes are
+     * @param query the query, with its bound values
+     */
+    public void countInBackground(final ResourceResolver resolver, final String scope, final BoundQuery query)
+    {
+        final ExecutorService currentExecutor = this.executor;
+        if (!this.enabled || currentExecutor == null) {
+            return;
+        }
+        final Count known = get(resolver, scope, query);
+        final Key key = new Key(resolver.getUserID(), scope, query);
+        if ((known != null && known.isExact()) || !this.pending.add(key)) {
+            return;
+        }
+        final long startGeneration;
+        synchronized (this.entries) {
+            startGeneration = getGeneration(scope);
+        }
+        try {
+            final ResourceResolver clone = resolver.clone(null);
+            currentExecutor.execute(() -> {
+                try {
+                    put(key, new Count(count(clone, query), true), startGeneration);
+                } catch (RepositoryException e) {
+                    LOGGER.warn("Failed to count the results of {}: {}", query.getStatement(), e.getMessage());
+                } finally {
+                    this.pending.remove(key);
+                    clone.close();
+                }
+            });
+        } catch (LoginException | RejectedExecutionException e) {
+            this.pending.remove(key);
+        }
+    }
+
+    @Override
+    protected Collection<String> getWatchedPaths()
+    {
+        final Set<String> scopes = new HashSet<>();
+        synchronized (this.entries) {
+            this.entries.keySet().forEach(key -> scopes.add(key.scope));
+        }
+        // Pending counts have not been stored yet, but they may already be outdated
+        this.pending.forEach(key -> scopes.add(key.scope));
+        return scopes;
+    }
+
+    @Override
+    protected void invalidate(final Set<String> changedPaths)
+    {
+        // Only the changed scopes are affected, counts in other scopes are kept, even the ones still being computed
+        synchronized (this.entries) {
+            changedPaths.forEach(scope -> this.generations.merge(scope, 1L, Long::sum));
+            this.entries.keySet().removeIf(key -> changedPaths.contains(key.scope));
+        }
+    }
+
+    /**
+     * The current invalidation generation of a scope. Must be called while holding the lock on {@link #entries}.
+     *
+     * @param scope the path under which the queried nodes are
+     * @return a number identifying the latest invalidation of the scope
+     */
+    private long getGeneration(final String scope)
+    {
+        return this.generations.getOrDefault(scope, 0L);
+    }
+
+    private void put(final Key key, final Count value, final long startGeneration)
+    {
+        synchronized (this.entries) {
+            if (getGeneration(key.scope) != startGeneration) {
+                return;
+            }
+            final Count existing = this.entries.get(key);
+            if (value.isExact() || existing == null || !existing.isExact()) {
+                this.entries.put(key, value);
+            }
+        }
+    }
+
+    private static long count(final ResourceResolver resolver, final BoundQuery query) throws RepositoryException
+    {
+        final NodeIterator nodes = query.create(resolver.adaptTo(Session.class)).execute().getNodes();
+        long result = 0;
+        while (nodes.hasNext()) {
+            nodes.nextNode();
+            ++result;
+        }
+        return result;
+    }
+
+    /** A cached count. */
+    public static final class Count
+    {
+        private final long value;
+
+        private final boolean exact;
+
+        private final long time = System.currentTimeMillis();
+
+        Count(final long value, final boolean exact)
+        {
+            this.value = value;
+            this.exact = exact;
+        }
+
+        /**
+         * The number of results.
+         *
+         * @return a positive number, or {@code 0} if there are no results
+         */
+        public long getValue()
+        {
+            return this.value;
+        }
+
+        /**
+         * Whether all the results were counted.
+         *
+         * @return {@code true} if the count is exact, {@code false} if it is an estimate
+         */
+        public boolean isExact()
+        {
+            return this.exact;
+        }
+    }
+
+    /** The identifier of a cached count. */
+    private static final class Key
+    {
+        private final String user;
+
+        private final String scope;
+
+        private final String query;
+
+        Key(final String user, final String scope, final BoundQuery query)
+        {
+            this.user = user;
+            this.scope = scope;
+            // Whitespace differences don't change the statement, but they matter in the bound values
+            final String statement = query.getStatement();
+            this.query = statement.trim().replaceAll("\\s+", " ") + query.toString().substring(statement.length());
+        }
+
+        @Override
+        public boolean equals(final Object obj)
+        {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return Objects.equals(this.user, other.user) && this.scope.equals(other.scope)
+                && this.query.equals(other.query);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(this.user, this.scope, this.query);
+        }
+    }
+
+    /** Configuration for the query count cache. */
+    @ObjectClassDefinition(name = "CARDS - Query count cache",
+        description = "Cache for the total number of results displayed in listings")
+    public @interface Config
+    {
+        /**
+         * Whether the cache is enabled.
+         *
+         * @return {@code true} by default
+         */
+        @AttributeDefinition(name = "Enabled", description = "Whether query counts should be cached")
+        boolean enabled() default true;
+
+        /**
+         * How long counts are kept.
+         *
+         * @return a number of seconds
+         */
+        @AttributeDefinition(name = "Time to live",
+            description = "How long a count is kept, in seconds, unless the counted content changes earlier")
+        long ttl() default 300;
+
+        /**
+         * The maximum number of counts in the cache.
+         *
+         * @return a positive number
+         */
+        @AttributeDefinition(name = "Maximum entries", description = "The maximum number of counts to keep")
+        int maxEntries() default 1000;
+
+        /**
+         * Whether exact counts are computed in the background.
+         *
+         * @return {@code true} by default
+         */
+        @AttributeDefinition(name = "Background counting",
+            description = "Whether exact counts should be computed in the background when only an estimate is known")
+        boolean backgroundCounting() default true;
+    }
+}
@@ -20,7 +20,6 @@
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -36,6 +35,7 @@
 import org.osgi.service.component.annotations.Component;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Simplify Form serialization by including only the name of the subject, questionnaire, and each section and question.
@@ -47,10 +47,6 @@
 @Component(immediate = true)
 public class BareFormProcessor implements ResourceJsonProcessor
 {
-    private ThreadLocal<Map<String, JsonObject>> childrenJsons = ThreadLocal.withInitial(HashMap::new);
-
-    private ThreadLocal<Map<String, String>> questionNames = ThreadLocal.withInitial(HashMap::new);
-
     @Override
     public String getName()
     {
@@ -70,9 +66,21 @@ public boolean canProcess(Resource resource)
         return resource.isResourceType("cards/Form");
     }
 
+    @Override
+    public boolean requiresBuffering(final Node node, final SerializationContext context)
+    {
+        // Answers and sections are collected while processing the children, and only added to the output when leaving
+        // the form, so the whole form must be assembled in memory
+        try {
+            return node.isNodeType("cards:Form");
+        } catch (RepositoryException e) {
+            return true;
+        }
+    }
+
     @Override
     public JsonValue processProperty(final Node node, final Property property, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
     {
         if (property == null) {
             return null;
@@ -82,7 +90,7 @@ public JsonValue processProperty(final Node node, final Property property, final
             result = simplifyQuestionnaire(node, property, result);
             result = simplifySubject(node, property, result);
             result = simplifySection(node, property, result);
-            result = simplifyQuestion(node, property, result);
+            result = simplifyQuestion(node, property, result, context);
             result = removeStatusFlags(node, property, result);
             return result;
         } catch (RepositoryException e) {
@@ -93,7 +101,7 @@ public JsonValue processProperty(final Node node, final Property property, final
 
     @Override
     public JsonValue processChild(final Node node, final Node child, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
     {
         if (input == null) {
             return null;
@@ -105,7 +113,7 @@ public JsonValue processChild(final Node node, final Node child, final JsonValue
                 return null;
             }
             if (child.isNodeType("cards:Answer") || child.isNodeType("cards:AnswerSection")) {
-                this.childrenJsons.get().put(child.getIdentifier(), input.asJsonObject());
+                getState(context).childrenJsons.put(child.getIdentifier(), input.asJsonObject());
                 return null;
             }
         } catch (RepositoryException e) {
@@ -115,19 +123,17 @@ public JsonValue processChild(final Node node, final Node child, final JsonValue
     }
 
     @Override
-    public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
+    public void leave(Node node, JsonObjectBuilder json, SerializationContext context)
     {
-        addSectionsAndAnswers(node, json);
+        addSectionsAndAnswers(node, json, getState(context));
     }
 
-    @Override
-    public void end(Resource resource)
+    private State getState(final SerializationContext context)
     {
-        this.childrenJsons.remove();
-        this.questionNames.remove();
+        return context.getState(this, State::new);
     }
 
-    private void addSectionsAndAnswers(final Node node, final JsonObjectBuilder json)
+    private void addSectionsAndAnswers(final Node node, final JsonObjectBuilder json, final State state)
     {
         try {
             // Repeatable sections may have different nodes scattered among the children.
@@ -138,8 +144,8 @@ private void addSectionsAndAnswers(final Node node, final JsonObjectBuilder json
             while (children.hasNext()) {
                 final Node child = children.nextNode();
                 final String childId = child.getIdentifier();
-                if (child.isNodeType("cards:AnswerSection") && this.childrenJsons.get().containsKey(childId)) {
-                    final JsonObject childJson = this.childrenJsons.get().get(childId);
+                if (child.isNodeType("cards:AnswerSection") && state.childrenJsons.containsKey(childId)) {
+                    final JsonObject childJson = state.childrenJsons.get(childId);
                     final String childLabel = childJson.getString("section");
                     final JsonObject filteredChildJson = Json.createObjectBuilder(childJson).remove("section").build();
                     Node section = child.getProperty("section").getNode();
@@ -153,13 +159,13 @@ private void addSectionsAndAnswers(final Node node, final JsonObjectBuilder json
                     } else {
                         json.add(childLabel, filteredChildJson);
                     }
-                    this.childrenJsons.get().remove(childId);
-                } else if (child.isNodeType("cards:Answer") && this.childrenJsons.get().containsKey(childId)) {
-                    final JsonObject childJson = this.childrenJsons.get().get(childId);
-                    final String childLabel = this.questionNames.get().get(childId);
+                    state.childrenJsons.remove(childId);
+                } else if (child.isNodeType("cards:Answer") && state.childrenJsons.containsKey(childId)) {
+                    final JsonObject childJson = state.childrenJsons.get(childId);
+                    final String childLabel = state.questionNames.get(childId);
                     json.add(childLabel, childJson);
-                    this.childrenJsons.get().remove(childId);
-                    this.questionNames.get().remove(childId);
+                    state.childrenJsons.remove(childId);
+                    state.questionNames.remove(childId);
                 }
             }
         } catch (RepositoryException e) {
@@ -209,13 +215,13 @@ private JsonValue simplifySection(final Node node, final Property property, fina
         return input;
     }
 
-    private JsonValue simplifyQuestion(final Node node, final Property property, final JsonValue input)
-        throws RepositoryException
+    private JsonValue simplifyQuestion(final Node node, final Property property, final JsonValue input,
+        final SerializationContext context) throws RepositoryException
     {
         // Replace the question reference with the label of the actual question
         if (node.isNodeType("cards:Answer") && "question".equals(property.getName())) {
             Node question = property.getNode();
-            this.questionNames.get().put(node.getIdentifier(), question.getName());
+            getState(context).questionNames.put(node.getIdentifier(), question.getName());
             return Json.createValue(question.getProperty("text").getString());
         }
         return input;
@@ -230,4 +236,16 @@ private JsonValue removeStatusFlags(final Node node, final Property property, fi
         }
         return input;
     }
+
+    /**
+     * The temporary state of this processor during one serialization.
+     */
+    private static final class State
+    {
+        /** The serialized answers and sections, waiting to be added in their parent's JSON, indexed by identifier. */
+        private final Map<String, JsonObject> childrenJsons = new HashMap<>();
+
+        /** The names of the questions answered by each answer, indexed by the answer's identifier. */
+        private final Map<String, String> questionNames = new HashMap<>();
+    }
 }
@@ -20,7 +20,6 @@
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
@@ -33,6 +32,7 @@
 import org.osgi.service.component.annotations.Component;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Simplify Subject serialization by including only simple labels for the name, type, and parents of a subject. It
@@ -63,13 +63,14 @@ public boolean canProcess(Resource resource)
 
     @Override
     public JsonValue processProperty(final Node node, final Property property, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
     {
         if (property == null) {
             return null;
         }
         try {
             JsonValue result = input;
+            result = removeIdentifier(node, property, result);
             result = simplifyType(node, property, result);
             result = simplifyParents(node, property, result);
             return result;
@@ -80,12 +81,11 @@ public JsonValue processProperty(final Node node, final Property property, final
     }
 
     @Override
-    public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
+    public void leave(Node node, JsonObjectBuilder json, SerializationContext context)
     {
         try {
             if (node.isNodeType("cards:Subject")) {
-                // Replace the "identifier" property with a prettier "subject" property
-                json.remove("identifier");
+                // The "identifier" property was skipped, replace it with a prettier "subject" property
                 json.add("subject", simplifyIdentifier(node));
             }
         } catch (RepositoryException e) {
@@ -98,6 +98,17 @@ private JsonValue simplifyIdentifier(final Node subject) throws RepositoryExcept
         return Json.createValue(recursivelyCollect(subject, "identifier", "parents"));
     }
 
+    private JsonValue removeIdentifier(final Node node, final Property property, final JsonValue input)
+        throws RepositoryException
+    {
+        // The "identifier" property is replaced by the "subject" property added when leaving the node; skipping it
+        // here instead of removing it later allows the subject to be streamed
+        if (node.isNodeType("cards:Subject") && "identifier".equals(property.getName())) {
+            return null;
+        }
+        return input;
+    }
+
     private JsonValue simplifyType(final Node node, final Property property, final JsonValue input)
         throws RepositoryException
     {
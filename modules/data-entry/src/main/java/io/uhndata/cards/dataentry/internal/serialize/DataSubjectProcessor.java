@@ -19,18 +19,28 @@
 package io.uhndata.cards.dataentry.internal.serialize;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.query.Query;
 import javax.json.Json;
-import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
@@ -38,25 +48,60 @@
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.concurrent.NamedThreadFactory;
+import io.uhndata.cards.serialize.DeferredArrayValue;
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
- * Serialize a subject along with its forms. The name of this processor is {@code data}.
+ * Serialize a subject along with its forms. The name of this processor is {@code data}. Forms are serialized in
+ * batches, only when the output is written, so that they don't all have to be kept in memory when the subject is
+ * streamed, and in parallel, using a bounded thread pool whose size can be configured.
  *
  * @version $Id$
  */
 @Component(immediate = true)
+@Designate(ocd = DataSubjectProcessor.Config.class)
 public class DataSubjectProcessor implements ResourceJsonProcessor
 {
-    private ThreadLocal<ResourceResolver> resolver = new ThreadLocal<>();
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataSubjectProcessor.class);
 
-    private ThreadLocal<String> selectors = new ThreadLocal<>();
+    /** How many forms are serialized together, in the same thread. */
+    private static final int FORMS_PER_BATCH = 20;
 
-    private ThreadLocal<String> rootNode = new ThreadLocal<>();
+    /** The number of threads used for serializing forms. */
+    private int threadPoolSize;
 
-    private ThreadLocal<Map<String, String>> filters = new ThreadLocal<>();
+    /** The threads used for serializing forms, {@code null} if forms are serialized in the current thread. */
+    private ExecutorService executor;
+
+    @Activate
+    protected void activate(final Config config)
+    {
+        this.threadPoolSize = config.threadPoolSize();
+        if (this.threadPoolSize > 1) {
+            this.executor = Executors.newFixedThreadPool(this.threadPoolSize,
+                new NamedThreadFactory("DataSubjectProcessor"));
+        }
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
 
     @Override
     public String getName()
@@ -71,15 +116,9 @@ public int getPriority()
     }
 
     @Override
-    public void start(Resource resource)
+    public void start(Resource resource, SerializationContext context)
     {
-        // We will need the resource resolver to query for forms
-        this.resolver.set(resource.getResourceResolver());
-        // We want to forward the selectors to the forms serialization as well
-        this.selectors.set(resource.getResourceMetadata().getResolutionPathInfo());
-        // We only serialize data for the serialized subject, not other nodes
-        this.rootNode.set(resource.getPath());
-        final Map<String, String> filtersMap = new HashMap<>();
+        final Map<String, String> filtersMap = getFilters(context);
         // Split by unescaped dots. A backslash escapes a dot, but two backslashes are just one escaped backslash.
         // Match by:
         // - no preceding backslash, i.e. start counting at the first backslash (?<!\)
@@ -88,13 +127,12 @@ public void start(Resource resource)
         // Each backslash, except the \., is escaped twice, once as a special escape char inside a Java string, and
         // once as a special escape char inside a RegExp. The one before the dot is escaped only once as a special
         // char inside a Java string, since it must retain its escaping meaning in the RegExp.
-        Arrays.asList(this.selectors.get().split("(?<!\\\\)(?:\\\\\\\\)*\\.")).stream()
+        final String selectors = resource.getResourceMetadata().getResolutionPathInfo();
+        Arrays.asList(selectors.split("(?<!\\\\)(?:\\\\\\\\)*\\.")).stream()
             .filter(s -> StringUtils.startsWith(s, "dataFilter:"))
             .map(s -> StringUtils.substringAfter(s, "dataFilter:"))
             .forEach(s -> filtersMap.put(StringUtils.substringBefore(s, "="),
                 StringUtils.substringAfter(s, "=").replaceAll("\\\\\\.", ".")));
-        this.filters.set(filtersMap);
-
     }
 
     @Override
@@ -104,56 +142,90 @@ public boolean canProcess(Resource resource)
     }
 
     @Override
-    public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
+    public void leave(Node node, JsonObjectBuilder json, SerializationContext context)
     {
         try {
             // Only the original subject node will have its data appended
-            if (!node.getPath().equals(this.rootNode.get())) {
+            final Resource subject = context.getResource();
+            if (!node.getPath().equals(subject.getPath())) {
                 return;
             }
-            Iterator<Resource> forms = this.resolver.get().findResources(generateDataQuery(node), Query.JCR_SQL2);
-            final Map<String, JsonArrayBuilder> formsJsons = new HashMap<>();
-
-            // Since the adaptTo serialization process uses ThreadLocal variables, we need to serialize other resources
-            // in a separate thread in order to not pollute the current state. We must extract the needed state from the
-            // current ThreadLocals to be used in the sub-thread.
-            final ResourceResolver currentResolver = this.resolver.get();
-            final String currentSelectors = this.selectors.get();
-            final Thread serializer = new Thread(() -> forms
-                .forEachRemaining(f -> storeForm(currentResolver.resolve(f.getPath() + currentSelectors), formsJsons)));
-            serializer.start();
-            // Wait for the serialization of forms to finish
-            serializer.join();
-            // Now the data JSONs should be available, add them to the subject's JSON
-            formsJsons.forEach(json::add);
+            final Map<String, String> filters = getFilters(context);
+            final ResourceResolver resolver = subject.getResourceResolver();
+            // We want to forward the selectors to the forms serialization as well
+            final String selectors = subject.getResourceMetadata().getResolutionPathInfo();
+            final Iterator<Resource> forms = resolver.findResources(generateDataQuery(node, filters), Query.JCR_SQL2);
+            // Only the paths are gathered now, the forms themselves are serialized when the output is written, a few at
+            // a time, so that subjects with many forms can be streamed
+            final Map<String, List<String>> formPaths = groupByQuestionnaire(forms);
+            formPaths.forEach((title, paths) -> json.add(title,
+                new DeferredArrayValue(() -> new FormsIterator(paths, resolver, selectors))));
             final JsonObjectBuilder filtersJson = Json.createObjectBuilder();
-            this.filters.get().forEach(filtersJson::add);
+            filters.forEach(filtersJson::add);
             json.add("dataFilters", filtersJson);
             json.add("exportDate",
                 new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSXXX").format(Calendar.getInstance().getTime()));
-        } catch (RepositoryException | InterruptedException e) {
+        } catch (RepositoryException e) {
             // Really shouldn't happen
         }
     }
 
-    private void storeForm(final Resource form, final Map<String, JsonArrayBuilder> formsJsons)
+    private Map<String, String> getFilters(final SerializationContext context)
     {
-        try {
-            final Node questionnaire = form.adaptTo(Node.class).getProperty("questionnaire").getNode();
-            final String questionnaireTitle = questionnaire.getProperty("title").getString();
-            final JsonArrayBuilder arrayForQuestionnaire =
-                formsJsons.computeIfAbsent(questionnaireTitle, k -> Json.createArrayBuilder());
-            arrayForQuestionnaire.add(form.adaptTo(JsonObject.class));
-        } catch (RepositoryException e) {
-            // Really shouldn't happen
+        return context.getState(this, HashMap::new);
+    }
+
+    /**
+     * Group forms by the title of their questionnaire.
+     *
+     * @param forms the forms to group, in the order in which they must appear in the output
+     * @return a map with the paths of the forms grouped by the title of their questionnaire, sorted by title, each list
+     *         keeping the order of the input
+     */
+    private Map<String, List<String>> groupByQuestionnaire(final Iterator<Resource> forms)
+    {
+        final Map<String, List<String>> result = new TreeMap<>();
+        forms.forEachRemaining(form -> {
+            try {
+                final Node questionnaire = form.adaptTo(Node.class).getProperty("questionnaire").getNode();
+                final String questionnaireTitle = questionnaire.getProperty("title").getString();
+                result.computeIfAbsent(questionnaireTitle, k -> new ArrayList<>()).add(form.getPath());
+            } catch (RepositoryException e) {
+                // Really shouldn't happen
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Serialize a batch of forms.
+     *
+     * @param formPaths the paths of all the forms in a group
+     * @param start the index of the first form to serialize
+     * @param resolver the resource resolver to use, must not be used by another thread at the same time
+     * @param selectors the selectors to use when serializing each form
+     * @return the serialized forms, in the same order as their paths in {@code formPaths}
+     */
+    private List<JsonObject> serializeForms(final List<String> formPaths, final int start,
+        final ResourceResolver resolver, final String selectors)
+    {
+        final int end = Math.min(start + FORMS_PER_BATCH, formPaths.size());
+        final List<JsonObject> result = new ArrayList<>(end - start);
+        for (int i = start; i < end; ++i) {
+            final JsonObject form = resolver.resolve(formPaths.get(i) + selectors).adaptTo(JsonObject.class);
+            if (form != null) {
+                result.add(form);
+            }
         }
+        return result;
     }
 
-    private String generateDataQuery(final Node subject) throws RepositoryException
+    private String generateDataQuery(final Node subject, final Map<String, String> filters)
+        throws RepositoryException
     {
         final StringBuilder result =
             new StringBuilder("select * from [cards:Form] as n where n.subject = '" + subject.getIdentifier() + "'");
-        this.filters.get().forEach((key, value) -> {
+        filters.forEach((key, value) -> {
             switch (key) {
                 case "createdAfter":
                     result.append(" and n.[jcr:created] >= '").append(value).append('\'');
@@ -182,4 +254,149 @@ private String generateDataQuery(final Node subject) throws RepositoryException
         });
         return result.toString();
     }
+
+    /**
+     * Serializes the forms of a group in batches, as they are requested. When a thread pool is available, the next few
+     * batches are serialized in parallel while the current one is being written out, each worker using its own resource
+     * resolver, since sessions are not thread safe. At most one batch per thread is kept in memory besides the current
+     * one, so the memory used doesn't depend on the number of forms.
+     */
+    private final class FormsIterator implements Iterator<JsonValue>
+    {
+        /** The paths of the forms to serialize, in the order in which they must appear in the output. */
+        private final List<String> formPaths;
+
+        /** The resource resolver of the current serialization. */
+        private final ResourceResolver resolver;
+
+        /** The selectors to use when serializing each form. */
+        private final String selectors;
+
+        /** The threads used for serializing forms, {@code null} if forms are serialized in the current thread. */
+        private final ExecutorService currentExecutor;
+
+        /** How many batches can be serialized ahead of the one being written out. */
+        private final int maxPending;
+
+        /** The batches started but not yet written out, in order. */
+        private final Deque<Batch> pending = new ArrayDeque<>();
+
+        /** The index of the first form of the next batch to start. */
+        private int nextStart;
+
+        /** The batch being written out. */
+        private Iterator<JsonObject> current = Collections.emptyIterator();
+
+        FormsIterator(final List<String> formPaths, final ResourceResolver resolver, final String selectors)
+        {
+            this.formPaths = formPaths;
+            this.resolver = resolver;
+            this.selectors = selectors;
+            final ExecutorService executor = DataSubjectProcessor.this.executor;
+            this.currentExecutor = formPaths.size() > FORMS_PER_BATCH ? executor : null;
+            this.maxPending = this.currentExecutor == null ? 1 : DataSubjectProcessor.this.threadPoolSize;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while (!this.current.hasNext()) {
+                startBatches();
+                final Batch next = this.pending.poll();
+                if (next == null) {
+                    return false;
+                }
+                this.current = getForms(next).iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public JsonValue next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return this.current.next();
+        }
+
+        private void startBatches()
+        {
+            while (this.pending.size() < this.maxPending && this.nextStart < this.formPaths.size()) {
+                final int start = this.nextStart;
+                this.nextStart += FORMS_PER_BATCH;
+                Future<List<JsonObject>> task = null;
+                if (this.currentExecutor != null) {
+                    try {
+                        task = this.currentExecutor.submit(() -> {
+                            try (ResourceResolver workerResolver = this.resolver.clone(null)) {
+                                return serializeForms(this.formPaths, start, workerResolver, this.selectors);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // The component is being deactivated, this batch will be serialized in the current thread
+                    }
+                }
+                this.pending.add(new Batch(start, task));
+            }
+        }
+
+        /**
+         * Wait for the serialization of a batch to finish.
+         *
+         * @param batch the batch whose forms are needed
+         * @return the serialized forms
+         * @throws IllegalStateException if the current thread is interrupted while waiting
+         */
+        private List<JsonObject> getForms(final Batch batch)
+        {
+            if (batch.task == null) {
+                return serializeForms(this.formPaths, batch.start, this.resolver, this.selectors);
+            }
+            try {
+                return batch.task.get();
+            } catch (ExecutionException e) {
+                // If a worker couldn't do its job, do it in the current thread instead
+                LOGGER.warn("Failed to serialize forms in parallel: {}", e.getMessage(), e);
+                return serializeForms(this.formPaths, batch.start, this.resolver, this.selectors);
+            } catch (InterruptedException e) {
+                // Don't return an incomplete list of forms as if it were the whole data
+                Thread.currentThread().interrupt();
+                batch.task.cancel(true);
+                this.pending.stream().filter(b -> b.task != null).forEach(b -> b.task.cancel(true));
+                throw new IllegalStateException("Interrupted while serializing forms", e);
+            }
+        }
+    }
+
+    /** A batch of forms being serialized. */
+    private static final class Batch
+    {
+        /** The index of the first form in the batch. */
+        private final int start;
+
+        /** The serialization running in a worker thread, {@code null} if it must be done in the current thread. */
+        private final Future<List<JsonObject>> task;
+
+        Batch(final int start, final Future<List<JsonObject>> task)
+        {
+            this.start = start;
+            this.task = task;
+        }
+    }
+
+    /** Configuration for the serialization of subject data. */
+    @ObjectClassDefinition(name = "CARDS - Subject data serialization",
+        description = "Configuration for the data JSON processor, which serializes a subject along with its forms")
+    public @interface Config
+    {
+        /**
+         * The number of forms serialized in parallel.
+         *
+         * @return a positive number, {@code 1} to serialize forms one at a time in the current thread
+         */
+        @AttributeDefinition(name = "Thread pool size",
+            description = "The maximum number of forms serialized in parallel, 1 to only use the request thread")
+        int threadPoolSize() default 4;
+    }
 }
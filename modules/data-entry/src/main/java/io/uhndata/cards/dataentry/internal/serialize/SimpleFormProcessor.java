@@ -20,7 +20,6 @@
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
@@ -31,6 +30,7 @@
 import org.osgi.service.component.annotations.Component;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Simplify Form serialization by removing unnecessary properties and children. The name of this processor is
@@ -65,7 +65,7 @@ public boolean canProcess(Resource resource)
 
     @Override
     public JsonValue processProperty(final Node node, final Property property, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
     {
         if (property == null) {
             return null;
@@ -85,7 +85,7 @@ public JsonValue processProperty(final Node node, final Property property, final
 
     @Override
     public JsonValue processChild(final Node node, final Node child, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
     {
         try {
             // Do not recursively serialize questionnaire items
@@ -18,7 +18,6 @@
  */
 package io.uhndata.cards.dataentry.internal.serialize;
 
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
@@ -29,6 +28,7 @@
 import org.osgi.service.component.annotations.Component;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Simplify Subject serialization by removing unnecessary properties and children. The name of this processor is
@@ -60,7 +60,7 @@ public boolean canProcess(Resource resource)
 
     @Override
     public JsonValue processProperty(final Node node, final Property property, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
     {
         if (property == null) {
             return null;
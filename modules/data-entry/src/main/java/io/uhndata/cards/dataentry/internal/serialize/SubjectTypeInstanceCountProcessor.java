@@ -18,19 +18,18 @@
  */
 package io.uhndata.cards.dataentry.internal.serialize;
 
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.query.Query;
 import javax.json.JsonObjectBuilder;
-import javax.json.JsonValue;
 
 import org.apache.sling.api.resource.Resource;
 import org.osgi.service.component.annotations.Component;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Adds number of corresponding subjects to the subject type json.
@@ -41,9 +40,6 @@
 @Component(immediate = true)
 public class SubjectTypeInstanceCountProcessor implements ResourceJsonProcessor
 {
-    /** An original resource path. */
-    private ThreadLocal<String> originalPath = new ThreadLocal<>();
-
     @Override
     public String getName()
     {
@@ -56,12 +52,6 @@ public int getPriority()
         return 55;
     }
 
-    @Override
-    public void start(Resource resource)
-    {
-        this.originalPath.set(resource.getPath());
-    }
-
     @Override
     public boolean isEnabledByDefault(Resource resource)
     {
@@ -76,11 +66,11 @@ public boolean canProcess(Resource resource)
     }
 
     @Override
-    public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
+    public void leave(Node node, JsonObjectBuilder json, SerializationContext context)
     {
         try {
             // Only the original subject type node will have its data appended
-            if (!node.getPath().equals(this.originalPath.get())) {
+            if (!node.getPath().equals(context.getResource().getPath())) {
                 return;
             }
             Query queryObj = node.getSession().getWorkspace().getQueryManager().createQuery(generateDataQuery(node),
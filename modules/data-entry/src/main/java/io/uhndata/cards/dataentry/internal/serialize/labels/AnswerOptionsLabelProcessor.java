@@ -20,7 +20,6 @@
 
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -34,6 +33,7 @@
 import org.osgi.service.component.annotations.Component;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Gets the human-readable question answer for text questions with options.
@@ -44,11 +44,11 @@
 public class AnswerOptionsLabelProcessor extends SimpleAnswerLabelProcessor implements ResourceJsonProcessor
 {
     @Override
-    public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
+    public void leave(Node node, JsonObjectBuilder json, SerializationContext context)
     {
         try {
             if (node.isNodeType("cards:TextAnswer")) {
-                addProperty(node, json, serializeNode);
+                addProperty(node, json, context);
             }
         } catch (RepositoryException e) {
             // Really shouldn't happen
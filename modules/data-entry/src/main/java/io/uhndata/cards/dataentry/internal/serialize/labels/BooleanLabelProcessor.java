@@ -18,7 +18,6 @@
  */
 package io.uhndata.cards.dataentry.internal.serialize.labels;
 
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -30,6 +29,7 @@
 import org.osgi.service.component.annotations.Component;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Gets the human-readable question answer for boolean questions.
@@ -46,11 +46,11 @@ public class BooleanLabelProcessor extends SimpleAnswerLabelProcessor implements
     private static final String UNKNOWN_LABEL = "unknownLabel";
 
     @Override
-    public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
+    public void leave(Node node, JsonObjectBuilder json, SerializationContext context)
     {
         try {
             if (node.isNodeType("cards:BooleanAnswer")) {
-                addProperty(node, json, serializeNode);
+                addProperty(node, json, context);
             }
         } catch (RepositoryException e) {
             // Really shouldn't happen
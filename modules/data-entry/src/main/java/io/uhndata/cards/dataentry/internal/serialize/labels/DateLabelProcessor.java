@@ -21,7 +21,6 @@
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
@@ -35,6 +34,7 @@
 import org.osgi.service.component.annotations.Component;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Gets the formatted question answer for date questions.
@@ -47,11 +47,11 @@ public class DateLabelProcessor extends SimpleAnswerLabelProcessor implements Re
     private static final DateFormat DEFAULT_FORMAT = SimpleDateFormat.getDateInstance();
 
     @Override
-    public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
+    public void leave(Node node, JsonObjectBuilder json, SerializationContext context)
     {
         try {
             if (node.isNodeType("cards:DateAnswer")) {
-                addProperty(node, json, serializeNode);
+                addProperty(node, json, context);
             }
         } catch (RepositoryException e) {
             // Really shouldn't happen
@@ -18,16 +18,15 @@
  */
 package io.uhndata.cards.dataentry.internal.serialize.labels;
 
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.json.JsonObjectBuilder;
-import javax.json.JsonValue;
 
 import org.osgi.service.component.annotations.Component;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Gets the question answer for number questions.
@@ -48,11 +47,11 @@ public int getPriority()
     }
 
     @Override
-    public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
+    public void leave(Node node, JsonObjectBuilder json, SerializationContext context)
     {
         try {
             if (node.isNodeType(DEFAULT_RESOURCE_TYPE)) {
-                addProperty(node, json, serializeNode);
+                addProperty(node, json, context);
             }
         } catch (RepositoryException e) {
             // Really shouldn't happen
@@ -20,7 +20,6 @@
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
@@ -33,6 +32,7 @@
 import org.osgi.service.component.annotations.Component;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Gets the file name of the file question answer.
@@ -43,11 +43,11 @@
 public class FileLabelProcessor extends SimpleAnswerLabelProcessor implements ResourceJsonProcessor
 {
     @Override
-    public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
+    public void leave(Node node, JsonObjectBuilder json, SerializationContext context)
     {
         try {
             if (node.isNodeType("cards:FileResourceAnswer")) {
-                addProperty(node, json, serializeNode);
+                addProperty(node, json, context);
             }
         } catch (RepositoryException e) {
             // Really shouldn't happen
@@ -55,7 +55,7 @@ public void leave(Node node, JsonObjectBuilder json, Function<Node, JsonValue> s
     }
 
     @Override
-    public void addProperty(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
+    public void addProperty(Node node, JsonObjectBuilder json, SerializationContext context)
     {
         try {
             if (node.hasProperty("value")) {
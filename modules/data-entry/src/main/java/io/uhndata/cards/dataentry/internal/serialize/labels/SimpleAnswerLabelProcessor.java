@@ -19,7 +19,6 @@
 package io.uhndata.cards.dataentry.internal.serialize.labels;
 
 import java.util.Collection;
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
@@ -34,6 +33,7 @@
 import org.apache.sling.api.resource.Resource;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Class with shared processor functionality to get the human-readable question answer.
@@ -82,10 +82,10 @@ public boolean canProcess(Resource resource)
      * @param node the node being serialized, may be other than the top resource
      * @param json the JSON representation computed by the previous processors, may be an empty object but must not be
      *            {@code null}
-     * @param serializeNode a function that can be invoked to serialize a new node, receiving a Node as input, and
-     *            returning a JSON representation
+     * @param context the current serialization context, which can be used to serialize other nodes and to store
+     *            temporary state
      */
-    protected void addProperty(Node node, JsonObjectBuilder json, Function<Node, JsonValue> serializeNode)
+    protected void addProperty(Node node, JsonObjectBuilder json, SerializationContext context)
     {
         try {
             if (node.hasProperty(PROP_VALUE)) {
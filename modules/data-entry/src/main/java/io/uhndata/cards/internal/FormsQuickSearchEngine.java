@@ -19,8 +19,13 @@
 package io.uhndata.cards.internal;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -41,6 +46,19 @@
 
 /**
  * Finds {@code [cards:Forms]}s with answers or notes matching the given full text search.
+ * <p>
+ * Since any substring of a value can match, a plain query would have to look at every answer. Instead, answer values
+ * and notes are indexed as trigrams, all the sequences of three consecutive characters, in the {@code answerTrigrams}
+ * index. The answers holding all the trigrams of the query are candidates, which are then checked for the actual
+ * query text. Queries too short to have a trigram, or in scripts that the index tokenizer doesn't split into words,
+ * fall back to a query going through all the answers.
+ * </p>
+ * <p>
+ * The index is updated in near real time, so answers saved on this server can be found about a second later. The index
+ * may still be empty while it is being built, on a fresh install or after a reindex, so when it doesn't return any
+ * candidate, the query going through all the answers is used instead. Searches that really don't match anything are
+ * thus as slow as before the index was introduced, while all the others are fast.
+ * </p>
  *
  * @version $Id$
  */
@@ -49,6 +67,18 @@ public class FormsQuickSearchEngine implements QuickSearchEngine
 {
     private static final List<String> SUPPORTED_TYPES = Collections.singletonList("cards:Form");
 
+    /** The length of the n-grams stored in the index. */
+    private static final int GRAM_SIZE = 3;
+
+    /** More trigrams than this don't narrow the candidates much, but make the query slower. */
+    private static final int MAX_TRIGRAMS = 16;
+
+    /** Queries that can use the trigram index: other scripts may be split into one token per character. */
+    private static final Pattern INDEXED_TEXT = Pattern.compile("[\\p{IsLatin}\\p{IsDigit}\\p{Punct}\\s]*");
+
+    /** Separates the words of a query, as the index tokenizer would. */
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{IsLatin}\\p{IsDigit}]+");
+
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
     @Override
@@ -65,9 +95,33 @@ public void quickSearch(final SearchParameters query, final ResourceResolver res
             return;
         }
 
-        final String xpathQuery = getXPathQuery(query.getQuery());
-        Iterator<Resource> foundResources = resourceResolver.findResources(xpathQuery.toString(), "xpath");
+        final Set<String> trigrams = getTrigrams(query.getQuery());
+        // Several answers usually match in the same form, and the same questions match in many forms,
+        // so forms are serialized and questions are looked up only once per search
+        final Map<String, JsonObject> forms = new HashMap<>();
+        final Map<String, String[]> questions = new HashMap<>();
+        if (trigrams.isEmpty() || !search(getIndexQuery(trigrams), query, resourceResolver, output, forms, questions)) {
+            search(getTraversalQuery(query.getQuery()), query, resourceResolver, output, forms, questions);
+        }
+    }
 
+    /**
+     * Run a query and add the forms with answers matching the search to the output.
+     *
+     * @param xpathQuery the query looking for candidate answers
+     * @param query the search parameters
+     * @param resourceResolver the resource resolver of the current user
+     * @param output where to add the matches
+     * @param forms the forms serialized so far during this search
+     * @param questions the questions looked up so far during this search
+     * @return {@code true} if the query returned any candidate, even if it didn't actually match the search
+     */
+    private boolean search(final String xpathQuery, final SearchParameters query,
+        final ResourceResolver resourceResolver, final List<JsonObject> output, final Map<String, JsonObject> forms,
+        final Map<String, String[]> questions)
+    {
+        final Iterator<Resource> foundResources = resourceResolver.findResources(xpathQuery, "xpath");
+        boolean found = false;
         while (foundResources.hasNext()) {
             try {
                 // No need to go through results list if we do not want total number of matches
@@ -75,29 +129,34 @@ public void quickSearch(final SearchParameters query, final ResourceResolver res
                     break;
                 }
                 Resource thisResource = foundResources.next();
+                found = true;
 
                 Pair<String, Boolean> match = getMatch(query.getQuery(), thisResource);
+                if (match == null) {
+                    // The trigrams were found, but not the actual query text
+                    continue;
+                }
 
-                String questionText = null;
-                String questionPath = "";
-                final Node questionNode = getQuestion(thisResource.adaptTo(Node.class));
-                questionText = questionNode.getProperty("text").getString();
-                questionPath = questionNode.getPath();
-
-                if (match != null && questionText != null) {
-                    final Resource parent = getForm(thisResource);
-
+                final String[] question = getQuestion(thisResource, questions);
+                final JsonObject form = getForm(thisResource, forms);
+                if (form != null) {
                     output.add(SearchUtils.addMatchMetadata(
-                        match.getLeft(), query.getQuery(), questionText, parent.adaptTo(JsonObject.class),
-                        match.getRight(), questionPath));
+                        match.getLeft(), query.getQuery(), question[0], form, match.getRight(), question[1]));
                 }
             } catch (RepositoryException e) {
                 this.logger.warn("Failed to process search results: {}", e.getMessage(), e);
             }
         }
+        return found;
     }
 
-    private String getXPathQuery(final String textQuery)
+    private String getIndexQuery(final Set<String> trigrams)
+    {
+        // Only letters and digits in the trigrams, no escaping needed
+        return "/jcr:root/Forms//element(*, cards:Answer)[jcr:contains(., '" + String.join(" ", trigrams) + "')]";
+    }
+
+    private String getTraversalQuery(final String textQuery)
     {
         final String escapedQuery = SearchUtils.escapeLikeText(textQuery.toLowerCase());
         final StringBuilder xpathQuery = new StringBuilder();
@@ -111,30 +170,79 @@ private String getXPathQuery(final String textQuery)
     }
 
     /**
-     * Get the question node that a matched answer node answers.
+     * Lists the trigrams that must be present in the index for an answer to match the query. Only trigrams found in
+     * the words of the query are used, since the index doesn't have trigrams spanning several words.
+     *
+     * @param textQuery the user-entered query text
+     * @return a set of lowercase trigrams, empty if the index cannot be used for this query
+     */
+    private Set<String> getTrigrams(final String textQuery)
+    {
+        final Set<String> result = new LinkedHashSet<>();
+        if (!INDEXED_TEXT.matcher(textQuery).matches()) {
+            return result;
+        }
+        // Lowercase each character on its own, like the index does
+        final String lowercase = textQuery.codePoints().map(Character::toLowerCase)
+            .collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append).toString();
+        for (final String word : WORD_SEPARATOR.split(lowercase)) {
+            for (int i = 0; i + GRAM_SIZE <= word.length() && result.size() < MAX_TRIGRAMS; ++i) {
+                result.add(word.substring(i, i + GRAM_SIZE));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the text and path of the question that a matched answer node answers.
      *
      * @param answer an answer node matched by the query
-     * @return the question node, non-null if the database is well formed
+     * @param questions the questions already looked up in this search, by UUID
+     * @return an array holding the question text and the question path
      * @throws RepositoryException if accessing the question node fails (shouldn't happen in practice)
      */
-    private Node getQuestion(Node answer) throws RepositoryException
+    private String[] getQuestion(final Resource answer, final Map<String, String[]> questions)
+        throws RepositoryException
     {
-        return answer.getProperty("question").getNode();
+        final String uuid = answer.getValueMap().get("question", String.class);
+        String[] result = questions.get(uuid);
+        if (result == null) {
+            final Node questionNode = answer.adaptTo(Node.class).getProperty("question").getNode();
+            result = new String[] { questionNode.getProperty("text").getString(), questionNode.getPath() };
+            questions.put(uuid, result);
+        }
+        return result;
     }
 
     /**
-     * Get the ancestor {@code cards:Form} node that a matched answer node belongs to.
+     * Get the serialization of the ancestor {@code cards:Form} node that a matched answer node belongs to.
      *
      * @param answer an answer node matched by the query
-     * @return the form node, non-null if the database is well formed
+     * @param forms the forms already serialized in this search, by path
+     * @return the serialized form, non-null if the database is well formed
      */
-    private Resource getForm(Resource answer)
+    private JsonObject getForm(final Resource answer, final Map<String, JsonObject> forms)
     {
+        // Look for an already serialized ancestor first, which only needs the path of the answer
+        String path = answer.getPath();
+        for (int i = path.lastIndexOf('/'); i > 0; i = path.lastIndexOf('/')) {
+            path = path.substring(0, i);
+            final JsonObject known = forms.get(path);
+            if (known != null) {
+                return known;
+            }
+        }
+
         Resource result = answer;
         while (result != null && !"cards/Form".equals(result.getResourceType())) {
             result = result.getParent();
         }
-        return result;
+        if (result == null) {
+            return null;
+        }
+        final JsonObject form = result.adaptTo(JsonObject.class);
+        forms.put(result.getPath(), form);
+        return form;
     }
 
     /**
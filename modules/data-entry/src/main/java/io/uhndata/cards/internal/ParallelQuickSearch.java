@@ -0,0 +1,260 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.json.JsonObject;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.concurrent.NamedThreadFactory;
+import io.uhndata.cards.spi.QuickSearchEngine;
+import io.uhndata.cards.spi.SearchParameters;
+
+/**
+ * Runs several {@link QuickSearchEngine quick search engines} at the same time, so that a quick search takes as long
+ * as the slowest engine, instead of the sum of all of them. Since JCR sessions cannot be shared between threads, each
+ * engine runs with its own clone of the user's resource resolver, except the first one, which runs in the calling
+ * thread with the original resolver.
+ * <p>
+ * Each engine writes into its own buffer, and the buffers are concatenated in the order of the engines, so the
+ * results are the same as when running the engines one after the other. When the total number of results isn't
+ * needed, the search stops as soon as the first engines found enough results: the engines that haven't started yet
+ * are cancelled, and the ones already running stop once their own buffer is full, as they would on their own.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = ParallelQuickSearch.class)
+@Designate(ocd = ParallelQuickSearch.Config.class)
+public class ParallelQuickSearch
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelQuickSearch.class);
+
+    /** The threads running the engines. */
+    private ExecutorService executor;
+
+    @Activate
+    protected void activate(final Config config)
+    {
+        this.executor = Executors.newFixedThreadPool(Math.max(1, config.threads()),
+            new NamedThreadFactory("QuickSearch"));
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Runs the engines and gathers their results.
+     *
+     * @param engines the engines to run, in the order in which their results must be listed
+     * @param query the search parameters
+     * @param resolver the resource resolver of the current user
+     * @return the results of all the engines, in order
+     */
+    public List<JsonObject> search(final List<QuickSearchEngine> engines, final SearchParameters query,
+        final ResourceResolver resolver)
+    {
+        final List<JsonObject> result = new ArrayList<>();
+        if (engines.isEmpty()) {
+            return result;
+        }
+        final int capacity = query.showTotalResults() ? Integer.MAX_VALUE : (int) Math.min(query.getMaxResults(),
+            Integer.MAX_VALUE);
+        final List<Buffer> buffers = new ArrayList<>(engines.size());
+        final List<Task> tasks = new ArrayList<>(engines.size());
+        for (int i = 0; i < engines.size(); ++i) {
+            buffers.add(new Buffer(capacity));
+            tasks.add(i == 0 ? null : submit(engines.get(i), query, resolver, buffers.get(i)));
+        }
+        engines.get(0).quickSearch(query, resolver, buffers.get(0));
+
+        for (int i = 0; i < engines.size(); ++i) {
+            if (i > 0) {
+                waitFor(engines.get(i), query, resolver, buffers.get(i), tasks.get(i));
+            }
+            result.addAll(buffers.get(i).results);
+            if (result.size() >= capacity) {
+                // The following engines cannot contribute to the results anymore
+                tasks.subList(i + 1, tasks.size()).stream().filter(Objects::nonNull).forEach(Task::cancel);
+                break;
+            }
+        }
+        return result.size() > capacity ? result.subList(0, capacity) : result;
+    }
+
+    private Task submit(final QuickSearchEngine engine, final SearchParameters query,
+        final ResourceResolver resolver, final Buffer output)
+    {
+        try {
+            final Task task = new Task(engine, query, resolver.clone(null), output);
+            try {
+                task.future = this.executor.submit(task);
+                return task;
+            } catch (RejectedExecutionException e) {
+                task.clone.close();
+            }
+        } catch (LoginException e) {
+            LOGGER.warn("Failed to clone the resource resolver for a quick search: {}", e.getMessage());
+        }
+        // The engine will run in the calling thread instead
+        return null;
+    }
+
+    private void waitFor(final QuickSearchEngine engine, final SearchParameters query,
+        final ResourceResolver resolver, final Buffer output, final Task task)
+    {
+        if (task == null) {
+            engine.quickSearch(query, resolver, output);
+            return;
+        }
+        try {
+            task.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.warn("Quick search engine {} failed: {}", engine.getClass().getName(), e.getMessage(), e);
+        }
+    }
+
+    /**
+     * An engine running in the background with its own clone of the resource resolver. The task is claimed either by
+     * the thread running it, or by the search when cancelling it before it started, and whoever claims it closes the
+     * clone.
+     */
+    private static final class Task implements Runnable
+    {
+        private final QuickSearchEngine engine;
+
+        private final SearchParameters query;
+
+        private final ResourceResolver clone;
+
+        private final Buffer output;
+
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private Future<?> future;
+
+        Task(final QuickSearchEngine engine, final SearchParameters query, final ResourceResolver clone,
+            final Buffer output)
+        {
+            this.engine = engine;
+            this.query = query;
+            this.clone = clone;
+            this.output = output;
+        }
+
+        @Override
+        public void run()
+        {
+            if (!this.claimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                this.engine.quickSearch(this.query, this.clone, this.output);
+            } finally {
+                this.clone.close();
+            }
+        }
+
+        void cancel()
+        {
+            // A running engine isn't interrupted, since an interrupt can close the repository's file channels
+            if (this.claimed.compareAndSet(false, true)) {
+                this.future.cancel(false);
+                this.clone.close();
+            }
+        }
+    }
+
+    /**
+     * The results of one engine, which ignores the results beyond the maximum number of results. Engines already stop
+     * searching when their output reaches that size.
+     */
+    private static final class Buffer extends AbstractList<JsonObject>
+    {
+        private final List<JsonObject> results = new ArrayList<>();
+
+        private final int capacity;
+
+        Buffer(final int capacity)
+        {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public JsonObject get(final int index)
+        {
+            return this.results.get(index);
+        }
+
+        @Override
+        public int size()
+        {
+            return Math.min(this.results.size(), this.capacity);
+        }
+
+        @Override
+        public boolean add(final JsonObject value)
+        {
+            if (this.results.size() >= this.capacity) {
+                return false;
+            }
+            return this.results.add(value);
+        }
+    }
+
+    /** Configuration for parallel quick searches. */
+    @ObjectClassDefinition(name = "CARDS - Quick search",
+        description = "Configuration for running quick search engines in parallel")
+    public @interface Config
+    {
+        /**
+         * The number of engines that can run at the same time, across all searches.
+         *
+         * @return a positive number
+         */
+        @AttributeDefinition(name = "Threads",
+            description = "How many quick search engines can run at the same time, across all the users")
+        int threads() default 8;
+    }
+}
@@ -0,0 +1,666 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.state.DefaultNodeStateDiff;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.concurrent.NamedThreadFactory;
+
+/**
+ * In-memory summary of the references between CARDS nodes, used by the {@code DeleteServlet} for checking if anything
+ * references a subtree about to be deleted, without looking up the references of each node in the subtree. For each
+ * node with referenced descendants, the index holds the number of references coming from outside its subtree, grouped
+ * by the primary type of the referencing node, so the references to a whole subtree are known in one lookup. Only the
+ * referenced nodes and their ancestors are tracked, not the individual references.
+ * <p>
+ * Only hard references to nodes under the configured folders are counted, since weak references don't prevent deleting
+ * the referenced node. References can come from anywhere in the repository, except from the version storage and from
+ * the query indexes. Referenced nodes are located with {@link Session#getNodeByIdentifier}, in a session of the
+ * {@code referenceIndex} service user, which must be able to read the configured folders. The index is loaded in a
+ * background thread the first time it is needed, from a snapshot of the repository content, without blocking commits
+ * or the request that needed it, and is then kept up to date by comparing the repository before and after each
+ * commit; moving a referenced node causes a reload. Until it is loaded, the index reports itself as not available.
+ * Since the index is updated after commits, it can briefly miss new references, so the repository's own integrity
+ * checks remain the final safeguard.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { ReverseReferenceIndex.class, Observer.class })
+@Designate(ocd = ReverseReferenceIndex.Config.class)
+public class ReverseReferenceIndex implements Observer
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReverseReferenceIndex.class);
+
+    private static final String UUID = "jcr:uuid";
+
+    /** The name of the service user used for locating referenced nodes. */
+    private static final String SERVICE_NAME = "referenceIndex";
+
+    private static final String PRIMARY_TYPE = "jcr:primaryType";
+
+    /** The aggregated reference counts. */
+    private volatile References references = new References(new String[0]);
+
+    /** Guards applying changes to the index and replacing it. */
+    private final Object lock = new Object();
+
+    /** Whether the index is currently being loaded, so that it is only loaded once at a time. */
+    private final AtomicBoolean loading = new AtomicBoolean();
+
+    /** Whether the index is enabled. */
+    private volatile boolean enabled;
+
+    /** Whether the index was loaded. */
+    private volatile boolean loaded;
+
+    /** The top level folders whose nodes are tracked as referenced nodes. */
+    private volatile String[] folders;
+
+    /** The latest repository state seen. */
+    private volatile NodeState currentRoot;
+
+    /** Loads the index in the background. */
+    private volatile ExecutorService executor;
+
+    /** Provides the service sessions used for locating referenced nodes. */
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Activate
+    @Modified
+    protected void activate(final Config config)
+    {
+        synchronized (this.lock) {
+            this.enabled = config.enabled();
+            this.folders = config.folders();
+            this.loaded = false;
+            this.references = new References(this.folders);
+        }
+        if (this.executor == null) {
+            this.executor = Executors.newSingleThreadExecutor(new NamedThreadFactory("ReferenceIndex"));
+        }
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        final ExecutorService current = this.executor;
+        this.executor = null;
+        if (current != null) {
+            // Not interrupting a load in progress, since an interrupt can close the repository's file channels
+            current.shutdown();
+        }
+    }
+
+    /**
+     * Whether the index can be used. If the index isn't loaded yet, loading starts in the background, and this method
+     * returns immediately.
+     *
+     * @return {@code true} if the index is enabled and loaded, {@code false} if it is disabled or not loaded yet
+     */
+    public boolean isAvailable()
+    {
+        if (this.enabled && !this.loaded) {
+            loadInBackground();
+        }
+        return this.enabled && this.loaded;
+    }
+
+    /**
+     * Counts the references made from outside a subtree to nodes in that subtree. The index must be
+     * {@link #isAvailable available}.
+     *
+     * @param rootPath the path of the root of the subtree
+     * @return the number of references, by primary type of the referencing nodes; empty if nothing references the
+     *         subtree
+     */
+    public Map<String, Long> countReferences(final String rootPath)
+    {
+        final Map<String, Long> counts = this.references.external.get(rootPath);
+        return counts == null ? Collections.emptyMap() : new HashMap<>(counts);
+    }
+
+    @Override
+    public void contentChanged(final NodeState root, final CommitInfo info)
+    {
+        synchronized (this.lock) {
+            final NodeState before = this.currentRoot;
+            this.currentRoot = root;
+            if (!this.loaded || before == null) {
+                // Nothing to update, the index will be loaded from the latest state when needed
+                return;
+            }
+            try (IdentifierResolver resolver = new IdentifierResolver(this.resolverFactory)) {
+                if (!update(this.references, before, root, resolver)) {
+                    LOGGER.info("A referenced node was moved, the reference index will be reloaded");
+                    this.loaded = false;
+                    this.references = new References(this.folders);
+                }
+            } catch (LoginException e) {
+                LOGGER.warn("Cannot locate referenced nodes, the reference index will be reloaded: {}", e.getMessage());
+                this.loaded = false;
+                this.references = new References(this.folders);
+            }
+        }
+    }
+
+    /**
+     * Starts loading the index in the background, unless it is already being loaded.
+     */
+    private void loadInBackground()
+    {
+        final ExecutorService currentExecutor = this.executor;
+        if (currentExecutor == null || !this.loading.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            currentExecutor.execute(this::load);
+        } catch (RejectedExecutionException e) {
+            this.loading.set(false);
+        }
+    }
+
+    /**
+     * Loads the index from the latest repository state. The references are counted without holding the lock, so that
+     * commits are not delayed; the commits made meanwhile are then applied to the loaded counts, before they replace
+     * the current ones.
+     */
+    private void load()
+    {
+        try (IdentifierResolver resolver = new IdentifierResolver(this.resolverFactory)) {
+            final NodeState snapshot = this.currentRoot;
+            if (this.loaded || snapshot == null) {
+                return;
+            }
+            final long start = System.currentTimeMillis();
+            final References loadedReferences = new References(this.folders);
+            loadedReferences.addSubtree(snapshot, "", resolver);
+            synchronized (this.lock) {
+                if (!update(loadedReferences, snapshot, this.currentRoot, resolver)) {
+                    // A referenced node was moved meanwhile, try again next time
+                    return;
+                }
+                this.references = loadedReferences;
+                this.loaded = true;
+            }
+            LOGGER.info("Loaded the references to {} nodes in {}ms", loadedReferences.targets.size(),
+                System.currentTimeMillis() - start);
+        } catch (LoginException e) {
+            LOGGER.warn("Cannot load the reference index, the {} service user is not available: {}", SERVICE_NAME,
+                e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to load the reference index: {}", e.getMessage(), e);
+        } finally {
+            this.loading.set(false);
+        }
+    }
+
+    /**
+     * Applies the changes made to the repository between two states.
+     *
+     * @param target the counts to update
+     * @param before the old repository state
+     * @param after the new repository state
+     * @param resolver locates the nodes referenced by new references
+     * @return {@code true} if the counts were updated, {@code false} if a referenced node was moved, in which case the
+     *         counts are no longer accurate and must be discarded
+     * @throws LoginException if the referenced nodes cannot be located
+     */
+    private static boolean update(final References target, final NodeState before, final NodeState after,
+        final IdentifierResolver resolver) throws LoginException
+    {
+        if (after.equals(before)) {
+            return true;
+        }
+        final Changes changes = new Changes();
+        after.compareAgainstBaseState(before, new ReferencesDiff(target, changes, ""));
+        return changes.apply(target, resolver);
+    }
+
+    /**
+     * Checks if references held by a node and its descendants are ignored: the version storage keeps references to
+     * nodes that may be deleted, and the query indexes only hold internal data.
+     *
+     * @param name the name of the node
+     * @return {@code true} if the subtree is ignored
+     */
+    private static boolean isIgnored(final String name)
+    {
+        return name.startsWith(":") || "jcr:system".equals(name) || "oak:index".equals(name);
+    }
+
+    private static boolean isReference(final PropertyState property)
+    {
+        return property.getType().tag() == PropertyType.REFERENCE;
+    }
+
+    private static String getType(final NodeState node)
+    {
+        return Objects.toString(node.getName(PRIMARY_TYPE), "");
+    }
+
+    /**
+     * Checks if a node was changed without changing its type or the references it holds.
+     *
+     * @param before the old state of the node
+     * @param after the new state of the node
+     * @return {@code true} if the references held by the node are the same
+     */
+    private static boolean sameReferences(final NodeState before, final NodeState after)
+    {
+        if (!getType(before).equals(getType(after))) {
+            return false;
+        }
+        int count = 0;
+        for (final PropertyState property : before.getProperties()) {
+            if (isReference(property)) {
+                if (!property.equals(after.getProperty(property.getName()))) {
+                    return false;
+                }
+                ++count;
+            }
+        }
+        for (final PropertyState property : after.getProperties()) {
+            if (isReference(property)) {
+                --count;
+            }
+        }
+        return count == 0;
+    }
+
+    /**
+     * Finds the current path of referenceable nodes, in a session of the {@code referenceIndex} service user. The
+     * session is only opened when the first node must be located.
+     */
+    private static final class IdentifierResolver implements AutoCloseable
+    {
+        private final ResourceResolverFactory factory;
+
+        private ResourceResolver resolver;
+
+        private Session session;
+
+        IdentifierResolver(final ResourceResolverFactory factory)
+        {
+            this.factory = factory;
+        }
+
+        /**
+         * Finds the current path of a referenceable node.
+         *
+         * @param identifier the identifier of the node
+         * @return the path of the node, or {@code null} if it cannot be found
+         * @throws LoginException if the service session cannot be opened
+         */
+        String resolve(final String identifier) throws LoginException
+        {
+            if (this.session == null) {
+                this.resolver = this.factory.getServiceResourceResolver(
+                    Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, SERVICE_NAME));
+                this.session = this.resolver.adaptTo(Session.class);
+                if (this.session == null) {
+                    throw new LoginException("No JCR session for the " + SERVICE_NAME + " service user");
+                }
+            }
+            try {
+                return this.session.getNodeByIdentifier(identifier).getPath();
+            } catch (ItemNotFoundException e) {
+                return null;
+            } catch (RepositoryException e) {
+                LOGGER.warn("Failed to locate the referenced node {}: {}", identifier, e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            if (this.resolver != null) {
+                this.resolver.close();
+            }
+        }
+    }
+
+    /** The aggregated reference counts, along with what is needed for keeping them up to date. */
+    private static final class References
+    {
+        /** The top level folders whose nodes are tracked as referenced nodes. */
+        private final String[] folders;
+
+        /**
+         * For each node with referenced descendants, the number of references made from outside its subtree, by
+         * primary type of the referencing nodes.
+         */
+        private final Map<String, Map<String, Long>> external = new ConcurrentHashMap<>();
+
+        /** The referenced nodes, by identifier. Only accessed while loading the index, or while holding the lock. */
+        private final Map<String, Target> targets = new HashMap<>();
+
+        References(final String[] folders)
+        {
+            this.folders = folders;
+        }
+
+        /**
+         * Counts the references held by the nodes in a subtree, resolving the referenced nodes right away.
+         *
+         * @param node the root of the subtree
+         * @param path the path to the root of the subtree, the empty string for the root of the repository
+         * @param resolver locates the referenced nodes
+         * @throws LoginException if the referenced nodes cannot be located
+         */
+        void addSubtree(final NodeState node, final String path, final IdentifierResolver resolver)
+            throws LoginException
+        {
+            for (final PropertyState property : node.getProperties()) {
+                if (isReference(property)) {
+                    for (final String identifier : property.getValue(Type.REFERENCES)) {
+                        add(path, getType(node), identifier, resolver);
+                    }
+                }
+            }
+            for (final String name : node.getChildNodeNames()) {
+                if (!isIgnored(name)) {
+                    addSubtree(node.getChildNode(name), path + "/" + name, resolver);
+                }
+            }
+        }
+
+        /**
+         * Counts a new reference.
+         *
+         * @param referrer the path of the referencing node
+         * @param type the primary type of the referencing node
+         * @param identifier the identifier of the referenced node
+         * @param resolver locates the referenced node, if it wasn't already referenced
+         * @throws LoginException if the referenced node cannot be located
+         */
+        void add(final String referrer, final String type, final String identifier,
+            final IdentifierResolver resolver) throws LoginException
+        {
+            Target target = this.targets.get(identifier);
+            if (target == null) {
+                final String path = resolver.resolve(identifier);
+                if (path == null || !isIndexed(path)) {
+                    return;
+                }
+                target = new Target(path);
+                this.targets.put(identifier, target);
+            }
+            ++target.references;
+            count(target.path, referrer, type, 1);
+        }
+
+        /**
+         * Discounts a removed reference.
+         *
+         * @param referrer the path of the referencing node
+         * @param type the primary type of the referencing node
+         * @param identifier the identifier of the referenced node
+         */
+        void remove(final String referrer, final String type, final String identifier)
+        {
+            final Target target = this.targets.get(identifier);
+            if (target == null) {
+                return;
+            }
+            count(target.path, referrer, type, -1);
+            if (--target.references == 0) {
+                this.targets.remove(identifier);
+            }
+        }
+
+        /**
+         * Updates the counts of the referenced node and of its ancestors, up to the first one that also holds the
+         * referencing node, since from there on the reference is internal to the subtree.
+         */
+        private void count(final String targetPath, final String referrer, final String type, final long delta)
+        {
+            String ancestor = targetPath;
+            while (isIndexed(ancestor) && !referrer.equals(ancestor) && !referrer.startsWith(ancestor + "/")) {
+                this.external.compute(ancestor, (path, counts) -> {
+                    final Map<String, Long> result = counts == null ? new ConcurrentHashMap<>() : counts;
+                    result.merge(type, delta, (a, b) -> a + b == 0 ? null : a + b);
+                    return result.isEmpty() ? null : result;
+                });
+                ancestor = ancestor.substring(0, ancestor.lastIndexOf('/'));
+            }
+        }
+
+        private boolean isIndexed(final String path)
+        {
+            for (final String folder : this.folders) {
+                if (path.startsWith("/" + folder) && (path.length() == folder.length() + 1
+                    || path.charAt(folder.length() + 1) == '/')) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** A referenced node. */
+    private static final class Target
+    {
+        /** The path of the node. */
+        private final String path;
+
+        /** How many references point to this node. */
+        private int references;
+
+        Target(final String path)
+        {
+            this.path = path;
+        }
+    }
+
+    /**
+     * The changes found while comparing two repository states which can only be applied once the whole comparison is
+     * done: new references, whose target may have been added or moved in the same commit, and removed referenceable
+     * nodes, which must no longer be referenced once all the removed references are discounted.
+     */
+    private static final class Changes
+    {
+        /** The added references, as referrer path, referrer type, and referenced identifier. */
+        private final List<String[]> added = new ArrayList<>();
+
+        /** The removed referenceable nodes, as identifier and path. */
+        private final List<String[]> removed = new ArrayList<>();
+
+        /**
+         * Applies the delayed changes.
+         *
+         * @param target the counts to update
+         * @param resolver locates the referenced nodes, in the new repository state
+         * @return {@code true} if the counts were updated, {@code false} if a referenced node was moved
+         * @throws LoginException if the referenced nodes cannot be located
+         */
+        boolean apply(final References target, final IdentifierResolver resolver) throws LoginException
+        {
+            for (final String[] node : this.removed) {
+                final Target referenced = target.targets.get(node[0]);
+                if (referenced != null && referenced.path.equals(node[1])
+                    && !node[1].equals(resolver.resolve(node[0]))) {
+                    return false;
+                }
+            }
+            for (final String[] reference : this.added) {
+                target.add(reference[0], reference[1], reference[2], resolver);
+            }
+            return true;
+        }
+    }
+
+    /** Updates the counts with the changes made to a subtree of an indexed folder. */
+    private static final class ReferencesDiff extends DefaultNodeStateDiff
+    {
+        private final References target;
+
+        private final Changes changes;
+
+        private final String path;
+
+        ReferencesDiff(final References target, final Changes changes, final String path)
+        {
+            this.target = target;
+            this.changes = changes;
+            this.path = path;
+        }
+
+        @Override
+        public boolean childNodeAdded(final String name, final NodeState after)
+        {
+            if (!isIgnored(name)) {
+                addSubtree(after, this.path + "/" + name);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean childNodeDeleted(final String name, final NodeState before)
+        {
+            if (!isIgnored(name)) {
+                removeSubtree(before, this.path + "/" + name);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean childNodeChanged(final String name, final NodeState before, final NodeState after)
+        {
+            if (isIgnored(name)) {
+                return true;
+            }
+            final String childPath = this.path + "/" + name;
+            if (!sameReferences(before, after)) {
+                remove(before, childPath);
+                add(after, childPath);
+            }
+            return after.compareAgainstBaseState(before, new ReferencesDiff(this.target, this.changes, childPath));
+        }
+
+        private void addSubtree(final NodeState node, final String nodePath)
+        {
+            add(node, nodePath);
+            for (final String name : node.getChildNodeNames()) {
+                if (!isIgnored(name)) {
+                    addSubtree(node.getChildNode(name), nodePath + "/" + name);
+                }
+            }
+        }
+
+        private void removeSubtree(final NodeState node, final String nodePath)
+        {
+            remove(node, nodePath);
+            final String identifier = node.getString(UUID);
+            if (identifier != null) {
+                this.changes.removed.add(new String[] { identifier, nodePath });
+            }
+            for (final String name : node.getChildNodeNames()) {
+                if (!isIgnored(name)) {
+                    removeSubtree(node.getChildNode(name), nodePath + "/" + name);
+                }
+            }
+        }
+
+        private void add(final NodeState node, final String nodePath)
+        {
+            for (final PropertyState property : node.getProperties()) {
+                if (isReference(property)) {
+                    for (final String identifier : property.getValue(Type.REFERENCES)) {
+                        this.changes.added.add(new String[] { nodePath, getType(node), identifier });
+                    }
+                }
+            }
+        }
+
+        private void remove(final NodeState node, final String nodePath)
+        {
+            for (final PropertyState property : node.getProperties()) {
+                if (isReference(property)) {
+                    for (final String identifier : property.getValue(Type.REFERENCES)) {
+                        this.target.remove(nodePath, getType(node), identifier);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Configuration for the reverse reference index. */
+    @ObjectClassDefinition(name = "CARDS - Reverse reference index",
+        description = "In-memory summary of the references between nodes, used for quickly checking if a node can be"
+            + " deleted")
+    public @interface Config
+    {
+        /**
+         * Whether the index is enabled.
+         *
+         * @return {@code true} by default
+         */
+        @AttributeDefinition(name = "Enabled",
+            description = "Whether deletes should check for references in memory instead of querying the repository;"
+                + " this keeps a count of references for each referenced node and its ancestors in memory")
+        boolean enabled() default true;
+
+        /**
+         * The top level folders whose nodes are tracked as referenced nodes.
+         *
+         * @return a list of node names
+         */
+        @AttributeDefinition(name = "Folders",
+            description = "The top level folders whose nodes are checked for references when deleted")
+        String[] folders() default { "Forms", "Subjects", "Questionnaires", "SubjectTypes" };
+    }
+}
@@ -21,20 +21,28 @@
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.Predicate;
 
 import javax.json.JsonObject;
 
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 
+import io.uhndata.cards.dataentry.internal.dataimport.SubjectIndex;
 import io.uhndata.cards.spi.QuickSearchEngine;
 import io.uhndata.cards.spi.SearchParameters;
 import io.uhndata.cards.spi.SearchUtils;
 
 
 /**
- * Finds {@code [cards:Subject]}s with identifiers matching the given full text search.
+ * Finds {@code [cards:Subject]}s with identifiers matching the given full text search. When the
+ * {@link SubjectIndex} is available, subjects whose identifier starts with the searched text are listed
+ * first, followed by those where the text is found elsewhere in the identifier, each in the order of their
+ * identifiers, and the search stops as soon as enough subjects were found.
  *
  * @version $Id$
  */
@@ -43,6 +51,10 @@ public class SubjectQuickSearchEngine implements QuickSearchEngine
 {
     private static final List<String> SUPPORTED_TYPES = Collections.singletonList("cards:Subject");
 
+    /** In-memory index of the subjects, sorted by identifier. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile SubjectIndex subjectIndex;
+
     @Override
     public List<String> getSupportedTypes()
     {
@@ -53,7 +65,24 @@ public List<String> getSupportedTypes()
     public void quickSearch(final SearchParameters query, final ResourceResolver resourceResolver,
         final List<JsonObject> output)
     {
-        if (output.size() == query.getMaxResults() && !query.showTotalResults()) {
+        if (isFull(query, output)) {
+            return;
+        }
+
+        final SubjectIndex index = this.subjectIndex;
+        if (index != null && index.isAvailable()) {
+            final Predicate<String> collector = path -> {
+                // The index holds all the subjects, only those accessible to the current user are returned
+                final Resource subject = resourceResolver.getResource(path);
+                if (subject != null) {
+                    addMatch(query, subject, output);
+                }
+                return !isFull(query, output);
+            };
+            index.findByPrefix(query.getQuery(), collector);
+            if (!isFull(query, output)) {
+                index.findByInfix(query.getQuery(), collector);
+            }
             return;
         }
 
@@ -66,17 +95,25 @@ public void quickSearch(final SearchParameters query, final ResourceResolver res
 
         while (foundResources.hasNext()) {
             // No need to go through results list if we do not want total number of matches
-            if (output.size() == query.getMaxResults() && !query.showTotalResults()) {
+            if (isFull(query, output)) {
                 break;
             }
-            Resource thisResource = foundResources.next();
+            addMatch(query, foundResources.next(), output);
+        }
+    }
+
+    private boolean isFull(final SearchParameters query, final List<JsonObject> output)
+    {
+        return output.size() == query.getMaxResults() && !query.showTotalResults();
+    }
 
-            String resourceValue = thisResource.getValueMap().get("identifier", String.class);
+    private void addMatch(final SearchParameters query, final Resource subject, final List<JsonObject> output)
+    {
+        String resourceValue = subject.getValueMap().get("identifier", String.class);
 
-            if (resourceValue != null) {
-                output.add(SearchUtils.addMatchMetadata(
-                    resourceValue, query.getQuery(), "identifier", thisResource.adaptTo(JsonObject.class), false, ""));
-            }
+        if (resourceValue != null) {
+            output.add(SearchUtils.addMatchMetadata(
+                resourceValue, query.getQuery(), "identifier", subject.adaptTo(JsonObject.class), false, ""));
         }
     }
 }
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.spi;
+
+import java.io.StringWriter;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.JsonWriter;
+
+/**
+ * A read-only view of a JSON object with one more key added, or replaced, at the end. Used for adding match metadata
+ * to search results without copying all the keys of the matched resource into a new object.
+ *
+ * @version $Id$
+ */
+final class ExtendedJsonObject extends AbstractMap<String, JsonValue> implements JsonObject
+{
+    private final JsonObject base;
+
+    private final String extraKey;
+
+    private final JsonValue extraValue;
+
+    ExtendedJsonObject(final JsonObject base, final String extraKey, final JsonValue extraValue)
+    {
+        this.base = base;
+        this.extraKey = extraKey;
+        this.extraValue = extraValue;
+    }
+
+    @Override
+    public JsonValue get(final Object key)
+    {
+        return this.extraKey.equals(key) ? this.extraValue : this.base.get(key);
+    }
+
+    @Override
+    public boolean containsKey(final Object key)
+    {
+        return this.extraKey.equals(key) || this.base.containsKey(key);
+    }
+
+    @Override
+    public Set<Map.Entry<String, JsonValue>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<String, JsonValue>>()
+        {
+            @Override
+            public Iterator<Map.Entry<String, JsonValue>> iterator()
+            {
+                final Iterator<Map.Entry<String, JsonValue>> baseEntries = ExtendedJsonObject.this.base.entrySet()
+                    .stream().filter(entry -> !ExtendedJsonObject.this.extraKey.equals(entry.getKey())).iterator();
+                return new Iterator<Map.Entry<String, JsonValue>>()
+                {
+                    private boolean extraReturned;
+
+                    @Override
+                    public boolean hasNext()
+                    {
+                        return baseEntries.hasNext() || !this.extraReturned;
+                    }
+
+                    @Override
+                    public Map.Entry<String, JsonValue> next()
+                    {
+                        if (baseEntries.hasNext()) {
+                            return baseEntries.next();
+                        } else if (!this.extraReturned) {
+                            this.extraReturned = true;
+                            return new SimpleImmutableEntry<>(ExtendedJsonObject.this.extraKey,
+                                ExtendedJsonObject.this.extraValue);
+                        }
+                        throw new NoSuchElementException();
+                    }
+                };
+            }
+
+            @Override
+            public int size()
+            {
+                return ExtendedJsonObject.this.base.size()
+                    + (ExtendedJsonObject.this.base.containsKey(ExtendedJsonObject.this.extraKey) ? 0 : 1);
+            }
+        };
+    }
+
+    @Override
+    public JsonArray getJsonArray(final String name)
+    {
+        return (JsonArray) get(name);
+    }
+
+    @Override
+    public JsonObject getJsonObject(final String name)
+    {
+        return (JsonObject) get(name);
+    }
+
+    @Override
+    public JsonNumber getJsonNumber(final String name)
+    {
+        return (JsonNumber) get(name);
+    }
+
+    @Override
+    public JsonString getJsonString(final String name)
+    {
+        return (JsonString) get(name);
+    }
+
+    @Override
+    public String getString(final String name)
+    {
+        return getJsonString(name).getString();
+    }
+
+    @Override
+    public String getString(final String name, final String defaultValue)
+    {
+        final JsonValue value = get(name);
+        return value instanceof JsonString ? ((JsonString) value).getString() : defaultValue;
+    }
+
+    @Override
+    public int getInt(final String name)
+    {
+        return getJsonNumber(name).intValue();
+    }
+
+    @Override
+    public int getInt(final String name, final int defaultValue)
+    {
+        final JsonValue value = get(name);
+        return value instanceof JsonNumber ? ((JsonNumber) value).intValue() : defaultValue;
+    }
+
+    @Override
+    public boolean getBoolean(final String name)
+    {
+        final JsonValue value = get(name);
+        if (value == null) {
+            throw new NullPointerException();
+        } else if (value == JsonValue.TRUE) {
+            return true;
+        } else if (value == JsonValue.FALSE) {
+            return false;
+        }
+        throw new ClassCastException();
+    }
+
+    @Override
+    public boolean getBoolean(final String name, final boolean defaultValue)
+    {
+        final JsonValue value = get(name);
+        if (value == JsonValue.TRUE) {
+            return true;
+        } else if (value == JsonValue.FALSE) {
+            return false;
+        }
+        return defaultValue;
+    }
+
+    @Override
+    public boolean isNull(final String name)
+    {
+        return get(name).equals(JsonValue.NULL);
+    }
+
+    @Override
+    public ValueType getValueType()
+    {
+        return ValueType.OBJECT;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringWriter result = new StringWriter();
+        try (JsonWriter writer = Json.createWriter(result)) {
+            writer.write(this);
+        }
+        return result.toString();
+    }
+}
@@ -116,13 +116,9 @@ public static JsonObject addMatchMetadata(String resourceValue, String query, St
     {
         JsonObject metadata = getMatchMetadata(resourceValue, query, question, isNoteMatch, path);
 
-        // Construct a JsonObject that matches the parent, but with custom match metadata appended
-        JsonObjectBuilder builder = Json.createObjectBuilder();
-        for (String key : parent.keySet()) {
-            builder.add(key, parent.get(key));
-        }
-        builder.add(CARDS_QUERY_MATCH_KEY, metadata);
-        return builder.build();
+        // A view of the parent with the match metadata appended, the parent itself is not copied, so that the same
+        // serialized parent can be shared by several matches
+        return new ExtendedJsonObject(parent, CARDS_QUERY_MATCH_KEY, metadata);
     }
 
     /**
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.dataentry.internal.delete.DeleteJobs;
+import io.uhndata.cards.internal.ReverseReferenceIndex;
+
+/**
+ * Unit tests for the reference checks of {@link DeleteServlet}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DeleteServletTest
+{
+    private static final String PATH = "/Subjects/s1";
+
+    @Mock
+    private SlingHttpServletRequest request;
+
+    @Mock
+    private SlingHttpServletResponse response;
+
+    @Mock
+    private ResourceResolver resolver;
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Resource resource;
+
+    @Mock
+    private Node node;
+
+    @Mock
+    private Node parent;
+
+    @Mock
+    private ReverseReferenceIndex referenceIndex;
+
+    @Mock
+    private DeleteJobs jobs;
+
+    @InjectMocks
+    private DeleteServlet servlet;
+
+    private final StringWriter output = new StringWriter();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Mockito.when(this.request.getResourceResolver()).thenReturn(this.resolver);
+        Mockito.when(this.request.getResource()).thenReturn(this.resource);
+        Mockito.when(this.resolver.adaptTo(Session.class)).thenReturn(this.session);
+        Mockito.when(this.resource.adaptTo(Node.class)).thenReturn(this.node);
+        Mockito.when(this.node.getPath()).thenReturn(PATH);
+        Mockito.when(this.node.getParent()).thenReturn(this.parent);
+        Mockito.when(this.response.getWriter()).thenReturn(new PrintWriter(this.output));
+        Mockito.when(this.referenceIndex.isAvailable()).thenReturn(true);
+    }
+
+    @Test
+    public void referencedNodesAreRefusedFromTheIndexCounts() throws Exception
+    {
+        final Map<String, Long> counts = new HashMap<>();
+        counts.put("cards:Form", 2L);
+        counts.put("cards:Subject", 1L);
+        counts.put("cards:TextAnswer", 1L);
+        Mockito.when(this.referenceIndex.countReferences(PATH)).thenReturn(counts);
+
+        this.servlet.doDelete(this.request, this.response);
+
+        Mockito.verify(this.response, Mockito.atLeastOnce()).setStatus(SlingHttpServletResponse.SC_CONFLICT);
+        Assert.assertTrue(this.output.toString(),
+            this.output.toString().contains("This item is referenced in 2 forms, 1 subject and 1 other."));
+        // The subtree isn't traversed, and its references aren't looked up
+        Mockito.verify(this.node, Mockito.never()).getNodes();
+        Mockito.verify(this.node, Mockito.never()).getReferences();
+        Mockito.verify(this.node, Mockito.never()).remove();
+    }
+
+    @Test
+    public void unreferencedNodesAreDeletedWithoutTraversal() throws Exception
+    {
+        Mockito.when(this.referenceIndex.countReferences(PATH)).thenReturn(new HashMap<>());
+
+        this.servlet.doDelete(this.request, this.response);
+
+        Mockito.verify(this.node).remove();
+        Mockito.verify(this.session).save();
+        Mockito.verify(this.node, Mockito.never()).getNodes();
+        Mockito.verify(this.response, Mockito.never()).setStatus(SlingHttpServletResponse.SC_CONFLICT);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+
+import org.apache.sling.api.resource.Resource;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit tests for {@link PageCursor}, mostly with resources created at the same time.
+ *
+ * @version $Id$
+ */
+public class PageCursorTest
+{
+    private static final String DAY = "2021-03-04T10:00:00.000-05:00";
+
+    private static final String NEXT_DAY = "2021-03-05T10:00:00.000-05:00";
+
+    @Test
+    public void resourcesCreatedAtTheSameTimeAreSortedByPath()
+    {
+        Assert.assertEquals(" order by n.'jcr:created' ASC, n.'jcr:path' ASC", PageCursor.getOrder(false));
+        Assert.assertEquals(" order by n.'jcr:created' DESC, n.'jcr:path' DESC", PageCursor.getOrder(true));
+    }
+
+    @Test
+    public void nextPageStartsAfterTheCursorAmongEqualDates() throws RepositoryException
+    {
+        final List<Resource> page = Arrays.asList(form("a", DAY), form("b", DAY), form("c", DAY), form("d", DAY),
+            form("e", NEXT_DAY));
+        final PageCursor cursor = PageCursor.parse(PageCursor.encode(page.get(1)));
+
+        Assert.assertEquals(Arrays.asList("/Forms/c", "/Forms/d", "/Forms/e"),
+            paths(cursor.skipSeen(page.iterator(), false)));
+    }
+
+    @Test
+    public void nextPageStartsAfterTheCursorWhenSortingDescending() throws RepositoryException
+    {
+        final List<Resource> page = Arrays.asList(form("e", NEXT_DAY), form("d", DAY), form("c", DAY),
+            form("b", DAY), form("a", DAY));
+        final PageCursor cursor = PageCursor.parse(PageCursor.encode(page.get(2)));
+
+        Assert.assertEquals(Arrays.asList("/Forms/b", "/Forms/a"),
+            paths(cursor.skipSeen(page.subList(1, page.size()).iterator(), true)));
+    }
+
+    @Test
+    public void deletedCursorResourceDoesNotRepeatResources() throws RepositoryException
+    {
+        final PageCursor cursor = PageCursor.parse(PageCursor.encode(form("b", DAY)));
+        final List<Resource> page = Arrays.asList(form("a", DAY), form("c", DAY), form("d", NEXT_DAY));
+
+        Assert.assertEquals(Arrays.asList("/Forms/c", "/Forms/d"), paths(cursor.skipSeen(page.iterator(), false)));
+    }
+
+    @Test
+    public void cursorAtTheEndOfTheDateSkipsAllTies() throws RepositoryException
+    {
+        final List<Resource> page = Arrays.asList(form("a", DAY), form("b", DAY));
+        final PageCursor cursor = PageCursor.parse(PageCursor.encode(page.get(1)));
+
+        Assert.assertTrue(paths(cursor.skipSeen(page.iterator(), false)).isEmpty());
+    }
+
+    @Test
+    public void blankCursorMeansTheFirstPage()
+    {
+        Assert.assertNull(PageCursor.parse(" "));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCursorsAreRejected()
+    {
+        PageCursor.parse("not a cursor");
+    }
+
+    private Resource form(final String name, final String created) throws RepositoryException
+    {
+        final Resource resource = Mockito.mock(Resource.class);
+        final Node node = Mockito.mock(Node.class);
+        final Property createdProperty = Mockito.mock(Property.class);
+        Mockito.when(createdProperty.getString()).thenReturn(created);
+        Mockito.when(node.hasProperty("jcr:created")).thenReturn(true);
+        Mockito.when(node.getProperty("jcr:created")).thenReturn(createdProperty);
+        Mockito.when(node.getPath()).thenReturn("/Forms/" + name);
+        Mockito.when(resource.getPath()).thenReturn("/Forms/" + name);
+        Mockito.when(resource.adaptTo(Node.class)).thenReturn(node);
+        return resource;
+    }
+
+    private List<String> paths(final Iterator<Resource> resources)
+    {
+        final List<String> result = new ArrayList<>();
+        resources.forEachRemaining(resource -> result.add(resource.getPath()));
+        return result;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.dataentry.internal.query.BoundQuery;
+
+/**
+ * Unit tests for the created date filters of {@link PaginationServlet}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PaginationServletTest
+{
+    private static final String CREATED = "n.'jcr:created'";
+
+    private static final String DAY = "2021-03-04T00:00-05:00";
+
+    private static final String NEXT_DAY = "2021-03-05T00:00-05:00";
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Workspace workspace;
+
+    @Mock
+    private QueryManager queryManager;
+
+    @Mock
+    private ValueFactory valueFactory;
+
+    @Mock
+    private Query jcrQuery;
+
+    /** The names and values bound to the last created query. */
+    private final List<String> bound = new ArrayList<>();
+
+    @Before
+    public void setup() throws RepositoryException
+    {
+        Mockito.when(this.session.getWorkspace()).thenReturn(this.workspace);
+        Mockito.when(this.session.getValueFactory()).thenReturn(this.valueFactory);
+        Mockito.when(this.workspace.getQueryManager()).thenReturn(this.queryManager);
+        Mockito.when(this.valueFactory.createValue(Matchers.anyString(), Matchers.anyInt())).thenAnswer(invocation -> {
+            final Value value = Mockito.mock(Value.class);
+            Mockito.when(value.getString()).thenReturn((String) invocation.getArguments()[0]);
+            return value;
+        });
+        Mockito.when(this.queryManager.createQuery(Matchers.anyString(), Matchers.eq(Query.JCR_SQL2)))
+            .thenAnswer(invocation -> {
+                final String statement = (String) invocation.getArguments()[0];
+                // Like the repository, refuse values for variables that don't appear in the statement
+                Mockito.doAnswer(bindInvocation -> {
+                    final String name = (String) bindInvocation.getArguments()[0];
+                    if (!Pattern.compile("\\$" + name + "\\b").matcher(statement).find()) {
+                        throw new IllegalArgumentException("Unknown bind variable " + name);
+                    }
+                    this.bound.add(name + "=" + ((Value) bindInvocation.getArguments()[1]).getString());
+                    return null;
+                }).when(this.jcrQuery).bindValue(Matchers.anyString(), Matchers.any(Value.class));
+                return this.jcrQuery;
+            });
+    }
+
+    @Test
+    public void equalsChecksTheWholeDay() throws RepositoryException
+    {
+        Assert.assertEquals("(n.'jcr:created'>=$v0 and n.'jcr:created'<$v1)", compare("="));
+        assertBound("v0=" + DAY, "v1=" + NEXT_DAY);
+    }
+
+    @Test
+    public void notEqualsExcludesTheWholeDay() throws RepositoryException
+    {
+        Assert.assertEquals("(n.'jcr:created'<$v0 or n.'jcr:created'>=$v1)", compare("<>"));
+        assertBound("v0=" + DAY, "v1=" + NEXT_DAY);
+    }
+
+    @Test
+    public void lessThanOnlyBindsTheDay() throws RepositoryException
+    {
+        Assert.assertEquals("(n.'jcr:created'<$v0)", compare("<"));
+        assertBound("v0=" + DAY);
+    }
+
+    @Test
+    public void greaterThanOnlyBindsTheNextDay() throws RepositoryException
+    {
+        Assert.assertEquals("(n.'jcr:created'>=$v0)", compare(">"));
+        assertBound("v0=" + NEXT_DAY);
+    }
+
+    @Test
+    public void lessThanOrEqualsOnlyBindsTheNextDay() throws RepositoryException
+    {
+        Assert.assertEquals("(n.'jcr:created'<$v0)", compare("<="));
+        assertBound("v0=" + NEXT_DAY);
+    }
+
+    @Test
+    public void greaterThanOrEqualsOnlyBindsTheDay() throws RepositoryException
+    {
+        Assert.assertEquals("(n.'jcr:created'>=$v0)", compare(">="));
+        assertBound("v0=" + DAY);
+    }
+
+    @Test
+    public void unsupportedComparatorsDontBindAnything() throws RepositoryException
+    {
+        Assert.assertNull(compare("like"));
+        Assert.assertTrue(this.bound.isEmpty());
+    }
+
+    /**
+     * Builds a query filtering on the creation date, and creates it, binding its values.
+     *
+     * @param operator the comparator to use
+     * @return the generated condition
+     * @throws RepositoryException if creating the query fails
+     */
+    private String compare(final String operator) throws RepositoryException
+    {
+        final BoundQuery.Builder builder = new BoundQuery.Builder();
+        final String condition = PaginationServlet.generateDateCompareQuery(builder, CREATED, DAY, operator);
+        builder.append("select n.* from [cards:Form] as n where ").append(String.valueOf(condition));
+        builder.build().create(this.session);
+        return condition;
+    }
+
+    private void assertBound(final String... expected)
+    {
+        Assert.assertEquals(expected.length, this.bound.size());
+        for (final String value : expected) {
+            Assert.assertTrue("Missing " + value + " in " + this.bound, this.bound.contains(value));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.stream.JsonGenerator;
+
+import org.apache.sling.api.resource.Resource;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Unit tests for the serialization of query results in {@link QueryBuilder}.
+ *
+ * @version $Id$
+ */
+public class QueryBuilderTest
+{
+    @Test
+    public void childrenAreAddedAfterTheOriginalValues()
+    {
+        final Resource resource = resource(Json.createObjectBuilder().add("a", "1").add("b", "2").build(),
+            child("c", Json.createObjectBuilder().add("x", "3").build()));
+
+        Assert.assertEquals("{\"a\":\"1\",\"b\":\"2\",\"c\":{\"x\":\"3\"}}", write(resource, true));
+    }
+
+    @Test
+    public void childrenReplaceOriginalValuesWithTheSameName()
+    {
+        final Resource resource = resource(Json.createObjectBuilder().add("a", "1").add("b", "2").add("c", "3").build(),
+            child("d", Json.createObjectBuilder().add("x", "4").build()),
+            child("b", Json.createObjectBuilder().add("x", "5").build()));
+
+        Assert.assertEquals("{\"a\":\"1\",\"b\":{\"x\":\"5\"},\"c\":\"3\",\"d\":{\"x\":\"4\"}}", write(resource, true));
+    }
+
+    @Test
+    public void childrenAreOnlyAddedWhenRequested()
+    {
+        final Resource resource = resource(Json.createObjectBuilder().add("a", "1").build(),
+            child("b", Json.createObjectBuilder().add("x", "2").build()));
+
+        Assert.assertEquals("{\"a\":\"1\"}", write(resource, false));
+    }
+
+    private String write(final Resource resource, final boolean serializeChildren)
+    {
+        final StringWriter out = new StringWriter();
+        try (JsonGenerator jsonGen = Json.createGenerator(out)) {
+            jsonGen.writeStartArray();
+            QueryBuilder.writeNode(jsonGen, resource, serializeChildren);
+            jsonGen.writeEnd();
+        }
+        final String result = out.toString();
+        // Remove the enclosing array
+        return result.substring(1, result.length() - 1);
+    }
+
+    private Resource resource(final JsonObject json, final Resource... children)
+    {
+        final Resource resource = Mockito.mock(Resource.class);
+        Mockito.when(resource.adaptTo(JsonObject.class)).thenReturn(json);
+        Mockito.when(resource.hasChildren()).thenReturn(children.length > 0);
+        Mockito.when(resource.listChildren()).thenAnswer(invocation -> Arrays.asList(children).iterator());
+        return resource;
+    }
+
+    private Resource child(final String name, final JsonObject json)
+    {
+        final Resource child = resource(json);
+        Mockito.when(child.getName()).thenReturn(name);
+        return child;
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.dataimport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+
+/**
+ * Unit tests for {@link SubjectIndex}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SubjectIndexTest
+{
+    private static final String PATIENT = "patient-type";
+
+    private static final String VISIT = "visit-type";
+
+    @Mock
+    private SubjectIndex.Config config;
+
+    private final SubjectIndex index = new SubjectIndex();
+
+    private NodeState root;
+
+    @Before
+    public void setUp()
+    {
+        Mockito.when(this.config.enabled()).thenReturn(true);
+        this.index.activate(this.config);
+
+        final NodeBuilder builder = EMPTY_NODE.builder();
+        final NodeBuilder subjects = builder.child("Subjects");
+        addSubject(subjects, "p1", PATIENT, "P-001");
+        addSubject(subjects.child("p1"), "v1", VISIT, "Visit 1");
+        addSubject(subjects, "p2", PATIENT, "P-002");
+        this.root = builder.getNodeState();
+        this.index.contentChanged(this.root, CommitInfo.EMPTY);
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.index.deactivate();
+    }
+
+    @Test
+    public void loadingDoesNotBlockTheCaller() throws Exception
+    {
+        // The subjects can only be read once the test allows it
+        final CountDownLatch release = new CountDownLatch(1);
+        final NodeState blockingRoot = Mockito.mock(NodeState.class);
+        Mockito.when(blockingRoot.getChildNode("Subjects")).thenAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            return this.root.getChildNode("Subjects");
+        });
+        this.index.contentChanged(blockingRoot, CommitInfo.EMPTY);
+
+        Assert.assertFalse(this.index.isAvailable());
+        Assert.assertNull(this.index.find(PATIENT, null, "P-001"));
+
+        release.countDown();
+        waitUntilAvailable();
+        Assert.assertEquals("/Subjects/p1", this.index.find(PATIENT, null, "P-001"));
+    }
+
+    @Test
+    public void findsSubjectsByTypeParentAndIdentifier() throws Exception
+    {
+        waitUntilAvailable();
+
+        Assert.assertEquals("/Subjects/p2", this.index.find(PATIENT, null, "P-002"));
+        Assert.assertEquals("/Subjects/p1/v1", this.index.find(VISIT, "/Subjects/p1", "Visit 1"));
+        Assert.assertNull(this.index.find(VISIT, null, "Visit 1"));
+        Assert.assertNull(this.index.find(VISIT, "/Subjects/p1", "P-001"));
+    }
+
+    @Test
+    public void commitsUpdateTheLoadedIndex() throws Exception
+    {
+        waitUntilAvailable();
+
+        final NodeBuilder builder = this.root.builder();
+        builder.child("Subjects").getChildNode("p2").remove();
+        addSubject(builder.child("Subjects"), "p3", PATIENT, "P-003");
+        builder.child("Subjects").child("p1").setProperty("identifier", "P-100");
+        this.index.contentChanged(builder.getNodeState(), CommitInfo.EMPTY);
+
+        Assert.assertNull(this.index.find(PATIENT, null, "P-002"));
+        Assert.assertEquals("/Subjects/p3", this.index.find(PATIENT, null, "P-003"));
+        Assert.assertNull(this.index.find(PATIENT, null, "P-001"));
+        Assert.assertEquals("/Subjects/p1", this.index.find(PATIENT, null, "P-100"));
+    }
+
+    @Test
+    public void findsIdentifiersByPrefixThenInfix() throws Exception
+    {
+        waitUntilAvailable();
+
+        final List<String> found = new ArrayList<>();
+        this.index.findByPrefix("p-00", found::add);
+        Assert.assertEquals(Arrays.asList("/Subjects/p1", "/Subjects/p2"), found);
+
+        found.clear();
+        this.index.findByInfix("1", found::add);
+        Assert.assertEquals(Arrays.asList("/Subjects/p1", "/Subjects/p1/v1"), found);
+    }
+
+    @Test
+    public void disabledIndexIsNeverAvailable()
+    {
+        Mockito.when(this.config.enabled()).thenReturn(false);
+        this.index.activate(this.config);
+
+        Assert.assertFalse(this.index.isAvailable());
+        Assert.assertNull(this.index.find(PATIENT, null, "P-001"));
+    }
+
+    private void waitUntilAvailable() throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!this.index.isAvailable()) {
+            Assert.assertTrue("The index wasn't loaded in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void addSubject(final NodeBuilder parent, final String name, final String type,
+        final String identifier)
+    {
+        final NodeBuilder subject = parent.child(name);
+        subject.setProperty("jcr:primaryType", "cards:Subject", Type.NAME);
+        subject.setProperty("type", type);
+        subject.setProperty("identifier", identifier);
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.delete;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.ReferentialIntegrityException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.commons.iterator.NodeIteratorAdapter;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.dataentry.internal.jobs.BackgroundJob.Status;
+
+/**
+ * Unit tests for {@link DeleteJob}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DeleteJobTest
+{
+    private static final String SUBJECT = "cards:Subject";
+
+    private static final String FORM = "cards:Form";
+
+    private static final String ANSWER = "cards:Answer";
+
+    @Mock
+    private ResourceResolver resolver;
+
+    @Mock
+    private Session session;
+
+    /** All the nodes of the fake repository, by path. */
+    private final Map<String, Node> nodes = new HashMap<>();
+
+    /** The children of each node of the fake repository, by path. */
+    private final Map<String, List<Node>> children = new HashMap<>();
+
+    /** The paths of the nodes not removed yet. */
+    private final Set<String> existing = new HashSet<>();
+
+    @Before
+    public void setUp() throws RepositoryException
+    {
+        Mockito.when(this.resolver.adaptTo(Session.class)).thenReturn(this.session);
+        Mockito.when(this.session.nodeExists(Matchers.anyString()))
+            .thenAnswer(invocation -> this.existing.contains(invocation.getArguments()[0]));
+        Mockito.when(this.session.getNode(Matchers.anyString()))
+            .thenAnswer(invocation -> this.nodes.get(invocation.getArguments()[0]));
+        addNode("/Subjects", "cards:SubjectsHomepage", null);
+        addNode("/Forms", "cards:FormsHomepage", null);
+    }
+
+    @Test
+    public void smallSubjectIsRemovedInOneCommit() throws RepositoryException
+    {
+        final Node subject = addNode("/Subjects/s1", SUBJECT, this.nodes.get("/Subjects"));
+        final Node visit = addNode("/Subjects/s1/v1", SUBJECT, subject);
+
+        final DeleteJob job = run(10, "/Subjects/s1");
+
+        Mockito.verify(subject).remove();
+        Mockito.verify(visit, Mockito.never()).remove();
+        Mockito.verify(this.session).save();
+        Assert.assertEquals(Status.SUCCEEDED, job.getStatus());
+        Assert.assertEquals(2, job.getTotalNodes());
+        Assert.assertEquals(2, job.getDeletedNodes());
+        Assert.assertEquals(1, job.getCommits());
+        Mockito.verify(this.resolver).close();
+    }
+
+    @Test
+    public void largeSubjectIsRemovedChildSubjectsFirst() throws RepositoryException
+    {
+        final Node subject = addNode("/Subjects/s1", SUBJECT, this.nodes.get("/Subjects"));
+        final Node visit1 = addNode("/Subjects/s1/v1", SUBJECT, subject);
+        addNode("/Subjects/s1/v1/note", ANSWER, visit1);
+        final Node visit2 = addNode("/Subjects/s1/v2", SUBJECT, subject);
+        addNode("/Subjects/s1/v2/note", ANSWER, visit2);
+        addNode("/Subjects/s1/note", ANSWER, subject);
+
+        final DeleteJob job = run(2, "/Subjects/s1");
+
+        final InOrder order = Mockito.inOrder(visit1, visit2, subject);
+        order.verify(visit1).remove();
+        order.verify(visit2).remove();
+        order.verify(subject).remove();
+        Mockito.verify(this.session, Mockito.times(3)).save();
+        Assert.assertEquals(6, job.getTotalNodes());
+        Assert.assertEquals(6, job.getDeletedNodes());
+        Assert.assertEquals(3, job.getCommits());
+    }
+
+    @Test
+    public void formsAreNeverSplit() throws RepositoryException
+    {
+        final Node form = addNode("/Forms/f1", FORM, this.nodes.get("/Forms"));
+        final Node section = addNode("/Forms/f1/section", "cards:AnswerSection", form);
+        final Node answer = addNode("/Forms/f1/section/answer", ANSWER, section);
+
+        final DeleteJob job = run(1, "/Forms/f1");
+
+        Mockito.verify(form).remove();
+        Mockito.verify(section, Mockito.never()).remove();
+        Mockito.verify(answer, Mockito.never()).remove();
+        Assert.assertEquals(3, job.getDeletedNodes());
+        Assert.assertEquals(1, job.getCommits());
+    }
+
+    @Test
+    public void nodesAlreadyDeletedAreSkipped() throws RepositoryException
+    {
+        final Node form = addNode("/Forms/f2", FORM, this.nodes.get("/Forms"));
+
+        final DeleteJob job = run(10, "/Forms/f1", "/Forms/f2");
+
+        Mockito.verify(this.session, Mockito.never()).getNode("/Forms/f1");
+        Mockito.verify(form).remove();
+        Assert.assertEquals(Status.SUCCEEDED, job.getStatus());
+        Assert.assertEquals(1, job.getDeletedNodes());
+    }
+
+    @Test
+    public void savesBreakingReferencesArePostponed() throws RepositoryException
+    {
+        final Node subject = addNode("/Subjects/s1", SUBJECT, this.nodes.get("/Subjects"));
+        final Node form = addNode("/Forms/f1", FORM, this.nodes.get("/Forms"));
+        // The form still references the subject until it is removed as well
+        Mockito.doThrow(new ReferentialIntegrityException("Referenced by /Forms/f1")).doNothing()
+            .when(this.session).save();
+
+        final DeleteJob job = run(1, "/Subjects/s1", "/Forms/f1");
+
+        Mockito.verify(subject).remove();
+        Mockito.verify(form).remove();
+        Mockito.verify(this.session, Mockito.times(2)).save();
+        Assert.assertEquals(Status.SUCCEEDED, job.getStatus());
+        Assert.assertEquals(2, job.getDeletedNodes());
+        Assert.assertEquals(1, job.getCommits());
+    }
+
+    @Test
+    public void failedSaveDiscardsPendingChanges() throws RepositoryException
+    {
+        addNode("/Forms/f1", FORM, this.nodes.get("/Forms"));
+        Mockito.doThrow(new RepositoryException("Disk full")).when(this.session).save();
+
+        final DeleteJob job = run(10, "/Forms/f1");
+
+        Assert.assertEquals(Status.FAILED, job.getStatus());
+        Assert.assertEquals("Disk full", job.getError());
+        Assert.assertEquals(0, job.getDeletedNodes());
+        Mockito.verify(this.session).refresh(false);
+        Mockito.verify(this.resolver).close();
+    }
+
+    @Test
+    public void cancelledJobDoesNotStart() throws RepositoryException
+    {
+        final Node form = addNode("/Forms/f1", FORM, this.nodes.get("/Forms"));
+        final DeleteJob job = new DeleteJob("admin", Arrays.asList("/Forms/f1"), 10, this.resolver);
+
+        job.cancel();
+        job.run();
+
+        Assert.assertEquals(Status.CANCELLED, job.getStatus());
+        Mockito.verify(form, Mockito.never()).remove();
+        Mockito.verify(this.session, Mockito.never()).save();
+        Mockito.verify(this.resolver).close();
+    }
+
+    @Test
+    public void checkedInAncestorsAreCheckedOutOnlyOnce() throws RepositoryException
+    {
+        final Node subject = addNode("/Subjects/s1", SUBJECT, this.nodes.get("/Subjects"));
+        final Node visit1 = addNode("/Subjects/s1/v1", SUBJECT, subject);
+        final Node visit2 = addNode("/Subjects/s1/v2", SUBJECT, subject);
+        Mockito.when(subject.isCheckedOut()).thenReturn(false);
+        Mockito.when(subject.isNodeType("mix:versionable")).thenReturn(true);
+
+        run(10, "/Subjects/s1/v1", "/Subjects/s1/v2");
+
+        Mockito.verify(visit1).remove();
+        Mockito.verify(visit2).remove();
+        Mockito.verify(subject).checkout();
+        Mockito.verify(subject).checkin();
+    }
+
+    private DeleteJob run(final int chunkSize, final String... paths)
+    {
+        final DeleteJob job = new DeleteJob("admin", Arrays.asList(paths), chunkSize, this.resolver);
+        job.run();
+        return job;
+    }
+
+    private Node addNode(final String path, final String type, final Node parent) throws RepositoryException
+    {
+        final Node node = Mockito.mock(Node.class);
+        final List<Node> nodeChildren = new ArrayList<>();
+        Mockito.when(node.getPath()).thenReturn(path);
+        Mockito.when(node.isNodeType(type)).thenReturn(true);
+        Mockito.when(node.isCheckedOut()).thenReturn(true);
+        Mockito.when(node.getParent()).thenReturn(parent);
+        Mockito.when(node.getDepth()).thenReturn((int) path.chars().filter(c -> c == '/').count());
+        Mockito.when(node.getNodes()).thenAnswer(invocation -> new NodeIteratorAdapter(nodeChildren));
+        Mockito.doAnswer(invocation -> this.existing.removeIf(p -> p.equals(path) || p.startsWith(path + "/")))
+            .when(node).remove();
+        if (parent != null) {
+            this.children.get(parent.getPath()).add(node);
+        }
+        this.children.put(path, nodeChildren);
+        this.nodes.put(path, node);
+        this.existing.add(path);
+        return node;
+    }
+}
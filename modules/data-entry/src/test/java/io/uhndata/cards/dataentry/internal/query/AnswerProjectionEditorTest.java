@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.EditorHook;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+
+/**
+ * Unit tests for {@link AnswerProjectionEditor}, run through {@link AnswerProjectionEditorProvider}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class AnswerProjectionEditorTest
+{
+    private static final String NAME = "q-name";
+
+    private static final String AGE = "q-age";
+
+    private static final String COLORS = "q-colors";
+
+    private static final String VISIT_DATE = "q-visit-date";
+
+    @Mock
+    private AnswerProjectionEditorProvider.Config config;
+
+    private final AnswerProjectionEditorProvider provider = new AnswerProjectionEditorProvider();
+
+    private NodeState root;
+
+    @Before
+    public void setUp()
+    {
+        Mockito.when(this.config.enabled()).thenReturn(true);
+        this.provider.activate(this.config);
+        this.root = EMPTY_NODE.builder().getNodeState();
+    }
+
+    @Test
+    public void newFormsGetAProjectionOfAllTheirAnswers() throws CommitFailedException
+    {
+        final NodeBuilder builder = this.root.builder();
+        final NodeBuilder form = addForm(builder, "f1");
+        addAnswer(form, "a1", NAME).setProperty("value", "Alice");
+        // Answers inside sections are projected as well
+        final NodeBuilder section = form.child("s1");
+        section.setProperty("jcr:primaryType", "cards:AnswerSection", Type.NAME);
+        addAnswer(section, "a2", COLORS).setProperty("value", Arrays.asList("red", "blue"), Type.STRINGS);
+
+        commit(builder);
+
+        Assert.assertEquals(Arrays.asList(COLORS + "=blue", COLORS + "=red", NAME + "=Alice"), projection("f1"));
+    }
+
+    @Test
+    public void numbersAreNormalized() throws CommitFailedException
+    {
+        final NodeBuilder builder = this.root.builder();
+        final NodeBuilder form = addForm(builder, "f1");
+        addAnswer(form, "a1", AGE).setProperty("value", 42.50d);
+        addAnswer(form, "a2", NAME).setProperty("value", 7L);
+
+        commit(builder);
+
+        Assert.assertEquals(Arrays.asList(AGE + "=42.5", NAME + "=7"), projection("f1"));
+    }
+
+    @Test
+    public void datesAndLongValuesAreNotProjected() throws CommitFailedException
+    {
+        final NodeBuilder builder = this.root.builder();
+        final NodeBuilder form = addForm(builder, "f1");
+        addAnswer(form, "a1", VISIT_DATE).setProperty("value", "2021-03-01T00:00:00.000Z", Type.DATE);
+        final char[] longValue = new char[AnswerProjection.MAX_VALUE_LENGTH + 1];
+        Arrays.fill(longValue, 'x');
+        addAnswer(form, "a2", NAME).setProperty("value", new String(longValue));
+
+        commit(builder);
+
+        Assert.assertNull(this.root.getChildNode("Forms").getChildNode("f1").getProperty(AnswerProjection.PROPERTY));
+    }
+
+    @Test
+    public void changedAnswersUpdateTheProjection() throws CommitFailedException
+    {
+        NodeBuilder builder = this.root.builder();
+        final NodeBuilder form = addForm(builder, "f1");
+        addAnswer(form, "a1", NAME).setProperty("value", "Alice");
+        addAnswer(form, "a2", AGE).setProperty("value", 30L);
+        commit(builder);
+
+        builder = this.root.builder();
+        builder.child("Forms").child("f1").child("a1").setProperty("value", "Bob");
+        builder.child("Forms").child("f1").child("a2").remove();
+        commit(builder);
+
+        Assert.assertEquals(Arrays.asList(NAME + "=Bob"), projection("f1"));
+    }
+
+    @Test
+    public void projectionIsRemovedWithTheLastAnswer() throws CommitFailedException
+    {
+        NodeBuilder builder = this.root.builder();
+        addAnswer(addForm(builder, "f1"), "a1", NAME).setProperty("value", "Alice");
+        commit(builder);
+
+        builder = this.root.builder();
+        builder.child("Forms").child("f1").child("a1").removeProperty("value");
+        commit(builder);
+
+        Assert.assertFalse(
+            this.root.getChildNode("Forms").getChildNode("f1").hasProperty(AnswerProjection.PROPERTY));
+    }
+
+    @Test
+    public void onlyFormsUnderTheFormsFolderAreProjected() throws CommitFailedException
+    {
+        final NodeBuilder builder = this.root.builder();
+        final NodeBuilder copy = builder.child("Backup").child("f1");
+        copy.setProperty("jcr:primaryType", "cards:Form", Type.NAME);
+        addAnswer(copy, "a1", NAME).setProperty("value", "Alice");
+
+        commit(builder);
+
+        Assert.assertFalse(
+            this.root.getChildNode("Backup").getChildNode("f1").hasProperty(AnswerProjection.PROPERTY));
+    }
+
+    @Test
+    public void disabledProviderDoesNotProjectAnything() throws CommitFailedException
+    {
+        Mockito.when(this.config.enabled()).thenReturn(false);
+        Mockito.when(this.config.useForFilters()).thenReturn(true);
+        this.provider.activate(this.config);
+
+        final NodeBuilder builder = this.root.builder();
+        addAnswer(addForm(builder, "f1"), "a1", NAME).setProperty("value", "Alice");
+        commit(builder);
+
+        Assert.assertFalse(
+            this.root.getChildNode("Forms").getChildNode("f1").hasProperty(AnswerProjection.PROPERTY));
+        // Filters can't rely on projections that aren't maintained
+        Assert.assertFalse(this.provider.isUsedForFilters());
+    }
+
+    private void commit(final NodeBuilder builder) throws CommitFailedException
+    {
+        this.root = new EditorHook(this.provider).processCommit(this.root, builder.getNodeState(), CommitInfo.EMPTY);
+    }
+
+    private List<String> projection(final String form)
+    {
+        final PropertyState property =
+            this.root.getChildNode("Forms").getChildNode(form).getProperty(AnswerProjection.PROPERTY);
+        Assert.assertNotNull(property);
+        final List<String> result = new ArrayList<>();
+        property.getValue(Type.STRINGS).forEach(result::add);
+        return result;
+    }
+
+    private static NodeBuilder addForm(final NodeBuilder root, final String name)
+    {
+        final NodeBuilder form = root.child("Forms").child(name);
+        form.setProperty("jcr:primaryType", "cards:Form", Type.NAME);
+        return form;
+    }
+
+    private static NodeBuilder addAnswer(final NodeBuilder parent, final String name, final String question)
+    {
+        final NodeBuilder answer = parent.child(name);
+        answer.setProperty("question", question, Type.REFERENCE);
+        return answer;
+    }
+}
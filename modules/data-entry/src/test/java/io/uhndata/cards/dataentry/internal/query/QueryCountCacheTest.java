@@ -0,0 +1,167 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.query;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+
+/**
+ * Unit tests for {@link QueryCountCache}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class QueryCountCacheTest
+{
+    private static final String FORMS = "/Forms";
+
+    private static final String SUBJECTS = "/Subjects";
+
+    private static final BoundQuery QUERY = BoundQuery.of("select * from [cards:Form] as n");
+
+    @Mock
+    private ResourceResolver resolver;
+
+    @Mock
+    private ResourceResolver clone;
+
+    @Mock
+    private QueryCountCache.Config config;
+
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private final QueryCountCache cache = new QueryCountCache();
+
+    private NodeState root;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Mockito.when(this.config.enabled()).thenReturn(true);
+        Mockito.when(this.config.ttl()).thenReturn(300L);
+        Mockito.when(this.config.maxEntries()).thenReturn(100);
+        Mockito.when(this.config.backgroundCounting()).thenReturn(true);
+        Mockito.when(this.resolver.getUserID()).thenReturn("admin");
+        Mockito.when(this.resolver.clone(null)).thenReturn(this.clone);
+
+        // The background count blocks until the test releases it, and then finds 3 results
+        final Session session = Mockito.mock(Session.class);
+        final Workspace workspace = Mockito.mock(Workspace.class);
+        final QueryManager queryManager = Mockito.mock(QueryManager.class);
+        final Query query = Mockito.mock(Query.class);
+        final QueryResult result = Mockito.mock(QueryResult.class);
+        final NodeIterator nodes = Mockito.mock(NodeIterator.class);
+        Mockito.when(this.clone.adaptTo(Session.class)).thenReturn(session);
+        Mockito.when(session.getWorkspace()).thenReturn(workspace);
+        Mockito.when(workspace.getQueryManager()).thenReturn(queryManager);
+        Mockito.when(queryManager.createQuery(Matchers.anyString(), Matchers.anyString())).thenReturn(query);
+        Mockito.when(query.execute()).thenAnswer(invocation -> {
+            this.started.countDown();
+            this.release.await(5, TimeUnit.SECONDS);
+            return result;
+        });
+        Mockito.when(result.getNodes()).thenReturn(nodes);
+        Mockito.when(nodes.hasNext()).thenReturn(true, true, true, false);
+
+        this.cache.activate(this.config);
+        this.root = EMPTY_NODE.builder().getNodeState();
+        this.cache.contentChanged(this.root, CommitInfo.EMPTY);
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.release.countDown();
+        this.cache.deactivate();
+    }
+
+    @Test
+    public void changesInvalidateOnlyTheirScope()
+    {
+        this.cache.put(this.resolver, FORMS, QUERY, 10, true);
+        this.cache.put(this.resolver, SUBJECTS, QUERY, 20, true);
+
+        addNode(FORMS, "f1");
+
+        Assert.assertNull(this.cache.get(this.resolver, FORMS, QUERY));
+        Assert.assertEquals(20, this.cache.get(this.resolver, SUBJECTS, QUERY).getValue());
+    }
+
+    @Test
+    public void backgroundCountIsStoredDespiteChangesInOtherScopes() throws Exception
+    {
+        this.cache.put(this.resolver, FORMS, QUERY, 10, true);
+        this.cache.countInBackground(this.resolver, SUBJECTS, QUERY);
+        Assert.assertTrue(this.started.await(5, TimeUnit.SECONDS));
+
+        addNode(FORMS, "f1");
+        this.release.countDown();
+        Mockito.verify(this.clone, Mockito.timeout(5000)).close();
+
+        final QueryCountCache.Count count = this.cache.get(this.resolver, SUBJECTS, QUERY);
+        Assert.assertEquals(3, count.getValue());
+        Assert.assertTrue(count.isExact());
+    }
+
+    @Test
+    public void backgroundCountIsDiscardedAfterChangesInItsScope() throws Exception
+    {
+        this.cache.countInBackground(this.resolver, SUBJECTS, QUERY);
+        Assert.assertTrue(this.started.await(5, TimeUnit.SECONDS));
+
+        addNode(SUBJECTS, "s1");
+        this.release.countDown();
+        Mockito.verify(this.clone, Mockito.timeout(5000)).close();
+
+        Assert.assertNull(this.cache.get(this.resolver, SUBJECTS, QUERY));
+    }
+
+    private void addNode(final String parent, final String name)
+    {
+        final NodeBuilder builder = this.root.builder();
+        builder.child(parent.substring(1)).child(name);
+        this.root = builder.getNodeState();
+        this.cache.contentChanged(this.root, CommitInfo.EMPTY);
+    }
+}
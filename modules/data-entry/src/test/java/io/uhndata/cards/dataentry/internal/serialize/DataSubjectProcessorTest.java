@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.dataentry.internal.serialize;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceMetadata;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.serialize.DeferredArrayValue;
+import io.uhndata.cards.serialize.spi.SerializationContext;
+
+/**
+ * Unit tests for {@link DataSubjectProcessor}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class DataSubjectProcessorTest
+{
+    private static final String SUBJECT_PATH = "/Subjects/s1";
+
+    private static final int FORMS = 95;
+
+    @Mock
+    private Resource subject;
+
+    @Mock
+    private Node subjectNode;
+
+    @Mock
+    private ResourceResolver resolver;
+
+    @Mock
+    private SerializationContext context;
+
+    @Mock
+    private DataSubjectProcessor.Config config;
+
+    private final DataSubjectProcessor processor = new DataSubjectProcessor();
+
+    /** How many forms were serialized so far. */
+    private final AtomicInteger serialized = new AtomicInteger();
+
+    @Before
+    public void setup() throws RepositoryException, LoginException
+    {
+        final ResourceMetadata metadata = new ResourceMetadata();
+        metadata.setResolutionPathInfo(".data");
+        Mockito.when(this.subject.getPath()).thenReturn(SUBJECT_PATH);
+        Mockito.when(this.subject.getResourceResolver()).thenReturn(this.resolver);
+        Mockito.when(this.subject.getResourceMetadata()).thenReturn(metadata);
+        Mockito.when(this.subjectNode.getPath()).thenReturn(SUBJECT_PATH);
+        Mockito.when(this.subjectNode.getIdentifier()).thenReturn("s1");
+        Mockito.when(this.context.getResource()).thenReturn(this.subject);
+        Mockito.doReturn(new HashMap<String, String>()).when(this.context)
+            .getState(Matchers.any(), Matchers.any());
+        Mockito.when(this.resolver.clone(null)).thenReturn(this.resolver);
+
+        // Forms alternate between two questionnaires, listed in reverse alphabetical order
+        final Node questionnaireA = mockQuestionnaire("A");
+        final Node questionnaireB = mockQuestionnaire("B");
+        final List<Resource> forms = new ArrayList<>();
+        for (int i = 0; i < FORMS; ++i) {
+            forms.add(mockForm(i, i % 2 == 0 ? questionnaireB : questionnaireA));
+        }
+        Mockito.when(this.resolver.findResources(Matchers.anyString(), Matchers.eq(Query.JCR_SQL2)))
+            .thenAnswer(invocation -> forms.iterator());
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.processor.deactivate();
+    }
+
+    @Test
+    public void formsAreSerializedOnlyWhenTheOutputIsWritten()
+    {
+        activate(4);
+        final JsonObject json = leave();
+
+        Assert.assertTrue(json.get("A") instanceof DeferredArrayValue);
+        Assert.assertTrue(json.get("B") instanceof DeferredArrayValue);
+        Assert.assertEquals(0, this.serialized.get());
+    }
+
+    @Test
+    public void parallelSerializationKeepsTheOrderOfForms()
+    {
+        activate(4);
+        assertFormsInOrder(leave());
+        Assert.assertEquals(FORMS, this.serialized.get());
+    }
+
+    @Test
+    public void sequentialSerializationKeepsTheOrderOfForms()
+    {
+        activate(1);
+        assertFormsInOrder(leave());
+        Assert.assertEquals(FORMS, this.serialized.get());
+    }
+
+    @Test
+    public void formsAreSerializedInTheCurrentThreadAfterDeactivation()
+    {
+        activate(4);
+        final JsonObject json = leave();
+        this.processor.deactivate();
+        assertFormsInOrder(json);
+    }
+
+    private void activate(final int threads)
+    {
+        Mockito.when(this.config.threadPoolSize()).thenReturn(threads);
+        this.processor.activate(this.config);
+    }
+
+    private JsonObject leave()
+    {
+        final JsonObjectBuilder json = Json.createObjectBuilder();
+        this.processor.leave(this.subjectNode, json, this.context);
+        return json.build();
+    }
+
+    private void assertFormsInOrder(final JsonObject json)
+    {
+        final JsonArray a = json.getJsonArray("A");
+        final JsonArray b = json.getJsonArray("B");
+        Assert.assertEquals(FORMS / 2, a.size());
+        Assert.assertEquals(FORMS - FORMS / 2, b.size());
+        for (int i = 0; i < a.size(); ++i) {
+            Assert.assertEquals("/Forms/f" + (2 * i + 1), a.getJsonObject(i).getString("@path"));
+        }
+        for (int i = 0; i < b.size(); ++i) {
+            Assert.assertEquals("/Forms/f" + (2 * i), b.getJsonObject(i).getString("@path"));
+        }
+    }
+
+    private Node mockQuestionnaire(final String title) throws RepositoryException
+    {
+        final Node questionnaire = Mockito.mock(Node.class);
+        final Property titleProperty = Mockito.mock(Property.class);
+        Mockito.when(titleProperty.getString()).thenReturn(title);
+        Mockito.when(questionnaire.getProperty("title")).thenReturn(titleProperty);
+        return questionnaire;
+    }
+
+    private Resource mockForm(final int index, final Node questionnaire) throws RepositoryException
+    {
+        final String path = "/Forms/f" + index;
+        final Resource form = Mockito.mock(Resource.class);
+        final Node formNode = Mockito.mock(Node.class);
+        final Property questionnaireProperty = Mockito.mock(Property.class);
+        Mockito.when(questionnaireProperty.getNode()).thenReturn(questionnaire);
+        Mockito.when(formNode.getProperty("questionnaire")).thenReturn(questionnaireProperty);
+        Mockito.when(form.getPath()).thenReturn(path);
+        Mockito.when(form.adaptTo(Node.class)).thenReturn(formNode);
+
+        final Resource selected = Mockito.mock(Resource.class);
+        Mockito.when(selected.adaptTo(JsonObject.class)).thenAnswer(invocation -> {
+            this.serialized.incrementAndGet();
+            return Json.createObjectBuilder().add("@path", path).build();
+        });
+        Mockito.when(this.resolver.resolve(path + ".data")).thenReturn(selected);
+        return form;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.spi.QuickSearchEngine;
+import io.uhndata.cards.spi.SearchParameters;
+import io.uhndata.cards.spi.SearchParametersFactory;
+
+/**
+ * Unit tests for {@link ParallelQuickSearch}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ParallelQuickSearchTest
+{
+    @Mock
+    private ResourceResolver resolver;
+
+    @Mock
+    private ResourceResolver clone;
+
+    @Mock
+    private ParallelQuickSearch.Config config;
+
+    private final ParallelQuickSearch search = new ParallelQuickSearch();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Mockito.when(this.config.threads()).thenReturn(1);
+        Mockito.when(this.resolver.clone(null)).thenReturn(this.clone);
+        this.search.activate(this.config);
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.search.deactivate();
+    }
+
+    @Test
+    public void resultsAreListedInEngineOrder()
+    {
+        final List<JsonObject> result = this.search.search(Arrays.asList(new Engine("a", 2), new Engine("b", 3)),
+            parameters(10, true), this.resolver);
+
+        Assert.assertEquals(Arrays.asList("a0", "a1", "b0", "b1", "b2"), names(result));
+    }
+
+    @Test
+    public void buffersStayConsistentWhenFull()
+    {
+        // Each engine checks its output like the real engines do, by reading back the last result
+        final Engine first = new Engine("a", 2);
+        final Engine second = new Engine("b", 5);
+
+        final List<JsonObject> result =
+            this.search.search(Arrays.asList(first, second), parameters(3, false), this.resolver);
+
+        Assert.assertEquals(Arrays.asList("a0", "a1", "b0"), names(result));
+        Assert.assertEquals(2, first.found);
+        Assert.assertEquals(3, second.found);
+    }
+
+    @Test
+    public void enginesNotStartedAreCancelledOnceEnoughResultsAreFound() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final QuickSearchEngine blocked = Mockito.mock(QuickSearchEngine.class);
+        Mockito.doAnswer(invocation -> release.await(5, TimeUnit.SECONDS)).when(blocked)
+            .quickSearch(Matchers.any(), Matchers.any(), Matchers.any());
+        final QuickSearchEngine queued = Mockito.mock(QuickSearchEngine.class);
+
+        final List<JsonObject> result = this.search.search(Arrays.asList(new Engine("a", 3), blocked, queued),
+            parameters(2, false), this.resolver);
+        release.countDown();
+
+        Assert.assertEquals(Arrays.asList("a0", "a1"), names(result));
+        // Both clones are closed: the running engine closes its own, the cancelled one is closed when cancelling it
+        Mockito.verify(this.clone, Mockito.timeout(5000).times(2)).close();
+        Mockito.verify(queued, Mockito.never()).quickSearch(Matchers.any(), Matchers.any(), Matchers.any());
+    }
+
+    @Test
+    public void noEnginesGiveNoResults()
+    {
+        Assert.assertTrue(this.search.search(Collections.emptyList(), parameters(10, true), this.resolver).isEmpty());
+    }
+
+    private static SearchParameters parameters(final long maxResults, final boolean showTotalResults)
+    {
+        return SearchParametersFactory.newSearchParameters().withType("quick").withQuery("test")
+            .withMaxResults(maxResults).withShowTotalResults(showTotalResults).build();
+    }
+
+    private static List<String> names(final List<JsonObject> results)
+    {
+        return Arrays.asList(results.stream().map(r -> r.getString("name")).toArray(String[]::new));
+    }
+
+    /** An engine finding a fixed number of results, and stopping when its output is full, like the real engines. */
+    private static final class Engine implements QuickSearchEngine
+    {
+        private final String prefix;
+
+        private final int results;
+
+        private int found;
+
+        Engine(final String prefix, final int results)
+        {
+            this.prefix = prefix;
+            this.results = results;
+        }
+
+        @Override
+        public List<String> getSupportedTypes()
+        {
+            return Collections.singletonList("cards:Test");
+        }
+
+        @Override
+        public void quickSearch(final SearchParameters query, final ResourceResolver resourceResolver,
+            final List<JsonObject> output)
+        {
+            for (int i = 0; i < this.results; ++i) {
+                if (output.size() >= query.getMaxResults() && !query.showTotalResults()) {
+                    return;
+                }
+                output.add(Json.createObjectBuilder().add("name", this.prefix + i).build());
+                ++this.found;
+                Assert.assertEquals(this.prefix + i, output.get(output.size() - 1).getString("name"));
+            }
+        }
+    }
+}
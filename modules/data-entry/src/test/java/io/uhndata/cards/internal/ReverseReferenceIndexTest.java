@@ -0,0 +1,271 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+
+/**
+ * Unit tests for {@link ReverseReferenceIndex}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ReverseReferenceIndexTest
+{
+    private static final String QUESTIONNAIRE = "/Questionnaires/q1";
+
+    private static final String QUESTION = "/Questionnaires/q1/question1";
+
+    private static final String FORM_TYPE = "cards:Form";
+
+    private static final String ANSWER_TYPE = "cards:TextAnswer";
+
+    private static final String QUESTION_TYPE = "cards:Question";
+
+    private static final String PRIMARY_TYPE = "jcr:primaryType";
+
+    @Mock
+    private ResourceResolverFactory resolverFactory;
+
+    @Mock
+    private ResourceResolver serviceResolver;
+
+    @Mock
+    private Session serviceSession;
+
+    @Mock
+    private ReverseReferenceIndex.Config config;
+
+    @InjectMocks
+    private ReverseReferenceIndex index;
+
+    /** The paths of the referenceable nodes, by identifier, as the service session sees them. */
+    private final Map<String, String> identifiers = new HashMap<>();
+
+    private NodeState root;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Mockito.when(this.config.enabled()).thenReturn(true);
+        Mockito.when(this.config.folders()).thenReturn(new String[] { "Forms", "Subjects", "Questionnaires" });
+        Mockito.when(this.resolverFactory.getServiceResourceResolver(
+            Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, "referenceIndex")))
+            .thenReturn(this.serviceResolver);
+        Mockito.when(this.serviceResolver.adaptTo(Session.class)).thenReturn(this.serviceSession);
+        Mockito.when(this.serviceSession.getNodeByIdentifier(Matchers.anyString())).thenAnswer(invocation -> {
+            final String path = this.identifiers.get(invocation.getArguments()[0]);
+            if (path == null) {
+                throw new ItemNotFoundException();
+            }
+            final Node node = Mockito.mock(Node.class);
+            Mockito.when(node.getPath()).thenReturn(path);
+            return node;
+        });
+        this.index.activate(this.config);
+
+        final NodeBuilder builder = EMPTY_NODE.builder();
+        final NodeBuilder questionnaire = builder.child("Questionnaires").child("q1");
+        referenceable(questionnaire, "q1-id", QUESTIONNAIRE);
+        referenceable(questionnaire.child("question1"), "question1-id", QUESTION);
+        final NodeBuilder question2 = questionnaire.child("question2");
+        referenceable(question2, "question2-id", QUESTIONNAIRE + "/question2");
+        // A reference inside the questionnaire
+        question2.setProperty(PRIMARY_TYPE, QUESTION_TYPE, Type.NAME);
+        question2.setProperty("condition", "question1-id", Type.REFERENCE);
+        final NodeBuilder form = builder.child("Forms").child("f1");
+        form.setProperty(PRIMARY_TYPE, FORM_TYPE, Type.NAME);
+        form.setProperty("questionnaire", "q1-id", Type.REFERENCE);
+        final NodeBuilder answer = form.child("a1");
+        answer.setProperty(PRIMARY_TYPE, ANSWER_TYPE, Type.NAME);
+        answer.setProperty("question", "question1-id", Type.REFERENCE);
+        // Weak references don't prevent deletes
+        answer.setProperty("section", "q1-id", Type.WEAKREFERENCE);
+        this.root = builder.getNodeState();
+        this.index.contentChanged(this.root, CommitInfo.EMPTY);
+    }
+
+    @After
+    public void tearDown()
+    {
+        this.index.deactivate();
+    }
+
+    @Test
+    public void loadingDoesNotBlockTheCaller() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(this.resolverFactory.getServiceResourceResolver(Matchers.anyMapOf(String.class, Object.class)))
+            .thenAnswer(invocation -> {
+                release.await(5, TimeUnit.SECONDS);
+                return this.serviceResolver;
+            });
+
+        Assert.assertFalse(this.index.isAvailable());
+
+        release.countDown();
+        waitUntilAvailable();
+        Assert.assertEquals(Long.valueOf(1), this.index.countReferences(QUESTIONNAIRE).get(FORM_TYPE));
+        Mockito.verify(this.serviceResolver, Mockito.timeout(5000)).close();
+    }
+
+    @Test
+    public void countsReferencesFromOutsideEachSubtree() throws Exception
+    {
+        waitUntilAvailable();
+
+        final Map<String, Long> toQuestionnaire = new HashMap<>();
+        toQuestionnaire.put(FORM_TYPE, 1L);
+        toQuestionnaire.put(ANSWER_TYPE, 1L);
+        Assert.assertEquals(toQuestionnaire, this.index.countReferences(QUESTIONNAIRE));
+        Assert.assertEquals(toQuestionnaire, this.index.countReferences("/Questionnaires"));
+
+        // The reference from the other question is external to the question, but internal to the questionnaire
+        final Map<String, Long> toQuestion = new HashMap<>();
+        toQuestion.put(ANSWER_TYPE, 1L);
+        toQuestion.put(QUESTION_TYPE, 1L);
+        Assert.assertEquals(toQuestion, this.index.countReferences(QUESTION));
+
+        Assert.assertTrue(this.index.countReferences("/Forms/f1").isEmpty());
+        Assert.assertTrue(this.index.countReferences("/Subjects").isEmpty());
+    }
+
+    @Test
+    public void countsReferencesFromOutsideTheIndexedFolders() throws Exception
+    {
+        final NodeBuilder builder = this.root.builder();
+        final NodeBuilder config = builder.child("apps").child("config");
+        config.setProperty(PRIMARY_TYPE, "nt:unstructured", Type.NAME);
+        config.setProperty("default", "q1-id", Type.REFERENCE);
+        // Versions and indexes are ignored
+        builder.child("jcr:system").child("version").setProperty("questionnaire", "q1-id", Type.REFERENCE);
+        builder.child("oak:index").child("refs").setProperty("questionnaire", "q1-id", Type.REFERENCE);
+        this.root = builder.getNodeState();
+        this.index.contentChanged(this.root, CommitInfo.EMPTY);
+        waitUntilAvailable();
+
+        final Map<String, Long> counts = this.index.countReferences(QUESTIONNAIRE);
+        Assert.assertEquals(Long.valueOf(1), counts.get("nt:unstructured"));
+        Assert.assertEquals(Long.valueOf(1), counts.get(FORM_TYPE));
+        Assert.assertEquals(3, counts.size());
+    }
+
+    @Test
+    public void commitsUpdateTheLoadedCounts() throws Exception
+    {
+        waitUntilAvailable();
+
+        NodeBuilder builder = this.root.builder();
+        final NodeBuilder form = builder.child("Forms").child("f2");
+        form.setProperty(PRIMARY_TYPE, FORM_TYPE, Type.NAME);
+        form.setProperty("questionnaire", "q1-id", Type.REFERENCE);
+        commit(builder);
+        Assert.assertEquals(Long.valueOf(2), this.index.countReferences(QUESTIONNAIRE).get(FORM_TYPE));
+
+        // Changes to versions don't affect the counts
+        builder = this.root.builder();
+        builder.child("jcr:system").child("version").setProperty("questionnaire", "q1-id", Type.REFERENCE);
+        commit(builder);
+        Assert.assertEquals(Long.valueOf(2), this.index.countReferences(QUESTIONNAIRE).get(FORM_TYPE));
+
+        builder = this.root.builder();
+        builder.child("Forms").getChildNode("f1").remove();
+        builder.child("Forms").getChildNode("f2").remove();
+        commit(builder);
+        Assert.assertTrue(this.index.countReferences(QUESTIONNAIRE).isEmpty());
+        Assert.assertEquals(Collections.singletonMap(QUESTION_TYPE, 1L), this.index.countReferences(QUESTION));
+        Assert.assertTrue(this.index.isAvailable());
+    }
+
+    @Test
+    public void movingAReferencedNodeCausesAReload() throws Exception
+    {
+        waitUntilAvailable();
+
+        final NodeBuilder builder = this.root.builder();
+        final NodeState moved = this.root.getChildNode("Questionnaires").getChildNode("q1");
+        builder.child("Questionnaires").getChildNode("q1").remove();
+        builder.child("Questionnaires").setChildNode("renamed", moved);
+        this.identifiers.put("q1-id", "/Questionnaires/renamed");
+        this.identifiers.put("question1-id", "/Questionnaires/renamed/question1");
+        this.identifiers.put("question2-id", "/Questionnaires/renamed/question2");
+        commit(builder);
+
+        waitUntilAvailable();
+        Assert.assertTrue(this.index.countReferences(QUESTIONNAIRE).isEmpty());
+        Assert.assertEquals(Long.valueOf(1), this.index.countReferences("/Questionnaires/renamed").get(FORM_TYPE));
+    }
+
+    @Test
+    public void disabledIndexIsNeverAvailable()
+    {
+        Mockito.when(this.config.enabled()).thenReturn(false);
+        this.index.activate(this.config);
+
+        Assert.assertFalse(this.index.isAvailable());
+    }
+
+    private void commit(final NodeBuilder builder)
+    {
+        this.root = builder.getNodeState();
+        this.index.contentChanged(this.root, CommitInfo.EMPTY);
+    }
+
+    private void waitUntilAvailable() throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!this.index.isAvailable()) {
+            Assert.assertTrue("The index wasn't loaded in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void referenceable(final NodeBuilder node, final String identifier, final String path)
+    {
+        node.setProperty("jcr:uuid", identifier);
+        this.identifiers.put(identifier, path);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.cache;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+
+/**
+ * Base class for in-memory caches whose entries depend on the content of specific subtrees of the repository. After
+ * each commit, the subtrees that the cache currently depends on are compared with their state before the commit, and
+ * the cache is told which of them changed. Since node states are immutable, any change to a node or to any of its
+ * descendants results in a different node state, so this check is cheap and doesn't need to go through the subtrees.
+ * <p>
+ * Subclasses must be registered as an {@link Observer} service.
+ * </p>
+ *
+ * @version $Id$
+ */
+public abstract class PathInvalidatingObserver implements Observer
+{
+    /** The repository state seen in the previous commit, used for detecting which subtrees changed. */
+    private NodeState previousRoot;
+
+    @Override
+    public void contentChanged(final NodeState root, final CommitInfo info)
+    {
+        final NodeState before = this.previousRoot;
+        this.previousRoot = root;
+        if (before == null) {
+            return;
+        }
+
+        final Collection<String> paths = getWatchedPaths();
+        if (paths.isEmpty()) {
+            return;
+        }
+
+        final Set<String> changed = new HashSet<>();
+        for (final String path : paths) {
+            if (!getNodeState(before, path).equals(getNodeState(root, path))) {
+                changed.add(path);
+            }
+        }
+        if (!changed.isEmpty()) {
+            invalidate(changed);
+        }
+    }
+
+    /**
+     * Lists the subtrees that the cached entries currently depend on. This is called after each commit, so it should
+     * be fast, and it must return a copy that isn't affected by concurrent changes to the cache.
+     *
+     * @return a collection of absolute paths, may be empty
+     */
+    protected abstract Collection<String> getWatchedPaths();
+
+    /**
+     * Discards the entries depending on subtrees that changed.
+     *
+     * @param changedPaths some of the {@link #getWatchedPaths watched paths}, those whose subtree changed in the latest
+     *            commit
+     */
+    protected abstract void invalidate(Set<String> changedPaths);
+
+    /**
+     * Finds a node in a repository state.
+     *
+     * @param root the root of the repository state
+     * @param path the absolute path of the node to find
+     * @return the node state, which doesn't {@link NodeState#exists() exist} if there's no node at that path
+     */
+    protected static NodeState getNodeState(final NodeState root, final String path)
+    {
+        NodeState result = root;
+        for (final String name : path.split("/")) {
+            if (!name.isEmpty()) {
+                result = result.getChildNode(name);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.concurrent;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named after the component using them, followed by a number, such as {@code QuickSearch-3},
+ * so that background work can be recognized in thread dumps without preventing the JVM from shutting down.
+ *
+ * @version $Id$
+ */
+public final class NamedThreadFactory implements ThreadFactory
+{
+    /** The prefix of the thread names. */
+    private final String name;
+
+    /** How many threads were created so far. */
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    /**
+     * Basic constructor.
+     *
+     * @param name the prefix of the thread names, a dash and a number are appended to it
+     */
+    public NamedThreadFactory(final String name)
+    {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(final Runnable task)
+    {
+        final Thread thread = new Thread(task, this.name + "-" + this.threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,548 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+import java.util.function.Supplier;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+
+import org.apache.sling.api.resource.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.serialize.internal.SerializedJsonCache;
+import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
+
+/**
+ * The state of one resource serialization, and the actual implementation of the serialization process. A new instance
+ * is created by {@link ResourceToJsonAdapterFactory} for each resource being serialized, and it is discarded at the
+ * end.
+ *
+ * @version $Id$
+ */
+final class DefaultSerializationContext implements SerializationContext
+{
+    /** Logging helper. */
+    private static final Logger LOGGER = LoggerFactory.getLogger(DefaultSerializationContext.class);
+
+    /** The resource being serialized. */
+    private final Resource resource;
+
+    /** The processors that are enabled for the current resource serialization, in order of priority. */
+    private final ResourceJsonProcessor[] processors;
+
+    /**
+     * To prevent infinite recursion in case of circular references among nodes, keep track of the nodes processed so
+     * far down the stack.
+     */
+    private final Stack<String> processedNodes = new Stack<>();
+
+    /** The temporary state stored by each processor. */
+    private final Map<ResourceJsonProcessor, Object> states = new IdentityHashMap<>();
+
+    /** The view of this context passed to processors while streaming, which defers the serialization of nodes. */
+    private final SerializationContext streamingView = new StreamingView();
+
+    /** Cache for the serialization of frequently used nodes, may be {@code null}. */
+    private final SerializedJsonCache cache;
+
+    /** Identifies the enabled processors, used for finding values in the cache. */
+    private final String signature;
+
+    /**
+     * Constructor specifying the resource to serialize and the processors to use.
+     *
+     * @param resource the resource to serialize
+     * @param chain the enabled processors
+     * @param cache cache for serialized nodes, may be {@code null} if caching is not available
+     */
+    DefaultSerializationContext(final Resource resource, final ProcessorChain chain, final SerializedJsonCache cache)
+    {
+        this.resource = resource;
+        this.processors = chain.getProcessors();
+        this.signature = chain.getSignature();
+        this.cache = cache;
+    }
+
+    @Override
+    public Resource getResource()
+    {
+        return this.resource;
+    }
+
+    @Override
+    public JsonValue serialize(final Node node)
+    {
+        if (node == null) {
+            return null;
+        }
+
+        try {
+            final boolean alreadyProcessed = this.processedNodes.contains(node.getPath());
+            this.processedNodes.add(node.getPath());
+            if (!alreadyProcessed) {
+                final boolean cacheable = isCacheable(node);
+                final boolean isRoot = cacheable && node.getPath().equals(this.resource.getPath());
+                final long generation = cacheable ? this.cache.getGeneration() : 0;
+                if (cacheable) {
+                    final JsonValue cached = this.cache.get(node, this.signature, isRoot);
+                    if (cached != null) {
+                        return cached;
+                    }
+                }
+                final JsonObjectBuilder result = Json.createObjectBuilder();
+                enterNode(node, result, this);
+                processProperties(node, result);
+                processChildren(node, result);
+                leaveNode(node, result, this);
+                final JsonObject json = result.build();
+                // Deferred arrays are only useful when streaming, compute them now, while the serialization is running
+                json.values().stream().filter(DeferredArrayValue.class::isInstance)
+                    .forEach(value -> ((DeferredArrayValue) value).getValue());
+                if (cacheable) {
+                    this.cache.put(node, this.signature, isRoot, json, generation);
+                }
+                return json;
+            }
+            // If the node has already been processed, only include its path in the output
+            return Json.createValue(node.getPath());
+        } catch (RepositoryException e) {
+            LOGGER.error("Failed to serialize node [{}] to JSON: {}", node, e.getMessage(), e);
+        } finally {
+            this.processedNodes.pop();
+        }
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getState(final ResourceJsonProcessor processor, final Supplier<T> initializer)
+    {
+        return (T) this.states.computeIfAbsent(processor, p -> initializer.get());
+    }
+
+    /**
+     * Serialize the resource in memory.
+     *
+     * @return the JSON serialization of the resource, or {@code null} if the resource cannot be serialized
+     */
+    JsonValue serializeResource()
+    {
+        start();
+        final JsonValue result = serialize(this.resource.adaptTo(Node.class));
+        end();
+        return result;
+    }
+
+    /**
+     * Serialize the resource directly into a JSON generator.
+     *
+     * @param generator the generator where the JSON should be written
+     */
+    void streamResource(final JsonGenerator generator)
+    {
+        start();
+        streamNode(null, this.resource.adaptTo(Node.class), generator);
+        end();
+    }
+
+    /**
+     * Function used by processors to serialize nodes in streaming mode. The actual serialization is postponed until
+     * the value is either written out, in which case the node will be streamed, or inspected by a processor, in which
+     * case the node is serialized in memory.
+     *
+     * @param node the node to serialize
+     * @return a deferred JSON object, or the node's path as a simple string if the node is already being serialized
+     */
+    private JsonValue deferNode(final Node node)
+    {
+        if (node == null) {
+            return null;
+        }
+        try {
+            if (this.processedNodes.contains(node.getPath())) {
+                return Json.createValue(node.getPath());
+            }
+        } catch (RepositoryException e) {
+            LOGGER.error("Failed to serialize node [{}] to JSON: {}", node, e.getMessage(), e);
+            return null;
+        }
+        return new DeferredNodeValue(node, this::serialize);
+    }
+
+    /**
+     * Write the serialization of a node into a JSON generator, as its properties and children are being processed.
+     *
+     * @param name the key under which the node must be written, or {@code null} if this is the top level value
+     * @param node the node to serialize
+     * @param generator the generator where the JSON should be written
+     */
+    private void streamNode(final String name, final Node node, final JsonGenerator generator)
+    {
+        // Cached nodes are written out from the cache, or built in memory so that they can be stored in the cache
+        if (requiresBuffering(node) || isCacheable(node)) {
+            writeValue(name, serialize(node), generator);
+            return;
+        }
+
+        boolean started = false;
+        try {
+            final String path = node.getPath();
+            if (this.processedNodes.contains(path)) {
+                writeValue(name, Json.createValue(path), generator);
+                return;
+            }
+            this.processedNodes.add(path);
+            try {
+                final JsonObjectBuilder head = Json.createObjectBuilder();
+                enterNode(node, head, this.streamingView);
+                if (name == null) {
+                    generator.writeStartObject();
+                } else {
+                    generator.writeStartObject(name);
+                }
+                started = true;
+                // The keys already written out, since the output can't contain the same key twice
+                final Set<String> written = new HashSet<>();
+                writeEntries(head.build(), generator, written);
+                streamProperties(node, generator, written);
+                streamChildren(node, generator, written);
+                // Anything added while leaving the node will be placed after the already written properties and
+                // children; unlike in memory, where it replaces them, a value whose key was already written is dropped
+                final JsonObjectBuilder tail = Json.createObjectBuilder();
+                leaveNode(node, tail, this.streamingView);
+                writeEntries(tail.build(), generator, written);
+            } finally {
+                this.processedNodes.pop();
+            }
+        } catch (RepositoryException e) {
+            LOGGER.error("Failed to serialize node [{}] to JSON: {}", node, e.getMessage(), e);
+        }
+        if (started) {
+            generator.writeEnd();
+        }
+    }
+
+    /**
+     * Checks if any of the enabled processors requires the node to be serialized in memory.
+     *
+     * @param node the node about to be serialized
+     * @return {@code true} if the node must be built in memory, {@code false} if it can be streamed
+     */
+    private boolean requiresBuffering(final Node node)
+    {
+        if (node == null) {
+            return true;
+        }
+        for (final ResourceJsonProcessor p : this.processors) {
+            if (p.requiresBuffering(node, this.streamingView)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the serialization of a node may be taken from, and stored in, the cache.
+     *
+     * @param node the node about to be serialized
+     * @return {@code true} if caching is available and enabled for the node
+     */
+    private boolean isCacheable(final Node node)
+    {
+        return this.cache != null && this.cache.isCacheable(node);
+    }
+
+    /**
+     * Write a value into a JSON generator, streaming deferred nodes that have not been inspected yet.
+     *
+     * @param name the key under which the value must be written, or {@code null} if this is an unnamed value
+     * @param value the value to write
+     * @param generator the generator where the JSON should be written
+     */
+    private void writeValue(final String name, final JsonValue value, final JsonGenerator generator)
+    {
+        if (value == null) {
+            return;
+        }
+        if (value instanceof DeferredNodeValue && !((DeferredNodeValue) value).isComputed()) {
+            streamNode(name, ((DeferredNodeValue) value).getNode(), generator);
+        } else if (value instanceof DeferredArrayValue && !((DeferredArrayValue) value).isComputed()) {
+            streamArray(name, (DeferredArrayValue) value, generator);
+        } else if (name == null) {
+            generator.write(value);
+        } else {
+            generator.write(name, value);
+        }
+    }
+
+    /**
+     * Write a deferred array into a JSON generator, computing and writing its items one at a time.
+     *
+     * @param name the key under which the array must be written, or {@code null} if this is an unnamed value
+     * @param array the array to write
+     * @param generator the generator where the JSON should be written
+     */
+    private void streamArray(final String name, final DeferredArrayValue array, final JsonGenerator generator)
+    {
+        if (name == null) {
+            generator.writeStartArray();
+        } else {
+            generator.writeStartArray(name);
+        }
+        array.iterateDeferred().forEachRemaining(item -> writeValue(null, item, generator));
+        generator.writeEnd();
+    }
+
+    /**
+     * Write a named value inside the currently open object, unless a value with the same name was already written.
+     *
+     * @param name the key under which the value must be written
+     * @param value the value to write
+     * @param generator the generator where the JSON should be written
+     * @param written the keys already written in the current object, updated with the new key
+     */
+    private void writeMember(final String name, final JsonValue value, final JsonGenerator generator,
+        final Set<String> written)
+    {
+        if (value == null) {
+            return;
+        }
+        if (!written.add(name)) {
+            LOGGER.debug("Skipping duplicate key [{}] while streaming", name);
+            return;
+        }
+        writeValue(name, value, generator);
+    }
+
+    /**
+     * Write all the entries of a JSON object into a JSON generator, inside the currently open object.
+     *
+     * @param json the entries to write
+     * @param generator the generator where the JSON should be written
+     * @param written the keys already written in the current object, updated with the new keys
+     */
+    private void writeEntries(final JsonObject json, final JsonGenerator generator, final Set<String> written)
+    {
+        json.forEach((key, value) -> writeMember(key, value, generator, written));
+    }
+
+    /**
+     * Prepare the serialization of the resource by invoking {@link ResourceJsonProcessor#start} in all enabled
+     * processors.
+     */
+    private void start()
+    {
+        for (final ResourceJsonProcessor p : this.processors) {
+            p.start(this.resource, this);
+        }
+    }
+
+    /**
+     * Prepare the serialization of a node by invoking {@link ResourceJsonProcessor#enter} in all enabled processors.
+     *
+     * @param node the node to serialize
+     * @param json the JSON being built
+     * @param context the view of this context to pass to the processors
+     */
+    private void enterNode(final Node node, final JsonObjectBuilder json, final SerializationContext context)
+    {
+        for (final ResourceJsonProcessor p : this.processors) {
+            p.enter(node, json, context);
+        }
+    }
+
+    /**
+     * Serialize the properties of a node into a {@code JsonObjectBuilder} by invoking
+     * {@link ResourceJsonProcessor#processProperty} in all enabled processors.
+     *
+     * @param node the node to serialize
+     * @param json the JSON being built
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private void processProperties(final Node node, final JsonObjectBuilder json) throws RepositoryException
+    {
+        final PropertyIterator properties = node.getProperties();
+        while (properties.hasNext()) {
+            Property thisProp = properties.nextProperty();
+            JsonValue value = processProperty(node, thisProp, this);
+            if (value != null) {
+                json.add(thisProp.getName(), value);
+            }
+        }
+    }
+
+    /**
+     * Serialize the properties of a node directly into a JSON generator by invoking
+     * {@link ResourceJsonProcessor#processProperty} in all enabled processors.
+     *
+     * @param node the node to serialize
+     * @param generator the generator where the JSON should be written
+     * @param written the keys already written in the node's object, updated with the new keys
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private void streamProperties(final Node node, final JsonGenerator generator, final Set<String> written)
+        throws RepositoryException
+    {
+        final PropertyIterator properties = node.getProperties();
+        while (properties.hasNext()) {
+            Property thisProp = properties.nextProperty();
+            writeMember(thisProp.getName(), processProperty(node, thisProp, this.streamingView), generator, written);
+        }
+    }
+
+    /**
+     * Serialize one property by invoking {@link ResourceJsonProcessor#processProperty} in all enabled processors.
+     *
+     * @param node the node whose property is serialized
+     * @param property the property to serialize
+     * @param context the view of this context to pass to the processors
+     * @return the serialized property, may be {@code null} if the property should be skipped
+     */
+    private JsonValue processProperty(final Node node, final Property property, final SerializationContext context)
+    {
+        JsonValue value = null;
+        for (ResourceJsonProcessor p : this.processors) {
+            value = p.processProperty(node, property, value, context);
+        }
+        return value;
+    }
+
+    /**
+     * Serialize the children of a node into a {@code JsonObjectBuilder} by invoking
+     * {@link ResourceJsonProcessor#processChild} in all enabled processors.
+     *
+     * @param node the node to serialize
+     * @param json the JSON being built
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private void processChildren(final Node node, final JsonObjectBuilder json) throws RepositoryException
+    {
+        final NodeIterator children = node.getNodes();
+        while (children.hasNext()) {
+            final Node child = children.nextNode();
+            JsonValue value = processChild(node, child, this);
+            if (value != null) {
+                json.add(child.getName(), value);
+            }
+        }
+    }
+
+    /**
+     * Serialize the children of a node directly into a JSON generator by invoking
+     * {@link ResourceJsonProcessor#processChild} in all enabled processors.
+     *
+     * @param node the node to serialize
+     * @param generator the generator where the JSON should be written
+     * @param written the keys already written in the node's object, updated with the new keys
+     * @throws RepositoryException if accessing the repository fails
+     */
+    private void streamChildren(final Node node, final JsonGenerator generator, final Set<String> written)
+        throws RepositoryException
+    {
+        final NodeIterator children = node.getNodes();
+        while (children.hasNext()) {
+            final Node child = children.nextNode();
+            writeMember(child.getName(), processChild(node, child, this.streamingView), generator, written);
+        }
+    }
+
+    /**
+     * Serialize one child node by invoking {@link ResourceJsonProcessor#processChild} in all enabled processors.
+     *
+     * @param node the node whose child is serialized
+     * @param child the child to serialize
+     * @param context the view of this context to pass to the processors
+     * @return the serialized child, may be {@code null} if the child should be skipped
+     */
+    private JsonValue processChild(final Node node, final Node child, final SerializationContext context)
+    {
+        JsonValue value = null;
+        for (ResourceJsonProcessor p : this.processors) {
+            value = p.processChild(node, child, value, context);
+        }
+        return value;
+    }
+
+    /**
+     * Further enhance the JSON representing a node after all its properties and children have been serialized by
+     * invoking {@link ResourceJsonProcessor#leave} in all enabled processors.
+     *
+     * @param node the node to serialize
+     * @param json the JSON being built
+     * @param context the view of this context to pass to the processors
+     */
+    private void leaveNode(final Node node, final JsonObjectBuilder json, final SerializationContext context)
+    {
+        for (final ResourceJsonProcessor p : this.processors) {
+            p.leave(node, json, context);
+        }
+    }
+
+    /**
+     * Clean up after the serialization of the resource by invoking {@link ResourceJsonProcessor#end} in all enabled
+     * processors.
+     */
+    private void end()
+    {
+        for (final ResourceJsonProcessor p : this.processors) {
+            p.end(this.resource, this);
+        }
+    }
+
+    /**
+     * The view of the serialization context used while streaming: it shares all the state with the main context, but
+     * the serialization of nodes is deferred, so that they can be streamed as well.
+     */
+    private final class StreamingView implements SerializationContext
+    {
+        @Override
+        public Resource getResource()
+        {
+            return DefaultSerializationContext.this.resource;
+        }
+
+        @Override
+        public JsonValue serialize(final Node node)
+        {
+            return deferNode(node);
+        }
+
+        @Override
+        public <T> T getState(final ResourceJsonProcessor processor, final Supplier<T> initializer)
+        {
+            return DefaultSerializationContext.this.getState(processor, initializer);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Supplier;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * An array whose items are only computed when needed. Processors can use it for adding a large number of items to a
+ * node, for example all the forms of a subject: when streaming a resource, the items are written out one at a time, as
+ * soon as they are computed, so they don't all have to be kept in memory. If the array is used in any other way, for
+ * example when the resource is built in memory, all the items are computed, and all further accesses use that value.
+ *
+ * @version $Id$
+ */
+public final class DeferredArrayValue extends AbstractList<JsonValue> implements JsonArray
+{
+    /** Provides the items of the array, computing them while iterating. */
+    private final Supplier<Iterator<JsonValue>> items;
+
+    /** The actual array, computed on first access. */
+    private JsonArray value;
+
+    /**
+     * Constructor specifying how to compute the items.
+     *
+     * @param items a function returning an iterator over the items of the array, which may compute each item when it
+     *            is requested; {@code null} items are skipped
+     */
+    public DeferredArrayValue(final Supplier<Iterator<JsonValue>> items)
+    {
+        this.items = items;
+    }
+
+    /**
+     * Checks whether the value has already been built in memory.
+     *
+     * @return {@code true} if the items were already computed, {@code false} if they are still deferred
+     */
+    boolean isComputed()
+    {
+        return this.value != null;
+    }
+
+    /**
+     * Iterate over the items of the array without keeping them in memory, unless they were already computed.
+     *
+     * @return an iterator over the items of the array, may contain {@code null} items
+     */
+    Iterator<JsonValue> iterateDeferred()
+    {
+        return this.value != null ? this.value.iterator() : this.items.get();
+    }
+
+    /**
+     * Get the actual array, computing all the items if needed.
+     *
+     * @return a JSON array
+     */
+    JsonArray getValue()
+    {
+        if (this.value == null) {
+            final JsonArrayBuilder result = Json.createArrayBuilder();
+            this.items.get().forEachRemaining(item -> {
+                if (item != null) {
+                    result.add(item);
+                }
+            });
+            this.value = result.build();
+        }
+        return this.value;
+    }
+
+    @Override
+    public ValueType getValueType()
+    {
+        return ValueType.ARRAY;
+    }
+
+    @Override
+    public JsonArray asJsonArray()
+    {
+        return getValue();
+    }
+
+    @Override
+    public JsonValue get(final int index)
+    {
+        return getValue().get(index);
+    }
+
+    @Override
+    public int size()
+    {
+        return getValue().size();
+    }
+
+    @Override
+    public JsonObject getJsonObject(final int index)
+    {
+        return getValue().getJsonObject(index);
+    }
+
+    @Override
+    public JsonArray getJsonArray(final int index)
+    {
+        return getValue().getJsonArray(index);
+    }
+
+    @Override
+    public JsonNumber getJsonNumber(final int index)
+    {
+        return getValue().getJsonNumber(index);
+    }
+
+    @Override
+    public JsonString getJsonString(final int index)
+    {
+        return getValue().getJsonString(index);
+    }
+
+    @Override
+    public <T extends JsonValue> List<T> getValuesAs(final Class<T> clazz)
+    {
+        return getValue().getValuesAs(clazz);
+    }
+
+    @Override
+    public String getString(final int index)
+    {
+        return getValue().getString(index);
+    }
+
+    @Override
+    public String getString(final int index, final String defaultValue)
+    {
+        return getValue().getString(index, defaultValue);
+    }
+
+    @Override
+    public int getInt(final int index)
+    {
+        return getValue().getInt(index);
+    }
+
+    @Override
+    public int getInt(final int index, final int defaultValue)
+    {
+        return getValue().getInt(index, defaultValue);
+    }
+
+    @Override
+    public boolean getBoolean(final int index)
+    {
+        return getValue().getBoolean(index);
+    }
+
+    @Override
+    public boolean getBoolean(final int index, final boolean defaultValue)
+    {
+        return getValue().getBoolean(index, defaultValue);
+    }
+
+    @Override
+    public boolean isNull(final int index)
+    {
+        return getValue().isNull(index);
+    }
+
+    @Override
+    public boolean equals(final Object other)
+    {
+        return getValue().equals(other);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return getValue().hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return getValue().toString();
+    }
+}
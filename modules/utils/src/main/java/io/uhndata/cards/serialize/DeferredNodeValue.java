@@ -0,0 +1,215 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.util.AbstractMap;
+import java.util.Set;
+import java.util.function.Function;
+
+import javax.jcr.Node;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * The serialization of a node, computed only when needed. This is used when streaming a resource: if the value reaches
+ * the output untouched, the node is streamed directly into the output, without being built in memory. If a processor
+ * inspects it, the value is built in memory using the regular serialization, and all further accesses use that value.
+ *
+ * @version $Id$
+ */
+final class DeferredNodeValue extends AbstractMap<String, JsonValue> implements JsonObject
+{
+    /** The node to serialize. */
+    private final Node node;
+
+    /** The function that builds the JSON of a node in memory. */
+    private final Function<Node, JsonValue> serializer;
+
+    /** The actual serialization, computed on first access. */
+    private JsonObject value;
+
+    /**
+     * Constructor specifying the node to serialize and how to serialize it if needed.
+     *
+     * @param node the node to serialize
+     * @param serializer a function that builds the JSON of a node in memory
+     */
+    DeferredNodeValue(final Node node, final Function<Node, JsonValue> serializer)
+    {
+        this.node = node;
+        this.serializer = serializer;
+    }
+
+    /**
+     * The node that this value represents.
+     *
+     * @return a JCR node
+     */
+    Node getNode()
+    {
+        return this.node;
+    }
+
+    /**
+     * Checks whether the value has already been built in memory.
+     *
+     * @return {@code true} if the serialization was already computed, {@code false} if it is still deferred
+     */
+    boolean isComputed()
+    {
+        return this.value != null;
+    }
+
+    /**
+     * Get the actual serialization of the node, computing it if needed.
+     *
+     * @return the JSON serialization of the node, an empty object if the node cannot be serialized
+     */
+    JsonObject getValue()
+    {
+        if (this.value == null) {
+            final JsonValue result = this.serializer.apply(this.node);
+            this.value = result instanceof JsonObject ? (JsonObject) result : JsonValue.EMPTY_JSON_OBJECT;
+        }
+        return this.value;
+    }
+
+    @Override
+    public ValueType getValueType()
+    {
+        return ValueType.OBJECT;
+    }
+
+    @Override
+    public JsonObject asJsonObject()
+    {
+        return getValue();
+    }
+
+    @Override
+    public Set<Entry<String, JsonValue>> entrySet()
+    {
+        return getValue().entrySet();
+    }
+
+    @Override
+    public JsonValue get(final Object key)
+    {
+        return getValue().get(key);
+    }
+
+    @Override
+    public boolean containsKey(final Object key)
+    {
+        return getValue().containsKey(key);
+    }
+
+    @Override
+    public int size()
+    {
+        return getValue().size();
+    }
+
+    @Override
+    public JsonArray getJsonArray(final String name)
+    {
+        return getValue().getJsonArray(name);
+    }
+
+    @Override
+    public JsonObject getJsonObject(final String name)
+    {
+        return getValue().getJsonObject(name);
+    }
+
+    @Override
+    public JsonNumber getJsonNumber(final String name)
+    {
+        return getValue().getJsonNumber(name);
+    }
+
+    @Override
+    public JsonString getJsonString(final String name)
+    {
+        return getValue().getJsonString(name);
+    }
+
+    @Override
+    public String getString(final String name)
+    {
+        return getValue().getString(name);
+    }
+
+    @Override
+    public String getString(final String name, final String defaultValue)
+    {
+        return getValue().getString(name, defaultValue);
+    }
+
+    @Override
+    public int getInt(final String name)
+    {
+        return getValue().getInt(name);
+    }
+
+    @Override
+    public int getInt(final String name, final int defaultValue)
+    {
+        return getValue().getInt(name, defaultValue);
+    }
+
+    @Override
+    public boolean getBoolean(final String name)
+    {
+        return getValue().getBoolean(name);
+    }
+
+    @Override
+    public boolean getBoolean(final String name, final boolean defaultValue)
+    {
+        return getValue().getBoolean(name, defaultValue);
+    }
+
+    @Override
+    public boolean isNull(final String name)
+    {
+        return getValue().isNull(name);
+    }
+
+    @Override
+    public boolean equals(final Object other)
+    {
+        return getValue().equals(other);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return getValue().hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return getValue().toString();
+    }
+}
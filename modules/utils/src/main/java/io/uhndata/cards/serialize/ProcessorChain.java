@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+
+/**
+ * The processors enabled for serializing a kind of resource, computed once by {@link ResourceToJsonAdapterFactory}
+ * for each combination of resource type and selectors, and shared by all the serializations using that combination.
+ * Instances are immutable.
+ *
+ * @version $Id$
+ */
+final class ProcessorChain
+{
+    /** The enabled processors, in ascending order of their priority. */
+    private final ResourceJsonProcessor[] processors;
+
+    /** Identifies the enabled processors, used for finding values in the cache. */
+    private final String signature;
+
+    /**
+     * Constructor specifying the enabled processors.
+     *
+     * @param processors the enabled processors, in ascending order of their priority
+     */
+    ProcessorChain(final List<ResourceJsonProcessor> processors)
+    {
+        this.processors = processors.toArray(new ResourceJsonProcessor[0]);
+        // Processor names are only unique for a given resource type, while classes identify the actual processors
+        this.signature =
+            processors.stream().map(processor -> processor.getClass().getName()).collect(Collectors.joining(","));
+    }
+
+    /**
+     * The enabled processors. The returned array must not be modified.
+     *
+     * @return the enabled processors, in ascending order of their priority
+     */
+    ResourceJsonProcessor[] getProcessors()
+    {
+        return this.processors;
+    }
+
+    /**
+     * A string identifying the enabled processors: two chains with the same signature produce the same output.
+     *
+     * @return the class names of the enabled processors, joined by commas
+     */
+    String getSignature()
+    {
+        return this.signature;
+    }
+}
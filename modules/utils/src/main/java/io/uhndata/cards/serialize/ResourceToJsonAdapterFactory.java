@@ -18,20 +18,17 @@
  */
 package io.uhndata.cards.serialize;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import javax.jcr.Node;
-import javax.jcr.NodeIterator;
-import javax.jcr.Property;
-import javax.jcr.PropertyIterator;
-import javax.jcr.RepositoryException;
-import javax.json.Json;
-import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
 
 import org.apache.sling.api.adapter.AdapterFactory;
 import org.apache.sling.api.resource.Resource;
@@ -40,10 +37,10 @@
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.serialize.internal.SerializedJsonCache;
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * AdapterFactory that converts Apache Sling resources to JsonObjects. This is just a shell, the actual implementation
@@ -57,44 +54,43 @@
  * {@code identify}, and {@code dereference} processors; to disable them, use their name prefixed by {@code -} in the
  * selectors, e.g. {@code /path/to/resource.-dereference.json}.
  * <p>
- * This class uses ThreadLocal variables to maintain state, which means that nested invocations in the same thread are
- * not supported. If a processor needs to call {@code resource.adaptTo(JsonObject.class)}, it should do so in a new
- * Thread, for example:
+ * Each serialization keeps its state in a new {@link SerializationContext}, passed to all the processors, so nested
+ * invocations are supported: a processor can call {@code resource.adaptTo(JsonObject.class)} on other resources
+ * directly, in the same thread.
+ * </p>
+ * <p>
+ * Large resources can also be {@link #serialize(Resource, JsonGenerator) streamed} directly into a JsonGenerator, in
+ * which case properties and children are written out as soon as they are processed, instead of building the whole JSON
+ * in memory first. Nodes for which a processor {@link ResourceJsonProcessor#requiresBuffering requires
+ * buffering} are still built in memory, and written out once complete.
+ * </p>
+ * <p>
+ * The serialization of nodes that are requested often but rarely change, such as questionnaires, can be cached by
+ * enabling the {@link SerializedJsonCache}. It is disabled by default.
  * </p>
- * <code>
- * final Iterator&lt;Resource&gt; resources = ...;
- * final List&lt;JsonObject&gt; result = new ArrayList&lt;&gt;();
- * final Thread serializer = new Thread(() -&gt; resources
- *     .forEachRemaining(r -&gt; result.add(r.adaptTo(JsonObject.class))));
- * serializer.start();
- * serializer.join();
- * // Now result contains the serialized subresources
- * </code>
  *
  * @version $Id$
  */
 @Component(
-    service = { AdapterFactory.class },
+    service = { AdapterFactory.class, ResourceToJsonAdapterFactory.class },
     property = { "adaptables=org.apache.sling.api.resource.Resource", "adapters=javax.json.JsonObject" })
 public class ResourceToJsonAdapterFactory
     implements AdapterFactory
 {
-    /** Logging helper. */
-    private static final Logger LOGGER = LoggerFactory.getLogger(ResourceToJsonAdapterFactory.class);
+    /** The maximum number of processor chains to remember before starting over. */
+    private static final int MAX_CHAINS = 1000;
 
     /** A list of all available processors. */
     @Reference(cardinality = ReferenceCardinality.MULTIPLE, fieldOption = FieldOption.REPLACE,
         policy = ReferencePolicy.DYNAMIC)
     private volatile List<ResourceJsonProcessor> allProcessors;
 
-    /** The list of processors that are enabled for the current resource serialization. */
-    private ThreadLocal<List<ResourceJsonProcessor>> enabledProcessors = new ThreadLocal<>();
+    /** The processor chains computed so far, valid only for the current list of available processors. */
+    private volatile ChainCache chains = new ChainCache(null);
 
-    /**
-     * To prevent infinite recursion in case of circular references among nodes, keep track of the nodes processed so
-     * far down the stack.
-     */
-    private ThreadLocal<Stack<String>> processedNodes = ThreadLocal.withInitial(Stack::new);
+    /** Optional cache for nodes that are serialized often. */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile SerializedJsonCache cache;
 
     @Override
     public <A> A getAdapter(final Object adaptable, final Class<A> type)
@@ -103,163 +99,72 @@ public <A> A getAdapter(final Object adaptable, final Class<A> type)
             return null;
         }
         final Resource resource = (Resource) adaptable;
-        setupProcessors(resource);
-
-        try {
-            start(resource);
-            final Node node = resource.adaptTo(Node.class);
-            JsonValue result = serializeNode(node);
-            end(resource);
-            if (result != null) {
-                return type.cast(result);
-            }
-        } finally {
-            this.processedNodes.remove();
-            this.enabledProcessors.remove();
-        }
-        return null;
-    }
-
-    /**
-     * Serializes a Node into a JSON value. Usually this will be a JSON object listing its items, but to avoid
-     * recursion, it is also possible to be just the node's path as a simple string.
-     *
-     * @param node the node to serialize
-     * @return a JSON value, either a JsonObject or a JsonString
-     */
-    private JsonValue serializeNode(final Node node)
-    {
-        if (node == null) {
-            return null;
-        }
-
-        try {
-            final boolean alreadyProcessed = this.processedNodes.get().contains(node.getPath());
-            this.processedNodes.get().add(node.getPath());
-            if (!alreadyProcessed) {
-                final JsonObjectBuilder result = Json.createObjectBuilder();
-                enterNode(node, result);
-                processProperties(node, result);
-                processChildren(node, result);
-                leaveNode(node, result);
-                return result.build();
-            }
-            // If the node has already been processed, only include its path in the output
-            return Json.createValue(node.getPath());
-        } catch (RepositoryException e) {
-            LOGGER.error("Failed to serialize node [{}] to JSON: {}", node, e.getMessage(), e);
-        } finally {
-            this.processedNodes.get().pop();
+        final JsonValue result =
+            new DefaultSerializationContext(resource, getProcessorChain(resource), this.cache).serializeResource();
+        if (result != null) {
+            return type.cast(result);
         }
         return null;
     }
 
     /**
-     * Prepare the serialization of a resource by invoking {@link ResourceJsonProcessor#start} in all enabled
-     * processors.
-     *
-     * @param resource the resource being serialized
-     */
-    private void start(Resource resource)
-    {
-        this.enabledProcessors.get().forEach(p -> p.start(resource));
-    }
-
-    /**
-     * Prepare the serialization of a node by invoking {@link ResourceJsonProcessor#enter} in all enabled processors.
-     *
-     * @param node the node to serialize
-     * @param json the JSON being built
-     */
-    private void enterNode(Node node, JsonObjectBuilder json)
-    {
-        this.enabledProcessors.get().forEach(p -> p.enter(node, json, this::serializeNode));
-    }
-
-    /**
-     * Serialize the properties of a node into a {@code JsonObjectBuilder} by invoking
-     * {@link ResourceJsonProcessor#processProperty} in all enabled processors.
+     * Serialize a resource directly into a JSON generator. Unlike {@code resource.adaptTo(JsonObject.class)}, the
+     * output is written out as the nodes are visited, so the whole JSON doesn't have to be kept in memory. The same
+     * processors are used as for the {@code adaptTo} serialization.
      *
-     * @param node the node to serialize
-     * @param json the JSON being built
-     * @throws RepositoryException if accessing the repository fails
+     * @param resource the resource to serialize
+     * @param generator the generator where the JSON should be written; nothing is written if the resource is not backed
+     *            by a JCR node
      */
-    private void processProperties(Node node, JsonObjectBuilder json) throws RepositoryException
+    public void serialize(final Resource resource, final JsonGenerator generator)
     {
-        final PropertyIterator properties = node.getProperties();
-        while (properties.hasNext()) {
-            Property thisProp = properties.nextProperty();
-            JsonValue value = null;
-            for (ResourceJsonProcessor p : this.enabledProcessors.get()) {
-                value = p.processProperty(node, thisProp, value, this::serializeNode);
-            }
-            if (value != null) {
-                json.add(thisProp.getName(), value);
-            }
+        if (resource == null || resource.adaptTo(Node.class) == null) {
+            return;
         }
+        new DefaultSerializationContext(resource, getProcessorChain(resource), this.cache).streamResource(generator);
     }
 
     /**
-     * Serialize the children of a node into a {@code JsonObjectBuilder} by invoking
-     * {@link ResourceJsonProcessor#processChild} in all enabled processors.
+     * Get the processors enabled for a resource. Since the enabled processors only depend on the resource's type and
+     * selectors, chains are computed once for each such combination and reused, until the list of available
+     * processors changes.
      *
-     * @param node the node to serialize
-     * @param json the JSON being built
-     * @throws RepositoryException if accessing the repository fails
+     * @param resource the resource to serialize
+     * @return the enabled processors
      */
-    private void processChildren(Node node, JsonObjectBuilder json) throws RepositoryException
+    private ProcessorChain getProcessorChain(final Resource resource)
     {
-        final NodeIterator children = node.getNodes();
-        while (children.hasNext()) {
-            final Node child = children.nextNode();
-            JsonValue value = null;
-            for (ResourceJsonProcessor p : this.enabledProcessors.get()) {
-                value = p.processChild(node, child, value, this::serializeNode);
-            }
-            if (value != null) {
-                json.add(child.getName(), value);
-            }
+        final List<ResourceJsonProcessor> processors = this.allProcessors;
+        ChainCache currentChains = this.chains;
+        if (currentChains.processors != processors) {
+            currentChains = new ChainCache(processors);
+            this.chains = currentChains;
+        } else if (currentChains.chains.size() > MAX_CHAINS) {
+            // Selectors come from request URLs, don't let arbitrary requests fill up the memory
+            currentChains.chains.clear();
         }
+        final String key = resource.getResourceType() + '\n' + resource.getResourceSuperType() + '\n'
+            + resource.getResourceMetadata().getResolutionPathInfo();
+        return currentChains.chains.computeIfAbsent(key,
+            k -> new ProcessorChain(setupProcessors(resource, processors)));
     }
 
     /**
-     * Further enhance the JSON representing a node after all its properties and children have been serialized by
-     * invoking {@link ResourceJsonProcessor#leave} in all enabled processors.
-     *
-     * @param node the node to serialize
-     * @param json the JSON being built
-     */
-    private void leaveNode(Node node, JsonObjectBuilder json)
-    {
-        this.enabledProcessors.get().forEach(p -> p.leave(node, json, this::serializeNode));
-    }
-
-    /**
-     * Clean up after the serialization of a resource by invoking {@link ResourceJsonProcessor#end} in all enabled
-     * processors.
-     *
-     * @param resource the resource that was serialized
-     */
-    private void end(Resource resource)
-    {
-        this.enabledProcessors.get().forEach(p -> p.end(resource));
-    }
-
-    /**
-     * Compute the list of enabled processors using the resource's type and selectors. This method must be invoked only
-     * once at the start of the serialization process for a resource, and it will set the {@link #enabledProcessors}
-     * field.
+     * Compute the list of enabled processors using the resource's type and selectors.
      *
      * @param resource the resource to serialize
+     * @param processors all the available processors
+     * @return the enabled processors, in ascending order of their priority
      */
-    private void setupProcessors(Resource resource)
+    private List<ResourceJsonProcessor> setupProcessors(final Resource resource,
+        final List<ResourceJsonProcessor> processors)
     {
         // Compute the list of requested processor names:
         // These are enabled by default
-        final List<String> defaults = this.allProcessors.stream().filter(p -> p.isEnabledByDefault(resource))
+        final List<String> defaults = processors.stream().filter(p -> p.isEnabledByDefault(resource))
             .map(ResourceJsonProcessor::getName).collect(Collectors.toList());
         // These have been requested
-        final List<String> requestedProcessors =
+        final Set<String> requestedProcessors =
             // Split by unescaped dots. A backslash escapes a dot, but two backslashes are just one escaped backslash.
             // Match by:
             // - no preceding backslash, i.e. start counting at the first backslash (?<!\)
@@ -268,7 +173,7 @@ private void setupProcessors(Resource resource)
             // Each backslash, except the \., is escaped twice, once as a special escape char inside a Java string, and
             // once as a special escape char inside a RegExp. The one before the dot is escaped only once as a special
             // char inside a Java string, since it must retain its escaping meaning in the RegExp.
-            new ArrayList<>(resource.getResourceMetadata().getResolutionPathInfo() != null
+            new HashSet<>(resource.getResourceMetadata().getResolutionPathInfo() != null
                 ? Arrays
                     .asList(resource.getResourceMetadata().getResolutionPathInfo().split("(?<!\\\\)(?:\\\\\\\\)*\\."))
                 : defaults);
@@ -280,12 +185,27 @@ private void setupProcessors(Resource resource)
         }
 
         // Build the enabled list using the requested names
-        final List<ResourceJsonProcessor> enabled = this.allProcessors.stream()
+        final List<ResourceJsonProcessor> enabled = processors.stream()
             .filter(p -> requestedProcessors.contains(p.getName()))
             .filter(p -> p.canProcess(resource))
             .collect(Collectors.toList());
         enabled.sort((o1, o2) -> o1.getPriority() - o2.getPriority());
 
-        this.enabledProcessors.set(enabled);
+        return enabled;
+    }
+
+    /** The processor chains computed for one list of available processors. */
+    private static final class ChainCache
+    {
+        /** The list of available processors used for computing the chains. */
+        private final List<ResourceJsonProcessor> processors;
+
+        /** The computed chains, indexed by resource type, super type, and selectors. */
+        private final Map<String, ProcessorChain> chains = new ConcurrentHashMap<>();
+
+        ChainCache(final List<ResourceJsonProcessor> processors)
+        {
+            this.processors = processors;
+        }
     }
 }
@@ -23,7 +23,6 @@
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -34,13 +33,13 @@
 import javax.json.JsonValue;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.sling.api.resource.Resource;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.ServiceScope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Simplify serialization for all resource types by removing all technical properties, renaming {@code "jcr:created"} to
@@ -54,8 +53,6 @@ public class BareProcessor implements ResourceJsonProcessor
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(BareProcessor.class);
 
-    private ThreadLocal<Integer> depth = ThreadLocal.withInitial(() -> 0);
-
     @Override
     public String getName()
     {
@@ -68,21 +65,9 @@ public int getPriority()
         return 90;
     }
 
-    @Override
-    public void start(Resource resource)
-    {
-        this.depth.set(0);
-    }
-
-    @Override
-    public void enter(Node node, JsonObjectBuilder input, Function<Node, JsonValue> serializeNode)
-    {
-        this.depth.set(this.depth.get() + 1);
-    }
-
     @Override
     public JsonValue processProperty(final Node node, final Property property, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
     {
         if (property == null) {
             return null;
@@ -100,7 +85,7 @@ public JsonValue processProperty(final Node node, final Property property, final
     }
 
     @Override
-    public JsonValue processChild(Node node, Node child, JsonValue input, Function<Node, JsonValue> serializeNode)
+    public JsonValue processChild(Node node, Node child, JsonValue input, SerializationContext context)
     {
         try {
             if (child.getName().startsWith("jcr:")) {
@@ -114,11 +99,12 @@ public JsonValue processChild(Node node, Node child, JsonValue input, Function<N
 
     @Override
     public void leave(final Node node, final JsonObjectBuilder json,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
     {
-        this.depth.set(this.depth.get() - 1);
-        addCreationDate(node, json);
-        addLastModifiedDate(node, json);
+        // Dates are only added for the serialized resource itself, not for its descendants or referenced nodes
+        final boolean isRoot = isRoot(node, context);
+        addCreationDate(node, json, isRoot);
+        addLastModifiedDate(node, json, isRoot);
         addFileContent(node, json);
     }
 
@@ -139,9 +125,18 @@ private JsonValue removeJcrProperties(final Node node, final String propertyName
         return input;
     }
 
-    private void addCreationDate(final Node node, final JsonObjectBuilder json)
+    private boolean isRoot(final Node node, final SerializationContext context)
+    {
+        try {
+            return node.getPath().equals(context.getResource().getPath());
+        } catch (RepositoryException e) {
+            return false;
+        }
+    }
+
+    private void addCreationDate(final Node node, final JsonObjectBuilder json, final boolean isRoot)
     {
-        if (this.depth.get() == 0) {
+        if (isRoot) {
             try {
                 if (node.hasProperty("jcr:created")) {
                     json.add("created", serializeDate(node.getProperty("jcr:created").getDate()));
@@ -152,9 +147,9 @@ private void addCreationDate(final Node node, final JsonObjectBuilder json)
         }
     }
 
-    private void addLastModifiedDate(final Node node, final JsonObjectBuilder json)
+    private void addLastModifiedDate(final Node node, final JsonObjectBuilder json, final boolean isRoot)
     {
-        if (this.depth.get() == 0) {
+        if (isRoot) {
             try {
                 if (node.hasProperty("jcr:lastModified")) {
                     json.add("lastModified", serializeDate(node.getProperty("jcr:lastModified").getDate()));
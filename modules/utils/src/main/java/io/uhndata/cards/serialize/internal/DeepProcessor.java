@@ -18,7 +18,6 @@
  */
 package io.uhndata.cards.serialize.internal;
 
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.json.JsonValue;
@@ -26,6 +25,7 @@
 import org.osgi.service.component.annotations.Component;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Deep serialization of nodes: include all children in the serialization. The name of this processor is {@code deep}.
@@ -49,7 +49,7 @@ public int getPriority()
 
     @Override
     public JsonValue processChild(final Node node, final Node child, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
     {
         // By default this should be the base serializer for children, but in case someone wants special serialization
         // for a type of children, leave the previous value unmodified. For example, to skip serializing files, a
@@ -57,6 +57,6 @@ public JsonValue processChild(final Node node, final Node child, final JsonValue
         if (input != null) {
             return input;
         }
-        return serializeNode.apply(child);
+        return context.serialize(child);
     }
 }
@@ -18,7 +18,6 @@
  */
 package io.uhndata.cards.serialize.internal;
 
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
@@ -35,6 +34,7 @@
 import org.slf4j.LoggerFactory;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Dereference properties of type {@code REFERENCE}, {@code WEAKREFERENCE} or {@code PATH}: instead of printing the
@@ -67,13 +67,13 @@ public boolean isEnabledByDefault(Resource resource)
 
     @Override
     public JsonValue processProperty(final Node node, final Property property, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
     {
         try {
             if (property.isMultiple()) {
-                return serializeMultiValuedProperty(property, input, serializeNode);
+                return serializeMultiValuedProperty(property, input, context);
             } else {
-                return serializeSingleValuedProperty(property, input, serializeNode);
+                return serializeSingleValuedProperty(property, input, context);
             }
         } catch (RepositoryException e) {
             LOGGER.warn("Unexpected error while serializing property {} of node {}: {}", property, node,
@@ -83,7 +83,7 @@ public JsonValue processProperty(final Node node, final Property property, final
     }
 
     private JsonValue serializeSingleValuedProperty(final Property property, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
         throws RepositoryException
     {
         switch (property.getType()) {
@@ -98,7 +98,7 @@ private JsonValue serializeSingleValuedProperty(final Property property, final J
                     if (property.getName().startsWith("jcr:")) {
                         return Json.createValue(node.getPath());
                     } else {
-                        return serializeNode.apply(node);
+                        return context.serialize(node);
                     }
                 } catch (RepositoryException e) {
                     // If we can't access the node, just leave the input unmodified
@@ -111,7 +111,7 @@ private JsonValue serializeSingleValuedProperty(final Property property, final J
     }
 
     private JsonValue serializeMultiValuedProperty(final Property property, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode) throws RepositoryException
+        final SerializationContext context) throws RepositoryException
     {
         final JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
         final String name = property.getName();
@@ -126,7 +126,7 @@ private JsonValue serializeMultiValuedProperty(final Property property, final Js
                     if (name.startsWith("jcr:")) {
                         arrayBuilder.add(node.getPath());
                     } else {
-                        arrayBuilder.add(serializeNode.apply(node));
+                        arrayBuilder.add(context.serialize(node));
                     }
                 } catch (RepositoryException e) {
                     // If we can't access the node, just leave the input unmodified
@@ -139,7 +139,7 @@ private JsonValue serializeMultiValuedProperty(final Property property, final Js
                 try {
                     final Node node = path.charAt(0) == '/' ? property.getSession().getNode(path)
                         : property.getParent().getNode(path);
-                    arrayBuilder.add(serializeNode.apply(node));
+                    arrayBuilder.add(context.serialize(node));
                 } catch (RepositoryException e) {
                     // If we can't access a node, just add its path to the output
                     arrayBuilder.add(path);
@@ -18,17 +18,16 @@
  */
 package io.uhndata.cards.serialize.internal;
 
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.json.JsonObjectBuilder;
-import javax.json.JsonValue;
 
 import org.apache.sling.api.resource.Resource;
 import org.osgi.service.component.annotations.Component;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Identify a node by including {@code @path} and {@code @name} properties. The name of this processor is
@@ -59,7 +58,7 @@ public boolean isEnabledByDefault(Resource resource)
 
     @Override
     public void leave(final Node node, final JsonObjectBuilder json,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
     {
         // Add a few properties identifying the resource
         try {
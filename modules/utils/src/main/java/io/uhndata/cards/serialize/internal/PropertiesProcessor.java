@@ -23,7 +23,6 @@
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
-import java.util.function.Function;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
@@ -41,6 +40,7 @@
 import org.slf4j.LoggerFactory;
 
 import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
 
 /**
  * Serialize all node properties. The name of this processor is {@code properties}.
@@ -72,7 +72,7 @@ public boolean isEnabledByDefault(Resource resource)
 
     @Override
     public JsonValue processProperty(final Node node, final Property property, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
     {
         // By default this should be the base serializer for properties, but in case someone wants special serialization
         // for a property, leave the previous value unmodified. For example, to skip serializing extra large binary
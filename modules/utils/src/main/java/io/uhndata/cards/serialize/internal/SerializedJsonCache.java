@@ -0,0 +1,280 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize.internal;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.json.JsonValue;
+
+import org.apache.jackrabbit.oak.spi.commit.Observer;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.uhndata.cards.cache.PathInvalidatingObserver;
+
+/**
+ * Opt-in cache for the JSON serialization of nodes that are serialized often but change rarely, such as
+ * questionnaires. Only nodes of the configured types are cached. Entries are identified by the user serializing the
+ * node, the node path, the signature of the enabled processors, whether the node is the top level resource, and the
+ * node's {@code jcr:lastModified} date. The cache holds a limited number of entries, discarding the least recently used
+ * ones first, and entries are invalidated as soon as a commit changes the node or any of its descendants.
+ * <p>
+ * Cached nodes should be self-contained: their serialization must not depend on the other nodes being serialized
+ * along with them.
+ * </p>
+ *
+ * @version $Id$
+ */
+@Component(service = { SerializedJsonCache.class, Observer.class })
+@Designate(ocd = SerializedJsonCache.Config.class)
+public class SerializedJsonCache extends PathInvalidatingObserver
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(SerializedJsonCache.class);
+
+    /** The cached values, in access order. */
+    private final Map<Key, JsonValue> entries = new LinkedHashMap<Key, JsonValue>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, JsonValue> eldest)
+        {
+            return size() > SerializedJsonCache.this.maxEntries;
+        }
+    };
+
+    /** Whether the cache is enabled. */
+    private volatile boolean enabled;
+
+    /** The maximum number of entries to keep in the cache. */
+    private volatile int maxEntries;
+
+    /** The node types that can be cached. */
+    private volatile String[] nodeTypes;
+
+    /** Incremented each time entries are invalidated, to avoid storing values computed from outdated content. */
+    private volatile long generation;
+
+    @Activate
+    @Modified
+    protected void activate(final Config config)
+    {
+        this.enabled = config.enabled();
+        this.maxEntries = config.maxEntries();
+        this.nodeTypes = config.nodeTypes();
+        synchronized (this.entries) {
+            ++this.generation;
+            this.entries.clear();
+        }
+    }
+
+    /**
+     * Checks if the serialization of a node can be cached.
+     *
+     * @param node the node about to be serialized
+     * @return {@code true} if the cache is enabled and the node has one of the cached types
+     */
+    public boolean isCacheable(final Node node)
+    {
+        if (!this.enabled || node == null) {
+            return false;
+        }
+        try {
+            for (final String type : this.nodeTypes) {
+                if (node.isNodeType(type)) {
+                    return true;
+                }
+            }
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to check the type of node {}: {}", node, e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * The current invalidation generation. Values computed before an invalidation may be outdated, so this must be
+     * checked before starting to serialize a node, and passed to {@link #put} when storing the result.
+     *
+     * @return a number identifying the latest invalidation
+     */
+    public long getGeneration()
+    {
+        return this.generation;
+    }
+
+    /**
+     * Retrieve the cached serialization of a node.
+     *
+     * @param node the node being serialized
+     * @param signature the signature of the processors used for serializing the node
+     * @param isRoot whether the node is the top level resource being serialized
+     * @return the cached serialization, or {@code null} if the node is not in the cache
+     */
+    public JsonValue get(final Node node, final String signature, final boolean isRoot)
+    {
+        final Key key = getKey(node, signature, isRoot);
+        if (key == null) {
+            return null;
+        }
+        synchronized (this.entries) {
+            return this.entries.get(key);
+        }
+    }
+
+    /**
+     * Store the serialization of a node in the cache.
+     *
+     * @param node the serialized node
+     * @param signature the signature of the processors used for serializing the node
+     * @param isRoot whether the node is the top level resource being serialized
+     * @param value the serialization of the node, must be immutable
+     * @param startGeneration the {@link #getGeneration() generation} seen before the serialization started; if entries
+     *            were invalidated since then, the value is not stored
+     */
+    public void put(final Node node, final String signature, final boolean isRoot, final JsonValue value,
+        final long startGeneration)
+    {
+        final Key key = getKey(node, signature, isRoot);
+        if (key == null || value == null) {
+            return;
+        }
+        synchronized (this.entries) {
+            if (this.generation == startGeneration) {
+                this.entries.put(key, value);
+            }
+        }
+    }
+
+    @Override
+    protected Collection<String> getWatchedPaths()
+    {
+        final Set<String> paths = new HashSet<>();
+        synchronized (this.entries) {
+            this.entries.keySet().forEach(key -> paths.add(key.path));
+        }
+        return paths;
+    }
+
+    @Override
+    protected void invalidate(final Set<String> changedPaths)
+    {
+        synchronized (this.entries) {
+            ++this.generation;
+            this.entries.keySet().removeIf(key -> changedPaths.contains(key.path));
+        }
+    }
+
+    private Key getKey(final Node node, final String signature, final boolean isRoot)
+    {
+        try {
+            final String lastModified =
+                node.hasProperty("jcr:lastModified") ? node.getProperty("jcr:lastModified").getString() : "";
+            return new Key(node.getSession().getUserID(), node.getPath(), signature, isRoot, lastModified);
+        } catch (RepositoryException e) {
+            LOGGER.warn("Failed to compute the cache key for node {}: {}", node, e.getMessage());
+        }
+        return null;
+    }
+
+    /** The identifier of a cached serialization. */
+    private static final class Key
+    {
+        private final String user;
+
+        private final String path;
+
+        private final String signature;
+
+        private final boolean isRoot;
+
+        private final String lastModified;
+
+        Key(final String user, final String path, final String signature, final boolean isRoot,
+            final String lastModified)
+        {
+            this.user = user;
+            this.path = path;
+            this.signature = signature;
+            this.isRoot = isRoot;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(final Object obj)
+        {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return this.isRoot == other.isRoot && Objects.equals(this.user, other.user)
+                && this.path.equals(other.path) && this.signature.equals(other.signature)
+                && this.lastModified.equals(other.lastModified);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(this.user, this.path, this.signature, this.isRoot, this.lastModified);
+        }
+    }
+
+    /** Configuration for the serialized JSON cache. */
+    @ObjectClassDefinition(name = "CARDS - Serialized JSON cache",
+        description = "Cache for the JSON serialization of nodes that are serialized often but change rarely")
+    public @interface Config
+    {
+        /**
+         * Whether the cache is enabled.
+         *
+         * @return {@code false} by default
+         */
+        @AttributeDefinition(name = "Enabled", description = "Whether serialized nodes should be cached")
+        boolean enabled() default false;
+
+        /**
+         * The maximum number of entries in the cache.
+         *
+         * @return a positive number
+         */
+        @AttributeDefinition(name = "Maximum entries",
+            description = "The maximum number of serialized nodes to keep in the cache")
+        int maxEntries() default 1000;
+
+        /**
+         * The types of nodes to cache.
+         *
+         * @return a list of JCR node types
+         */
+        @AttributeDefinition(name = "Node types", description = "The types of nodes whose serialization is cached")
+        String[] nodeTypes() default { "cards:Questionnaire" };
+    }
+}
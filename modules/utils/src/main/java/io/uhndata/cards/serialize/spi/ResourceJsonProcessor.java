@@ -18,8 +18,6 @@
  */
 package io.uhndata.cards.serialize.spi;
 
-import java.util.function.Function;
-
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.json.JsonObjectBuilder;
@@ -55,6 +53,25 @@
  * For each serialized node, first all its properties are serialized using {@link #processProperty}, then all its
  * children using {@link #processChild}, then the output is post-processed using {@link #leave}.
  * </p>
+ * <p>
+ * Resources can also be serialized in streaming mode, where each property and child is written out as soon as it has
+ * been processed, instead of building the whole JSON in memory first. In this mode, the values obtained from
+ * {@link SerializationContext#serialize} are only computed when they are actually needed, either when they are written
+ * out, or when a processor inspects them, and {@link #leave} receives a new, empty JsonObjectBuilder, where keys can be
+ * added after the already written properties and children; keys that were already written are not written again.
+ * Processors that need to modify or remove keys that were already added by {@link #processProperty} or
+ * {@link #processChild} must request that the node be fully built in memory before being written by implementing
+ * {@link #requiresBuffering}. Large lists of values can be added as a
+ * {@link io.uhndata.cards.serialize.DeferredArrayValue DeferredArrayValue}, whose items are computed and written out
+ * one at a time.
+ * </p>
+ * <p>
+ * Processors are singleton services shared by all serializations, so they must not store any state about the current
+ * serialization in their fields. Instead, each serialization has its own {@link SerializationContext}, passed to all
+ * the methods that are invoked during the serialization process, where processors can store their temporary state.
+ * Since nested serializations get their own context, processors may safely invoke {@code adaptTo(JsonObject.class)} on
+ * other resources in the same thread.
+ * </p>
  *
  * @version $Id$
  */
@@ -82,7 +99,8 @@
      * resource being serialized, not for each of its children/descendants. If this method returns {@code true}, this
      * processor may be invoked, if selected. If this method returns {@code false}, this processor will not be invoked
      * when serializing the resource, even if explicitly requested. The default implementation returns {@code true} for
-     * all resources, implementations must override it to select which resources can be processed.
+     * all resources, implementations must override it to select which resources can be processed. The outcome must
+     * only depend on the resource type, since it is computed once and reused for all resources of the same type.
      *
      * @param resource the resource being serialized
      * @return {@code true} if this processor can be invoked when serializing this resource, {@code false} otherwise
@@ -94,7 +112,8 @@ default boolean canProcess(final Resource resource)
 
     /**
      * Reports whether this processor should be enabled by default for the given resource, even if not explicitly
-     * requested. The default implementation returns {@code false}.
+     * requested. The default implementation returns {@code false}. The outcome must only depend on the resource type,
+     * since it is computed once and reused for all resources of the same type.
      *
      * @param resource the resource being serialized
      * @return {@code true} if this processor should be invoked when serializing the resource, even if not requested,
@@ -105,13 +124,31 @@ default boolean isEnabledByDefault(final Resource resource)
         return false;
     }
 
+    /**
+     * Reports whether the serialization of the given node must be fully built in memory before being written, even when
+     * streaming the output. This is needed when {@link #leave} restructures the JSON computed for the node, for example
+     * by removing or replacing keys added while processing the node's properties and children. This method is only
+     * relevant in streaming mode, and it is invoked for each node before its serialization begins. The default
+     * implementation returns {@code false}.
+     *
+     * @param node the node about to be serialized, may be other than the top resource
+     * @param context the current serialization context
+     * @return {@code true} if the node, and all its descendants, must be serialized in memory, {@code false} if it can
+     *         be streamed
+     */
+    default boolean requiresBuffering(final Node node, final SerializationContext context)
+    {
+        return false;
+    }
+
     /**
      * Called at the start of the serialization process for the topmost resource, in case the current processor needs to
      * initialize some temporary state.
      *
      * @param resource the resource being serialized
+     * @param context the new serialization context
      */
-    default void start(final Resource resource)
+    default void start(final Resource resource, final SerializationContext context)
     {
         return;
     }
@@ -124,10 +161,10 @@ default void start(final Resource resource)
      * @param node the node being serialized, may be other than the top resource
      * @param input the JSON representation computed by the previous processors, may be an empty object but must not be
      *            {@code null}
-     * @param serializeNode a function that can be invoked to serialize a new node, receiving a Node as input, and
-     *            returning a JSON representation
+     * @param context the current serialization context, which can be used to serialize other nodes and to store
+     *            temporary state
      */
-    default void enter(final Node node, final JsonObjectBuilder input, final Function<Node, JsonValue> serializeNode)
+    default void enter(final Node node, final JsonObjectBuilder input, final SerializationContext context)
     {
         return;
     }
@@ -143,13 +180,13 @@ default void enter(final Node node, final JsonObjectBuilder input, final Functio
      * @param node the node whose property is serialized, may be other than the top resource
      * @param property the property being serialized
      * @param input the JSON representation computed by the previous processors, may be {@code null}
-     * @param serializeNode a function that can be invoked to serialize a new node, receiving a Node as input, and
-     *            returning a JSON representation
+     * @param context the current serialization context, which can be used to serialize other nodes and to store
+     *            temporary state
      * @return a JSON representation for the property value, may be {@code null} if the property should be skipped, or
      *         any simple or complex JSON value, including arrays or objects
      */
     default JsonValue processProperty(final Node node, final Property property, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
     {
         return input;
     }
@@ -165,13 +202,13 @@ default JsonValue processProperty(final Node node, final Property property, fina
      * @param node the node whose child is serialized, may be other than the top resource
      * @param child the node being serialized
      * @param input the JSON representation computed by the previous processors, may be {@code null}
-     * @param serializeNode a function that can be invoked to serialize a new node, receiving a Node as input, and
-     *            returning a JSON representation
+     * @param context the current serialization context, which can be used to serialize other nodes and to store
+     *            temporary state
      * @return a JSON representation for the child node, may be {@code null} if the child should be skipped, or any
      *         simple or complex JSON value, including arrays or objects
      */
     default JsonValue processChild(final Node node, final Node child, final JsonValue input,
-        final Function<Node, JsonValue> serializeNode)
+        final SerializationContext context)
     {
         return input;
     }
@@ -185,10 +222,10 @@ default JsonValue processChild(final Node node, final Node child, final JsonValu
      * @param node the node being serialized, may be other than the top resource
      * @param json the JSON representation computed by the previous processors, may be an empty object but must not be
      *            {@code null}
-     * @param serializeNode a function that can be invoked to serialize a new node, receiving a Node as input, and
-     *            returning a JSON representation
+     * @param context the current serialization context, which can be used to serialize other nodes and to store
+     *            temporary state
      */
-    default void leave(final Node node, final JsonObjectBuilder json, final Function<Node, JsonValue> serializeNode)
+    default void leave(final Node node, final JsonObjectBuilder json, final SerializationContext context)
     {
         return;
     }
@@ -198,8 +235,9 @@ default void leave(final Node node, final JsonObjectBuilder json, final Function
      * state.
      *
      * @param resource the resource being serialized
+     * @param context the serialization context that is about to be discarded
      */
-    default void end(final Resource resource)
+    default void end(final Resource resource, final SerializationContext context)
     {
         return;
     }
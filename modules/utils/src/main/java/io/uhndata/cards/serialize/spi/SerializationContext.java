@@ -0,0 +1,66 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize.spi;
+
+import java.util.function.Supplier;
+
+import javax.jcr.Node;
+import javax.json.JsonValue;
+
+import org.apache.sling.api.resource.Resource;
+
+/**
+ * The state of one resource serialization process. A new context is created each time a resource is serialized, and it
+ * is passed to all the {@link ResourceJsonProcessor processors} invoked during that serialization. Processors must use
+ * it instead of instance or ThreadLocal fields to store any temporary state they need, which makes the serialization
+ * reentrant: a processor can serialize other resources, even in the same thread, without affecting the current state.
+ *
+ * @version $Id$
+ */
+public interface SerializationContext
+{
+    /**
+     * The topmost resource being serialized.
+     *
+     * @return the resource whose serialization was requested
+     */
+    Resource getResource();
+
+    /**
+     * Serializes a node using the processors enabled in this context. Usually this will be a JSON object listing its
+     * items, but to avoid infinite recursion, if the node is already being serialized further up the stack, this is
+     * just the node's path as a simple string.
+     *
+     * @param node the node to serialize
+     * @return a JSON value, either a JsonObject or a JsonString, or {@code null} if the node cannot be serialized
+     */
+    JsonValue serialize(Node node);
+
+    /**
+     * Retrieves the temporary state that a processor stored in this context, creating it if it doesn't exist yet. Each
+     * processor has its own state, a single object of any type, which is discarded at the end of the serialization.
+     *
+     * @param <T> the type of the state object
+     * @param processor the processor that owns the state
+     * @param initializer a function that creates the initial state, invoked only the first time this method is called
+     *            for the processor during the current serialization
+     * @return the state of the processor, never {@code null} unless the initializer returns {@code null}
+     */
+    <T> T getState(ResourceJsonProcessor processor, Supplier<T> initializer);
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+
+import org.apache.sling.api.resource.Resource;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
+
+import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+import io.uhndata.cards.serialize.spi.SerializationContext;
+
+/**
+ * Unit tests for the streaming serialization implemented in {@link DefaultSerializationContext}.
+ *
+ * @version $Id$
+ */
+public class DefaultSerializationContextTest
+{
+    private static final int ITEMS = 3;
+
+    /** What happened during the serialization: items computed, and calls to the generator, in order. */
+    private final List<String> events = new ArrayList<>();
+
+    private final JsonGenerator generator = Mockito.mock(JsonGenerator.class, (Answer<Object>) invocation -> {
+        this.events.add(invocation.getMethod().getName() + Arrays.toString(invocation.getArguments()));
+        return invocation.getMock();
+    });
+
+    private final Resource resource = Mockito.mock(Resource.class);
+
+    private final Node node = Mockito.mock(Node.class);
+
+    @Before
+    public void setup() throws RepositoryException
+    {
+        Mockito.when(this.resource.adaptTo(Node.class)).thenReturn(this.node);
+        Mockito.when(this.resource.getPath()).thenReturn("/Subjects/s1");
+        Mockito.when(this.node.getPath()).thenReturn("/Subjects/s1");
+        Mockito.when(this.node.getProperties()).thenReturn(Mockito.mock(PropertyIterator.class));
+        Mockito.when(this.node.getNodes()).thenReturn(Mockito.mock(NodeIterator.class));
+    }
+
+    @Test
+    public void deferredArraysAreStreamedOneItemAtATime()
+    {
+        context().streamResource(this.generator);
+
+        Assert.assertEquals(Arrays.asList("writeStartObject[]", "writeStartArray[items]",
+            "compute 0", "write[{\"index\":0}]",
+            "compute 1", "write[{\"index\":1}]",
+            "compute 2", "write[{\"index\":2}]",
+            "writeEnd[]", "writeEnd[]"), this.events);
+    }
+
+    @Test
+    public void deferredArraysAreComputedWhenSerializingInMemory()
+    {
+        final JsonObject result = context().serializeResource().asJsonObject();
+
+        Assert.assertEquals(Arrays.asList("compute 0", "compute 1", "compute 2"), this.events);
+        Assert.assertEquals(ITEMS, result.getJsonArray("items").size());
+        Assert.assertEquals(2, result.getJsonArray("items").getJsonObject(2).getInt("index"));
+        // All the items were already computed, using the array doesn't compute them again
+        Assert.assertEquals(ITEMS, this.events.size());
+    }
+
+    @Test
+    public void keysAddedWhenLeavingAreNotWrittenTwice() throws RepositoryException
+    {
+        final Node child = Mockito.mock(Node.class);
+        Mockito.when(child.getName()).thenReturn("items");
+        Mockito.when(child.getPath()).thenReturn("/Subjects/s1/items");
+        final NodeIterator children = Mockito.mock(NodeIterator.class);
+        Mockito.when(children.hasNext()).thenReturn(true, false);
+        Mockito.when(children.nextNode()).thenReturn(child);
+        Mockito.when(this.node.getNodes()).thenReturn(children);
+
+        context().streamResource(this.generator);
+
+        final List<String> itemsWrites = this.events.stream()
+            .filter(event -> event.contains("[items")).collect(Collectors.toList());
+        Assert.assertEquals(Collections.singletonList("write[items, {}]"), itemsWrites);
+        Assert.assertFalse(this.events.contains("compute 0"));
+    }
+
+    private DefaultSerializationContext context()
+    {
+        return new DefaultSerializationContext(this.resource,
+            new ProcessorChain(Collections.singletonList(new ItemsProcessor())), null);
+    }
+
+    /** Adds a deferred array of items to the serialized resource, recording when each item is computed. */
+    private final class ItemsProcessor implements ResourceJsonProcessor
+    {
+        @Override
+        public String getName()
+        {
+            return "items";
+        }
+
+        @Override
+        public int getPriority()
+        {
+            return 0;
+        }
+
+        @Override
+        public JsonValue processChild(final Node node, final Node child, final JsonValue input,
+            final SerializationContext context)
+        {
+            return JsonValue.EMPTY_JSON_OBJECT;
+        }
+
+        @Override
+        public void leave(final Node node, final JsonObjectBuilder json, final SerializationContext context)
+        {
+            json.add("items", new DeferredArrayValue(() -> IntStream.range(0, ITEMS).mapToObj(i -> {
+                DefaultSerializationContextTest.this.events.add("compute " + i);
+                return (JsonValue) Json.createObjectBuilder().add("index", i).build();
+            }).iterator()));
+        }
+    }
+}
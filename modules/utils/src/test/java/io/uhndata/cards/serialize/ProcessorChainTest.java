@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.uhndata.cards.serialize.spi.ResourceJsonProcessor;
+
+/**
+ * Unit tests for {@link ProcessorChain}.
+ *
+ * @version $Id$
+ */
+public class ProcessorChainTest
+{
+    @Test
+    public void chainsWithTheSameProcessorsShareTheirSignature()
+    {
+        final ResourceJsonProcessor properties = new PropertiesProcessor();
+        final ResourceJsonProcessor simple = new SubjectSimpleProcessor();
+        Assert.assertEquals(new ProcessorChain(Arrays.asList(properties, simple)).getSignature(),
+            new ProcessorChain(Arrays.asList(new PropertiesProcessor(), new SubjectSimpleProcessor())).getSignature());
+    }
+
+    @Test
+    public void processorsWithTheSameNameAreDistinguished()
+    {
+        final ResourceJsonProcessor properties = new PropertiesProcessor();
+        final ProcessorChain subject = new ProcessorChain(Arrays.asList(properties, new SubjectSimpleProcessor()));
+        final ProcessorChain questionnaire =
+            new ProcessorChain(Arrays.asList(properties, new QuestionnaireSimpleProcessor()));
+        Assert.assertNotEquals(subject.getSignature(), questionnaire.getSignature());
+    }
+
+    @Test
+    public void processorOrderMatters()
+    {
+        final ResourceJsonProcessor properties = new PropertiesProcessor();
+        final ResourceJsonProcessor simple = new SubjectSimpleProcessor();
+        Assert.assertNotEquals(new ProcessorChain(Arrays.asList(properties, simple)).getSignature(),
+            new ProcessorChain(Arrays.asList(simple, properties)).getSignature());
+    }
+
+    private static class NamedProcessor implements ResourceJsonProcessor
+    {
+        private final String name;
+
+        NamedProcessor(final String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public String getName()
+        {
+            return this.name;
+        }
+
+        @Override
+        public int getPriority()
+        {
+            return 0;
+        }
+    }
+
+    private static final class PropertiesProcessor extends NamedProcessor
+    {
+        PropertiesProcessor()
+        {
+            super("properties");
+        }
+    }
+
+    private static final class SubjectSimpleProcessor extends NamedProcessor
+    {
+        SubjectSimpleProcessor()
+        {
+            super("simple");
+        }
+    }
+
+    private static final class QuestionnaireSimpleProcessor extends NamedProcessor
+    {
+        QuestionnaireSimpleProcessor()
+        {
+            super("simple");
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package io.uhndata.cards.serialize.internal;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.json.Json;
+import javax.json.JsonValue;
+
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+
+/**
+ * Unit tests for {@link SerializedJsonCache}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SerializedJsonCacheTest
+{
+    private static final String QUESTIONNAIRE = "cards:Questionnaire";
+
+    private static final String SIGNATURE = "-identify,-properties";
+
+    private static final JsonValue VALUE = Json.createObjectBuilder().add("title", "Visit").build();
+
+    @Mock
+    private SerializedJsonCache.Config config;
+
+    private final SerializedJsonCache cache = new SerializedJsonCache();
+
+    private NodeState root;
+
+    @Before
+    public void setUp()
+    {
+        Mockito.when(this.config.enabled()).thenReturn(true);
+        Mockito.when(this.config.maxEntries()).thenReturn(10);
+        Mockito.when(this.config.nodeTypes()).thenReturn(new String[] { QUESTIONNAIRE });
+        this.cache.activate(this.config);
+
+        final NodeBuilder builder = EMPTY_NODE.builder();
+        builder.child("Questionnaires").child("Visit").child("question").setProperty("text", "Date");
+        builder.child("Questionnaires").child("Intake").child("question").setProperty("text", "Name");
+        this.root = builder.getNodeState();
+        this.cache.contentChanged(this.root, CommitInfo.EMPTY);
+    }
+
+    @Test
+    public void onlyConfiguredTypesAreCacheable() throws RepositoryException
+    {
+        Assert.assertTrue(this.cache.isCacheable(node("/Questionnaires/Visit", "admin", "2021-01-01")));
+        final Node form = node("/Forms/f1", "admin", "2021-01-01");
+        Mockito.when(form.isNodeType(QUESTIONNAIRE)).thenReturn(false);
+        Assert.assertFalse(this.cache.isCacheable(form));
+        Assert.assertFalse(this.cache.isCacheable(null));
+    }
+
+    @Test
+    public void disabledCacheDoesNotCacheAnything() throws RepositoryException
+    {
+        Mockito.when(this.config.enabled()).thenReturn(false);
+        this.cache.activate(this.config);
+
+        Assert.assertFalse(this.cache.isCacheable(node("/Questionnaires/Visit", "admin", "2021-01-01")));
+    }
+
+    @Test
+    public void storedValuesAreReturned() throws RepositoryException
+    {
+        final Node node = node("/Questionnaires/Visit", "admin", "2021-01-01");
+        Assert.assertNull(this.cache.get(node, SIGNATURE, true));
+
+        this.cache.put(node, SIGNATURE, true, VALUE, this.cache.getGeneration());
+
+        Assert.assertSame(VALUE, this.cache.get(node, SIGNATURE, true));
+        Assert.assertSame(VALUE, this.cache.get(node("/Questionnaires/Visit", "admin", "2021-01-01"), SIGNATURE, true));
+    }
+
+    @Test
+    public void entriesDependOnTheWholeKey() throws RepositoryException
+    {
+        this.cache.put(node("/Questionnaires/Visit", "admin", "2021-01-01"), SIGNATURE, true, VALUE,
+            this.cache.getGeneration());
+
+        Assert.assertNull(this.cache.get(node("/Questionnaires/Visit", "admin", "2021-01-01"), "-identify", true));
+        Assert.assertNull(this.cache.get(node("/Questionnaires/Visit", "admin", "2021-01-01"), SIGNATURE, false));
+        Assert.assertNull(this.cache.get(node("/Questionnaires/Visit", "guest", "2021-01-01"), SIGNATURE, true));
+        Assert.assertNull(this.cache.get(node("/Questionnaires/Visit", "admin", "2021-02-01"), SIGNATURE, true));
+        Assert.assertNull(this.cache.get(node("/Questionnaires/Intake", "admin", "2021-01-01"), SIGNATURE, true));
+    }
+
+    @Test
+    public void changingTheNodeInvalidatesItsEntries() throws RepositoryException
+    {
+        final Node visit = node("/Questionnaires/Visit", "admin", "2021-01-01");
+        final Node intake = node("/Questionnaires/Intake", "admin", "2021-01-01");
+        this.cache.put(visit, SIGNATURE, true, VALUE, this.cache.getGeneration());
+        this.cache.put(intake, SIGNATURE, true, VALUE, this.cache.getGeneration());
+
+        // A change deep inside the Visit questionnaire
+        final NodeBuilder builder = this.root.builder();
+        builder.child("Questionnaires").child("Visit").child("question").setProperty("text", "Visit date");
+        this.cache.contentChanged(builder.getNodeState(), CommitInfo.EMPTY);
+
+        Assert.assertNull(this.cache.get(visit, SIGNATURE, true));
+        Assert.assertSame(VALUE, this.cache.get(intake, SIGNATURE, true));
+    }
+
+    @Test
+    public void unrelatedChangesKeepTheEntries() throws RepositoryException
+    {
+        final Node visit = node("/Questionnaires/Visit", "admin", "2021-01-01");
+        this.cache.put(visit, SIGNATURE, true, VALUE, this.cache.getGeneration());
+        final long generation = this.cache.getGeneration();
+
+        final NodeBuilder builder = this.root.builder();
+        builder.child("Forms").child("f1").setProperty("questionnaire", "Visit");
+        this.cache.contentChanged(builder.getNodeState(), CommitInfo.EMPTY);
+
+        Assert.assertSame(VALUE, this.cache.get(visit, SIGNATURE, true));
+        Assert.assertEquals(generation, this.cache.getGeneration());
+    }
+
+    @Test
+    public void valuesComputedBeforeAnInvalidationAreNotStored() throws RepositoryException
+    {
+        final Node visit = node("/Questionnaires/Visit", "admin", "2021-01-01");
+        this.cache.put(visit, SIGNATURE, true, VALUE, this.cache.getGeneration());
+
+        // Another serialization starts, and the questionnaire changes before it ends
+        final long start = this.cache.getGeneration();
+        final NodeBuilder builder = this.root.builder();
+        builder.child("Questionnaires").child("Visit").setProperty("title", "Follow-up visit");
+        this.cache.contentChanged(builder.getNodeState(), CommitInfo.EMPTY);
+        this.cache.put(visit, SIGNATURE, false, VALUE, start);
+
+        Assert.assertNull(this.cache.get(visit, SIGNATURE, false));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreDiscarded() throws RepositoryException
+    {
+        Mockito.when(this.config.maxEntries()).thenReturn(2);
+        this.cache.activate(this.config);
+        final Node visit = node("/Questionnaires/Visit", "admin", "2021-01-01");
+        final Node intake = node("/Questionnaires/Intake", "admin", "2021-01-01");
+        final Node followUp = node("/Questionnaires/FollowUp", "admin", "2021-01-01");
+
+        this.cache.put(visit, SIGNATURE, true, VALUE, this.cache.getGeneration());
+        this.cache.put(intake, SIGNATURE, true, VALUE, this.cache.getGeneration());
+        // Using the Visit entry makes Intake the least recently used one
+        this.cache.get(visit, SIGNATURE, true);
+        this.cache.put(followUp, SIGNATURE, true, VALUE, this.cache.getGeneration());
+
+        Assert.assertSame(VALUE, this.cache.get(visit, SIGNATURE, true));
+        Assert.assertNull(this.cache.get(intake, SIGNATURE, true));
+        Assert.assertSame(VALUE, this.cache.get(followUp, SIGNATURE, true));
+    }
+
+    private Node node(final String path, final String user, final String lastModified) throws RepositoryException
+    {
+        final Node node = Mockito.mock(Node.class);
+        final Session session = Mockito.mock(Session.class);
+        final Property property = Mockito.mock(Property.class);
+        Mockito.when(node.getPath()).thenReturn(path);
+        Mockito.when(node.getSession()).thenReturn(session);
+        Mockito.when(session.getUserID()).thenReturn(user);
+        Mockito.when(node.isNodeType(QUESTIONNAIRE)).thenReturn(true);
+        Mockito.when(node.hasProperty("jcr:lastModified")).thenReturn(true);
+        Mockito.when(node.getProperty("jcr:lastModified")).thenReturn(property);
+        Mockito.when(property.getString()).thenReturn(lastModified);
+        return node;
+    }
+}
@@ -83,7 +83,8 @@ export default function VocabulariesAdminPage() {
   const localLink = '/query?query=' + encodeURIComponent(`select * from [cards:Vocabulary]`);
 
   function processLocalVocabList(vocabList) {
-    setLocalVocabList(vocabList);
+    // Vocabularies being reinstalled are built under a temporary name until they replace the installed instance
+    setLocalVocabList(vocabList.filter(vocab => !(vocab.path || "").endsWith(".installing")));
     setLocalLoaded(true);
   }
 
@@ -23,6 +23,7 @@
 import java.io.Writer;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.Iterator;
 
 import javax.json.Json;
@@ -40,6 +41,8 @@
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.log.LogService;
 
+import io.uhndata.cards.vocabularies.internal.OntologyIndexerUtils;
+
 /**
  * A servlet that performs full text match and lucene queries on vocabulary terms.
  *
@@ -77,7 +80,10 @@ public void doGet(final SlingHttpServletRequest request, final SlingHttpServletR
         // Parse and execute the given suggest or query
         String parentPath = request.getResource().getPath();
         String oakQuery = constructQuery(suggest, query, filter, sort, parentPath);
-        Iterator<Resource> results = request.getResourceResolver().findResources(oakQuery, "JCR-SQL2");
+        // A vocabulary still being installed is incomplete, and its terms duplicate those of the installed instance
+        Iterator<Resource> results = OntologyIndexerUtils.isTemporaryVocabulary(parentPath)
+            ? Collections.emptyIterator()
+            : request.getResourceResolver().findResources(oakQuery, "JCR-SQL2");
 
         // Write the output
         // The writer doesn't need to be explicitly closed since the auto-closed jsonGen will also close the writer
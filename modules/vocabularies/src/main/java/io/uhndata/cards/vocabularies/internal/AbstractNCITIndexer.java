@@ -27,21 +27,25 @@
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.osgi.service.component.annotations.Reference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.uhndata.cards.vocabularies.spi.VocabularyDescription;
+import io.uhndata.cards.vocabularies.spi.VocabularyDescriptionBuilder;
 import io.uhndata.cards.vocabularies.spi.VocabularyIndexException;
 import io.uhndata.cards.vocabularies.spi.VocabularyIndexer;
 import io.uhndata.cards.vocabularies.spi.VocabularyParserUtils;
 
 /**
  * Abstract class specifying a vocabulary ontology indexer specifically for the National Cancer Institute Thesaurus. The
- * class implements methods common to parsers for the NCIT, but omits file-type specific methods. The parsing and node
- * creation process is done as a transaction, meaning that if it fails, then proposed changes saved in storage will not
- * be applied, and the repository will be left in its original state.
+ * class implements methods common to parsers for the NCIT, but omits file-type specific methods. Terms are saved in
+ * batches of {@code batchSize} terms, 1000 by default, and each term is versioned unless {@code versionTerms} is
+ * {@code false}. If the install fails, the terms already saved are removed, and the previous instance of the
+ * vocabulary, if any, is left untouched.
  * <p>
  * The indexer assumes that the resource of the response it is given is a <code>VocabulariesHomepage</code> node under
  * which the <code>Vocabulary</code> node instance should be stored in the Jackrabbit Oak repository as a child.
@@ -104,8 +108,9 @@ public void index(final String source, final SlingHttpServletRequest request,
                 throw new VocabularyIndexException("Could not access resource of your request.");
             }
 
-            // Delete the Vocabulary node already representing this vocabulary instance if it exists
-            this.utils.clearVocabularyNode(homepage, identifier, overwrite);
+            // Check that the Vocabulary node already representing this vocabulary instance, if it exists, can be
+            // replaced; it is only replaced once the new instance is complete
+            this.utils.checkVocabularyNode(homepage, identifier, overwrite);
 
             // Load temporary NCIT zip file. Default location is at https://evs.nci.nih.gov/ftp1/NCI_Thesaurus/
             String sourceLocation = getDefaultSource(version);
@@ -122,23 +127,33 @@ public void index(final String source, final SlingHttpServletRequest request,
             }
 
             // Create a new Vocabulary node instance representing this vocabulary instance
-            String name = "National Cancer Institute Thesaurus";
-            Node vocabularyNode = createNCITVocabularyNode(homepage, identifier, name, sourceLocation, version);
+            VocabularyDescription description = new VocabularyDescriptionBuilder()
+                .withIdentifier(identifier)
+                .withName("National Cancer Institute Thesaurus")
+                .withSource(sourceLocation)
+                .withVersion(version)
+                .withWebsite("https://ncit.nci.nih.gov/ncitbrowser/")
+                .build();
+            Node vocabularyNode = OntologyIndexerUtils.createVocabularyNode(homepage, description,
+                NumberUtils.toInt(request.getParameter("batchSize"), OntologyIndexerUtils.DEFAULT_BATCH_SIZE),
+                !"false".equalsIgnoreCase(request.getParameter("versionTerms")));
 
             // Parse the NCIT zip file and create VocabularyTerm node children
             parseNCIT(temporaryFile, vocabularyNode);
 
             /*
-             * Save the JCR session. If any errors occur before this step, all proposed changes will not be applied and
-             * the repository will remain in its original state. Lucene indexing is automatically performed by the
-             * Jackrabbit Oak repository when this is performed.
+             * Save the last batch of terms, check-in nodes, and replace the previous instance of the vocabulary, if
+             * any. If any errors occur before this step is complete, the terms already saved are removed, and the
+             * previous instance is left untouched. Lucene indexing is automatically performed by the Jackrabbit Oak
+             * repository when this is performed.
              */
-            saveSession(homepage);
+            OntologyIndexerUtils.finalizeInstall(homepage, vocabularyNode);
 
             // Success response json
             this.utils.writeStatusJson(request, response, true, null);
         } catch (Exception e) {
             // If parsing fails, return an error json with the exception message
+            OntologyIndexerUtils.abortInstall(homepage);
             this.utils.writeStatusJson(request, response, false, "NCIT Flat indexing error: " + e.getMessage());
             LOGGER.error("NCIT indexing error: {}", e.getMessage(), e);
         } finally {
@@ -147,36 +162,6 @@ public void index(final String source, final SlingHttpServletRequest request,
         }
     }
 
-    /**
-     * Creates a <code>Vocabulary</code> node that represents the current vocabulary instance with the identifier. as
-     * the name of the node. The vocabulary property <code>website</code> is currently fixed to
-     * https://ncit.nci.nih.gov/ncitbrowser/.
-     *
-     * @param homepage <code>VocabulariesHomepage</code> node instance that will be parent of the new vocabulary node
-     * @param identifier short unique identifier of the vocabulary
-     * @param name the official name of the vocabulary
-     * @param source source of the vocabulary, usually a URL
-     * @param version the version of the vocabulary, a short string
-     * @return the <code>Vocabulary</code> node that was created
-     * @throws VocabularyIndexException when node cannot be created
-     */
-    private Node createNCITVocabularyNode(Node homepage, String identifier, String name, String source, String version)
-        throws VocabularyIndexException
-    {
-        try {
-            Node vocabularyNode = homepage.addNode("./" + identifier, "cards:Vocabulary");
-            vocabularyNode.setProperty("identifier", identifier);
-            vocabularyNode.setProperty("name", name);
-            vocabularyNode.setProperty("source", source);
-            vocabularyNode.setProperty("version", version);
-            vocabularyNode.setProperty("website", "https://ncit.nci.nih.gov/ncitbrowser/");
-            return vocabularyNode;
-        } catch (RepositoryException e) {
-            String message = "Failed to create Vocabulary node: " + e.getMessage();
-            throw new VocabularyIndexException(message, e);
-        }
-    }
-
     /**
      * Creates a <code>VocabularyTerm</code> node representing an individual term of the NCIT. This method is protected
      * to allow subclass implementations of {@link parseNCIT} to use this method, allowing the node creation process to
@@ -192,7 +177,7 @@ private Node createNCITVocabularyNode(Node homepage, String identifier, String n
      * @param synonyms synonyms for this the term
      * @param parents the parent terms (direct ancestors) of the given term, as a list of identifiers
      * @param ancestors ancestor terms of the given term, as a list of identifiers
-     * @throws VocabularyIndexException when node cannot be created
+     * @throws VocabularyIndexException when node cannot be created, or saving a batch of terms fails
      */
     protected void createNCITVocabularyTermNode(Node vocabularyNode, String identifier, String label,
         String description, String[] synonyms, String[] parents, String[] ancestors)
@@ -212,6 +197,9 @@ protected void createNCITVocabularyTermNode(Node vocabularyNode, String identifi
             vocabularyTermNode.setProperty("synonyms", synonyms);
             vocabularyTermNode.setProperty("parents", parents);
             vocabularyTermNode.setProperty("ancestors", ancestors);
+
+            // Save the terms in batches, and check them in if terms are versioned
+            OntologyIndexerUtils.addVocabularyTermNode(vocabularyTermNode);
         } catch (RepositoryException e) {
             // If the identifier exists, print the identifier in the error message to identify node
             String message =
@@ -220,26 +208,6 @@ protected void createNCITVocabularyTermNode(Node vocabularyNode, String identifi
         }
     }
 
-    /**
-     * Saves the JCR session of the homepage node that was obtained from the resource of the request. If this is
-     * successful, then the changes made already will be applied to the JCR repository. If not, then all of the changes
-     * will not be applied. After the session is saved, then the JCR repository will automatically begin Lucene
-     * indexing.
-     *
-     * @param vocabulariesHomepage the <code>VocabulariesHomepage</code> node obtained from the request
-     * @throws VocabularyIndexException if session is not successfully saved
-     */
-    private void saveSession(Node vocabulariesHomepage)
-        throws VocabularyIndexException
-    {
-        try {
-            vocabulariesHomepage.getSession().save();
-        } catch (RepositoryException e) {
-            String message = "Failed to save session: " + e.getMessage();
-            throw new VocabularyIndexException(message, e);
-        }
-    }
-
     /**
      * Parses the temporary NCIT source file and creates <code>VocabularyTerm</code> nodes for each term. The new term
      * nodes must be children of the given <code>Vocabulary</code> node representing the NCIT vocabulary instance.
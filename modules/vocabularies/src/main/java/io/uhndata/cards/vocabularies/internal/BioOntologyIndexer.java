@@ -29,6 +29,7 @@
 import javax.jcr.RepositoryException;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.osgi.service.component.annotations.Component;
@@ -56,7 +57,8 @@
  * BioOntology server</li>
  * </ul>
  * An optional {@code version} parameter can be used to index a specific version of the target vocabulary. If not
- * specified, then the latest available version will be used.
+ * specified, then the latest available version will be used. Terms are saved in batches of {@code batchSize} terms,
+ * 1000 by default, and each term is versioned unless {@code versionTerms} is {@code false}.
  *
  * @version $Id$
  */
@@ -126,8 +128,9 @@ public void index(final String source, final SlingHttpServletRequest request,
                 throw new VocabularyIndexException("Could not access resource of your request.");
             }
 
-            // Delete the Vocabulary node already representing this vocabulary instance if it exists
-            this.utils.clearVocabularyNode(homepage, identifier, overwrite);
+            // Check that the Vocabulary node already representing this vocabulary instance, if it exists, can be
+            // replaced; it is only replaced once the new instance is complete
+            this.utils.checkVocabularyNode(homepage, identifier, overwrite);
 
             // Load the description
             VocabularyDescription description = this.repository.getVocabularyDescription(identifier, version);
@@ -142,15 +145,18 @@ public void index(final String source, final SlingHttpServletRequest request,
             temporaryFile = this.repository.downloadVocabularySource(description);
 
             // Create a new Vocabulary node representing this vocabulary
-            this.vocabularyNode.set(OntologyIndexerUtils.createVocabularyNode(homepage, description));
+            this.vocabularyNode.set(OntologyIndexerUtils.createVocabularyNode(homepage, description,
+                NumberUtils.toInt(request.getParameter("batchSize"), OntologyIndexerUtils.DEFAULT_BATCH_SIZE),
+                !"false".equalsIgnoreCase(request.getParameter("versionTerms"))));
 
             // Parse the source file and create VocabularyTerm node children
             parser.parse(temporaryFile, description, this::createVocabularyTermNode);
 
             /*
-             * Save the JCR session and check-in nodes. If any errors occur before this step, all proposed changes
-             * will not be applied and the repository will remain in its original state. Lucene indexing is
-             * automatically performed by the Jackrabbit Oak repository when this is performed.
+             * Save the last batch of terms, check-in nodes, and replace the previous instance of the vocabulary, if
+             * any. If any errors occur before this step is complete, the terms already saved are removed, and the
+             * previous instance is left untouched. Lucene indexing is automatically performed by the Jackrabbit Oak
+             * repository when this is performed.
              */
             OntologyIndexerUtils.finalizeInstall(homepage, this.vocabularyNode);
 
@@ -158,6 +164,7 @@ public void index(final String source, final SlingHttpServletRequest request,
             this.utils.writeStatusJson(request, response, true, null);
         } catch (Exception e) {
             // If parsing fails, return an error json with the exception message
+            OntologyIndexerUtils.abortInstall(homepage);
             this.utils.writeStatusJson(request, response, false, "Vocabulary indexing error: " + e.getMessage());
             LOGGER.error("Vocabulary indexing error: {}", e.getMessage(), e);
         } finally {
@@ -26,10 +26,10 @@
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
 
@@ -44,6 +44,14 @@
 
 /**
  * Parser for vocabulary sources in the OBO format.
+ * <p>
+ * The source is read twice, so that terms don't have to be kept in memory until the end of the file. The first pass
+ * only looks at the identifiers and parents of the terms, and builds the term hierarchy as a compact graph where terms
+ * are identified by their index, from which the ancestors of each term are computed. The second pass reads all the
+ * term data, and sends each term to the consumer as soon as its frame ends. Only the terms described in several
+ * frames are kept until their last frame is read, so that their data can be combined. Lines are tokenized by hand,
+ * in a single pass over their characters.
+ * </p>
  *
  * @version $Id$
  */
@@ -54,27 +62,33 @@
 @SuppressWarnings("checkstyle:ClassDataAbstractionCoupling")
 public class OboParser implements SourceParser
 {
-    /** Marks the start of a new Frame. */
-    private static final String FRAME_MARKER = "^\\[[a-zA-Z]+\\]$";
-
     /** Marks the start of a new Term Frame. */
     private static final String TERM_MARKER = "[Term]";
 
-    /**
-     * Regex pattern for separating the tag and its value from a line: an optional even number of backslashes, followed
-     * by a colon, and optional whitespace.
-     */
-    private static final String FIELD_NAME_VALUE_SEPARATOR = "(?<!\\\\)(?:\\\\\\\\)*:\\s*";
-
-    /** Holds the term currently being . */
-    private InheritableThreadLocal<TermData> crtTerm = new InheritableThreadLocal<>();
+    /** The escape character. */
+    private static final char ESCAPE = '\\';
 
-    /** Holds all the terms parsed so far. */
-    private InheritableThreadLocal<Map<String, TermData>> data = new InheritableThreadLocal<>();
+    /** Special symbols which, when escaped, are replaced by themselves. */
+    private static final String SELF_ESCAPED = "!:,\"()[]{}";
 
     /** Logger object used to handle thrown errors. */
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    /** Receives the contents of the Term frames of a source file. */
+    private interface TermVisitor
+    {
+        /**
+         * Called for each field of a Term frame.
+         *
+         * @param name the raw name of the field
+         * @param value the raw value of the field
+         */
+        void field(String name, String value);
+
+        /** Called at the end of each Term frame. */
+        void endTerm();
+    }
+
     @Override
     public boolean canParse(String format)
     {
@@ -88,26 +102,118 @@ public void parse(
         final Consumer<VocabularyTermSource> consumer) throws IOException, VocabularyIndexException
     {
         try {
-            this.data.set(new LinkedHashMap<>());
-            readLines(source);
-            propagateAncestors();
-            consumeData(consumer);
-            this.data.remove();
+            final TermGraph graph = readGraph(source);
+            readTerms(source, graph, consumer);
         } catch (IOException ex) {
             this.logger.error("IOException: {}", ex.getMessage());
         }
     }
 
     /**
-     * Read the source file and populate the data variable.
+     * First pass over the source file, collecting the identifiers of the terms and their parents, and computing the
+     * ancestors of each term.
+     *
+     * @param source the file containing the vocabulary source in OBO format
+     * @return the term hierarchy, with the ancestors computed
+     * @throws IOException if reading the source file fails
+     */
+    private TermGraph readGraph(final File source) throws IOException
+    {
+        final TermGraph graph = new TermGraph();
+        readFrames(source, new TermVisitor()
+        {
+            private String id;
+
+            private final List<String> parents = new ArrayList<>();
+
+            @Override
+            public void field(final String name, final String value)
+            {
+                final String field = process(name);
+                if (TermData.ID_FIELD_NAME.equals(field) && this.id == null) {
+                    this.id = process(value);
+                } else if (TermData.PARENT_FIELD_NAME.equals(field)) {
+                    this.parents.add(process(value));
+                }
+            }
+
+            @Override
+            public void endTerm()
+            {
+                // Only terms with a valid identifier can be stored
+                if (this.id != null) {
+                    final int term = graph.getIndex(this.id);
+                    graph.addFrame(term);
+                    for (final String parent : this.parents) {
+                        graph.addParent(term, graph.getIndex(parent));
+                    }
+                }
+                this.id = null;
+                this.parents.clear();
+            }
+        });
+        graph.computeAncestors();
+        return graph;
+    }
+
+    /**
+     * Second pass over the source file, sending each term to the consumer once all of its frames were read.
      *
      * @param source the file containing the vocabulary source in OBO format
+     * @param graph the term hierarchy computed during the first pass
+     * @param consumer method that will store the parsed terms
      * @throws IOException if reading the source file fails
      */
-    private void readLines(final File source) throws IOException
+    private void readTerms(final File source, final TermGraph graph, final Consumer<VocabularyTermSource> consumer)
+        throws IOException
+    {
+        // Terms described in several frames, waiting for their last frame
+        final Map<String, TermData> incomplete = new HashMap<>();
+        readFrames(source, new TermVisitor()
+        {
+            private TermData crtTerm = new TermData();
+
+            @Override
+            public void field(final String name, final String value)
+            {
+                this.crtTerm.addTo(process(name), process(value));
+            }
+
+            @Override
+            public void endTerm()
+            {
+                final TermData term = this.crtTerm;
+                this.crtTerm = new TermData();
+                final String id = term.getId();
+                if (id == null) {
+                    return;
+                }
+                final int index = graph.getIndex(id);
+                final boolean last = graph.removeFrame(index) == 0;
+                // Multiple frames can describe the same term, we must combine them into one
+                final TermData existing = incomplete.remove(id);
+                if (existing != null) {
+                    existing.getAllProperties().putAll(term.getAllProperties());
+                }
+                final TermData combined = existing == null ? term : existing;
+                if (last) {
+                    consume(combined, graph.getAncestors(index), consumer);
+                } else {
+                    incomplete.put(id, combined);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the Term frames of a source file, ignoring the header and other types of frames.
+     *
+     * @param source the file containing the vocabulary source in OBO format
+     * @param visitor receives the fields of each Term frame
+     * @throws IOException if reading the source file fails
+     */
+    private void readFrames(final File source, final TermVisitor visitor) throws IOException
     {
-        // Start by examining a new term
-        this.crtTerm.set(new TermData());
         try (ConcatenatingLineReader br =
             new ConcatenatingLineReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8))) {
             String line;
@@ -115,11 +221,11 @@ private void readLines(final File source) throws IOException
             // Initially false, since at the start of the file is the header
             boolean isTerm = false;
             while ((line = br.readLine()) != null) {
-                if (line.trim().matches(FRAME_MARKER)) {
+                if (isFrameMarker(line)) {
                     // We just encountered the start of a new frame
                     if (isTerm) {
                         // If the previous frame was a Term, store it
-                        storeCrtTerm();
+                        visitor.endTerm();
                     }
                     // Non-Term frames must be ignored, only Terms are recorded
                     isTerm = line.trim().equalsIgnoreCase(TERM_MARKER);
@@ -127,226 +233,388 @@ private void readLines(final File source) throws IOException
                 }
                 if (isTerm) {
                     // Inside a Term, process its values
-                    String[] pieces = line.split(FIELD_NAME_VALUE_SEPARATOR, 2);
-                    if (pieces.length != 2) {
-                        continue;
-                    }
-                    loadField(pieces[0], pieces[1]);
+                    loadField(line, visitor);
                 }
             }
             // Also store the last term parsed when the end of the file is encountered
             if (isTerm) {
-                storeCrtTerm();
+                visitor.endTerm();
             }
         }
     }
 
     /**
-     * Store the current term data and set up a new TermData instance to record the next term.
+     * Checks if a line starts a new frame, which is a name made of letters between square brackets, such as
+     * {@code [Term]}.
+     *
+     * @param line the line to check
+     * @return {@code true} if the line is a frame marker
      */
-    private void storeCrtTerm()
+    private static boolean isFrameMarker(final String line)
     {
-        // Only terms with a valid identifier can be stored
-        TermData termToProcess = this.crtTerm.get();
-        if (termToProcess.getId() != null) {
-            // Multiple frames can describe the same term, we must combine them into one
-            TermData existing = this.data.get().get(termToProcess.getId());
-            if (existing == null) {
-                this.data.get().put(termToProcess.getId(), termToProcess);
-            } else {
-                existing.getAllProperties().putAll(termToProcess.getAllProperties());
+        final String trimmed = line.trim();
+        final int length = trimmed.length();
+        if (length < 3 || trimmed.charAt(0) != '[' || trimmed.charAt(length - 1) != ']') {
+            return false;
+        }
+        for (int i = 1; i < length - 1; ++i) {
+            final char c = trimmed.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z')) {
+                return false;
             }
         }
-        this.crtTerm.set(new TermData());
+        return true;
     }
 
     /**
-     * Process a field ("name = value" pair) by extracting only the actual value, ignoring trailing modifiers, dbxrefs,
-     * and comments, as well as synonym categories.
+     * Separate the tag and its value from a line: the separator is the first colon which isn't escaped, followed by
+     * optional whitespace. An even number of backslashes right before the colon escape each other, and are also
+     * considered part of the separator. Lines without a separator are ignored.
      *
-     * @param name the name of the property
-     * @param value the raw value, which may be a simple unquoted or quoted value, or a value with additional trailing
-     *            modifiers, comments, and other tags
+     * @param line the line to split
+     * @param visitor receives the tag and value
      */
-    private void loadField(String name, String value)
+    private static void loadField(final String line, final TermVisitor visitor)
     {
-        this.crtTerm.get().addTo(process(name), process(value));
+        final int separator = indexOfUnescaped(line, 0, ':', ':');
+        if (separator < 0) {
+            return;
+        }
+        int nameEnd = separator;
+        while (nameEnd > 0 && line.charAt(nameEnd - 1) == ESCAPE) {
+            --nameEnd;
+        }
+        int valueStart = separator + 1;
+        while (valueStart < line.length() && isWhitespace(line.charAt(valueStart))) {
+            ++valueStart;
+        }
+        visitor.field(line.substring(0, nameEnd), line.substring(valueStart));
     }
 
     /**
      * Process a raw value read from the OBO file to extract only the real value, ignoring trailing modifiers, comments,
      * and xref lists, removing quotes if needed, and unescaping special escape sequences.
+     * <p>
+     * For example:
+     * </p>
+     * <ul>
+     * <li>{@code "Abnormally long and slender fingers (\"spider fingers\")." [HPO:probinson]} becomes
+     * {@code Abnormally long and slender fingers ("spider fingers").}</li>
+     * <li>{@code He said "Hello\!" and then left. ! Did he mean to say "Goodbye!" instead?} becomes
+     * {@code He said "Hello!" and then left.}</li>
+     * <li>{@code Often associated with Cowden syndrome. {xref="PMID:11073535"}} becomes
+     * {@code Often associated with Cowden syndrome.}</li>
+     * </ul>
      *
      * @param rawValue the value as present in the input file
      * @return the processed value, with any trailing bits removed, unquoted, and unescaped
      */
-    private String process(final String rawValue)
+    static String process(final String rawValue)
     {
-        String realValue = rawValue;
-
-        // If the string was quoted, then trailing modifiers and comments don't need to be trimmed from within
-        final boolean wasQuoted = rawValue.startsWith("\"");
-
-        // If the value is quoted, only keep the part inside the quotes.
-        // - must match from the start: ^
-        // - must start with a quote: \"
-        // - start a capture: (
-        // - any characters: .*
-        // - lazy matching, capture the shortest match to avoid capturing between two distinct quoted strings): ?
-        // (now going backwards from the last closing bracket)
-        // - end the capture: )
-        // - which may be proceded by an even number of backslashes, including none: (?:\\\\\\\\)*
-        // -- two backslashes: \\
-        // -- escaped as part of the regexp: \\\\
-        // -- escaped again as part of a java string: \\\\\\\\
-        // -- in a non-capturing group: (?:\\\\\\\\)
-        // -- repeated any number of times, including 0: (?:\\\\\\\\)*
-        // - not preceded by another backslash, which would make it an odd number of backslashes: (?<!\\\\)
-        // -- a backslash: \
-        // -- escaped as part of the regexp: \\
-        // -- escaped again as part of a java string: \\\\
-        // -- in a negative lookbehind: (?<!\\\\)
-        // (resume going forward after the last closing bracket)
-        // - stop capturing at a quote: \"
-        // - followed by anything else: .*
-        //
-        // For example:
-        // "Abnormally long and slender fingers (\"spider fingers\")." [HPO:probinson]
-        // becomes
-        // Abnormally long and slender fingers (\"spider fingers\").
-        realValue = realValue.replaceFirst("^\"(.*?(?<!\\\\)(?:\\\\\\\\)*)\".*", "$1");
-
-        // If there are trailing modifiers or comments, remove them.
-        // - must match from the start: ^
-        // - start a capture: (
-        // - any characters: .*
-        // - lazy matching, capture the shortest match to stop at the first exclamation mark): ?
-        // - an even number of backslashes, including none (see explanation above for this part): (?<!\\\\)(?:\\\\\\\\)*
-        // - end the capture: )
-        // - an opening brace or exclamation mark: [\\{!]
-        // - followed by anything else: .*
-        //
-        // We also trim the value, to remove any potential whitespace before the trailing bit.
-        //
-        // Examples:
-        //
-        // He said "Hello\!" and then left. ! Did he mean to say "Goodbye!" instead?
-        // becomes
-        // He said "Hello\!" and then left.
-        //
-        // Often associated with Cowden syndrome. {xref="PMID:11073535"}
-        // becomes
-        // Often associated with Cowden syndrome.
-        if (!wasQuoted) {
-            realValue = realValue.replaceFirst("^(.*?(?<!\\\\)(?:\\\\\\\\)*)[\\{!].*", "$1").trim();
+        int start = 0;
+        int end = rawValue.length();
+        if (rawValue.startsWith("\"")) {
+            // If the value is quoted, only keep the part inside the quotes, up to the first unescaped quote.
+            // Trailing modifiers, comments, and Dbxref lists can only appear after the closing quote.
+            final int closingQuote = indexOfUnescaped(rawValue, 1, '"', '"');
+            if (closingQuote >= 0) {
+                start = 1;
+                end = closingQuote;
+            }
+        } else {
+            // If there are trailing modifiers or comments, remove them, along with any whitespace before them
+            final int trailing = indexOfUnescaped(rawValue, 0, '{', '!');
+            if (trailing >= 0) {
+                end = trailing;
+            }
+            while (start < end && rawValue.charAt(start) <= ' ') {
+                ++start;
+            }
+            while (end > start && rawValue.charAt(end - 1) <= ' ') {
+                --end;
+            }
         }
-
-        // We should also remove trailing Dbxref lists, but this isn't necessary since they can only appear after a
-        // quoted string, which means that they should already have been discarded during the first step when everything
-        // outside the quotes was discarded
-
-        // Unescape special symbols which are replaced by themselves: !:,"()[]{}
-        // - replace any occurrence, so we don't need to match from the start
-        // - an even number of backslashes, including none (explanation above): (?<!\\\\)(?:\\\\\\\\)*
-        // - captured as the first group, since we want to preserve them: ((?<!\\\\)(?:\\\\\\\\)*)
-        // - followed by a single backslash, escaped two times: \\\\
-        // - followed by one of the special characters: [!:,"()[]{}]
-        // - escaped: [!:,\"\\(\\)\\[\\]\\{\\}]
-        // - captured as the second group, since we want to output it: ([!:,\"\\(\\)\\[\\]\\{\\}])
-        // - replace with the optional even backslashes before the escaping backslash, and the symbol itself
-        realValue = realValue.replaceAll("((?<!\\\\)(?:\\\\\\\\)*)\\\\([!:,\"\\(\\)\\[\\]\\{\\}])", "$1$2");
-
-        // Unescape other special characters: newline, space, tab
-        // - as above, captured optional even number of preceding backslashes: ((?<!\\\\)(?:\\\\\\\\)*)
-        // - followed by a single backslash, escaped two times: \\\\
-        // - followed by n, W, or t respectively
-        // - replace with the optional even backslashes before the escaping backslash, and the special character
-        realValue = realValue.replaceAll("((?<!\\\\)(?:\\\\\\\\)*)\\\\n", "$1\n")
-            .replaceAll("((?<!\\\\)(?:\\\\\\\\)*)\\\\W", "$1 ")
-            .replaceAll("((?<!\\\\)(?:\\\\\\\\)*)\\\\t", "$1\t");
-
-        // Finally, unescape the escape character itself
-        // - replace any two backslashes with one: \\
-        // - double escaped as a regexp special symbol and as a java string: \\\\\\\\
-        // - replace with a single backslash, also double escaped
-        realValue = realValue.replaceAll("\\\\\\\\", "\\\\");
-
-        return realValue;
+        return unescape(rawValue, start, end);
     }
 
     /**
-     * Determine and return the ancestors of a vocabulary term. Initially, the ancestors are not available, since the
-     * vocabulary source only includes direct parents, but after the ancestors are recursively computed the first time,
-     * they will be stored in the TermData for quick subsequent retrieval.
+     * Unescape special symbols: {@code !:,"()[]{}} are replaced by themselves, {@code \n} by a newline, {@code \W} by
+     * a space, {@code \t} by a tab, and two backslashes by one. A backslash followed by any other character is kept.
      *
-     * @param termID the identifier of the term whose ancestors are to be retrieved
-     * @return identifiers of the ancestors of the given term, may be an empty collection if the term has no
-     *         parents/ancestors, or if the term doesn't exist
+     * @param value the string containing the text to unescape
+     * @param start the start of the text to unescape, inclusive
+     * @param end the end of the text to unescape, exclusive
+     * @return the unescaped text
      */
-    private Collection<String> findAncestors(String termID)
+    private static String unescape(final String value, final int start, final int end)
     {
-        TermData term = this.data.get().get(termID);
-
-        if (term == null) {
-            // Unknown parent
-            return Collections.emptySet();
+        final int firstEscape = value.indexOf(ESCAPE, start);
+        if (firstEscape < 0 || firstEscape >= end) {
+            return value.substring(start, end);
         }
-        // If the ancestors for this node have already been determined, return them as a list of IDs.
-        if (term.hasKey(TermData.TERM_CATEGORY_FIELD_NAME)) {
-            return term.getAllValues(TermData.TERM_CATEGORY_FIELD_NAME);
-        } else {
-            Collection<String> parents;
-            // If the node has Parents, it definitely has Ancestors but they have not yet been determined.
-            if (term.hasKey(TermData.PARENT_FIELD_NAME)) {
-                parents = term.getAllValues(TermData.PARENT_FIELD_NAME);
-            } else {
-                // Else we have reached the root node which has no parents.
-                parents = Collections.emptySet();
+        final StringBuilder result = new StringBuilder(end - start);
+        result.append(value, start, firstEscape);
+        int i = firstEscape;
+        while (i < end) {
+            final char c = value.charAt(i);
+            if (c != ESCAPE || i + 1 >= end) {
+                result.append(c);
+                ++i;
+                continue;
             }
-            Collection<String> ancestors = new LinkedHashSet<>(parents);
-            // Take the Union of the ancestors IDs of all parent nodes and the IDs of parents.
-            for (String parent : parents) {
-                ancestors.addAll(findAncestors(parent));
+            final char next = value.charAt(i + 1);
+            if (next == ESCAPE || SELF_ESCAPED.indexOf(next) >= 0) {
+                result.append(next);
+            } else if (next == 'n') {
+                result.append('\n');
+            } else if (next == 'W') {
+                result.append(' ');
+            } else if (next == 't') {
+                result.append('\t');
+            } else {
+                // Not an escape sequence, keep the backslash and process the next character normally
+                result.append(c);
+                ++i;
+                continue;
             }
-            // This Union is set as the current node's ancestors.
-            term.addTo(TermData.TERM_CATEGORY_FIELD_NAME, ancestors);
-            // Return Union
-            return ancestors;
+            i += 2;
         }
+        return result.toString();
     }
 
     /**
-     * Recursively computes ancestors from the parents for all terms.
+     * Finds the first occurrence of one of two characters which isn't escaped, meaning that it is preceded by an even
+     * number of backslashes, including none.
+     *
+     * @param value the string to search
+     * @param from the index where the search starts
+     * @param first a character to look for
+     * @param second another character to look for, may be the same as {@code first}
+     * @return the index of the first unescaped occurrence, or {@code -1} if there isn't one
      */
-    private void propagateAncestors()
+    private static int indexOfUnescaped(final String value, final int from, final char first, final char second)
     {
-        for (String id : this.data.get().keySet()) {
-            findAncestors(id);
+        int backslashes = 0;
+        for (int i = from; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c == ESCAPE) {
+                ++backslashes;
+                continue;
+            }
+            if ((c == first || c == second) && backslashes % 2 == 0) {
+                return i;
+            }
+            backslashes = 0;
         }
+        return -1;
     }
 
     /**
-     * Creates a new VocabularyTermSource object from the parsed Term and passes it to the consumer function.
+     * Checks if a character is whitespace, as defined by the {@code \s} regular expression class.
      *
+     * @param c the character to check
+     * @return {@code true} for space, tab, newline, vertical tab, form feed, and carriage return
+     */
+    private static boolean isWhitespace(final char c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Creates a new VocabularyTermSource object from a parsed Term and passes it to the consumer function.
+     *
+     * @param term the parsed term
+     * @param ancestors identifiers of the ancestors of the term
      * @param consumer method that will store the parsed term
      */
-    private void consumeData(final Consumer<VocabularyTermSource> consumer)
+    private static void consume(final TermData term, final List<String> ancestors,
+        final Consumer<VocabularyTermSource> consumer)
     {
         String[] typeString = {};
-        for (String id : this.data.get().keySet()) {
-            TermData term = this.data.get().get(id);
-            consumer.accept(new VocabularyTermSource(
-                term.getId(),
-                term.getLabel(),
-                term.getAllValues(TermData.PARENT_FIELD_NAME).toArray(typeString),
-                term.getAllValues(TermData.TERM_CATEGORY_FIELD_NAME).toArray(typeString),
-                term.getAllProperties()));
+        term.addTo(TermData.TERM_CATEGORY_FIELD_NAME, ancestors);
+        consumer.accept(new VocabularyTermSource(
+            term.getId(),
+            term.getLabel(),
+            term.getAllValues(TermData.PARENT_FIELD_NAME).toArray(typeString),
+            term.getAllValues(TermData.TERM_CATEGORY_FIELD_NAME).toArray(typeString),
+            term.getAllProperties()));
+    }
+
+    /**
+     * The hierarchy of terms, where terms are identified by an index, and the parents and ancestors of each term are
+     * stored as arrays of indexes. Parents that are not defined as terms in the source are also given an index, so
+     * that they are kept as ancestors.
+     *
+     * @version $Id$
+     */
+    private static final class TermGraph
+    {
+        /** The index of each known identifier. */
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        /** The identifier of each index. */
+        private final List<String> identifiers = new ArrayList<>();
+
+        /** The number of frames describing each term, decremented as frames are processed during the second pass. */
+        private int[] frames = new int[1024];
+
+        /** The child of each parent relation. */
+        private int[] children = new int[1024];
+
+        /** The parent of each parent relation. */
+        private int[] parents = new int[1024];
+
+        /** The number of parent relations. */
+        private int relations;
+
+        /** The ancestors of each term, parents first. */
+        private int[][] ancestors;
+
+        int getIndex(final String identifier)
+        {
+            Integer result = this.indexes.get(identifier);
+            if (result == null) {
+                result = this.identifiers.size();
+                this.indexes.put(identifier, result);
+                this.identifiers.add(identifier);
+                if (result == this.frames.length) {
+                    this.frames = Arrays.copyOf(this.frames, result * 2);
+                }
+            }
+            return result;
+        }
+
+        void addFrame(final int term)
+        {
+            ++this.frames[term];
+        }
+
+        int removeFrame(final int term)
+        {
+            return --this.frames[term];
+        }
+
+        void addParent(final int child, final int parent)
+        {
+            if (this.relations == this.children.length) {
+                this.children = Arrays.copyOf(this.children, this.relations * 2);
+                this.parents = Arrays.copyOf(this.parents, this.relations * 2);
+            }
+            this.children[this.relations] = child;
+            this.parents[this.relations] = parent;
+            ++this.relations;
+        }
+
+        List<String> getAncestors(final int term)
+        {
+            final int[] indexes = this.ancestors[term];
+            final List<String> result = new ArrayList<>(indexes.length);
+            for (final int ancestor : indexes) {
+                result.add(this.identifiers.get(ancestor));
+            }
+            return result;
+        }
+
+        /**
+         * Computes the ancestors of all the terms. Terms are visited depth first, with an explicit stack, so that the
+         * ancestors of all the parents of a term are known before the term itself is processed. In case of cycles,
+         * which are invalid but may still appear, a parent still being processed contributes only itself.
+         */
+        void computeAncestors()
+        {
+            final int count = this.identifiers.size();
+
+            // Group the parents of each term together: the parents of term i are between offsets[i] and offsets[i+1]
+            final int[] offsets = new int[count + 1];
+            for (int i = 0; i < this.relations; ++i) {
+                ++offsets[this.children[i] + 1];
+            }
+            for (int i = 0; i < count; ++i) {
+                offsets[i + 1] += offsets[i];
+            }
+            final int[] grouped = new int[this.relations];
+            final int[] position = Arrays.copyOf(offsets, count);
+            for (int i = 0; i < this.relations; ++i) {
+                grouped[position[this.children[i]]++] = this.parents[i];
+            }
+            // The relations are no longer needed
+            this.children = null;
+            this.parents = null;
+
+            this.ancestors = new int[count][];
+            // 0 = not visited yet, 1 = waiting for its parents, 2 = done
+            final byte[] state = new byte[count];
+            // Used for skipping duplicate ancestors: the value is the last term which included that ancestor
+            final int[] seen = new int[count];
+            Arrays.fill(seen, -1);
+            int[] stack = new int[64];
+            int[] buffer = new int[64];
+            for (int root = 0; root < count; ++root) {
+                if (state[root] != 0) {
+                    continue;
+                }
+                int top = 0;
+                stack[top++] = root;
+                while (top > 0) {
+                    final int term = stack[top - 1];
+                    if (state[term] == 0) {
+                        state[term] = 1;
+                        for (int i = offsets[term]; i < offsets[term + 1]; ++i) {
+                            if (state[grouped[i]] == 0) {
+                                if (top == stack.length) {
+                                    stack = Arrays.copyOf(stack, top * 2);
+                                }
+                                stack[top++] = grouped[i];
+                            }
+                        }
+                        continue;
+                    }
+                    --top;
+                    if (state[term] == 2) {
+                        // Pushed more than once
+                        continue;
+                    }
+                    int size = 0;
+                    // A term is never its own ancestor, even in a cycle
+                    seen[term] = term;
+                    for (int i = offsets[term]; i < offsets[term + 1]; ++i) {
+                        final int parent = grouped[i];
+                        if (seen[parent] != term) {
+                            seen[parent] = term;
+                            buffer = ensureCapacity(buffer, size + 1);
+                            buffer[size++] = parent;
+                        }
+                    }
+                    for (int i = offsets[term]; i < offsets[term + 1]; ++i) {
+                        final int[] inherited = this.ancestors[grouped[i]];
+                        if (inherited == null) {
+                            // Still being processed, this is a cycle
+                            continue;
+                        }
+                        buffer = ensureCapacity(buffer, size + inherited.length);
+                        for (final int ancestor : inherited) {
+                            if (seen[ancestor] != term) {
+                                seen[ancestor] = term;
+                                buffer[size++] = ancestor;
+                            }
+                        }
+                    }
+                    this.ancestors[term] = Arrays.copyOf(buffer, size);
+                    state[term] = 2;
+                }
+            }
+        }
+
+        private static int[] ensureCapacity(final int[] array, final int capacity)
+        {
+            return capacity <= array.length ? array : Arrays.copyOf(array, Math.max(capacity, array.length * 2));
         }
     }
 
     /**
      * A buffered line reader that concatenates split lines into one. In other words, whenever a real line ends with an
-     * unescaped backslash, the backslash is removed and the following line is appended.
+     * unescaped backslash, the backslash is removed and the following line is appended. Lines containing an unescaped
+     * comment marker are never continued.
      *
      * @version $Id$
      */
@@ -361,22 +629,28 @@ private static final class ConcatenatingLineReader extends BufferedReader
         public String readLine() throws IOException
         {
             String line = super.readLine();
+            if (line == null || !isContinued(line)) {
+                return line;
+            }
             StringBuilder concatenatedLine = new StringBuilder();
-            boolean firstLineIsNull = true;
-            while (line != null
-                && line.toString().matches(".*((?<!\\\\)(?:\\\\\\\\)*)\\\\")
-                && !line.toString().matches(".*(?<!\\\\)(?:\\\\\\\\)*!.*")) {
+            while (line != null && isContinued(line)) {
                 concatenatedLine.append(line, 0, line.length() - 1);
-                firstLineIsNull = false;
                 line = super.readLine();
             }
             // The file may end with a last backslash, which needs to be removed
             if (line != null) {
                 concatenatedLine.append(line);
-            } else if (firstLineIsNull) {
-                return null;
             }
             return concatenatedLine.toString();
         }
+
+        private static boolean isContinued(final String line)
+        {
+            int backslashes = 0;
+            for (int i = line.length() - 1; i >= 0 && line.charAt(i) == ESCAPE; --i) {
+                ++backslashes;
+            }
+            return backslashes % 2 == 1 && indexOfUnescaped(line, 0, '!', '!') < 0;
+        }
     }
 }
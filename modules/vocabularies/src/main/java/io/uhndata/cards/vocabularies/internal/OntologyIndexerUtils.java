@@ -24,11 +24,13 @@
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import javax.jcr.ItemExistsException;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.version.VersionManager;
 
@@ -45,8 +47,17 @@
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(OntologyIndexerUtils.class);
 
-    /** The list which holds all JCR vocabulary nodes associated with a vocabulary to be checked-in. */
-    private static final ThreadLocal<List<Node>> NODES_TO_CHECK_IN = ThreadLocal.withInitial(ArrayList::new);
+    /** The default number of terms created before saving the session. */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** Appended to the name of a vocabulary being installed while a previous instance is still in place. */
+    private static final String TEMPORARY_SUFFIX = ".installing";
+
+    /** Characters that can't be used in the name of a term node. */
+    private static final Pattern INVALID_NAME_CHARACTERS = Pattern.compile("[^A-Za-z0-9_\\.]");
+
+    /** The state of the vocabulary being installed in the current thread. */
+    private static final ThreadLocal<InstallState> INSTALL_STATE = new ThreadLocal<>();
 
     /** The list which holds all root terms. */
     private static final ThreadLocal<List<Node>> ROOT_NODES = ThreadLocal.withInitial(ArrayList::new);
@@ -57,27 +68,37 @@ private OntologyIndexerUtils()
     }
 
     /**
-     * Creates a <code>VocabularyTerm</code> node representing an individual term of the vocabulary.
+     * Creates a <code>VocabularyTerm</code> node representing an individual term of the vocabulary. Every
+     * {@link #createVocabularyNode(Node, VocabularyDescription, int, boolean) batch size} terms, the session is saved,
+     * so that the pending changes don't grow with the size of the vocabulary.
      *
      * @param term the term data
      * @param vocabularyNode must be passed from the calling class
-     * @throws VocabularyIndexException when a node cannot be created
+     * @throws IllegalStateException if saving a batch of terms fails
      */
     @SuppressWarnings({"checkstyle:CyclomaticComplexity"})
     public static void createVocabularyTermNode(VocabularyTermSource term, InheritableThreadLocal<Node> vocabularyNode)
     {
+        final InstallState state = INSTALL_STATE.get();
         try {
             Node vocabularyTermNode;
             try {
                 vocabularyTermNode = vocabularyNode.get()
-                                         .addNode("./" + term.getId()
-                                         .replaceAll("[^A-Za-z0-9_\\.]", ""), "cards:VocabularyTerm");
+                                         .addNode("./" + INVALID_NAME_CHARACTERS.matcher(term.getId()).replaceAll(""),
+                                             "cards:VocabularyTerm");
             } catch (ItemExistsException e) {
                 // Sometimes terms appear twice; we'll just update the existing node
                 vocabularyTermNode = vocabularyNode.get().getNode(term.getId());
+                if (!vocabularyTermNode.isCheckedOut()) {
+                    // Already saved and checked in with an earlier batch
+                    vocabularyTermNode.getSession().getWorkspace().getVersionManager()
+                        .checkout(vocabularyTermNode.getPath());
+                }
             }
 
-            NODES_TO_CHECK_IN.get().add(vocabularyTermNode);
+            if (state != null && state.versionTerms) {
+                state.nodesToCheckIn.add(vocabularyTermNode.getPath());
+            }
             vocabularyTermNode.setProperty("identifier", term.getId());
 
             vocabularyTermNode.setProperty("label", term.getLabel());
@@ -112,11 +133,57 @@ public static void createVocabularyTermNode(VocabularyTermSource term, Inheritab
                 e.getMessage());
 
         }
+
+        if (state != null) {
+            try {
+                countTerm(vocabularyNode.get().getSession(), state);
+            } catch (RepositoryException | VocabularyIndexException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Tracks a <code>VocabularyTerm</code> node created directly by an indexer, instead of through
+     * {@link #createVocabularyTermNode(VocabularyTermSource, InheritableThreadLocal)}: the term is checked in if terms
+     * are versioned, and the session is saved every batch size terms. Does nothing if no install was started with
+     * {@link #createVocabularyNode(Node, VocabularyDescription, int, boolean) createVocabularyNode}.
+     *
+     * @param vocabularyTermNode the term node that was just created
+     * @throws VocabularyIndexException if saving a batch of terms fails
+     */
+    public static void addVocabularyTermNode(final Node vocabularyTermNode) throws VocabularyIndexException
+    {
+        final InstallState state = INSTALL_STATE.get();
+        if (state == null) {
+            return;
+        }
+        try {
+            if (state.versionTerms) {
+                state.nodesToCheckIn.add(vocabularyTermNode.getPath());
+            }
+            countTerm(vocabularyTermNode.getSession(), state);
+        } catch (RepositoryException e) {
+            String message = "Failed to save vocabulary terms: " + e.getMessage();
+            throw new VocabularyIndexException(message, e);
+        }
+    }
+
+    /**
+     * Checks if a vocabulary node is a new instance still being installed next to the previous one. Such a vocabulary
+     * is incomplete, and its terms duplicate the terms of the previous instance, so it must not be searched.
+     *
+     * @param path the path of a <code>Vocabulary</code> node
+     * @return {@code true} if the vocabulary is still being installed under a temporary name
+     */
+    public static boolean isTemporaryVocabulary(final String path)
+    {
+        return StringUtils.endsWith(path, TEMPORARY_SUFFIX);
     }
 
     /**
      * Creates a <code>Vocabulary</code> node that represents the current vocabulary instance with the identifier as the
-     * name of the node.
+     * name of the node. Terms are saved in batches of {@link #DEFAULT_BATCH_SIZE}, and each term is checked in.
      *
      * @param homepage <code>VocabulariesHomepage</code> node instance that will be parent of the new vocabulary node
      * @param description the vocabulary description, holding all the relevant information about the vocabulary
@@ -125,9 +192,41 @@ public static void createVocabularyTermNode(VocabularyTermSource term, Inheritab
      */
     public static Node createVocabularyNode(final Node homepage, final VocabularyDescription description)
         throws VocabularyIndexException
+    {
+        return createVocabularyNode(homepage, description, DEFAULT_BATCH_SIZE, true);
+    }
+
+    /**
+     * Creates a <code>Vocabulary</code> node that represents the current vocabulary instance with the identifier as the
+     * name of the node, and starts tracking the installation of its terms.
+     * <p>
+     * Since the session is saved after each batch of terms, a failed install leaves a partial vocabulary behind, which
+     * must be removed with {@link #abortInstall(Node)}. If a previous instance of the vocabulary exists, it is left in
+     * place while the new one is built under a temporary name, and it is only replaced by
+     * {@link #finalizeInstall(Node, InheritableThreadLocal) finalizeInstall} once all the terms were saved, so a failed
+     * install never loses it.
+     * </p>
+     *
+     * @param homepage <code>VocabulariesHomepage</code> node instance that will be parent of the new vocabulary node
+     * @param description the vocabulary description, holding all the relevant information about the vocabulary
+     * @param batchSize how many terms are created before saving the session; values lower than 1 are treated as 1
+     * @param versionTerms whether each term is checked in, creating a version for it; not versioning terms makes
+     *            installing large vocabularies much faster
+     * @return the <code>Vocabulary</code> node that was created
+     * @throws VocabularyIndexException when node cannot be created
+     */
+    public static Node createVocabularyNode(final Node homepage, final VocabularyDescription description,
+        final int batchSize, final boolean versionTerms)
+        throws VocabularyIndexException
     {
         try {
-            Node result = homepage.addNode("./" + description.getIdentifier(), "cards:Vocabulary");
+            final String name = description.getIdentifier();
+            final boolean replacing = homepage.hasNode(name);
+            if (homepage.hasNode(name + TEMPORARY_SUFFIX)) {
+                // Left behind by an install that didn't finish
+                homepage.getNode(name + TEMPORARY_SUFFIX).remove();
+            }
+            Node result = homepage.addNode("./" + (replacing ? name + TEMPORARY_SUFFIX : name), "cards:Vocabulary");
             result.setProperty("identifier", description.getIdentifier());
             result.setProperty("name", description.getName());
             result.setProperty("description", description.getDescription());
@@ -135,7 +234,8 @@ public static Node createVocabularyNode(final Node homepage, final VocabularyDes
             result.setProperty("version", description.getVersion());
             result.setProperty("website", description.getWebsite());
             result.setProperty("citation", description.getCitation());
-            NODES_TO_CHECK_IN.get().add(result);
+            INSTALL_STATE.set(new InstallState(result.getPath(), replacing ? homepage.getPath() + "/" + name : null,
+                batchSize, versionTerms));
             return result;
         } catch (RepositoryException e) {
             String message = "Failed to create Vocabulary node: " + e.getMessage();
@@ -164,48 +264,168 @@ private static void saveSession(Node vocabulariesHomepage)
     }
 
     /**
-     * Checks into JCR the list of JCR Nodes associated with the installation of a vocabulary.
+     * Checks into JCR the list of JCR Nodes saved since the last check-in.
      *
-     * @param vocabulariesHomepage the <code>VocabulariesHomepage</code> node obtained from the request
+     * @param session the session used for installing the vocabulary, with no pending changes
+     * @param state the state of the current install
      * @throws VocabularyIndexException if the checking-in of a Node fails
      */
-    private static void checkInVocabulary(Node vocabulariesHomepage) throws VocabularyIndexException
+    private static void checkInNodes(Session session, InstallState state) throws VocabularyIndexException
     {
         try {
-            final VersionManager vm = vocabulariesHomepage.getSession().getWorkspace().getVersionManager();
-            for (int i = 0; i < NODES_TO_CHECK_IN.get().size(); i++) {
-                vm.checkin(NODES_TO_CHECK_IN.get().get(i).getPath());
+            final VersionManager vm = session.getWorkspace().getVersionManager();
+            for (String path : state.nodesToCheckIn) {
+                vm.checkin(path);
             }
+            state.nodesToCheckIn.clear();
         } catch (RepositoryException e) {
             String message = "Failed to check-in vocabulary: " + e.getMessage();
             throw new VocabularyIndexException(message, e);
-        } finally {
-            //Cleanup
-            NODES_TO_CHECK_IN.remove();
         }
     }
 
     /**
-     * Finalizes the vocabulary install by saving the JCR session and checking in all the newly installed
-     * Vocabulary nodes.
+     * Counts a new term, and saves the current batch of terms once it is full.
+     *
+     * @param session the session used for installing the vocabulary
+     * @param state the state of the current install
+     * @throws VocabularyIndexException if saving or checking in fails
+     */
+    private static void countTerm(Session session, InstallState state) throws VocabularyIndexException
+    {
+        if (++state.unsavedTerms >= state.batchSize) {
+            saveBatch(session, state);
+        }
+    }
+
+    /**
+     * Saves a batch of terms, checks them in if terms are versioned, and reports the progress so far.
+     *
+     * @param session the session used for installing the vocabulary
+     * @param state the state of the current install
+     * @throws VocabularyIndexException if saving or checking in fails
+     */
+    private static void saveBatch(Session session, InstallState state) throws VocabularyIndexException
+    {
+        try {
+            session.save();
+        } catch (RepositoryException e) {
+            String message = "Failed to save vocabulary terms: " + e.getMessage();
+            throw new VocabularyIndexException(message, e);
+        }
+        checkInNodes(session, state);
+        state.savedTerms += state.unsavedTerms;
+        state.unsavedTerms = 0;
+        ++state.batches;
+        LOGGER.info("Indexed {} terms into {} ({} terms per second)", state.savedTerms, state.vocabularyPath,
+            state.getTermsPerSecond());
+    }
+
+    /**
+     * Finalizes the vocabulary install, for indexers that hold the vocabulary node in a thread local variable. See
+     * {@link #finalizeInstall(Node, Node)}.
      *
      * @param vocabulariesHomepage the <code>VocabulariesHomepage</code> node obtained from the request
      * @param vocabularyNode The vocabulary node that holds indexed data
-     * @throws VocabularyIndexException if the JCR session is not successfully saved or the checking-in of a Node fails
+     * @throws VocabularyIndexException if the JCR session is not successfully saved or the checking-in of a Node fails;
+     *             the install must then be cleaned up with {@link #abortInstall(Node)}
      */
     public static void finalizeInstall(Node vocabulariesHomepage, InheritableThreadLocal<Node> vocabularyNode)
         throws VocabularyIndexException
     {
-        setRootNodes(vocabularyNode);
-        saveSession(vocabulariesHomepage);
-        checkInVocabulary(vocabulariesHomepage);
+        finalizeInstall(vocabulariesHomepage, vocabularyNode.get());
+    }
+
+    /**
+     * Finalizes the vocabulary install by saving the JCR session and checking in all the newly installed
+     * Vocabulary nodes. If the new vocabulary was built next to a previous instance, the previous instance is then
+     * replaced by the new one, in a single save.
+     *
+     * @param vocabulariesHomepage the <code>VocabulariesHomepage</code> node obtained from the request
+     * @param vocabularyNode the vocabulary node that holds indexed data
+     * @throws VocabularyIndexException if the JCR session is not successfully saved or the checking-in of a Node fails;
+     *             the install must then be cleaned up with {@link #abortInstall(Node)}
+     */
+    public static void finalizeInstall(Node vocabulariesHomepage, Node vocabularyNode)
+        throws VocabularyIndexException
+    {
+        final InstallState state = INSTALL_STATE.get();
+        try {
+            setRootNodes(vocabularyNode);
+            saveSession(vocabulariesHomepage);
+            if (state != null) {
+                state.savedTerms += state.unsavedTerms;
+                state.unsavedTerms = 0;
+                ++state.batches;
+                // The vocabulary node is only checked in once all its terms were added
+                state.nodesToCheckIn.add(state.vocabularyPath);
+                checkInNodes(vocabulariesHomepage.getSession(), state);
+                if (state.replacedPath != null) {
+                    replace(vocabulariesHomepage.getSession(), state);
+                }
+                LOGGER.info("Installed {} terms into {} in {}s, with {} saves ({} terms per second)",
+                    state.savedTerms, state.vocabularyPath, (System.currentTimeMillis() - state.startTime) / 1000,
+                    state.batches, state.getTermsPerSecond());
+            }
+        } catch (RepositoryException e) {
+            throw new VocabularyIndexException("Failed to check-in vocabulary: " + e.getMessage(), e);
+        }
+        // On failure, the state is still needed for cleaning up in abortInstall
+        INSTALL_STATE.remove();
+    }
+
+    /**
+     * Replaces the previous instance of a vocabulary with the newly installed one.
+     *
+     * @param session the session used for installing the vocabulary, with no pending changes
+     * @param state the state of the current install
+     * @throws VocabularyIndexException if replacing fails, in which case the previous instance is kept
+     */
+    private static void replace(Session session, InstallState state) throws VocabularyIndexException
+    {
+        try {
+            session.getNode(state.replacedPath).remove();
+            session.move(state.vocabularyPath, state.replacedPath);
+            session.save();
+            state.vocabularyPath = state.replacedPath;
+        } catch (RepositoryException e) {
+            String message = "Failed to replace the previous vocabulary: " + e.getMessage();
+            throw new VocabularyIndexException(message, e);
+        }
+    }
+
+    /**
+     * Cleans up after a failed install: discards pending changes and removes the terms that were already saved. The
+     * previous instance of the vocabulary, if any, is left untouched.
+     *
+     * @param vocabulariesHomepage the <code>VocabulariesHomepage</code> node obtained from the request
+     */
+    public static void abortInstall(Node vocabulariesHomepage)
+    {
+        final InstallState state = INSTALL_STATE.get();
+        INSTALL_STATE.remove();
+        ROOT_NODES.remove();
+        if (state == null || vocabulariesHomepage == null) {
+            return;
+        }
+        try {
+            final Session session = vocabulariesHomepage.getSession();
+            session.refresh(false);
+            if (state.batches > 0 && session.nodeExists(state.vocabularyPath)) {
+                session.getNode(state.vocabularyPath).remove();
+                session.save();
+            }
+        } catch (RepositoryException e) {
+            LOGGER.error("Failed to remove partially installed vocabulary {}: {}", state.vocabularyPath,
+                e.getMessage(), e);
+        }
     }
 
     /**
      * Sets root Vocabulary nodes.
      * @param vocabularyNode The vocabulary node that holds indexed data
      */
-    private static void setRootNodes(InheritableThreadLocal<Node> vocabularyNode)
+    private static void setRootNodes(Node vocabularyNode)
     {
         Value[] roots = ROOT_NODES.get().stream()
                                         .map(item ->
@@ -221,9 +441,54 @@ private static void setRootNodes(InheritableThreadLocal<Node> vocabularyNode)
         //Cleanup
         ROOT_NODES.remove();
         try {
-            vocabularyNode.get().setProperty("roots", roots);
+            vocabularyNode.setProperty("roots", roots);
         } catch (Exception e) {
             LOGGER.error("Failed to set vocabulary roots: {}", e.getMessage(), e);
         }
     }
+
+    /** Tracks the installation of a vocabulary. */
+    private static final class InstallState
+    {
+        /** The path of the vocabulary node. */
+        private String vocabularyPath;
+
+        /** The path of the previous instance of the vocabulary, replaced once the install is complete, if any. */
+        private final String replacedPath;
+
+        /** How many terms are created before saving the session. */
+        private final int batchSize;
+
+        /** Whether terms are checked in. */
+        private final boolean versionTerms;
+
+        /** The paths of the nodes saved, or about to be saved, but not checked in yet. */
+        private final List<String> nodesToCheckIn = new ArrayList<>();
+
+        /** When the install started. */
+        private final long startTime = System.currentTimeMillis();
+
+        /** How many terms were created since the last save. */
+        private int unsavedTerms;
+
+        /** How many terms were saved so far. */
+        private long savedTerms;
+
+        /** How many times the session was saved so far. */
+        private int batches;
+
+        InstallState(final String vocabularyPath, final String replacedPath, final int batchSize,
+            final boolean versionTerms)
+        {
+            this.vocabularyPath = vocabularyPath;
+            this.replacedPath = replacedPath;
+            this.batchSize = Math.max(1, batchSize);
+            this.versionTerms = versionTerms;
+        }
+
+        long getTermsPerSecond()
+        {
+            return this.savedTerms * 1000 / Math.max(1, System.currentTimeMillis() - this.startTime);
+        }
+    }
 }
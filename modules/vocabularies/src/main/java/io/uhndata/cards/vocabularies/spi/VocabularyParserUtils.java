@@ -55,14 +55,8 @@ public void clearVocabularyNode(final Node homepage, final String name, final St
     {
         try {
             // Only delete the node if it exists
-            if (homepage.hasNode(name)) {
-                if (overwrite != null && "true".equalsIgnoreCase(overwrite)) {
-                    Node target = homepage.getNode(name);
-                    target.remove();
-                } else {
-                    throw new VocabularyIndexException("The identifier you specified already exists in the"
-                        + " repository and you did not ");
-                }
+            if (checkVocabularyNode(homepage, name, overwrite)) {
+                homepage.getNode(name).remove();
             }
         } catch (RepositoryException e) {
             String message = "Error: Failed to delete existing Vocabulary node. " + e.getMessage();
@@ -70,6 +64,36 @@ public void clearVocabularyNode(final Node homepage, final String name, final St
         }
     }
 
+    /**
+     * Checks if a vocabulary can be installed without removing any previous instance right away, for installs that
+     * only replace the previous instance once the new one is complete. An exception is thrown if the overwrite
+     * parameter is not enabled and a vocabulary of the given name already exists in the repository.
+     *
+     * @param homepage an instance of the VocabulariesHomepage node serving as the root of Vocabulary nodes
+     * @param name the identifier of the vocabulary which will become its node name
+     * @param overwrite signals whether a pre-existing vocabulary is to be overwritten by one with the same name
+     * @return {@code true} if a previous instance exists and will be overwritten, {@code false} if there is no
+     *         previous instance
+     * @throws VocabularyIndexException thrown when a previous instance exists and cannot be overwritten
+     */
+    public boolean checkVocabularyNode(final Node homepage, final String name, final String overwrite)
+        throws VocabularyIndexException
+    {
+        try {
+            if (!homepage.hasNode(name)) {
+                return false;
+            }
+        } catch (RepositoryException e) {
+            String message = "Error: Failed to access existing Vocabulary node. " + e.getMessage();
+            throw new VocabularyIndexException(message, e);
+        }
+        if (overwrite != null && "true".equalsIgnoreCase(overwrite)) {
+            return true;
+        }
+        throw new VocabularyIndexException("The identifier you specified already exists in the"
+            + " repository and you did not ");
+    }
+
     /**
      * Writes a json to the http response consisting of two entries.
      * <p>
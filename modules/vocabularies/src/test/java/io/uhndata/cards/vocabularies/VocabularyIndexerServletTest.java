@@ -32,6 +32,8 @@
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
+import javax.jcr.Workspace;
+import javax.jcr.version.VersionManager;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
@@ -347,7 +349,12 @@ public void testNCITFlatIndexing()
         // Set up mock repository
 
         // Instantiate a MockJcr session and register a Resource to Node adapter to it
-        final Session session = MockJcr.newSession();
+        // Versioning isn't supported by MockJcr, so check-ins are recorded by a mock VersionManager instead
+        final Session session = Mockito.spy(MockJcr.newSession());
+        final Workspace workspace = Mockito.mock(Workspace.class);
+        final VersionManager versionManager = Mockito.mock(VersionManager.class);
+        Mockito.doReturn(workspace).when(session).getWorkspace();
+        Mockito.when(workspace.getVersionManager()).thenReturn(versionManager);
         registerResourceToNodeAdapter(session);
 
         // BundleContext and ResourceResolver for creating resources and instantiating requests
@@ -381,6 +388,10 @@ public void testNCITFlatIndexing()
         // Check nodes representing terms C100005 and C100008 have the correct properties
         ncitFlatTestC100005(vocabNode);
         ncitFlatTestC100008(vocabNode);
+
+        // Check that the terms and the vocabulary were checked in once installed
+        Mockito.verify(versionManager).checkin(vocabNode.getPath() + "/C100005");
+        Mockito.verify(versionManager).checkin(vocabNode.getPath());
     }
 
     /**
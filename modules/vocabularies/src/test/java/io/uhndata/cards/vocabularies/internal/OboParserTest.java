@@ -23,9 +23,13 @@
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.Assert;
@@ -49,6 +53,8 @@
 {
     private static final List<VocabularyTermSource> PARSED_TERMS = new ArrayList<>();
 
+    private static final List<VocabularyTermSource> HIERARCHY_TERMS = new ArrayList<>();
+
     @BeforeClass
     public static void parse() throws IOException, VocabularyIndexException, URISyntaxException
     {
@@ -64,6 +70,9 @@ public void accept(VocabularyTermSource t)
                 PARSED_TERMS.add(t);
             }
         });
+
+        f = new File(OboParserTest.class.getResource("/hierarchy.obo").toURI());
+        parser.parse(f, description, HIERARCHY_TERMS::add);
     }
 
     @Test
@@ -355,6 +364,70 @@ public void trailingBackslashIsIgnored()
         Assert.assertEquals("If the file ends with a backslash, it will be trimmed away", term.getLabel());
     }
 
+    @Test
+    public void termsAreSentOnceTheirLastFrameIsRead()
+    {
+        Assert.assertEquals(Arrays.asList("TEST:GRANDCHILD", "TEST:CHILD", "TEST:OTHER", "TEST:ROOT", "TEST:SPLIT",
+            "TEST:CYCLE1", "TEST:CYCLE2"),
+            HIERARCHY_TERMS.stream().map(VocabularyTermSource::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void ancestorsDefinedLaterInTheFileAreGathered()
+    {
+        VocabularyTermSource term = getHierarchyTerm("TEST:GRANDCHILD");
+        Assert.assertEquals(asSet("TEST:CHILD", "TEST:OTHER"), asSet(term.getParents()));
+        // TEST:ROOT is inherited through both parents, but only listed once
+        Assert.assertEquals(4, term.getAncestors().length);
+        Assert.assertEquals(asSet("TEST:CHILD", "TEST:OTHER", "TEST:ROOT", "TEST:EXTERNAL"),
+            asSet(term.getAncestors()));
+    }
+
+    @Test
+    public void framesOfTheSameTermAreMerged()
+    {
+        VocabularyTermSource term = getHierarchyTerm("TEST:SPLIT");
+        Assert.assertEquals("Split term", term.getLabel());
+        Assert.assertEquals("Described in a second frame", term.getDescription());
+        Assert.assertEquals(asSet("Third frame"), term.getAllProperties().get("synonym"));
+        Assert.assertEquals(asSet("TEST:SPLIT"), term.getAllProperties().get("id"));
+    }
+
+    @Test
+    public void parentsFromAllFramesContributeAncestors()
+    {
+        VocabularyTermSource term = getHierarchyTerm("TEST:SPLIT");
+        Assert.assertEquals(asSet("TEST:ROOT", "TEST:OTHER"), asSet(term.getParents()));
+        Assert.assertEquals(asSet("TEST:ROOT", "TEST:OTHER", "TEST:EXTERNAL"), asSet(term.getAncestors()));
+    }
+
+    @Test
+    public void parentsMissingFromTheSourceAreInherited()
+    {
+        Assert.assertEquals(asSet("TEST:ROOT", "TEST:EXTERNAL"), asSet(getHierarchyTerm("TEST:OTHER").getAncestors()));
+        Assert.assertEquals(0, getHierarchyTerm("TEST:ROOT").getAncestors().length);
+    }
+
+    @Test
+    public void cyclesDoNotMakeTermsTheirOwnAncestors()
+    {
+        Assert.assertEquals(asSet("TEST:CYCLE2"), asSet(getHierarchyTerm("TEST:CYCLE1").getAncestors()));
+        Assert.assertEquals(asSet("TEST:CYCLE1"), asSet(getHierarchyTerm("TEST:CYCLE2").getAncestors()));
+    }
+
+    private VocabularyTermSource getHierarchyTerm(final String id)
+    {
+        final VocabularyTermSource result =
+            HIERARCHY_TERMS.stream().filter(term -> id.equals(term.getId())).findFirst().orElse(null);
+        Assert.assertNotNull(result);
+        return result;
+    }
+
+    private static Set<String> asSet(final String... values)
+    {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
     private VocabularyTermSource getTerm(final String id)
     {
         return PARSED_TERMS.stream().filter(term -> id.equals(term.getId())).findFirst().orElse(null);
@@ -0,0 +1,238 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*   http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package io.uhndata.cards.vocabularies.internal;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.version.VersionManager;
+
+import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import io.uhndata.cards.vocabularies.spi.VocabularyDescription;
+import io.uhndata.cards.vocabularies.spi.VocabularyDescriptionBuilder;
+import io.uhndata.cards.vocabularies.spi.VocabularyIndexException;
+import io.uhndata.cards.vocabularies.spi.VocabularyTermSource;
+
+/**
+ * Unit tests for {@link OntologyIndexerUtils}.
+ *
+ * @version $Id$
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class OntologyIndexerUtilsTest
+{
+    private static final String VOCABULARY_PATH = "/Vocabularies/TEST";
+
+    private static final String TEMPORARY_PATH = VOCABULARY_PATH + ".installing";
+
+    private static final String TERM_PATH = VOCABULARY_PATH + "/TEST0001";
+
+    @Mock
+    private Node homepage;
+
+    @Mock
+    private Node vocabulary;
+
+    @Mock
+    private Node term;
+
+    @Mock
+    private Node previousVocabulary;
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Workspace workspace;
+
+    @Mock
+    private VersionManager versionManager;
+
+    private final InheritableThreadLocal<Node> vocabularyNode = new InheritableThreadLocal<>();
+
+    private final VocabularyDescription description = new VocabularyDescriptionBuilder().withIdentifier("TEST").build();
+
+    @Before
+    public void setup() throws RepositoryException
+    {
+        Mockito.when(this.homepage.addNode(Mockito.anyString(), Mockito.eq("cards:Vocabulary")))
+            .thenReturn(this.vocabulary);
+        Mockito.when(this.homepage.getSession()).thenReturn(this.session);
+        Mockito.when(this.homepage.getPath()).thenReturn("/Vocabularies");
+        Mockito.when(this.vocabulary.getPath()).thenReturn(VOCABULARY_PATH);
+        Mockito.when(this.vocabulary.getSession()).thenReturn(this.session);
+        Mockito.when(this.vocabulary.addNode(Mockito.anyString(), Mockito.eq("cards:VocabularyTerm")))
+            .thenReturn(this.term);
+        Mockito.when(this.term.getPath()).thenReturn(TERM_PATH);
+        Mockito.when(this.term.getSession()).thenReturn(this.session);
+        Mockito.when(this.session.getWorkspace()).thenReturn(this.workspace);
+        Mockito.when(this.workspace.getVersionManager()).thenReturn(this.versionManager);
+    }
+
+    @After
+    public void cleanup()
+    {
+        OntologyIndexerUtils.abortInstall(null);
+    }
+
+    @Test
+    public void termsAreSavedInBatches() throws VocabularyIndexException, RepositoryException
+    {
+        install(2, true, 5);
+        // Two full batches while creating terms
+        Mockito.verify(this.session, Mockito.times(2)).save();
+        Mockito.verify(this.versionManager, Mockito.times(4)).checkin(TERM_PATH);
+
+        OntologyIndexerUtils.finalizeInstall(this.homepage, this.vocabularyNode);
+        // The last partial batch, along with the vocabulary node itself
+        Mockito.verify(this.session, Mockito.times(3)).save();
+        Mockito.verify(this.versionManager, Mockito.times(5)).checkin(TERM_PATH);
+        Mockito.verify(this.versionManager).checkin(VOCABULARY_PATH);
+    }
+
+    @Test
+    public void termVersioningCanBeSkipped() throws VocabularyIndexException, RepositoryException
+    {
+        install(2, false, 5);
+        OntologyIndexerUtils.finalizeInstall(this.homepage, this.vocabularyNode);
+
+        Mockito.verify(this.session, Mockito.times(3)).save();
+        Mockito.verify(this.versionManager, Mockito.never()).checkin(TERM_PATH);
+        Mockito.verify(this.versionManager).checkin(VOCABULARY_PATH);
+    }
+
+    @Test
+    public void abortingRemovesSavedTerms() throws VocabularyIndexException, RepositoryException
+    {
+        Mockito.when(this.session.nodeExists(VOCABULARY_PATH)).thenReturn(true);
+        Mockito.when(this.session.getNode(VOCABULARY_PATH)).thenReturn(this.vocabulary);
+        install(2, true, 3);
+
+        OntologyIndexerUtils.abortInstall(this.homepage);
+        Mockito.verify(this.session).refresh(false);
+        Mockito.verify(this.vocabulary).remove();
+        Mockito.verify(this.session, Mockito.times(2)).save();
+    }
+
+    @Test
+    public void abortingBeforeTheFirstSaveOnlyDiscardsChanges() throws VocabularyIndexException, RepositoryException
+    {
+        install(10, true, 3);
+
+        OntologyIndexerUtils.abortInstall(this.homepage);
+        Mockito.verify(this.session).refresh(false);
+        Mockito.verify(this.vocabulary, Mockito.never()).remove();
+        Mockito.verify(this.session, Mockito.never()).save();
+    }
+
+    @Test
+    public void previousVocabularyIsOnlyReplacedOnceComplete() throws VocabularyIndexException, RepositoryException
+    {
+        replacePreviousVocabulary();
+        install(2, true, 5);
+        Mockito.verify(this.homepage).addNode("./TEST.installing", "cards:Vocabulary");
+        Mockito.verify(this.previousVocabulary, Mockito.never()).remove();
+
+        OntologyIndexerUtils.finalizeInstall(this.homepage, this.vocabularyNode);
+        Mockito.verify(this.versionManager).checkin(TEMPORARY_PATH);
+        Mockito.verify(this.previousVocabulary).remove();
+        Mockito.verify(this.session).move(TEMPORARY_PATH, VOCABULARY_PATH);
+        // Two full batches, the last partial batch, and the replacement
+        Mockito.verify(this.session, Mockito.times(4)).save();
+    }
+
+    @Test
+    public void abortingKeepsThePreviousVocabulary() throws VocabularyIndexException, RepositoryException
+    {
+        replacePreviousVocabulary();
+        Mockito.when(this.session.nodeExists(TEMPORARY_PATH)).thenReturn(true);
+        Mockito.when(this.session.getNode(TEMPORARY_PATH)).thenReturn(this.vocabulary);
+        install(2, true, 3);
+
+        OntologyIndexerUtils.abortInstall(this.homepage);
+        Mockito.verify(this.session).refresh(false);
+        Mockito.verify(this.vocabulary).remove();
+        Mockito.verify(this.previousVocabulary, Mockito.never()).remove();
+        Mockito.verify(this.session, Mockito.never()).move(Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    public void termsCreatedByIndexersAreSavedInBatches() throws VocabularyIndexException, RepositoryException
+    {
+        Node installed = OntologyIndexerUtils.createVocabularyNode(this.homepage, this.description, 2, true);
+        for (int i = 0; i < 5; ++i) {
+            OntologyIndexerUtils.addVocabularyTermNode(this.term);
+        }
+        Mockito.verify(this.session, Mockito.times(2)).save();
+        Mockito.verify(this.versionManager, Mockito.times(4)).checkin(TERM_PATH);
+
+        OntologyIndexerUtils.finalizeInstall(this.homepage, installed);
+        Mockito.verify(this.session, Mockito.times(3)).save();
+        Mockito.verify(this.versionManager, Mockito.times(5)).checkin(TERM_PATH);
+        Mockito.verify(this.versionManager).checkin(VOCABULARY_PATH);
+    }
+
+    @Test
+    public void termsCreatedOutsideAnInstallAreNotTracked() throws VocabularyIndexException, RepositoryException
+    {
+        for (int i = 0; i < OntologyIndexerUtils.DEFAULT_BATCH_SIZE; ++i) {
+            OntologyIndexerUtils.addVocabularyTermNode(this.term);
+        }
+        Mockito.verify(this.session, Mockito.never()).save();
+        Mockito.verify(this.versionManager, Mockito.never()).checkin(Mockito.anyString());
+    }
+
+    @Test
+    public void onlyVocabulariesBeingReplacedAreTemporary()
+    {
+        Assert.assertTrue(OntologyIndexerUtils.isTemporaryVocabulary(TEMPORARY_PATH));
+        Assert.assertFalse(OntologyIndexerUtils.isTemporaryVocabulary(VOCABULARY_PATH));
+        Assert.assertFalse(OntologyIndexerUtils.isTemporaryVocabulary(null));
+    }
+
+    private void replacePreviousVocabulary() throws RepositoryException
+    {
+        Mockito.when(this.homepage.hasNode("TEST")).thenReturn(true);
+        Mockito.when(this.homepage.getNode("TEST")).thenReturn(this.previousVocabulary);
+        Mockito.when(this.session.getNode(VOCABULARY_PATH)).thenReturn(this.previousVocabulary);
+        Mockito.when(this.vocabulary.getPath()).thenReturn(TEMPORARY_PATH);
+    }
+
+    private void install(final int batchSize, final boolean versionTerms, final int termCount)
+        throws VocabularyIndexException
+    {
+        this.vocabularyNode.set(
+            OntologyIndexerUtils.createVocabularyNode(this.homepage, this.description, batchSize, versionTerms));
+        for (int i = 0; i < termCount; ++i) {
+            OntologyIndexerUtils.createVocabularyTermNode(new VocabularyTermSource("TEST:000" + i, "Term " + i,
+                new String[] { "TEST:0000" }, new String[] { "TEST:0000" }, new ArrayListValuedHashMap<>()),
+                this.vocabularyNode);
+        }
+    }
+}